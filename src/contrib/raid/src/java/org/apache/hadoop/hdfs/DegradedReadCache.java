@@ -0,0 +1,328 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * A bounded cache of the blocks reconstructed by the readers of a
+ * DistributedRaidFileSystem. The reconstructed blocks are files on the
+ * recovery filesystem, which is the local disk if
+ * fs.raid.recoveryfs.uselocal is set.
+ *
+ * Readers that need the same block share one reconstruction, and a block
+ * stays around after its readers are done with it, until the total size
+ * of the cached blocks exceeds the capacity. The least recently used
+ * blocks that are not being read are deleted first.
+ *
+ * This class can be used by multiple threads.
+ */
+public class DegradedReadCache {
+  public static final Log LOG = LogFactory.getLog(DegradedReadCache.class);
+
+  public static final String CACHE_SIZE_KEY = "fs.raid.blockcache.size";
+  // The cache is disabled by default.
+  public static final long DEFAULT_CACHE_SIZE = 0;
+
+  /**
+   * Reconstructs a block into a file on the recovery filesystem.
+   */
+  public interface Reconstructor {
+    /**
+     * @return The file holding the block, or null if the block could not
+     *         be reconstructed.
+     */
+    Path reconstruct() throws IOException;
+  }
+
+  /**
+   * Identifies a reconstructed block. The generation is the modification
+   * time of the file, so that a rewritten file does not use stale blocks.
+   * The codec is part of the key because each codec is a separate attempt
+   * to reconstruct the block.
+   */
+  public static class BlockKey {
+    private final Path path;
+    private final long offset;
+    private final long generation;
+    private final String codecId;
+
+    public BlockKey(Path path, long offset, long generation, String codecId) {
+      this.path = path;
+      this.offset = offset;
+      this.generation = generation;
+      this.codecId = codecId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof BlockKey)) {
+        return false;
+      }
+      BlockKey other = (BlockKey) o;
+      return path.equals(other.path) && offset == other.offset &&
+        generation == other.generation && codecId.equals(other.codecId);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = path.hashCode();
+      result = 31 * result + (int) (offset ^ (offset >>> 32));
+      result = 31 * result + (int) (generation ^ (generation >>> 32));
+      result = 31 * result + codecId.hashCode();
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      return path + ":" + offset + "@" + generation + "/" + codecId;
+    }
+  }
+
+  /**
+   * A cached block. It is not deleted while it is acquired.
+   */
+  public static class CachedBlock {
+    private final BlockKey key;
+    private Path path;
+    private long length;
+    private int refCount = 0;
+    // Set once the reconstruction has finished, successfully or not.
+    private boolean done = false;
+    private IOException error;
+
+    CachedBlock(BlockKey key) {
+      this.key = key;
+    }
+
+    public Path getPath() {
+      return path;
+    }
+  }
+
+  private final FileSystem recoveryFs;
+  private final long capacity;
+  private long size = 0;
+  // Access ordered, the least recently used block first.
+  private final LinkedHashMap<BlockKey, CachedBlock> blocks =
+    new LinkedHashMap<BlockKey, CachedBlock>(16, 0.75f, true);
+
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  public DegradedReadCache(FileSystem recoveryFs, long capacity) {
+    this.recoveryFs = recoveryFs;
+    this.capacity = capacity;
+  }
+
+  /**
+   * Gets a reconstructed block, reconstructing it if it is not cached.
+   * If another thread is reconstructing the block, waits for it.
+   * The block must be released once it has been read.
+   * @return The block, or null if it could not be reconstructed.
+   */
+  public CachedBlock acquire(BlockKey key, Reconstructor reconstructor)
+      throws IOException {
+    CachedBlock block;
+    boolean reconstruct = false;
+    synchronized (this) {
+      block = blocks.get(key);
+      if (block == null) {
+        block = new CachedBlock(key);
+        blocks.put(key, block);
+        reconstruct = true;
+        misses++;
+      } else {
+        hits++;
+      }
+      block.refCount++;
+    }
+
+    if (reconstruct) {
+      Path path = null;
+      long length = 0;
+      IOException error = null;
+      try {
+        path = reconstructor.reconstruct();
+        if (path != null) {
+          length = recoveryFs.getFileStatus(path).getLen();
+        }
+      } catch (IOException e) {
+        error = e;
+      } catch (RuntimeException e) {
+        error = new IOException(e);
+      }
+      List<Path> toDelete;
+      synchronized (this) {
+        block.path = path;
+        block.length = length;
+        block.error = error;
+        block.done = true;
+        if (path == null) {
+          // Failures are not cached.
+          blocks.remove(key);
+          block.refCount--;
+        } else {
+          size += length;
+        }
+        toDelete = evict();
+        notifyAll();
+      }
+      delete(toDelete);
+    } else {
+      synchronized (this) {
+        try {
+          while (!block.done) {
+            wait();
+          }
+        } catch (InterruptedException e) {
+          block.refCount--;
+          throw new InterruptedIOException(
+            "Interrupted while waiting for block " + key);
+        }
+        if (block.path == null) {
+          block.refCount--;
+        }
+      }
+    }
+
+    if (block.error != null) {
+      throw block.error;
+    }
+    return block.path == null ? null : block;
+  }
+
+  /**
+   * Gets a block only if it is already reconstructed. The block must be
+   * released once it has been read.
+   * @return The block, or null if it is not cached or still being
+   *         reconstructed.
+   */
+  public synchronized CachedBlock lookup(BlockKey key) {
+    CachedBlock block = blocks.get(key);
+    if (block == null || !block.done || block.path == null) {
+      return null;
+    }
+    hits++;
+    block.refCount++;
+    return block;
+  }
+
+  /**
+   * Releases a block acquired with acquire() or lookup().
+   */
+  public void release(CachedBlock block) throws IOException {
+    List<Path> toDelete;
+    synchronized (this) {
+      block.refCount--;
+      toDelete = evict();
+    }
+    delete(toDelete);
+  }
+
+  /**
+   * Removes the least recently used blocks that are not in use until the
+   * cache fits its capacity.
+   * @return The files of the removed blocks.
+   */
+  private List<Path> evict() {
+    List<Path> toDelete = new ArrayList<Path>();
+    Iterator<CachedBlock> it = blocks.values().iterator();
+    while (size > capacity && it.hasNext()) {
+      CachedBlock block = it.next();
+      if (block.done && block.refCount == 0) {
+        it.remove();
+        size -= block.length;
+        evictions++;
+        toDelete.add(block.path);
+      }
+    }
+    return toDelete;
+  }
+
+  private void delete(List<Path> paths) {
+    for (Path p : paths) {
+      LOG.info("Deleting cached block-file " + p);
+      try {
+        recoveryFs.delete(p, false);
+      } catch (IOException e) {
+        LOG.warn("Could not delete cached block-file " + p, e);
+      }
+    }
+  }
+
+  /**
+   * Deletes all the cached blocks.
+   */
+  public void close() {
+    List<Path> toDelete = new ArrayList<Path>();
+    synchronized (this) {
+      for (CachedBlock block : blocks.values()) {
+        if (block.done) {
+          toDelete.add(block.path);
+        }
+      }
+      blocks.clear();
+      size = 0;
+      LOG.info("Closing block cache: " + this);
+    }
+    delete(toDelete);
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  public synchronized double getHitRate() {
+    long total = hits + misses;
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  public synchronized long getSize() {
+    return size;
+  }
+
+  public synchronized int getNumBlocks() {
+    return blocks.size();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "blocks=" + blocks.size() + " size=" + size + " hits=" + hits +
+      " misses=" + misses + " evictions=" + evictions;
+  }
+}
@@ -21,14 +21,18 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.DataInput;
 import java.io.PrintStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 
@@ -51,6 +55,7 @@ import org.apache.hadoop.fs.RemoteIterator;
 import org.apache.hadoop.hdfs.DistributedFileSystem;
 import org.apache.hadoop.raid.Codec;
 import org.apache.hadoop.raid.Decoder;
+import org.apache.hadoop.raid.ParityFilePair;
 import org.apache.hadoop.raid.RaidNode;
 import org.apache.hadoop.util.ReflectionUtils;
 
@@ -65,6 +70,8 @@ public class DistributedRaidFileSystem extends FilterFileSystem {
   public static final int SKIP_BUF_SIZE = 2048;
 
   Configuration conf;
+  // Blocks reconstructed by the readers, or null if disabled.
+  DegradedReadCache blockCache;
 
   DistributedRaidFileSystem() throws IOException {
   }
@@ -86,6 +93,15 @@ public class DistributedRaidFileSystem extends FilterFileSystem {
     
     this.fs = (FileSystem)ReflectionUtils.newInstance(clazz, null); 
     super.initialize(name, conf);
+
+    long cacheSize = conf.getLong(DegradedReadCache.CACHE_SIZE_KEY,
+      DegradedReadCache.DEFAULT_CACHE_SIZE);
+    if (cacheSize > 0) {
+      FileSystem recoveryFs =
+        conf.getBoolean("fs.raid.recoveryfs.uselocal", false) ?
+        FileSystem.getLocal(conf) : fs;
+      this.blockCache = new DegradedReadCache(recoveryFs, cacheSize);
+    }
   }
 
   /*
@@ -95,6 +111,13 @@ public class DistributedRaidFileSystem extends FilterFileSystem {
     return fs;
   }
 
+  /*
+   * Returns the cache of reconstructed blocks, or null if it is disabled.
+   */
+  public DegradedReadCache getBlockCache() {
+    return blockCache;
+  }
+
   @Override
   public FSDataInputStream open(Path f, int bufferSize) throws IOException {
     FileStatus stat = getFileStatus(f);
@@ -108,6 +131,9 @@ public class DistributedRaidFileSystem extends FilterFileSystem {
   }
 
   public void close() throws IOException {
+    if (blockCache != null) {
+      blockCache.close();
+    }
     if (fs != null) {
       try {
         fs.close();
@@ -118,6 +144,45 @@ public class DistributedRaidFileSystem extends FilterFileSystem {
     super.close();
   }
 
+  /**
+   * Writes into a range of a byte array. Writing past the end of the range
+   * fails.
+   */
+  static class RangeOutputStream extends OutputStream {
+    private final byte[] buf;
+    private final int offset;
+    private final int len;
+    private int written = 0;
+
+    RangeOutputStream(byte[] buf, int offset, int len) {
+      this.buf = buf;
+      this.offset = offset;
+      this.len = len;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (written >= len) {
+        throw new IOException("Range of " + len + " bytes is full");
+      }
+      buf[offset + written++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int n) throws IOException {
+      if (n > len - written) {
+        throw new IOException("Cannot write " + n + " bytes, " +
+          (len - written) + " left in range of " + len + " bytes");
+      }
+      System.arraycopy(b, off, buf, offset + written, n);
+      written += n;
+    }
+
+    int getWritten() {
+      return written;
+    }
+  }
+
   /**
    * Layered filesystem input stream. This input stream tries reading
    * from alternate locations if it encoumters read errors in the primary location.
@@ -163,7 +228,20 @@ public class DistributedRaidFileSystem extends FilterFileSystem {
       private long fileSize;
       private final int buffersize;
       private final Configuration conf;
+      // Positional reads of missing blocks reconstruct only the range read.
+      private final boolean partialRecovery;
+      private boolean inPositionalRead = false;
       private Set<Path> recoveredPaths = new HashSet<Path>();
+      // Recovered blocks that belong to the block cache.
+      private List<DegradedReadCache.CachedBlock> cachedBlocks =
+        new ArrayList<DegradedReadCache.CachedBlock>();
+      // Parity files and decoders of the range reads, by codec id. A codec
+      // without a parity file maps to null.
+      private Map<String, ParityFilePair> rangeParityFiles =
+        new HashMap<String, ParityFilePair>();
+      private Map<String, Decoder> rangeDecoders =
+        new HashMap<String, Decoder>();
+      private FileSystem rangeSrcFs;
 
       ExtFsInputStream(Configuration conf, DistributedRaidFileSystem lfs,
           Path path, FileStatus stat, int buffersize) throws IOException {
@@ -189,6 +267,8 @@ public class DistributedRaidFileSystem extends FilterFileSystem {
         this.buffersize = buffersize;
         this.conf = conf;
         this.lfs = lfs;
+        this.partialRecovery =
+          conf.getBoolean("fs.raid.recovery.partial", true);
         // Recover to HDFS by default.
         this.localRecovery = conf.getBoolean("fs.raid.recoveryfs.uselocal", false);
         if (localRecovery) {
@@ -259,6 +339,20 @@ public class DistributedRaidFileSystem extends FilterFileSystem {
       public synchronized  void close() throws IOException {
         closeCurrentStream();
         super.close();
+        for (DegradedReadCache.CachedBlock block: cachedBlocks) {
+          recoveredPaths.remove(block.getPath());
+          lfs.blockCache.release(block);
+        }
+        cachedBlocks.clear();
+        for (Decoder decoder: rangeDecoders.values()) {
+          decoder.close();
+        }
+        rangeDecoders.clear();
+        rangeParityFiles.clear();
+        if (rangeSrcFs != null) {
+          rangeSrcFs.close();
+          rangeSrcFs = null;
+        }
         for (Path p: recoveredPaths) {
           LOG.info("Deleting recovered block-file " + p);
           recoverFs.delete(p, false);
@@ -303,15 +397,21 @@ public class DistributedRaidFileSystem extends FilterFileSystem {
             return -1;
           }
           openCurrentStream();
+          int limit = Math.min(blockAvailable(), len);
           try{
-            int limit = Math.min(blockAvailable(), len);
             int value = currentStream.read(b, offset, limit);
             currentOffset += value;
             nextLocation = 0;
             return value;
           } catch (BlockMissingException e) {
+            if (readRange(b, offset, limit)) {
+              return limit;
+            }
             setAlternateLocations(e, currentOffset);
           } catch (ChecksumException e) {
+            if (readRange(b, offset, limit)) {
+              return limit;
+            }
             setAlternateLocations(e, currentOffset);
           }
         }
@@ -322,9 +422,11 @@ public class DistributedRaidFileSystem extends FilterFileSystem {
         throws IOException {
         long oldPos = currentOffset;
         seek(position);
+        inPositionalRead = true;
         try {
           return read(b, offset, len);
         } finally {
+          inPositionalRead = false;
           seek(oldPos);
         }
       }
@@ -386,10 +488,11 @@ public class DistributedRaidFileSystem extends FilterFileSystem {
        * position readable again.
        */
       @Override
-      public void readFully(long pos, byte[] b, int offset, int length) 
-        throws IOException {
+      public synchronized void readFully(long pos, byte[] b, int offset,
+        int length) throws IOException {
         long oldPos = currentOffset;
         seek(pos);
+        inPositionalRead = true;
         try {
           while (true) {
             // This loop retries reading until successful. Unrecoverable errors
@@ -413,6 +516,7 @@ public class DistributedRaidFileSystem extends FilterFileSystem {
             }
           }
         } finally {
+          inPositionalRead = false;
           seek(oldPos);
         }
       }
@@ -432,6 +536,133 @@ public class DistributedRaidFileSystem extends FilterFileSystem {
         }
       }
 
+      /**
+       * Configuration for unRaid. Make sure we use DFS and not
+       * DistributedRaidFileSystem for unRaid.
+       */
+      private Configuration getClientConf() {
+        Configuration clientConf = new Configuration(conf);
+        Class<?> clazz = conf.getClass("fs.raid.underlyingfs.impl",
+                                            DistributedFileSystem.class);
+        clientConf.set("fs.hdfs.impl", clazz.getName());
+        // Disable caching so that a previously cached RaidDfs is not used.
+        clientConf.setBoolean("fs.hdfs.impl.disable.cache", true);
+        return clientConf;
+      }
+
+      /**
+       * Reconstructs just the range of the current block that a positional
+       * read asks for, instead of the whole block. The range is read from
+       * the block cache if the block was already reconstructed, otherwise
+       * it is decoded from the same range of the other blocks in the
+       * stripe straight into b.
+       * @return true if len bytes at currentOffset were read into b.
+       */
+      private boolean readRange(byte[] b, int offset, int len) {
+        if (!inPositionalRead || !partialRecovery || len <= 0) {
+          return false;
+        }
+        if (readCachedRange(b, offset, len)) {
+          return true;
+        }
+        for (Codec codec : Codec.getCodecs()) {
+          try {
+            Decoder decoder = getRangeDecoder(codec);
+            if (decoder == null) {
+              continue;
+            }
+            RangeOutputStream out = new RangeOutputStream(b, offset, len);
+            RaidNode.unRaidCorruptRange(rangeSrcFs, path, stat,
+                rangeParityFiles.get(codec.id), decoder, currentOffset, len,
+                out);
+            if (out.getWritten() != len) {
+              LOG.info("Reconstructed " + out.getWritten() +
+                " bytes instead of " + len + " at " + path + ":" +
+                currentOffset);
+              continue;
+            }
+            LOG.info("Reconstructed range " + currentOffset + ":" + len +
+              " of " + path + " using " + codec.id);
+            currentOffset += len;
+            nextLocation = 0;
+            return true;
+          } catch (Exception e) {
+            LOG.info("Ignoring error in reconstructing range of " + path, e);
+          }
+        }
+        return false;
+      }
+
+      /**
+       * Returns the decoder of the codec for range reads, looking up the
+       * parity file the first time the codec is used by this stream.
+       * @return null if there is no parity file for the codec.
+       */
+      private Decoder getRangeDecoder(Codec codec) throws IOException {
+        Decoder decoder = rangeDecoders.get(codec.id);
+        if (decoder != null || rangeParityFiles.containsKey(codec.id)) {
+          return decoder;
+        }
+        Configuration clientConf = getClientConf();
+        ParityFilePair ppair =
+          ParityFilePair.getParityFile(codec, path, clientConf);
+        rangeParityFiles.put(codec.id, ppair);
+        if (ppair == null) {
+          LOG.info("Could not find " + codec.id + " parity file for " + path);
+          return null;
+        }
+        if (rangeSrcFs == null) {
+          rangeSrcFs = path.getFileSystem(clientConf);
+        }
+        decoder = new Decoder(clientConf, codec);
+        rangeDecoders.put(codec.id, decoder);
+        return decoder;
+      }
+
+      /**
+       * Reads a range from a block that another reader already
+       * reconstructed into the block cache.
+       * @return true if len bytes at currentOffset were read into b.
+       */
+      private boolean readCachedRange(byte[] b, int offset, int len) {
+        if (lfs.blockCache == null) {
+          return false;
+        }
+        long blockOffset =
+          (currentOffset / stat.getBlockSize()) * stat.getBlockSize();
+        for (Codec codec : Codec.getCodecs()) {
+          DegradedReadCache.CachedBlock block = lfs.blockCache.lookup(
+            new DegradedReadCache.BlockKey(path, blockOffset,
+              stat.getModificationTime(), codec.id));
+          if (block == null) {
+            continue;
+          }
+          try {
+            FSDataInputStream in = recoverFs.open(block.getPath());
+            try {
+              in.readFully(currentOffset - blockOffset, b, offset, len);
+            } finally {
+              in.close();
+            }
+            LOG.info("Read range " + currentOffset + ":" + len + " of " +
+              path + " from cached block " + block.getPath());
+            currentOffset += len;
+            nextLocation = 0;
+            return true;
+          } catch (IOException e) {
+            LOG.info("Ignoring error in reading cached block " +
+              block.getPath(), e);
+          } finally {
+            try {
+              lfs.blockCache.release(block);
+            } catch (IOException e) {
+              LOG.warn("Could not release cached block " + block.getPath(), e);
+            }
+          }
+        }
+        return false;
+      }
+
       /**
        * Extract good block from RAID
        * @throws IOException if all alternate locations are exhausted
@@ -441,20 +672,33 @@ public class DistributedRaidFileSystem extends FilterFileSystem {
         while (nextLocation < Codec.getCodecs().size()) {
           try {
             int idx = nextLocation++;
-            Codec codec = Codec.getCodecs().get(idx);
+            final Codec codec = Codec.getCodecs().get(idx);
 
             // Start offset of block.
-            long corruptOffset =
+            final long corruptOffset =
               (offset / stat.getBlockSize()) * stat.getBlockSize();
-            // Make sure we use DFS and not DistributedRaidFileSystem for unRaid.
-            Configuration clientConf = new Configuration(conf);
-            Class<?> clazz = conf.getClass("fs.raid.underlyingfs.impl",
-                                                DistributedFileSystem.class);
-            clientConf.set("fs.hdfs.impl", clazz.getName());
-            // Disable caching so that a previously cached RaidDfs is not used.
-            clientConf.setBoolean("fs.hdfs.impl.disable.cache", true);
-            Path npath = RaidNode.unRaidCorruptBlock(clientConf, path,
-                codec, corruptOffset, recoverFs);
+            final Configuration clientConf = getClientConf();
+            Path npath;
+            if (lfs.blockCache == null) {
+              npath = RaidNode.unRaidCorruptBlock(clientConf, path,
+                  codec, corruptOffset, recoverFs);
+            } else {
+              // Share the block with other readers of the same block.
+              DegradedReadCache.CachedBlock block = lfs.blockCache.acquire(
+                new DegradedReadCache.BlockKey(path, corruptOffset,
+                  stat.getModificationTime(), codec.id),
+                new DegradedReadCache.Reconstructor() {
+                  public Path reconstruct() throws IOException {
+                    return RaidNode.unRaidCorruptBlock(clientConf, path,
+                        codec, corruptOffset, recoverFs);
+                  }
+                });
+              npath = null;
+              if (block != null) {
+                cachedBlocks.add(block);
+                npath = block.getPath();
+              }
+            }
             try{
               String outdir = conf.get("fs.raid.recoverylogdir");
               if (outdir != null) {
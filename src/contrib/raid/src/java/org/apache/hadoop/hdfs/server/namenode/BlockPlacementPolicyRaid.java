@@ -24,10 +24,13 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -36,7 +39,16 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hdfs.protocol.Block;
 import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
 import org.apache.hadoop.hdfs.protocol.LocatedBlock;
+import org.apache.hadoop.hdfs.protocol.LocatedBlocks;
 import org.apache.hadoop.hdfs.server.namenode.BlockPlacementPolicyDefault;
+import org.apache.hadoop.metrics.MetricsContext;
+import org.apache.hadoop.metrics.MetricsRecord;
+import org.apache.hadoop.metrics.MetricsUtil;
+import org.apache.hadoop.metrics.Updater;
+import org.apache.hadoop.metrics.util.MetricsBase;
+import org.apache.hadoop.metrics.util.MetricsRegistry;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingLong;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingRate;
 import org.apache.hadoop.net.DNSToSwitchMapping;
 import org.apache.hadoop.net.NetworkTopology;
 import org.apache.hadoop.net.Node;
@@ -67,6 +79,7 @@ public class BlockPlacementPolicyRaid extends BlockPlacementPolicyDefault {
   Configuration conf;
   private FSNamesystem namesystem = null;
 
+  private CachedBlocks cachedBlocks;
   private CachedLocatedBlocks cachedLocatedBlocks;
   private CachedFullPathNames cachedFullPathNames;
 
@@ -79,8 +92,13 @@ public class BlockPlacementPolicyRaid extends BlockPlacementPolicyDefault {
                      hostsReader, dnsToSwitchMapping, namesystem);
     this.conf = conf;
     this.namesystem = namesystem;
-    this.cachedLocatedBlocks = new CachedLocatedBlocks(conf, namesystem);
-    this.cachedFullPathNames = new CachedFullPathNames(conf, namesystem);
+    PlacementMetrics metrics = PlacementMetrics.getInstance();
+    this.cachedBlocks = new CachedBlocks(conf, namesystem,
+        metrics.blocksCache);
+    this.cachedLocatedBlocks = new CachedLocatedBlocks(conf, namesystem,
+        cachedBlocks, metrics.locationsCache);
+    this.cachedFullPathNames = new CachedFullPathNames(conf, namesystem,
+        metrics.pathCache);
   }
 
   @Override
@@ -279,14 +297,10 @@ public class BlockPlacementPolicyRaid extends BlockPlacementPolicyDefault {
     int blockIndex = getBlockIndex(parity, block);
     // consider only parity file in this case because source file block
     // location is not easy to obtain
-    List<LocatedBlock> parityBlocks = cachedLocatedBlocks.get(parity);
-    List<LocatedBlock> result = new ArrayList<LocatedBlock>();
-    synchronized (parityBlocks) {
-      int start = Math.max(0, blockIndex - parityLength + 1);
-      int end = Math.min(parityBlocks.size(), blockIndex + parityLength);
-      result.addAll(parityBlocks.subList(start, end));
-    }
-    return result;
+    int start = Math.max(0, blockIndex - parityLength + 1);
+    int end = blockIndex + parityLength;
+    return new ArrayList<LocatedBlock>(
+        cachedLocatedBlocks.get(parity, start, end));
   }
 
   private List<LocatedBlock> getCompanionBlocksForParityBlock(
@@ -294,30 +308,18 @@ public class BlockPlacementPolicyRaid extends BlockPlacementPolicyDefault {
       throws IOException {
     int blockIndex = getBlockIndex(parity, block);
     List<LocatedBlock> result = new ArrayList<LocatedBlock>();
-    List<LocatedBlock> parityBlocks = cachedLocatedBlocks.get(parity);
     int stripeIndex = blockIndex / parityLength;
-    synchronized (parityBlocks) {
-      int parityStart = stripeIndex * parityLength;
-      int parityEnd = Math.min(parityStart + parityLength,
-                               parityBlocks.size());
-      // for parity, always consider the neighbor blocks as companion blocks
-      if (parityStart < parityBlocks.size()) {
-        result.addAll(parityBlocks.subList(parityStart, parityEnd));
-      }
-    }
+    // for parity, always consider the neighbor blocks as companion blocks
+    int parityStart = stripeIndex * parityLength;
+    result.addAll(cachedLocatedBlocks.get(
+        parity, parityStart, parityStart + parityLength));
 
     if (src == null) {
       return result;
     }
-    List<LocatedBlock> sourceBlocks = cachedLocatedBlocks.get(src);
-    synchronized (sourceBlocks) {
-      int sourceStart = stripeIndex * stripeLength;
-      int sourceEnd = Math.min(sourceStart + stripeLength,
-                               sourceBlocks.size());
-      if (sourceStart < sourceBlocks.size()) {
-        result.addAll(sourceBlocks.subList(sourceStart, sourceEnd));
-      }
-    }
+    int sourceStart = stripeIndex * stripeLength;
+    result.addAll(cachedLocatedBlocks.get(
+        src, sourceStart, sourceStart + stripeLength));
     return result;
   }
 
@@ -326,43 +328,29 @@ public class BlockPlacementPolicyRaid extends BlockPlacementPolicyDefault {
       throws IOException {
     int blockIndex = getBlockIndex(src, block);
     List<LocatedBlock> result = new ArrayList<LocatedBlock>();
-    List<LocatedBlock> sourceBlocks = cachedLocatedBlocks.get(src);
     int stripeIndex = blockIndex / stripeLength;
-    synchronized (sourceBlocks) {
-      int sourceStart = stripeIndex * stripeLength;
-      int sourceEnd = Math.min(sourceStart + stripeLength,
-                               sourceBlocks.size());
-      if (sourceStart < sourceBlocks.size()) {
-        result.addAll(sourceBlocks.subList(sourceStart, sourceEnd));
-      }
-    }
+    int sourceStart = stripeIndex * stripeLength;
+    result.addAll(cachedLocatedBlocks.get(
+        src, sourceStart, sourceStart + stripeLength));
     if (parity == null) {
       return result;
     }
-    List<LocatedBlock> parityBlocks = cachedLocatedBlocks.get(parity);
-    synchronized (parityBlocks) {
-      int parityStart = stripeIndex * parityLength;
-      int parityEnd = Math.min(parityStart + parityLength,
-                               parityBlocks.size());
-      if (parityStart < parityBlocks.size()) {
-        result.addAll(parityBlocks.subList(parityStart, parityEnd));
-      }
-    }
+    int parityStart = stripeIndex * parityLength;
+    result.addAll(cachedLocatedBlocks.get(
+        parity, parityStart, parityStart + parityLength));
     return result;
   }
 
   private int getBlockIndex(String file, Block block) throws IOException {
-    List<LocatedBlock> blocks = cachedLocatedBlocks.get(file);
-    synchronized (blocks) {
-      // null indicates that this block is currently added. Return size()
-      // as the index in this case
-	    if (block == null) {
-	      return blocks.size();
-	    }
-      for (int i = 0; i < blocks.size(); i++) {
-        if (blocks.get(i).getBlock().equals(block)) {
-          return i;
-        }
+    Block[] blocks = cachedBlocks.get(file);
+    // null indicates that this block is currently added. Return the number
+    // of blocks as the index in this case
+    if (block == null) {
+      return blocks.length;
+    }
+    for (int i = 0; i < blocks.length; i++) {
+      if (blocks[i].equals(block)) {
+        return i;
       }
     }
     throw new IOException("Cannot locate " + block + " in file " + file);
@@ -376,8 +364,13 @@ public class BlockPlacementPolicyRaid extends BlockPlacementPolicyDefault {
     private FSNamesystem namesystem;
 
     CachedFullPathNames(final Configuration conf, final FSNamesystem namesystem) {
+      this(conf, namesystem, null);
+    }
+
+    CachedFullPathNames(final Configuration conf, final FSNamesystem namesystem,
+        CacheMetrics metrics) {
       this.namesystem = namesystem;
-      this.cacheInternal = new Cache<INodeWithHashCode, String>(conf) {  
+      this.cacheInternal = new Cache<INodeWithHashCode, String>(conf, metrics) {  
         @Override
         public String getDirectly(INodeWithHashCode inode) throws IOException {
           namesystem.readLock();
@@ -414,51 +407,225 @@ public class BlockPlacementPolicyRaid extends BlockPlacementPolicyDefault {
   }
 
   /**
-   * Cache results for FSNamesystem.getBlockLocations()
+   * Cache the blocks of files. Only the block ids and sizes are kept, which
+   * is enough to find the stripe of a block.
    */
-  static class CachedLocatedBlocks extends Cache<String, List<LocatedBlock>> {
+  static class CachedBlocks extends Cache<String, Block[]> {
     private FSNamesystem namesystem;
 
-    CachedLocatedBlocks(Configuration conf, FSNamesystem namesystem) {
-      super(conf);
+    CachedBlocks(Configuration conf, FSNamesystem namesystem,
+        CacheMetrics metrics) {
+      super(conf, metrics);
       this.namesystem = namesystem;
     }
 
     @Override
-    public List<LocatedBlock> getDirectly(String file) throws IOException {
+    public Block[] getDirectly(String file) throws IOException {
       INodeFile inode = namesystem.dir.getFileINode(file);
+      if (inode == null) {
+        return new Block[0];
+      }
+      namesystem.readLock();
+      try {
+        Block[] blocks = inode.getBlocks();
+        if (blocks == null) {
+          return new Block[0];
+        }
+        // Copy the blocks, they are the internal data of inode.
+        Block[] result = new Block[blocks.length];
+        for (int i = 0; i < blocks.length; i++) {
+          result[i] = new Block(blocks[i]);
+        }
+        return result;
+      } finally {
+        namesystem.readUnlock();
+      }
+    }
+  }
+
+  /**
+   * Cache results for FSNamesystem.getBlockLocations() for a range of the
+   * blocks of a file, usually one stripe.
+   */
+  static class CachedLocatedBlocks
+      extends Cache<CachedLocatedBlocks.BlockRange, List<LocatedBlock>> {
+    private FSNamesystem namesystem;
+    private CachedBlocks cachedBlocks;
+
+    static class BlockRange {
+      final String file;
+      final int start;
+      final int end;
+
+      BlockRange(String file, int start, int end) {
+        this.file = file;
+        this.start = start;
+        this.end = end;
+      }
+
+      @Override
+      public boolean equals(Object obj) {
+        if (!(obj instanceof BlockRange)) {
+          return false;
+        }
+        BlockRange that = (BlockRange) obj;
+        return file.equals(that.file) && start == that.start &&
+          end == that.end;
+      }
+
+      @Override
+      public int hashCode() {
+        return (file.hashCode() * 31 + start) * 31 + end;
+      }
+    }
+
+    CachedLocatedBlocks(Configuration conf, FSNamesystem namesystem) {
+      this(conf, namesystem, new CachedBlocks(conf, namesystem, null), null);
+    }
+
+    CachedLocatedBlocks(Configuration conf, FSNamesystem namesystem,
+        CachedBlocks cachedBlocks, CacheMetrics metrics) {
+      super(conf, metrics);
+      this.namesystem = namesystem;
+      this.cachedBlocks = cachedBlocks;
+    }
+
+    /**
+     * @return The located blocks of the file.
+     */
+    public List<LocatedBlock> get(String file) throws IOException {
+      return get(file, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return The located blocks from index start to index end, exclusive,
+     *         of the file. The list may be shared, it must not be changed.
+     */
+    public List<LocatedBlock> get(String file, int start, int end)
+        throws IOException {
+      int numBlocks = cachedBlocks.get(file).length;
+      end = Math.min(end, numBlocks);
+      if (start >= end) {
+        return Collections.emptyList();
+      }
+      return get(new BlockRange(file, start, end));
+    }
+
+    @Override
+    public List<LocatedBlock> getDirectly(BlockRange range)
+        throws IOException {
+      Block[] blocks = cachedBlocks.get(range.file);
+      long offset = 0;
+      for (int i = 0; i < range.start; i++) {
+        offset += blocks[i].getNumBytes();
+      }
+      long length = 0;
+      for (int i = range.start; i < range.end; i++) {
+        length += blocks[i].getNumBytes();
+      }
+      INodeFile inode = namesystem.dir.getFileINode(range.file);
       // Note that the list is generated. It is not the internal data of inode.
-      List<LocatedBlock> result = inode == null ?
-          new ArrayList<LocatedBlock>() :
-          namesystem.getBlockLocationsInternal(inode, 0, Long.MAX_VALUE,
-                                       Integer.MAX_VALUE).getLocatedBlocks();
-      if (result == null) {
-        result = new ArrayList<LocatedBlock>();
+      LocatedBlocks lbs = inode == null ? null :
+          namesystem.getBlockLocationsInternal(inode, offset,
+              Math.max(length, 1), range.end - range.start);
+      if (lbs == null || lbs.getLocatedBlocks() == null) {
+        return Collections.emptyList();
       }
-      return result;
+      return Collections.unmodifiableList(lbs.getLocatedBlocks());
+    }
+  }
+
+  /**
+   * The metrics of a cache.
+   */
+  static class CacheMetrics {
+    final MetricsTimeVaryingLong hits;
+    final MetricsTimeVaryingLong misses;
+    final MetricsTimeVaryingRate loads;
+
+    CacheMetrics(String name, MetricsRegistry registry) {
+      hits = new MetricsTimeVaryingLong(name + "Hits", registry);
+      misses = new MetricsTimeVaryingLong(name + "Misses", registry);
+      loads = new MetricsTimeVaryingRate(name + "Loads", registry);
     }
   }
 
-  private static abstract class Cache<K, V> {
-    private Map<K, ValueWithTime> cache;
+  /**
+   * The metrics of the placement policy. The namenode publishes its own
+   * registry through JMX before the policy is created, so these have their
+   * own registry and MBean. Policies created again, as the tests do, share
+   * the metrics of the first one.
+   */
+  static class PlacementMetrics implements Updater {
+    private static PlacementMetrics instance = null;
+    final MetricsRegistry registry = new MetricsRegistry();
+    final CacheMetrics blocksCache =
+      new CacheMetrics("RaidPlacementBlocksCache", registry);
+    final CacheMetrics locationsCache =
+      new CacheMetrics("RaidPlacementLocationsCache", registry);
+    final CacheMetrics pathCache =
+      new CacheMetrics("RaidPlacementPathCache", registry);
+    private final MetricsRecord metricsRecord;
+    private final RaidPlacementActivityMBean activityMBean;
+
+    static synchronized PlacementMetrics getInstance() {
+      if (instance == null) {
+        instance = new PlacementMetrics();
+      }
+      return instance;
+    }
+
+    private PlacementMetrics() {
+      MetricsContext context = MetricsUtil.getContext("dfs");
+      metricsRecord = MetricsUtil.createRecord(context, "raidplacement");
+      context.registerUpdater(this);
+      // Created last, the MBean publishes the metrics registered so far.
+      activityMBean = new RaidPlacementActivityMBean(registry);
+    }
+
+    public void doUpdates(MetricsContext unused) {
+      synchronized (this) {
+        for (MetricsBase m : registry.getMetricsList()) {
+          m.pushMetric(metricsRecord);
+        }
+      }
+      metricsRecord.update();
+    }
+  }
+
+  /**
+   * A cache whose entries expire after raid.blockplacement.cache.timeout.
+   * It is read by the handler threads choosing targets and replicas to
+   * delete, so a lookup does not take a lock. Once the cache is full, the
+   * least recently used entry of a small sample is evicted. An expired
+   * entry is reloaded by one thread while the others keep using the old
+   * value. Concurrent misses of a key are not coalesced, since waiting for
+   * a load that takes the FSNamesystem lock could deadlock a caller that
+   * holds it.
+   */
+  static abstract class Cache<K, V> {
+    private static final int EVICTION_SAMPLE_SIZE = 8;
+    private final ConcurrentHashMap<K, ValueWithTime<V>> cache;
     final private long cacheTimeout;
     final private int maxEntries;
+    private final AtomicBoolean evicting = new AtomicBoolean(false);
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final CacheMetrics metrics;
+
     // The timeout is long but the consequence of stale value is not serious
     Cache(Configuration conf) {
+      this(conf, null);
+    }
+
+    Cache(Configuration conf, CacheMetrics metrics) {
       this.cacheTimeout = 
         conf.getLong("raid.blockplacement.cache.timeout", 5000L); // 5 seconds
       this.maxEntries =
         conf.getInt("raid.blockplacement.cache.size", 1000);  // 1000 entries
-      Map<K, ValueWithTime> map = new LinkedHashMap<K, ValueWithTime>(
-          maxEntries, 0.75f, true) {
-        private static final long serialVersionUID = 1L;
-          @Override
-          protected boolean removeEldestEntry(
-            Map.Entry<K, ValueWithTime> eldest) {
-            return size() > maxEntries;
-          }
-        };
-      this.cache = Collections.synchronizedMap(map);
+      this.cache = new ConcurrentHashMap<K, ValueWithTime<V>>(
+          Math.min(maxEntries, 1 << 16));
+      this.metrics = metrics;
     }
 
     // Note that this method may hold FSNamesystem.readLock() and it may
@@ -467,23 +634,114 @@ public class BlockPlacementPolicyRaid extends BlockPlacementPolicyDefault {
     abstract protected V getDirectly(K key) throws IOException;
 
     public V get(K key) throws IOException {
-      // The method is not synchronized so we may get some stale value here but
-      // it's OK.
-      ValueWithTime result = cache.get(key);
       long now = System.currentTimeMillis();
-      if (result != null &&
-          now - result.cachedTime < cacheTimeout) {
-        return result.value;
-      }
-      result = new ValueWithTime();
-      result.value = getDirectly(key);
-      result.cachedTime = now;
-      cache.put(key, result);
-      return result.value;
-    }
-    private class ValueWithTime {
-      V value = null;
-      long cachedTime = 0L;
+      ValueWithTime<V> result = cache.get(key);
+      if (result != null) {
+        result.lastAccess = now;
+        // A stale value is returned while another thread reloads it.
+        if (now - result.cachedTime < cacheTimeout ||
+            !result.loading.compareAndSet(false, true)) {
+          hit();
+          return result.value;
+        }
+      }
+      miss();
+      V value;
+      try {
+        value = getDirectly(key);
+      } finally {
+        if (result != null) {
+          result.loading.set(false);
+        }
+      }
+      long loaded = System.currentTimeMillis();
+      if (metrics != null) {
+        metrics.loads.inc(loaded - now);
+      }
+      cache.put(key, new ValueWithTime<V>(value, now, loaded));
+      if (cache.size() > maxEntries) {
+        evict();
+      }
+      return value;
+    }
+
+    private void hit() {
+      hits.incrementAndGet();
+      if (metrics != null) {
+        metrics.hits.inc();
+      }
+    }
+
+    private void miss() {
+      misses.incrementAndGet();
+      if (metrics != null) {
+        metrics.misses.inc();
+      }
+    }
+
+    /**
+     * Evicts entries until the cache is not over its size. Expired entries
+     * go first, then the least recently used entry of each sample.
+     */
+    private void evict() {
+      if (!evicting.compareAndSet(false, true)) {
+        // Another thread is evicting.
+        return;
+      }
+      try {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<K, ValueWithTime<V>>> it =
+          cache.entrySet().iterator();
+        while (cache.size() > maxEntries) {
+          if (!it.hasNext()) {
+            it = cache.entrySet().iterator();
+          }
+          K victim = null;
+          long oldest = Long.MAX_VALUE;
+          for (int i = 0; i < EVICTION_SAMPLE_SIZE && it.hasNext(); i++) {
+            Map.Entry<K, ValueWithTime<V>> e = it.next();
+            ValueWithTime<V> v = e.getValue();
+            if (now - v.cachedTime >= cacheTimeout) {
+              it.remove();
+            } else if (v.lastAccess < oldest) {
+              oldest = v.lastAccess;
+              victim = e.getKey();
+            }
+          }
+          if (victim != null && cache.size() > maxEntries) {
+            cache.remove(victim);
+          }
+        }
+      } finally {
+        evicting.set(false);
+      }
+    }
+
+    int size() {
+      return cache.size();
+    }
+
+    /**
+     * @return The fraction of the lookups that found a value.
+     */
+    double getHitRate() {
+      long h = hits.get();
+      long total = h + misses.get();
+      return total == 0 ? 0 : (double) h / total;
+    }
+
+    private static class ValueWithTime<V> {
+      final V value;
+      final long cachedTime;
+      volatile long lastAccess;
+      // Set while a thread reloads the expired value.
+      final AtomicBoolean loading = new AtomicBoolean(false);
+
+      ValueWithTime(V value, long cachedTime, long lastAccess) {
+        this.value = value;
+        this.cachedTime = cachedTime;
+        this.lastAccess = lastAccess;
+      }
     }
   }
 
@@ -205,17 +205,20 @@ public abstract class BlockIntegrityMonitor extends Configured {
   }
 
   static boolean isSourceFile(String p) {
-    for (Codec c : Codec.getCodecs()) {
-      if (p.startsWith(c.parityDirectory)) {
-        // This is a parity file
-        return false;
-      }
-    }
-    return true;
+    return getParityFileCodec(p) == null;
   }
 
   static boolean doesParityDirExist(
       FileSystem parityFs, String path) throws IOException {
+    return getParityDirCodec(parityFs, path) != null;
+  }
+
+  /**
+   * @return The first codec under whose parity directory the parent
+   *         directory of a source file exists, or null if there is none.
+   */
+  static Codec getParityDirCodec(
+      FileSystem parityFs, String path) throws IOException {
     // Check if it is impossible to have a parity file. We check if the
     // parent directory of the lost file exists under a parity path.
     // If the directory does not exist, the parity file cannot exist.
@@ -224,15 +227,25 @@ public abstract class BlockIntegrityMonitor extends Configured {
     if (parentUriPath.startsWith(Path.SEPARATOR)) {
       parentUriPath = parentUriPath.substring(1);
     }
-    boolean parityCanExist = false;
     for (Codec c : Codec.getCodecs()) {
       Path parityDir = new Path(c.parityDirectory, parentUriPath);
       if (parityFs.exists(parityDir)) {
-        parityCanExist = true;
-        break;
+        return c;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return The codec of a parity file, or null for a source file.
+   */
+  static Codec getParityFileCodec(String p) {
+    for (Codec c : Codec.getCodecs()) {
+      if (p.startsWith(c.parityDirectory)) {
+        return c;
       }
     }
-    return parityCanExist;
+    return null;
   }
 
   void filterUnreconstructableSourceFiles(FileSystem parityFs, 
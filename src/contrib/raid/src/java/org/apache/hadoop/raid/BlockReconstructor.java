@@ -10,6 +10,7 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
@@ -55,8 +56,23 @@ abstract class BlockReconstructor extends Configured {
 
   public static final Log LOG = LogFactory.getLog(BlockReconstructor.class);
 
+  // Send reconstructed blocks to the datanode as they are decoded, instead
+  // of decoding them to a local file first.
+  public static final String BLOCKFIX_STREAMING =
+    "raid.blockfix.streaming";
+
+  private final boolean streaming;
+
   BlockReconstructor(Configuration conf) throws IOException {
     super(conf);
+    this.streaming = conf.getBoolean(BLOCKFIX_STREAMING, true);
+  }
+
+  /**
+   * Writes out the contents of a reconstructed block.
+   */
+  interface BlockWriter {
+    void write(OutputStream out) throws IOException;
   }
 
   /**
@@ -97,7 +113,12 @@ abstract class BlockReconstructor extends Configured {
     // Reconstruct parity file
     for (Codec codec : Codec.getCodecs()) {
       if (isParityFile(srcPath, codec)) {
-        return processParityFile(srcPath, new Encoder(getConf(), codec), progress);
+        Encoder encoder = new Encoder(getConf(), codec);
+        try {
+          return processParityFile(srcPath, encoder, progress);
+        } finally {
+          encoder.close();
+        }
       }
     }
 
@@ -107,7 +128,11 @@ abstract class BlockReconstructor extends Configured {
           codec, srcPath, getConf());
       if (ppair != null) {
         Decoder decoder = new Decoder(getConf(), codec);
-        return processFile(srcPath, ppair, decoder, progress);
+        try {
+          return processFile(srcPath, ppair, decoder, progress);
+        } finally {
+          decoder.close();
+        }
       }
     }
 
@@ -162,19 +187,19 @@ abstract class BlockReconstructor extends Configured {
    * @return true if file was reconstructed, false if no reconstruction 
    * was necessary or possible.
    */
-  boolean processFile(Path srcPath, ParityFilePair parityPair,
-      Decoder decoder, Progressable progress)
+  boolean processFile(final Path srcPath, final ParityFilePair parityPair,
+      final Decoder decoder, final Progressable progress)
   throws IOException {
     LOG.info("Processing file " + srcPath);
 
-    DistributedFileSystem srcFs = getDFS(srcPath);
+    final DistributedFileSystem srcFs = getDFS(srcPath);
     FileStatus srcStat = srcFs.getFileStatus(srcPath);
-    long blockSize = srcStat.getBlockSize();
+    final long blockSize = srcStat.getBlockSize();
     long srcFileSize = srcStat.getLen();
     String uriPath = srcPath.toUri().getPath();
 
     int numBlocksReconstructed = 0;
-    List<LocatedBlockWithMetaInfo> lostBlocks = lostBlocksInFile(srcFs, uriPath, srcStat);
+    List<LocatedBlockWithMetaInfo> lostBlocks = getLostBlocks(srcFs, uriPath, srcStat);
     if (lostBlocks.size() == 0) {
       LOG.warn("Couldn't find any lost blocks in file " + srcPath + 
           ", ignoring...");
@@ -182,34 +207,22 @@ abstract class BlockReconstructor extends Configured {
     }
     for (LocatedBlockWithMetaInfo lb: lostBlocks) {
       Block lostBlock = lb.getBlock();
-      long lostBlockOffset = lb.getStartOffset();
+      final long lostBlockOffset = lb.getStartOffset();
 
       LOG.info("Found lost block " + lostBlock +
           ", offset " + lostBlockOffset);
 
       final long blockContentsSize =
         Math.min(blockSize, srcFileSize - lostBlockOffset);
-      File localBlockFile =
-        File.createTempFile(lostBlock.getBlockName(), ".tmp");
-      localBlockFile.deleteOnExit();
-
-      try {
-        decoder.recoverBlockToFile(srcFs, srcPath, parityPair.getFileSystem(),
-            parityPair.getPath(), blockSize,
-            lostBlockOffset, localBlockFile,
-            blockContentsSize, progress);
-
-        // Now that we have recovered the file block locally, send it.
-        String datanode = chooseDatanode(lb.getLocations());
-        computeMetadataAndSendReconstructedBlock(datanode, localBlockFile,
-            lostBlock, blockContentsSize,
-            lb.getDataProtocolVersion(), lb.getNamespaceID());
-        
-        numBlocksReconstructed++;
-
-      } finally {
-        localBlockFile.delete();
-      }
+      reconstructAndSendBlock(lb, blockContentsSize,
+        new BlockWriter() {
+          public void write(OutputStream out) throws IOException {
+            decoder.fixErasedBlock(srcFs, srcPath,
+                parityPair.getFileSystem(), parityPair.getPath(), blockSize,
+                lostBlockOffset, blockContentsSize, out, progress);
+          }
+        });
+      numBlocksReconstructed++;
       progress.progress();
     }
     
@@ -224,22 +237,22 @@ abstract class BlockReconstructor extends Configured {
    * @return true if file was reconstructed, false if no reconstruction 
    * was necessary or possible.
    */
-  boolean processParityFile(Path parityPath, Encoder encoder, 
-      Progressable progress)
+  boolean processParityFile(final Path parityPath, final Encoder encoder, 
+      final Progressable progress)
   throws IOException {
     LOG.info("Processing parity file " + parityPath);
-    Path srcPath = sourcePathFromParityPath(parityPath);
+    final Path srcPath = sourcePathFromParityPath(parityPath);
     if (srcPath == null) {
       LOG.warn("Could not get regular file corresponding to parity file " +  
           parityPath + ", ignoring...");
       return false;
     }
 
-    DistributedFileSystem parityFs = getDFS(parityPath);
+    final DistributedFileSystem parityFs = getDFS(parityPath);
     FileStatus parityStat = parityFs.getFileStatus(parityPath);
-    long blockSize = parityStat.getBlockSize();
+    final long blockSize = parityStat.getBlockSize();
     FileStatus srcStat = getDFS(srcPath).getFileStatus(srcPath);
-    long srcFileSize = srcStat.getLen();
+    final long srcFileSize = srcStat.getLen();
 
     // Check timestamp.
     if (srcStat.getModificationTime() != parityStat.getModificationTime()) {
@@ -251,7 +264,7 @@ abstract class BlockReconstructor extends Configured {
     String uriPath = parityPath.toUri().getPath();
     int numBlocksReconstructed = 0;
     List<LocatedBlockWithMetaInfo> lostBlocks = 
-      lostBlocksInFile(parityFs, uriPath, parityStat);
+      getLostBlocks(parityFs, uriPath, parityStat);
     if (lostBlocks.size() == 0) {
       LOG.warn("Couldn't find any lost blocks in parity file " + parityPath + 
           ", ignoring...");
@@ -259,31 +272,20 @@ abstract class BlockReconstructor extends Configured {
     }
     for (LocatedBlockWithMetaInfo lb: lostBlocks) {
       Block lostBlock = lb.getBlock();
-      long lostBlockOffset = lb.getStartOffset();
+      final long lostBlockOffset = lb.getStartOffset();
 
       LOG.info("Found lost block " + lostBlock +
           ", offset " + lostBlockOffset);
 
-      File localBlockFile =
-        File.createTempFile(lostBlock.getBlockName(), ".tmp");
-      localBlockFile.deleteOnExit();
-
-      try {
-        encoder.recoverParityBlockToFile(parityFs, srcPath, srcFileSize,
-            blockSize, parityPath, 
-            lostBlockOffset, localBlockFile, progress);
-        
-        // Now that we have recovered the parity file block locally, send it.
-        String datanode = chooseDatanode(lb.getLocations());
-        computeMetadataAndSendReconstructedBlock(
-            datanode, localBlockFile, 
-            lostBlock, blockSize,
-            lb.getDataProtocolVersion(), lb.getNamespaceID());
-
-        numBlocksReconstructed++;
-      } finally {
-        localBlockFile.delete();
-      }
+      reconstructAndSendBlock(lb, blockSize,
+        new BlockWriter() {
+          public void write(OutputStream out) throws IOException {
+            encoder.recoverParityBlockToStream(parityFs, srcPath,
+                srcFileSize, blockSize, parityPath,
+                lostBlockOffset, out, progress);
+          }
+        });
+      numBlocksReconstructed++;
       progress.progress();
     }
     
@@ -298,13 +300,13 @@ abstract class BlockReconstructor extends Configured {
    * @return true if file was reconstructed, false if no reconstruction 
    * was necessary or possible.
    */
-  boolean processParityHarPartFile(Path partFile,
-      Progressable progress)
+  boolean processParityHarPartFile(final Path partFile,
+      final Progressable progress)
   throws IOException {
     LOG.info("Processing parity HAR file " + partFile);
     // Get some basic information.
-    DistributedFileSystem dfs = getDFS(partFile);
-    FileStatus partFileStat = dfs.getFileStatus(partFile);
+    final DistributedFileSystem dfs = getDFS(partFile);
+    final FileStatus partFileStat = dfs.getFileStatus(partFile);
     long partFileBlockSize = partFileStat.getBlockSize();
     LOG.info(partFile + " has block size " + partFileBlockSize);
 
@@ -312,10 +314,10 @@ abstract class BlockReconstructor extends Configured {
     // Parity file HARs are only one level deep, so the index files is at the
     // same level as the part file.
     // Parses through the HAR index file.
-    HarIndex harIndex = HarIndex.getHarIndex(dfs, partFile);
+    final HarIndex harIndex = HarIndex.getHarIndex(dfs, partFile);
     String uriPath = partFile.toUri().getPath();
     int numBlocksReconstructed = 0;
-    List<LocatedBlockWithMetaInfo> lostBlocks = lostBlocksInFile(dfs, uriPath, 
+    List<LocatedBlockWithMetaInfo> lostBlocks = getLostBlocks(dfs, uriPath, 
         partFileStat);
     if (lostBlocks.size() == 0) {
       LOG.warn("Couldn't find any lost blocks in HAR file " + partFile + 
@@ -323,29 +325,20 @@ abstract class BlockReconstructor extends Configured {
       return false;
     }
     for (LocatedBlockWithMetaInfo lb: lostBlocks) {
-      Block lostBlock = lb.getBlock();
-      long lostBlockOffset = lb.getStartOffset();
-
-      File localBlockFile =
-        File.createTempFile(lostBlock.getBlockName(), ".tmp");
-      localBlockFile.deleteOnExit();
-
-      try {
-        processParityHarPartBlock(dfs, partFile, lostBlock, 
-            lostBlockOffset, partFileStat, harIndex,
-            localBlockFile, progress);
-        
-        // Now that we have recovered the part file block locally, send it.
-        String datanode = chooseDatanode(lb.getLocations());
-        computeMetadataAndSendReconstructedBlock(datanode, localBlockFile,
-            lostBlock, 
-            localBlockFile.length(),
-            lb.getDataProtocolVersion(), lb.getNamespaceID());
-        
-        numBlocksReconstructed++;
-      } finally {
-        localBlockFile.delete();
-      }
+      final Block lostBlock = lb.getBlock();
+      final long lostBlockOffset = lb.getStartOffset();
+      long blockContentsSize = Math.min(partFileStat.getBlockSize(),
+        partFileStat.getLen() - lostBlockOffset);
+
+      reconstructAndSendBlock(lb, blockContentsSize,
+        new BlockWriter() {
+          public void write(OutputStream out) throws IOException {
+            processParityHarPartBlock(dfs, partFile, lostBlock,
+                lostBlockOffset, partFileStat, harIndex,
+                out, progress);
+          }
+        });
+      numBlocksReconstructed++;
       progress.progress();
     }
     
@@ -362,69 +355,68 @@ abstract class BlockReconstructor extends Configured {
       long blockOffset,
       FileStatus partFileStat,
       HarIndex harIndex,
-      File localBlockFile,
+      OutputStream out,
       Progressable progress)
   throws IOException {
     String partName = partFile.toUri().getPath(); // Temporarily.
     partName = partName.substring(1 + partName.lastIndexOf(Path.SEPARATOR));
 
-    OutputStream out = new FileOutputStream(localBlockFile);
-
-    try {
-      // A HAR part file block could map to several parity files. We need to
-      // use all of them to recover this block.
-      final long blockEnd = Math.min(blockOffset + 
-          partFileStat.getBlockSize(),
-          partFileStat.getLen());
-      for (long offset = blockOffset; offset < blockEnd; ) {
-        HarIndex.IndexEntry entry = harIndex.findEntry(partName, offset);
-        if (entry == null) {
-          String msg = "Lost index file has no matching index entry for " +
-          partName + ":" + offset;
-          LOG.warn(msg);
-          throw new IOException(msg);
-        }
-        Path parityFile = new Path(entry.fileName);
-        Encoder encoder = null;
-        for (Codec codec : Codec.getCodecs()) {
-          if (isParityFile(parityFile, codec)) {
-            encoder = new Encoder(getConf(), codec);
-          }
-        }
-        if (encoder == null) {
-          String msg = "Could not figure out codec correctly for " + parityFile;
-          LOG.warn(msg);
-          throw new IOException(msg);
-        }
-        Path srcFile = sourcePathFromParityPath(parityFile);
-        FileStatus srcStat = dfs.getFileStatus(srcFile);
-        if (srcStat.getModificationTime() != entry.mtime) {
-          String msg = "Modification times of " + parityFile + " and " +
-          srcFile + " do not match.";
-          LOG.warn(msg);
-          throw new IOException(msg);
+    // A HAR part file block could map to several parity files. We need to
+    // use all of them to recover this block.
+    final long blockEnd = Math.min(blockOffset + 
+        partFileStat.getBlockSize(),
+        partFileStat.getLen());
+    for (long offset = blockOffset; offset < blockEnd; ) {
+      HarIndex.IndexEntry entry = harIndex.findEntry(partName, offset);
+      if (entry == null) {
+        String msg = "Lost index file has no matching index entry for " +
+        partName + ":" + offset;
+        LOG.warn(msg);
+        throw new IOException(msg);
+      }
+      Path parityFile = new Path(entry.fileName);
+      Codec parityCodec = null;
+      for (Codec codec : Codec.getCodecs()) {
+        if (isParityFile(parityFile, codec)) {
+          parityCodec = codec;
         }
-        long lostOffsetInParity = offset - entry.startOffset;
-        LOG.info(partFile + ":" + offset + " maps to " +
-            parityFile + ":" + lostOffsetInParity +
-            " and will be recovered from " + srcFile);
+      }
+      if (parityCodec == null) {
+        String msg = "Could not figure out codec correctly for " + parityFile;
+        LOG.warn(msg);
+        throw new IOException(msg);
+      }
+      Path srcFile = sourcePathFromParityPath(parityFile);
+      FileStatus srcStat = dfs.getFileStatus(srcFile);
+      if (srcStat.getModificationTime() != entry.mtime) {
+        String msg = "Modification times of " + parityFile + " and " +
+        srcFile + " do not match.";
+        LOG.warn(msg);
+        throw new IOException(msg);
+      }
+      long lostOffsetInParity = offset - entry.startOffset;
+      LOG.info(partFile + ":" + offset + " maps to " +
+          parityFile + ":" + lostOffsetInParity +
+          " and will be recovered from " + srcFile);
+      Encoder encoder = new Encoder(getConf(), parityCodec);
+      try {
         encoder.recoverParityBlockToStream(dfs, srcFile, srcStat.getLen(),
             srcStat.getBlockSize(), parityFile,
             lostOffsetInParity, out, progress);
-        // Finished recovery of one parity block. Since a parity block has the
-        // same size as a source block, we can move offset by source block 
-        // size.
-        offset += srcStat.getBlockSize();
-        LOG.info("Recovered " + srcStat.getBlockSize() + " part file bytes ");
-        if (offset > blockEnd) {
-          String msg =
-            "Recovered block spills across part file blocks. Cannot continue";
-          throw new IOException(msg);
-        }
-        progress.progress();
+      } finally {
+        encoder.close();
       }
-    } finally {
-      out.close();
+      // Finished recovery of one parity block. Since a parity block has the
+      // same size as a source block, we can move offset by source block 
+      // size.
+      offset += srcStat.getBlockSize();
+      LOG.info("Recovered " + srcStat.getBlockSize() + " part file bytes ");
+      if (offset > blockEnd) {
+        String msg =
+          "Recovered block spills across part file blocks. Cannot continue";
+        throw new IOException(msg);
+      }
+      progress.progress();
     }
   }
 
@@ -520,6 +512,88 @@ abstract class BlockReconstructor extends Configured {
     return new DataInputStream(new ByteArrayInputStream(mdBytes));
   }
 
+  /**
+   * Reconstructs a lost block and sends it to a datanode. The block is
+   * streamed to the datanode as it is reconstructed. If that fails, the
+   * block is reconstructed again into a local file, which is then sent.
+   */
+  private void reconstructAndSendBlock(LocatedBlockWithMetaInfo lb,
+      long blockContentsSize, BlockWriter writer) throws IOException {
+    Block lostBlock = lb.getBlock();
+    String datanode = chooseDatanode(lb.getLocations());
+    if (streaming) {
+      try {
+        streamReconstructedBlock(datanode, writer, lostBlock,
+            blockContentsSize,
+            lb.getDataProtocolVersion(), lb.getNamespaceID());
+        return;
+      } catch (IOException e) {
+        LOG.warn("Could not stream block " + lostBlock + " to " + datanode +
+          ", retrying through a local file", e);
+      }
+    }
+
+    File localBlockFile =
+      File.createTempFile(lostBlock.getBlockName(), ".tmp");
+    localBlockFile.deleteOnExit();
+    try {
+      OutputStream out = new FileOutputStream(localBlockFile);
+      try {
+        writer.write(out);
+      } finally {
+        out.close();
+      }
+      // Now that we have recovered the block locally, send it.
+      computeMetadataAndSendReconstructedBlock(datanode, localBlockFile,
+          lostBlock, blockContentsSize,
+          lb.getDataProtocolVersion(), lb.getNamespaceID());
+    } finally {
+      localBlockFile.delete();
+    }
+  }
+
+  /**
+   * Reconstructs a block in a separate thread and sends it to a datanode
+   * as it is reconstructed, computing the checksums on the way.
+   */
+  private void streamReconstructedBlock(String datanode,
+      final BlockWriter writer,
+      Block block, long blockSize,
+      int dataTransferVersion, int namespaceId)
+  throws IOException {
+    int bytesPerChecksum = getConf().getInt("io.bytes.per.checksum", 512);
+    final ChecksummedBlockPipe pipe = new ChecksummedBlockPipe(
+      bytesPerChecksum, Math.max(1, 64 * 1024 / bytesPerChecksum), 16);
+    Thread reconstructThread = new Thread("Reconstruct " + block) {
+      public void run() {
+        try {
+          writer.write(pipe.getOutputStream());
+          pipe.getOutputStream().close();
+        } catch (IOException e) {
+          pipe.abort(e);
+        } catch (Throwable t) {
+          pipe.abort(new IOException(t));
+        }
+      }
+    };
+    reconstructThread.setDaemon(true);
+    reconstructThread.start();
+    try {
+      sendReconstructedBlock(datanode, pipe.getDataStream(),
+          new DataInputStream(pipe.getMetadataStream()), block, blockSize,
+          dataTransferVersion, namespaceId);
+    } finally {
+      // Stop the reconstruction if the transfer ended early.
+      pipe.cancel();
+      try {
+        reconstructThread.join();
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException(
+          "Interrupted while waiting for reconstruction of " + block);
+      }
+    }
+  }
+
   private void computeMetadataAndSendReconstructedBlock(String datanode,
       File localBlockFile,
       Block block, long blockSize,
@@ -565,6 +639,7 @@ abstract class BlockReconstructor extends Configured {
       Block block, long blockSize,
       int dataTransferVersion, int namespaceId) 
   throws IOException {
+    long start = System.currentTimeMillis();
     InetSocketAddress target = NetUtils.createSocketAddr(datanode);
     Socket sock = SocketChannel.open().socket();
 
@@ -627,6 +702,8 @@ abstract class BlockReconstructor extends Configured {
       blockSender.sendBlock(out, baseStream, null);
 
       LOG.info("Sent block " + block + " to " + datanode);
+      RaidNodeMetrics.getInstance(RaidNodeMetrics.DEFAULT_NAMESPACE_ID)
+        .blockSendLatency.add(System.currentTimeMillis() - start);
     } finally {
       sock.close();
       out.close();
@@ -649,6 +726,20 @@ abstract class BlockReconstructor extends Configured {
     return null;
   }
 
+  /**
+   * Returns the lost blocks in a file, timing the NameNode call.
+   */
+  private List<LocatedBlockWithMetaInfo> getLostBlocks(
+      DistributedFileSystem fs, String uriPath, FileStatus stat)
+      throws IOException {
+    long start = System.currentTimeMillis();
+    List<LocatedBlockWithMetaInfo> lostBlocks =
+      lostBlocksInFile(fs, uriPath, stat);
+    RaidNodeMetrics.getInstance(RaidNodeMetrics.DEFAULT_NAMESPACE_ID)
+      .namenodeRpcLatency.add(System.currentTimeMillis() - start);
+    return lostBlocks;
+  }
+
   /**
    * Returns the lost blocks in a file.
    */
@@ -0,0 +1,206 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.raid;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * A bounded pool of buffers shared by the readers, encoders and decoders.
+ * Buffers are kept in size classes of their exact length, since the coding
+ * routines use the length of the buffers. Returned buffers are dropped
+ * once the pool holds raid.bufferpool.max.bytes bytes.
+ *
+ * Byte buffers come from a separate set of size classes. They are direct
+ * if raid.bufferpool.direct is set.
+ */
+public class BufferPool {
+  public static final String MAX_BYTES_KEY = "raid.bufferpool.max.bytes";
+  public static final long DEFAULT_MAX_BYTES = 128L * 1024 * 1024;
+  public static final String DIRECT_KEY = "raid.bufferpool.direct";
+
+  private static BufferPool instance = null;
+
+  private final long maxBytes;
+  private final boolean direct;
+  private final Map<Integer, ArrayDeque<byte[]>> arrays =
+    new HashMap<Integer, ArrayDeque<byte[]>>();
+  private final Map<Integer, ArrayDeque<ByteBuffer>> byteBuffers =
+    new HashMap<Integer, ArrayDeque<ByteBuffer>>();
+  // Bytes held in the pool.
+  private long pooledBytes = 0;
+  // Bytes handed out and not yet returned.
+  private long outstandingBytes = 0;
+  private long hits = 0;
+  private long misses = 0;
+
+  BufferPool(long maxBytes, boolean direct) {
+    this.maxBytes = maxBytes;
+    this.direct = direct;
+  }
+
+  /**
+   * Get the pool of this process. The pool is configured from the
+   * configuration of the first call.
+   */
+  public static synchronized BufferPool getInstance(Configuration conf) {
+    if (instance == null) {
+      instance = new BufferPool(
+        conf.getLong(MAX_BYTES_KEY, DEFAULT_MAX_BYTES),
+        conf.getBoolean(DIRECT_KEY, false));
+    }
+    return instance;
+  }
+
+  /**
+   * Borrow an array of exactly size bytes. The content is undefined.
+   */
+  public byte[] getBuffer(int size) {
+    byte[] buf = null;
+    synchronized (this) {
+      ArrayDeque<byte[]> free = arrays.get(size);
+      if (free != null) {
+        buf = free.poll();
+      }
+      account(buf != null, size);
+    }
+    return buf != null ? buf : new byte[size];
+  }
+
+  /**
+   * Return an array to the pool.
+   */
+  public void returnBuffer(byte[] buf) {
+    if (buf == null) {
+      return;
+    }
+    synchronized (this) {
+      outstandingBytes -= buf.length;
+      if (pooledBytes + buf.length > maxBytes) {
+        return;
+      }
+      ArrayDeque<byte[]> free = arrays.get(buf.length);
+      if (free == null) {
+        free = new ArrayDeque<byte[]>();
+        arrays.put(buf.length, free);
+      }
+      free.push(buf);
+      pooledBytes += buf.length;
+    }
+    updateMetrics();
+  }
+
+  /**
+   * Return all the arrays to the pool.
+   */
+  public void returnBuffers(byte[][] bufs) {
+    if (bufs == null) {
+      return;
+    }
+    for (int i = 0; i < bufs.length; i++) {
+      returnBuffer(bufs[i]);
+      bufs[i] = null;
+    }
+  }
+
+  /**
+   * Borrow a byte buffer with a capacity of exactly size bytes, cleared.
+   */
+  public ByteBuffer getByteBuffer(int size) {
+    ByteBuffer buf = null;
+    synchronized (this) {
+      ArrayDeque<ByteBuffer> free = byteBuffers.get(size);
+      if (free != null) {
+        buf = free.poll();
+      }
+      account(buf != null, size);
+    }
+    if (buf == null) {
+      return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+    buf.clear();
+    return buf;
+  }
+
+  /**
+   * Return a byte buffer to the pool.
+   */
+  public void returnByteBuffer(ByteBuffer buf) {
+    if (buf == null) {
+      return;
+    }
+    synchronized (this) {
+      outstandingBytes -= buf.capacity();
+      if (pooledBytes + buf.capacity() > maxBytes) {
+        return;
+      }
+      ArrayDeque<ByteBuffer> free = byteBuffers.get(buf.capacity());
+      if (free == null) {
+        free = new ArrayDeque<ByteBuffer>();
+        byteBuffers.put(buf.capacity(), free);
+      }
+      free.push(buf);
+      pooledBytes += buf.capacity();
+    }
+    updateMetrics();
+  }
+
+  private void account(boolean hit, int size) {
+    if (hit) {
+      hits++;
+      pooledBytes -= size;
+    } else {
+      misses++;
+    }
+    outstandingBytes += size;
+    RaidNodeMetrics metrics =
+      RaidNodeMetrics.getInstance(RaidNodeMetrics.DEFAULT_NAMESPACE_ID);
+    if (hit) {
+      metrics.bufferPoolHits.inc();
+    } else {
+      metrics.bufferPoolMisses.inc();
+    }
+    metrics.bufferPoolOutstandingBytes.set(outstandingBytes);
+  }
+
+  private void updateMetrics() {
+    RaidNodeMetrics.getInstance(RaidNodeMetrics.DEFAULT_NAMESPACE_ID)
+      .bufferPoolOutstandingBytes.set(getOutstandingBytes());
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized long getOutstandingBytes() {
+    return outstandingBytes;
+  }
+
+  public synchronized long getPooledBytes() {
+    return pooledBytes;
+  }
+}
@@ -0,0 +1,275 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.raid;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hdfs.server.datanode.FSDataset;
+import org.apache.hadoop.util.DataChecksum;
+
+/**
+ * Connects a block that is being reconstructed to a BlockSender without a
+ * local file. One thread writes the block to getOutputStream(). Another
+ * thread reads the block data from getDataStream() and the block metadata
+ * from getMetadataStream(). The checksums are computed as the data goes
+ * through, so the checksums of a packet are available before its data is
+ * read, which is the order in which BlockSender reads them.
+ *
+ * At most queueCapacity buffers of data are held in memory.
+ */
+class ChecksummedBlockPipe {
+  // Marks the end of the data in the queue.
+  private static final byte[] EOF = new byte[0];
+
+  private final DataChecksum sum;
+  private final int bytesPerChecksum;
+  private final int bufSize;
+  private final BlockingQueue<byte[]> queue;
+  private volatile boolean cancelled = false;
+  private volatile IOException writeError = null;
+
+  // Used by the reading thread only.
+  private final LinkedList<byte[]> pendingData = new LinkedList<byte[]>();
+  private int pendingDataOffset = 0;
+  private final LinkedList<byte[]> pendingChecksums = new LinkedList<byte[]>();
+  private int pendingChecksumOffset = 0;
+  private boolean eof = false;
+
+  private final PipeOutputStream out = new PipeOutputStream();
+  private final DataStream dataStream = new DataStream();
+  private final MetadataStream metadataStream;
+
+  /**
+   * @param bytesPerChecksum The number of data bytes per checksum.
+   * @param chunksPerBuffer The number of checksum chunks handed over at a
+   *                        time.
+   * @param queueCapacity The number of buffers that may be queued.
+   */
+  ChecksummedBlockPipe(int bytesPerChecksum, int chunksPerBuffer,
+      int queueCapacity) throws IOException {
+    this.sum = DataChecksum.newDataChecksum(DataChecksum.CHECKSUM_CRC32,
+      bytesPerChecksum);
+    this.bytesPerChecksum = bytesPerChecksum;
+    this.bufSize = bytesPerChecksum * chunksPerBuffer;
+    this.queue = new ArrayBlockingQueue<byte[]>(queueCapacity);
+
+    // The metadata starts with the version and the checksum header.
+    ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+    DataOutputStream header = new DataOutputStream(headerBytes);
+    header.writeShort(FSDataset.METADATA_VERSION);
+    sum.writeHeader(header);
+    header.close();
+    pendingChecksums.add(headerBytes.toByteArray());
+    this.metadataStream = new MetadataStream();
+  }
+
+  OutputStream getOutputStream() {
+    return out;
+  }
+
+  InputStream getDataStream() {
+    return dataStream;
+  }
+
+  InputStream getMetadataStream() {
+    return metadataStream;
+  }
+
+  /**
+   * Makes the readers fail with the given error. Called by the writing
+   * thread if it cannot produce the block.
+   */
+  void abort(IOException e) {
+    writeError = e;
+    try {
+      putBuffer(EOF);
+    } catch (IOException ignored) {
+    }
+  }
+
+  /**
+   * Stops the transfer. The writing thread fails on its next write.
+   * Called by the reading thread.
+   */
+  void cancel() {
+    cancelled = true;
+    queue.clear();
+  }
+
+  private void putBuffer(byte[] buf) throws IOException {
+    try {
+      while (!queue.offer(buf, 1, TimeUnit.SECONDS)) {
+        if (cancelled) {
+          throw new IOException("Block transfer cancelled");
+        }
+      }
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while queueing data");
+    }
+  }
+
+  /**
+   * Takes the next buffer from the writer and computes its checksums.
+   * @return false at the end of the data.
+   */
+  private boolean fill() throws IOException {
+    if (eof) {
+      return false;
+    }
+    byte[] buf;
+    try {
+      buf = queue.take();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while waiting for data");
+    }
+    if (buf == EOF) {
+      eof = true;
+      if (writeError != null) {
+        throw writeError;
+      }
+      return false;
+    }
+    int numChunks = (buf.length + bytesPerChecksum - 1) / bytesPerChecksum;
+    byte[] checksums = new byte[numChunks * sum.getChecksumSize()];
+    for (int i = 0; i < numChunks; i++) {
+      int off = i * bytesPerChecksum;
+      sum.update(buf, off, Math.min(bytesPerChecksum, buf.length - off));
+      boolean reset = true;
+      sum.writeValue(checksums, i * sum.getChecksumSize(), reset);
+    }
+    pendingData.add(buf);
+    pendingChecksums.add(checksums);
+    return true;
+  }
+
+  /**
+   * Collects the block in buffers of bufSize bytes. Only the last buffer
+   * can be shorter, so that the checksum chunks stay aligned.
+   */
+  private class PipeOutputStream extends OutputStream {
+    private byte[] buf = new byte[bufSize];
+    private int count = 0;
+    private boolean closed = false;
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (cancelled) {
+        throw new IOException("Block transfer cancelled");
+      }
+      while (len > 0) {
+        int n = Math.min(len, bufSize - count);
+        System.arraycopy(b, off, buf, count, n);
+        count += n;
+        off += n;
+        len -= n;
+        if (count == bufSize) {
+          putBuffer(buf);
+          buf = new byte[bufSize];
+          count = 0;
+        }
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (count > 0) {
+        byte[] last = new byte[count];
+        System.arraycopy(buf, 0, last, 0, count);
+        putBuffer(last);
+      }
+      putBuffer(EOF);
+    }
+  }
+
+  private class DataStream extends InputStream {
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (pendingData.isEmpty()) {
+        if (!fill()) {
+          return -1;
+        }
+      }
+      byte[] head = pendingData.getFirst();
+      int n = Math.min(len, head.length - pendingDataOffset);
+      System.arraycopy(head, pendingDataOffset, b, off, n);
+      pendingDataOffset += n;
+      if (pendingDataOffset == head.length) {
+        pendingData.removeFirst();
+        pendingDataOffset = 0;
+      }
+      return n;
+    }
+  }
+
+  private class MetadataStream extends InputStream {
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (pendingChecksums.isEmpty()) {
+        if (!fill()) {
+          return -1;
+        }
+      }
+      byte[] head = pendingChecksums.getFirst();
+      int n = Math.min(len, head.length - pendingChecksumOffset);
+      System.arraycopy(head, pendingChecksumOffset, b, off, n);
+      pendingChecksumOffset += n;
+      if (pendingChecksumOffset == head.length) {
+        pendingChecksums.removeFirst();
+        pendingChecksumOffset = 0;
+      }
+      return n;
+    }
+  }
+}
@@ -209,8 +209,15 @@ public class Codec {
 
   public ErasureCode createErasureCode(Configuration conf) {
     // Create the scheduler
-    Class<? extends ErasureCode> erasureCode
-      = conf.getClass(erasureCodeClass, ReedSolomonCode.class, ErasureCode.class);
+    Class<? extends ErasureCode> erasureCode;
+    try {
+      erasureCode = conf.getClassByName(erasureCodeClass).asSubclass(
+          ErasureCode.class);
+    } catch (ClassNotFoundException e) {
+      // Not a class name, look it up in the configuration.
+      erasureCode = conf.getClass(
+          erasureCodeClass, ReedSolomonCode.class, ErasureCode.class);
+    }
     ErasureCode code = (ErasureCode) ReflectionUtils.newInstance(erasureCode, conf);
     code.init(this);
     return code;
@@ -0,0 +1,101 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.raid;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hdfs.protocol.CorruptFileBlocks;
+
+/**
+ * Lists the files with corrupt blocks page by page, with the cookies
+ * returned by the namenode, instead of fetching the whole list at once.
+ * Each call to nextBatch() continues where the previous call stopped, so
+ * a sweep of a large list of corrupt blocks is spread over several calls.
+ * Once a sweep reaches the end of the list the next sweep starts from the
+ * beginning.
+ *
+ * The namenode cookie is a position in its list of corrupt blocks. Blocks
+ * that are fixed during a sweep shift the list, so a few blocks may be
+ * skipped until the next sweep.
+ */
+class CorruptFileFeed {
+  public static final Log LOG = LogFactory.getLog(CorruptFileFeed.class);
+
+  /**
+   * Returns one page of corrupt file blocks, as
+   * DFSClient.listCorruptFileBlocks does.
+   */
+  interface Lister {
+    CorruptFileBlocks list(String path, String cookie) throws IOException;
+  }
+
+  private final Lister lister;
+  private final String path;
+  // The position in the current sweep, null at the start of a sweep.
+  private String cookie = null;
+  private long sweeps = 0;
+
+  CorruptFileFeed(Lister lister, String path) {
+    this.lister = lister;
+    this.path = path;
+  }
+
+  /**
+   * Fetches pages until at least limit corrupt blocks have been seen or
+   * the end of the current sweep is reached.
+   * @return A map of file names to the number of corrupt blocks of the
+   *         file that were seen in this batch.
+   */
+  Map<String, Integer> nextBatch(int limit) throws IOException {
+    Map<String, Integer> files = new HashMap<String, Integer>();
+    int numBlocks = 0;
+    while (numBlocks < limit) {
+      CorruptFileBlocks page = lister.list(path, cookie);
+      String[] pageFiles = page.getFiles();
+      if (pageFiles.length == 0 || page.getCookie() == null ||
+          page.getCookie().equals(cookie)) {
+        // End of the list, the next batch starts a new sweep.
+        cookie = null;
+        sweeps++;
+        break;
+      }
+      cookie = page.getCookie();
+      for (String file : pageFiles) {
+        Integer numLost = files.get(file);
+        files.put(file, numLost == null ? 1 : numLost + 1);
+      }
+      numBlocks += pageFiles.length;
+    }
+    LOG.info("Listed " + numBlocks + " corrupt blocks in " + files.size() +
+      " files under " + path + ", sweep " + sweeps +
+      (cookie == null ? " complete" : " continues at " + cookie));
+    return files;
+  }
+
+  /**
+   * The number of complete sweeps of the list.
+   */
+  long getSweeps() {
+    return sweeps;
+  }
+}
@@ -24,7 +24,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.ExecutorService;
@@ -58,6 +59,11 @@ public class Decoder {
   protected int bufSize;
   protected byte[][] readBufs;
   protected byte[][] writeBufs;
+  protected BufferPool pool;
+  // Number of locations read beyond the ones needed, so that the slowest
+  // reads can be left behind.
+  protected int extraReads;
+  protected long minStragglerWait;
 
   public Decoder(Configuration conf, Codec codec) {
     this.conf = conf;
@@ -67,17 +73,45 @@ public class Decoder {
     this.code = codec.createErasureCode(conf);
     this.rand = new Random();
     this.bufSize = conf.getInt("raid.decoder.bufsize", 1024 * 1024);
+    this.pool = BufferPool.getInstance(conf);
+    this.extraReads = conf.getInt("raid.decoder.extra.reads", 0);
+    this.minStragglerWait = conf.getLong("raid.decoder.straggler.min.wait.ms",
+      ParallelStreamReader.DEFAULT_MIN_STRAGGLER_WAIT);
     this.writeBufs = new byte[codec.parityLength][];
     this.readBufs = new byte[codec.parityLength + codec.stripeLength][];
     allocateBuffers();
   }
 
   private void allocateBuffers() {
-    for (int i = 0; i < codec.parityLength; i++) {
-      writeBufs[i] = new byte[bufSize];
+    for (int i = 0; i < writeBufs.length; i++) {
+      pool.returnBuffer(writeBufs[i]);
+      writeBufs[i] = pool.getBuffer(bufSize);
     }
   }
 
+  /**
+   * Codes that repair from fewer than codec.stripeLength locations, like
+   * local repairs, decode more than codec.parityLength locations at once.
+   */
+  private void ensureWriteBufs(int count) {
+    if (count <= writeBufs.length) {
+      return;
+    }
+    // Hand the old buffers back before borrowing the grown set, so that
+    // close() returns every buffer the decoder holds.
+    pool.returnBuffers(writeBufs);
+    writeBufs = new byte[count][];
+    allocateBuffers();
+  }
+
+  /**
+   * Returns the buffers of this decoder to the pool. The decoder cannot be
+   * used afterwards.
+   */
+  public void close() {
+    pool.returnBuffers(writeBufs);
+  }
+
   private void configureBuffers(long blockSize) {
     if ((long)bufSize > blockSize) {
       bufSize = (int)blockSize;
@@ -120,16 +154,34 @@ public class Decoder {
     out.close();
   }
 
+  void fixErasedBlock(
+      FileSystem srcFs, Path srcFile, FileSystem parityFs, Path parityFile,
+      long blockSize, long errorOffset, long limit,
+      OutputStream out, Progressable reporter) throws IOException {
+    fixErasedBlock(srcFs, srcFile, parityFs, parityFile, blockSize,
+      errorOffset, 0, limit, out, reporter);
+  }
+
   /**
    * Having buffers of the right size is extremely important. If the the
    * buffer size is not a divisor of the block size, we may end up reading
    * across block boundaries.
+   *
+   * Only limit bytes starting at startOffsetInBlock are decoded, and only
+   * those bytes are read from the other locations.
+   *
+   * If raid.decoder.extra.reads is set, that many locations are read in
+   * addition to the ones needed and the slowest reads are left behind.
+   * The read latencies of the locations decide which locations are read
+   * when the inputs have to be built again.
    */
   void fixErasedBlock(
       FileSystem srcFs, Path srcFile, FileSystem parityFs, Path parityFile,
-      long blockSize, long errorOffset, long limit,
+      long blockSize, long errorOffset, long startOffsetInBlock, long limit,
       OutputStream out, Progressable reporter) throws IOException {
     configureBuffers(blockSize);
+    // Small ranges are read in one small slice.
+    int sliceSize = (int)Math.min((long)bufSize, limit);
 
     int blockIdx = (int) (errorOffset/blockSize);
     int stripeIdx = blockIdx / codec.stripeLength;
@@ -144,6 +196,12 @@ public class Decoder {
     // Start off with one erased location.
     erasedLocations.add(erasedLocationToFix);
     List<Integer> locationsToNotRead = new ArrayList<Integer>();
+    LatencyHistogram[] locationLatencies = new LatencyHistogram[inputs.length];
+    for (int i = 0; i < inputs.length; i++) {
+      locationLatencies[i] = new LatencyHistogram();
+    }
+    boolean[] slowLocations = new boolean[inputs.length];
+    long decodeTime = 0;
 
     int boundedBufferCapacity = 2;
     ParallelStreamReader parallelReader = null;
@@ -154,27 +212,38 @@ public class Decoder {
       for (int written = 0; written < limit; ) {
         try {
           if (parallelReader == null) {
-            long offsetInBlock = written;
+            long offsetInBlock = startOffsetInBlock + written;
+            long[] costs = locationCosts(locationLatencies, slowLocations);
             buildInputs(srcFs, srcFile, srcStat,
               parityFs, parityFile, parityStat,
               stripeIdx, offsetInBlock,
-              inputs, erasedLocations, locationsToNotRead);
+              inputs, erasedLocations, locationsToNotRead, costs);
             assert(parallelReader == null);
-            parallelReader = new ParallelStreamReader(reporter, inputs, bufSize,
-              parallelism, boundedBufferCapacity, blockSize);
+            parallelReader = new ParallelStreamReader(reporter, inputs,
+              sliceSize, parallelism, boundedBufferCapacity, limit - written,
+              pool);
+            parallelReader.setStragglersAllowed(
+              Math.max(0, codec.parityLength - locationsToNotRead.size()),
+              minStragglerWait);
             parallelReader.start();
           }
           ParallelStreamReader.ReadResult readResult = readFromInputs(
             erasedLocations, limit, reporter, parallelReader);
-          int[] erased = new int[codec.parityLength];
-          for (int i = 0; i < erased.length; i++) {
-            erased[i] = locationsToNotRead.get(i);
+          for (int i = 0; i < inputs.length; i++) {
+            slowLocations[i] |= readResult.abandoned[i];
           }
+          int[] erased = erasedForSlice(readResult, locationsToNotRead,
+            erasedLocationToFix,
+            locationCosts(locationLatencies, slowLocations));
+          ensureWriteBufs(erased.length);
+          long start = System.currentTimeMillis();
           code.decodeBulk(readResult.readBufs, writeBufs, erased);
+          decodeTime += System.currentTimeMillis() - start;
+          readResult.release();
 
-          int toWrite = (int)Math.min((long)bufSize, limit - written);
-          for (int i = 0; i < erasedLocations.size(); i++) {
-            if (erasedLocations.get(i) == erasedLocationToFix) {
+          int toWrite = (int)Math.min((long)sliceSize, limit - written);
+          for (int i = 0; i < erased.length; i++) {
+            if (erased[i] == erasedLocationToFix) {
               out.write(writeBufs[i], 0, toWrite);
               written += toWrite;
               break;
@@ -187,6 +256,7 @@ public class Decoder {
           // Re-create inputs from the new erased locations.
           if (parallelReader != null) {
             parallelReader.shutdown();
+            addLatencies(locationLatencies, parallelReader);
             parallelReader = null;
           }
           RaidUtils.closeStreams(inputs);
@@ -197,9 +267,85 @@ public class Decoder {
         parallelReader.shutdown();
       }
       RaidUtils.closeStreams(inputs);
+      RaidNodeMetrics.getInstance(RaidNodeMetrics.DEFAULT_NAMESPACE_ID)
+        .decodeLatency.add(decodeTime);
+    }
+  }
+
+  private static void addLatencies(LatencyHistogram[] locationLatencies,
+      ParallelStreamReader parallelReader) {
+    LatencyHistogram[] readerLatencies = parallelReader.getLatencies();
+    for (int i = 0; i < locationLatencies.length; i++) {
+      locationLatencies[i].add(readerLatencies[i]);
     }
   }
 
+  /**
+   * The cost of reading each location: the 90th percentile of its read
+   * latency, or the highest cost if a read of the location was left behind.
+   */
+  private static long[] locationCosts(LatencyHistogram[] locationLatencies,
+      boolean[] slowLocations) {
+    long[] costs = new long[locationLatencies.length];
+    for (int i = 0; i < costs.length; i++) {
+      costs[i] = slowLocations[i] ?
+        Long.MAX_VALUE : locationLatencies[i].getPercentile(90);
+    }
+    return costs;
+  }
+
+  /**
+   * Figures out the locations to decode a slice from: the locations not
+   * read, the reads left behind and, if fewer than codec.parityLength,
+   * the most costly locations that were read as long as the code can
+   * still decode erasedLocationToFix without them.
+   */
+  int[] erasedForSlice(ParallelStreamReader.ReadResult readResult,
+      List<Integer> locationsToNotRead, int erasedLocationToFix,
+      final long[] costs) throws IOException {
+    List<Integer> erased = new ArrayList<Integer>(locationsToNotRead);
+    List<Integer> readLocations = new ArrayList<Integer>();
+    for (int i = 0; i < readResult.abandoned.length; i++) {
+      if (erased.indexOf(i) != -1) {
+        continue;
+      }
+      if (readResult.abandoned[i]) {
+        erased.add(i);
+      } else {
+        readLocations.add(i);
+      }
+    }
+    if (!code.canDecode(erased, erasedLocationToFix)) {
+      if (erased.size() > locationsToNotRead.size()) {
+        // Read again, the reads left behind are now the most costly.
+        throw new IOException("Cannot decode without the reads left behind " +
+          erased.subList(locationsToNotRead.size(), erased.size()));
+      }
+      throw new TooManyErasedLocations("Locations " + erased);
+    }
+    // Drop the most costly reads, the last locations first.
+    Collections.sort(readLocations, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        if (costs[a] != costs[b]) {
+          return costs[a] > costs[b] ? -1 : 1;
+        }
+        return b - a;
+      }
+    });
+    for (int i = 0; erased.size() < codec.parityLength &&
+         i < readLocations.size(); i++) {
+      erased.add(readLocations.get(i));
+      if (!code.canDecode(erased, erasedLocationToFix)) {
+        erased.remove(erased.size() - 1);
+      }
+    }
+    int[] result = new int[erased.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = erased.get(i);
+    }
+    return result;
+  }
+
   private InputStream buildOneInput(
     int stripeIndex, int locationIndex, long offsetInBlock,
     FileSystem srcFs, Path srcFile, FileStatus srcStat,
@@ -247,18 +393,43 @@ public class Decoder {
    *  - the array of input streams @param inputs
    *  - the list of erased locations @param erasedLocations.
    *  - the list of locations that are not read @param locationsToNotRead.
+   * The cheapest locations are read, and up to extraReads more.
    */
   private void buildInputs(
     FileSystem srcFs, Path srcFile, FileStatus srcStat,
     FileSystem parityFs, Path parityFile, FileStatus parityStat,
     int stripeIdx, long offsetInBlock,
-    InputStream[] inputs, List<Integer> erasedLocations, List<Integer> locationsToNotRead)
+    InputStream[] inputs, List<Integer> erasedLocations, List<Integer> locationsToNotRead,
+    long[] locationCosts)
       throws IOException {
     boolean redo = false;
     do {
+      redo = false;
       locationsToNotRead.clear();
       List<Integer> locationsToRead =
-        code.locationsToReadForDecode(erasedLocations);
+        code.locationsToReadForDecode(erasedLocations, locationCosts);
+      if (extraReads > 0) {
+        // Add the next cheapest locations.
+        List<Integer> extra = new ArrayList<Integer>();
+        for (int loc = 0; loc < inputs.length; loc++) {
+          if (erasedLocations.indexOf(loc) == -1 &&
+              locationsToRead.indexOf(loc) == -1) {
+            extra.add(loc);
+          }
+        }
+        final long[] costs = locationCosts;
+        Collections.sort(extra, new Comparator<Integer>() {
+          public int compare(Integer a, Integer b) {
+            if (costs[a] != costs[b]) {
+              return costs[a] < costs[b] ? -1 : 1;
+            }
+            return a - b;
+          }
+        });
+        locationsToRead = new ArrayList<Integer>(locationsToRead);
+        locationsToRead.addAll(
+          extra.subList(0, Math.min(extraReads, extra.size())));
+      }
       for (int i = 0; i < inputs.length; i++) {
         boolean isErased = (erasedLocations.indexOf(i) != -1);
         boolean shouldRead = (locationsToRead.indexOf(i) != -1);
@@ -294,7 +465,6 @@ public class Decoder {
         }
       }
     } while (redo);
-    assert(new HashSet(locationsToNotRead).size() == codec.parityLength);
   }
 
   ParallelStreamReader.ReadResult readFromInputs(
@@ -322,6 +492,7 @@ public class Decoder {
       } else if (e instanceof ChecksumException) {
         LOG.warn("Encountered ChecksumException in stream " + i);
       } else {
+        readResult.release();
         throw e;
       }
       int newErasedLocation = i;
@@ -329,6 +500,7 @@ public class Decoder {
       exceptionToThrow = e;
     }
     if (exceptionToThrow != null) {
+      readResult.release();
       throw exceptionToThrow;
     }
     return readResult;
@@ -0,0 +1,310 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.raid;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+
+/**
+ * The persistent state of the namespace scan of a policy. It holds the
+ * directories that the current traversal has yet to visit, so that a
+ * restarted RaidNode resumes the traversal instead of starting over, and
+ * the directories whose files were all found to be settled, so that later
+ * traversals skip them until they change.
+ *
+ * A settled directory is checked again after
+ * raid.scan.state.recheck.interval, since changes to a file such as its
+ * replication do not change the modification time of its directory.
+ *
+ * The state is stored in a file named after the policy under
+ * raid.scan.state.dir. Keeping scan state is disabled if that is not set.
+ */
+class DirectoryScanState implements DirectoryTraversal.DirectorySummary {
+  public static final Log LOG = LogFactory.getLog(DirectoryScanState.class);
+
+  public static final String SCAN_STATE_DIR_KEY = "raid.scan.state.dir";
+  public static final String CHECKPOINT_INTERVAL_KEY =
+    "raid.scan.state.checkpoint.interval";
+  public static final String RECHECK_INTERVAL_KEY =
+    "raid.scan.state.recheck.interval";
+  public static final long DEFAULT_CHECKPOINT_INTERVAL = 10 * 60 * 1000L;
+  public static final long DEFAULT_RECHECK_INTERVAL =
+    7 * 24 * 3600 * 1000L;
+
+  private static final int VERSION = 1;
+  private static final String TMP_SUFFIX = ".tmp";
+
+  static class DirInfo {
+    final long mtime;
+    final long checkTime;
+    final boolean leaf;
+
+    DirInfo(long mtime, long checkTime, boolean leaf) {
+      this.mtime = mtime;
+      this.checkTime = checkTime;
+      this.leaf = leaf;
+    }
+  }
+
+  private final FileSystem fs;
+  private final Path file;
+  private final long checkpointInterval;
+  private final long recheckInterval;
+  private long lastCheckpoint = 0;
+
+  private long startTime = 0;
+  private List<Path> pending = new ArrayList<Path>();
+  private List<Path> filesOnly = new ArrayList<Path>();
+  private final Map<String, DirInfo> settledDirs =
+    new ConcurrentHashMap<String, DirInfo>();
+
+  DirectoryScanState(Configuration conf, FileSystem fs, Path file) {
+    this.fs = fs;
+    this.file = file;
+    this.checkpointInterval =
+      conf.getLong(CHECKPOINT_INTERVAL_KEY, DEFAULT_CHECKPOINT_INTERVAL);
+    this.recheckInterval =
+      conf.getLong(RECHECK_INTERVAL_KEY, DEFAULT_RECHECK_INTERVAL);
+  }
+
+  /**
+   * Loads the scan state of a policy.
+   * @return The saved state, a new state if none was saved or null if scan
+   *         state is not configured.
+   */
+  static DirectoryScanState load(Configuration conf, String policyName)
+      throws IOException {
+    String dir = conf.get(SCAN_STATE_DIR_KEY);
+    if (dir == null) {
+      return null;
+    }
+    Path file = new Path(dir, policyName);
+    FileSystem fs = file.getFileSystem(conf);
+    DirectoryScanState state = new DirectoryScanState(conf, fs, file);
+    try {
+      state.read();
+    } catch (IOException e) {
+      LOG.warn("Could not read scan state " + file + ", starting over", e);
+      state = new DirectoryScanState(conf, fs, file);
+    }
+    return state;
+  }
+
+  private void read() throws IOException {
+    Path tmp = new Path(file.toString() + TMP_SUFFIX);
+    Path toRead = file;
+    if (!fs.exists(file)) {
+      // A save may have been interrupted before the rename.
+      if (!fs.exists(tmp)) {
+        return;
+      }
+      toRead = tmp;
+    }
+    DataInputStream in = fs.open(toRead);
+    try {
+      int version = in.readInt();
+      if (version != VERSION) {
+        LOG.warn("Ignoring scan state " + toRead + " with version " +
+          version);
+        return;
+      }
+      startTime = in.readLong();
+      pending = readPaths(in);
+      filesOnly = readPaths(in);
+      int numDirs = in.readInt();
+      for (int i = 0; i < numDirs; i++) {
+        String dir = Text.readString(in);
+        long mtime = in.readLong();
+        long checkTime = in.readLong();
+        boolean leaf = in.readBoolean();
+        settledDirs.put(dir, new DirInfo(mtime, checkTime, leaf));
+      }
+    } finally {
+      in.close();
+    }
+    LOG.info("Loaded scan state " + toRead + " with " + pending.size() +
+      " pending and " + settledDirs.size() + " settled directories");
+  }
+
+  private static List<Path> readPaths(DataInputStream in)
+      throws IOException {
+    int n = in.readInt();
+    List<Path> paths = new ArrayList<Path>(n);
+    for (int i = 0; i < n; i++) {
+      paths.add(new Path(Text.readString(in)));
+    }
+    return paths;
+  }
+
+  private static void writePaths(DataOutputStream out, List<Path> paths)
+      throws IOException {
+    out.writeInt(paths.size());
+    for (Path p : paths) {
+      Text.writeString(out, p.toUri().getPath());
+    }
+  }
+
+  synchronized void save() throws IOException {
+    // Drop the entries that would be checked again anyway, this also drops
+    // the directories that no longer exist.
+    long now = RaidNode.now();
+    for (Iterator<DirInfo> it = settledDirs.values().iterator();
+         it.hasNext();) {
+      if (now - it.next().checkTime > recheckInterval) {
+        it.remove();
+      }
+    }
+    Path tmp = new Path(file.toString() + TMP_SUFFIX);
+    DataOutputStream out = fs.create(tmp, true);
+    try {
+      out.writeInt(VERSION);
+      out.writeLong(startTime);
+      writePaths(out, pending);
+      writePaths(out, filesOnly);
+      List<Map.Entry<String, DirInfo>> entries =
+        new ArrayList<Map.Entry<String, DirInfo>>(settledDirs.entrySet());
+      out.writeInt(entries.size());
+      for (Map.Entry<String, DirInfo> e : entries) {
+        Text.writeString(out, e.getKey());
+        out.writeLong(e.getValue().mtime);
+        out.writeLong(e.getValue().checkTime);
+        out.writeBoolean(e.getValue().leaf);
+      }
+    } finally {
+      out.close();
+    }
+    fs.delete(file, false);
+    if (!fs.rename(tmp, file)) {
+      throw new IOException("Could not rename " + tmp + " to " + file);
+    }
+    lastCheckpoint = RaidNode.now();
+  }
+
+  /**
+   * The start time of the last traversal.
+   */
+  long getStartTime() {
+    return startTime;
+  }
+
+  boolean hasPendingDirectories() {
+    return !pending.isEmpty() || !filesOnly.isEmpty();
+  }
+
+  List<Path> getPendingDirectories() {
+    return pending;
+  }
+
+  List<Path> getFilesOnlyDirectories() {
+    return filesOnly;
+  }
+
+  void startTraversal(long startTime) {
+    this.startTime = startTime;
+    pending = new ArrayList<Path>();
+    filesOnly = new ArrayList<Path>();
+  }
+
+  /**
+   * Records the position of a traversal in progress, and saves the state
+   * if the last save is older than the checkpoint interval.
+   */
+  void checkpoint(DirectoryTraversal traversal) {
+    if (RaidNode.now() - lastCheckpoint < checkpointInterval) {
+      return;
+    }
+    checkpointNow(traversal);
+  }
+
+  /**
+   * Records the position of a traversal and saves the state right away.
+   */
+  void checkpointNow(DirectoryTraversal traversal) {
+    List<Path> newFilesOnly = new ArrayList<Path>();
+    pending = traversal.getPendingDirectories(newFilesOnly);
+    filesOnly = newFilesOnly;
+    trySave();
+  }
+
+  /**
+   * Records that the traversal has finished and saves the state.
+   */
+  void finishTraversal() {
+    pending = new ArrayList<Path>();
+    filesOnly = new ArrayList<Path>();
+    trySave();
+  }
+
+  private void trySave() {
+    try {
+      save();
+    } catch (IOException e) {
+      LOG.warn("Could not save scan state to " + file, e);
+    }
+  }
+
+  int getNumSettledDirectories() {
+    return settledDirs.size();
+  }
+
+  private DirInfo getSettled(String dir, long mtime) {
+    DirInfo info = settledDirs.get(dir);
+    if (info == null || info.mtime != mtime) {
+      return null;
+    }
+    if (RaidNode.now() - info.checkTime > recheckInterval) {
+      return null;
+    }
+    return info;
+  }
+
+  @Override
+  public boolean isSettled(String dir, long mtime) {
+    return getSettled(dir, mtime) != null;
+  }
+
+  @Override
+  public boolean isSettledLeaf(String dir, long mtime) {
+    DirInfo info = getSettled(dir, mtime);
+    return info != null && info.leaf;
+  }
+
+  @Override
+  public void setSettled(String dir, long mtime, boolean settled,
+      boolean leaf) {
+    if (settled) {
+      settledDirs.put(dir, new DirInfo(mtime, RaidNode.now(), leaf));
+    } else {
+      settledDirs.remove(dir);
+    }
+  }
+}
@@ -21,21 +21,25 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingDeque;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.LocatedFileStatus;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hdfs.DistributedAvatarFileSystem;
 import org.apache.hadoop.raid.protocol.PolicyInfo;
@@ -44,6 +48,13 @@ import org.apache.hadoop.raid.protocol.PolicyInfo;
 /**
  * Traverses the directory tree and gets the desired FileStatus specified by
  * a given {@link DirectoryTraversal.Filter}. This class is not thread safe.
+ *
+ * Each processor thread keeps its own deque of directories. A processor
+ * lists the directories of its own deque depth first, and takes the
+ * oldest directory of another processor's deque when its own is empty.
+ * Once maxQueuedDirectories directories are queued, processors list
+ * the sub directories they find themselves instead of queuing them.
+ * A traversal that is not read to the end must be stopped with stop().
  */
 public class DirectoryTraversal {
 
@@ -51,18 +62,44 @@ public class DirectoryTraversal {
     LogFactory.getLog(DirectoryTraversal.class);
   static final public FileStatus FINISH_TOKEN = new FileStatus();
   static final int OUTPUT_QUEUE_SIZE = 10000;
+  public static final String MAX_QUEUED_DIRECTORIES_KEY =
+    "raid.directorytraversal.max.queued.directories";
+  static final int DEFAULT_MAX_QUEUED_DIRECTORIES = 100000;
+  // The longest an idle processor waits before looking for work again.
+  static final long MAX_IDLE_WAIT_MSEC = 10;
 
   final private FileSystem fs;
   final private DistributedAvatarFileSystem avatarFs;
   final private BlockingQueue<FileStatus> output;
-  final private BlockingDeque<Path> directories;
   final private Filter filter;
   final private Processor[] processors;
   final private AtomicInteger totalDirectories;
+  final private AtomicInteger queuedDirectories = new AtomicInteger(0);
+  final private int maxQueuedDirectories;
+  // Directories queued by all the traversals, for the metrics.
+  static final private AtomicLong allQueuedDirectories = new AtomicLong(0);
+  final private AtomicLong directoriesListed = new AtomicLong(0);
+  final private AtomicLong entriesListed = new AtomicLong(0);
+  final private long startTime = System.currentTimeMillis();
   final private AtomicInteger activeThreads;
   final private boolean doShuffle;
   final private boolean allowStandby;
   private volatile boolean finished = false;
+  // Remembers the directories that have nothing to output, may be null.
+  private DirectorySummary summary = null;
+  // Directories that are resumed after their sub directories were queued.
+  private Set<String> filesOnly = Collections.<String>emptySet();
+  // The modification times of the queued directories, if summary is set.
+  private final ConcurrentHashMap<String, Long> dirMtimes =
+    new ConcurrentHashMap<String, Long>();
+  // Directories that are queued, being listed or with outputs that have
+  // not been consumed.
+  private final ConcurrentHashMap<String, InFlight> inFlight =
+    new ConcurrentHashMap<String, InFlight>();
+  // Held to queue sub directories, so that getPendingDirectories() sees
+  // either the sub directories or a directory that is not listed yet.
+  private final ReentrantReadWriteLock queueLock =
+    new ReentrantReadWriteLock();
 
   /**
    * Filters the elements to output
@@ -71,6 +108,46 @@ public class DirectoryTraversal {
     boolean check(FileStatus f) throws IOException;
   }
 
+  /**
+   * A filter that can also tell if a file it rejects will stay rejected as
+   * long as the file is not changed.
+   */
+  public interface SettlingFilter extends Filter {
+    /**
+     * Called after check() rejected the file.
+     */
+    boolean isSettled(FileStatus f) throws IOException;
+  }
+
+  /**
+   * Keeps track of the directories whose files are all settled, so that
+   * they are not checked again until the directory changes.
+   */
+  public interface DirectorySummary {
+    /**
+     * @return true if the files of the directory need not be checked.
+     */
+    boolean isSettled(String dir, long mtime);
+
+    /**
+     * @return true if the directory had no sub directories when it was
+     *         found to be settled.
+     */
+    boolean isSettledLeaf(String dir, long mtime);
+
+    /**
+     * Records the result of checking the files of a directory.
+     */
+    void setSettled(String dir, long mtime, boolean settled, boolean leaf);
+  }
+
+  private static class InFlight {
+    // Set once the sub directories have been queued.
+    volatile boolean listed = false;
+    // Outputs not yet consumed, plus one until the directory is processed.
+    final AtomicInteger pending = new AtomicInteger(1);
+  }
+
   public DirectoryTraversal(Collection<Path> roots, FileSystem fs,
       Filter filter, int numThreads, boolean doShuffle)
       throws IOException {
@@ -88,8 +165,49 @@ public class DirectoryTraversal {
       FileSystem fs, Filter filter, int numThreads, boolean doShuffle,
       boolean allowUseStandby)
       throws IOException {
+    this(friendlyName, roots, fs, filter, numThreads, doShuffle,
+        allowUseStandby, null, Collections.<Path>emptyList());
+  }
+
+  /**
+   * @param summary Used to skip the directories whose files are settled.
+   *                May be null.
+   * @param filesOnlyRoots Roots whose files are output but whose sub
+   *                       directories are not traversed. Used to resume
+   *                       a traversal from getPendingDirectories().
+   */
+  public DirectoryTraversal(String friendlyName, Collection<Path> roots,
+      FileSystem fs, Filter filter, int numThreads, boolean doShuffle,
+      boolean allowUseStandby, DirectorySummary summary,
+      Collection<Path> filesOnlyRoots)
+      throws IOException {
+    this(friendlyName, roots, fs, filter, numThreads, doShuffle,
+        allowUseStandby, summary, filesOnlyRoots,
+        DEFAULT_MAX_QUEUED_DIRECTORIES);
+  }
+
+  /**
+   * @param maxQueuedDirectories The number of queued directories above
+   *                             which sub directories are listed by the
+   *                             processor that finds them.
+   */
+  public DirectoryTraversal(String friendlyName, Collection<Path> roots,
+      FileSystem fs, Filter filter, int numThreads, boolean doShuffle,
+      boolean allowUseStandby, DirectorySummary summary,
+      Collection<Path> filesOnlyRoots, int maxQueuedDirectories)
+      throws IOException {
+    this.maxQueuedDirectories = maxQueuedDirectories;
+    if (!filesOnlyRoots.isEmpty()) {
+      List<Path> allRoots = new ArrayList<Path>(roots);
+      this.filesOnly = new HashSet<String>();
+      for (Path p : filesOnlyRoots) {
+        allRoots.add(p);
+        filesOnly.add(p.toUri().getPath());
+      }
+      roots = allRoots;
+    }
+    this.summary = summary;
     this.output = new ArrayBlockingQueue<FileStatus>(OUTPUT_QUEUE_SIZE);
-    this.directories = new LinkedBlockingDeque<Path>();
     this.fs = fs;
     if (allowUseStandby && fs instanceof DistributedAvatarFileSystem) {
     	avatarFs = (DistributedAvatarFileSystem) fs;
@@ -102,13 +220,12 @@ public class DirectoryTraversal {
     this.activeThreads = new AtomicInteger(numThreads);
     this.doShuffle = doShuffle;
     this.allowStandby = allowUseStandby;
+    for (Path root : roots) {
+      inFlight.put(root.toUri().getPath(), new InFlight());
+    }
+    List<Path> toAdd = new ArrayList<Path>(roots);
     if (doShuffle) {
-      List<Path> toShuffleAndAdd = new ArrayList<Path>();
-      toShuffleAndAdd.addAll(roots);
-      Collections.shuffle(toShuffleAndAdd);
-      this.directories.addAll(toShuffleAndAdd);
-    } else {
-      this.directories.addAll(roots);
+      Collections.shuffle(toAdd);
     }
     LOG.info("Starting with directories:" + roots.toString() +
         " numThreads:" + numThreads);
@@ -124,6 +241,10 @@ public class DirectoryTraversal {
       processors[i] = new Processor();
       processors[i].setName(friendlyName + i);
     }
+    // Spread the roots over the processors.
+    for (int i = 0; i < toAdd.size(); ++i) {
+      processors[i % processors.length].push(toAdd.get(i));
+    }
     for (int i = 0; i < processors.length; ++i) {
       processors[i].start();
     }
@@ -148,12 +269,87 @@ public class DirectoryTraversal {
       throw new IOException(e);
     }
     if (f == FINISH_TOKEN) {
-      LOG.info("traversal is done. Returning FINISH_TOKEN");
+      long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+      LOG.info("traversal is done. Listed " + directoriesListed.get() +
+        " directories and " + entriesListed.get() + " entries in " +
+        elapsed + "ms, " + (entriesListed.get() * 1000 / elapsed) +
+        " entries/sec. Returning FINISH_TOKEN");
       finished = true;
+    } else {
+      release(f.getPath().getParent().toUri().getPath());
     }
     return f;
   }
 
+  private void release(String dir) {
+    InFlight state = inFlight.get(dir);
+    if (state != null && state.pending.decrementAndGet() == 0) {
+      inFlight.remove(dir);
+    }
+  }
+
+  /**
+   * The directories that still have to be traversed, for resuming the
+   * traversal later. Should be called by the thread calling next().
+   * @param filesOnlyDirs Receives the directories whose sub directories
+   *                      are already included in the result but whose
+   *                      files have not all been returned by next().
+   * @return The directories that have not been traversed at all.
+   */
+  public List<Path> getPendingDirectories(List<Path> filesOnlyDirs) {
+    List<Path> pending = new ArrayList<Path>();
+    queueLock.writeLock().lock();
+    try {
+      for (Map.Entry<String, InFlight> e : inFlight.entrySet()) {
+        if (e.getValue().listed) {
+          filesOnlyDirs.add(new Path(e.getKey()));
+        } else {
+          pending.add(new Path(e.getKey()));
+        }
+      }
+    } finally {
+      queueLock.writeLock().unlock();
+    }
+    return pending;
+  }
+
+  /**
+   * The number of directories listed so far.
+   */
+  public long getDirectoriesListed() {
+    return directoriesListed.get();
+  }
+
+  /**
+   * The number of files and directories listed so far.
+   */
+  public long getEntriesListed() {
+    return entriesListed.get();
+  }
+
+  /**
+   * The number of directories waiting to be listed.
+   */
+  public int getQueuedDirectories() {
+    return queuedDirectories.get();
+  }
+
+  /**
+   * The number of directories queued by all the traversals.
+   */
+  static long getAllQueuedDirectories() {
+    return allQueuedDirectories.get();
+  }
+
+  /**
+   * Stops a traversal that will not be read to the end. The processors
+   * exit and drop the directories they have queued.
+   */
+  public void stop() {
+    finished = true;
+    interruptProcessors();
+  }
+
   private void interruptProcessors() {
     for (Thread processor : processors) {
       if (processor != null) {
@@ -168,53 +364,133 @@ public class DirectoryTraversal {
      * files under the same directory, only few RPC call is needed to get LocatedFileStatus of these files.
      * Please check PlacementMonitor.getLocatedFileStatus for more details.  
      */
-    private HashMap<String, LocatedFileStatus> cache;
+    private PlacementMonitor.LocatedStatusCache cache;
+    // The owner takes directories from the front, other processors steal
+    // from the back.
+    private final BlockingDeque<Path> directories =
+      new LinkedBlockingDeque<Path>();
+    private final Random rand = new Random();
+
+    void push(Path dir) {
+      queuedDirectories.incrementAndGet();
+      allQueuedDirectories.incrementAndGet();
+      directories.addFirst(dir);
+    }
+
+    private Path poll() {
+      Path dir = directories.pollFirst();
+      if (dir != null) {
+        queuedDirectories.decrementAndGet();
+        allQueuedDirectories.decrementAndGet();
+      }
+      return dir;
+    }
+
+    private Path steal() {
+      Path dir = directories.pollLast();
+      if (dir != null) {
+        queuedDirectories.decrementAndGet();
+        allQueuedDirectories.decrementAndGet();
+      }
+      return dir;
+    }
+
+    /**
+     * Takes the next directory from this processor's deque or steals one
+     * from another processor.
+     */
+    private Path nextDirectory() {
+      Path dir = poll();
+      if (dir != null) {
+        return dir;
+      }
+      int start = rand.nextInt(processors.length);
+      for (int i = 0; i < processors.length; i++) {
+        Processor victim = processors[(start + i) % processors.length];
+        if (victim != this && (dir = victim.steal()) != null) {
+          return dir;
+        }
+      }
+      return null;
+    }
+
     @Override
     public void run() {
       this.cache = PlacementMonitor.locatedFileStatusCache.get();
-      List<Path> subDirs = new ArrayList<Path>();
-      List<FileStatus> filtered = new ArrayList<FileStatus>();
+      long idleWait = 1;
       try {
         while (!finished && totalDirectories.get() > 0) {
-          Path dir = null;
-          try {
-            dir = directories.poll(1000L, TimeUnit.MILLISECONDS);
-          } catch (InterruptedException e) {
-            continue;
-          }
+          Path dir = nextDirectory();
           if (dir == null) {
+            try {
+              Thread.sleep(idleWait);
+            } catch (InterruptedException e) {
+            }
+            idleWait = Math.min(2 * idleWait, MAX_IDLE_WAIT_MSEC);
             continue;
           }
-          try {
-            filterDirectory(dir, subDirs, filtered);
-          } catch (Throwable ex) {
-            LOG.error(getName() + " throws Throwable. Skip " + dir, ex);
-            totalDirectories.decrementAndGet();
-            continue;
-          }
-          int numOfDirectoriesChanged = -1 + subDirs.size();
-          if (totalDirectories.addAndGet(numOfDirectoriesChanged) == 0) {
-            interruptProcessors();
-          }
-          submitOutputs(filtered, subDirs);
+          idleWait = 1;
+          process(dir);
         }
       } finally {
         // clear the cache to avoid memory leak
         cache.clear();
         PlacementMonitor.locatedFileStatusCache.remove();
+        // Drop the directories left by a stopped traversal.
+        while (poll() != null) {
+        }
         int active = activeThreads.decrementAndGet();
         if (active == 0) {
-          while (true) {
+          // Nobody reads the output of a stopped traversal.
+          while (!finished) {
             try {
               output.put(FINISH_TOKEN);
               break;
             } catch (InterruptedException e) {
             }
           }
+          if (finished) {
+            output.offer(FINISH_TOKEN);
+          }
         }
       }
     }
 
+    private void process(Path dir) {
+      List<Path> subDirs = new ArrayList<Path>();
+      List<FileStatus> filtered = new ArrayList<FileStatus>();
+      String dirName = dir.toUri().getPath();
+      InFlight state = inFlight.get(dirName);
+      if (state == null) {
+        state = new InFlight();
+        inFlight.put(dirName, state);
+      }
+      try {
+        filterDirectory(dir, subDirs, filtered);
+      } catch (Throwable ex) {
+        LOG.error(getName() + " throws Throwable. Skip " + dir, ex);
+        inFlight.remove(dirName);
+        if (totalDirectories.decrementAndGet() == 0) {
+          interruptProcessors();
+        }
+        return;
+      }
+      int numOfDirectoriesChanged = -1 + subDirs.size();
+      if (totalDirectories.addAndGet(numOfDirectoriesChanged) == 0) {
+        interruptProcessors();
+      }
+      state.pending.addAndGet(filtered.size());
+      List<Path> inline = submitOutputs(filtered, subDirs, state);
+      release(dirName);
+      // The directories that could not be queued are listed right away.
+      for (Path subDir : inline) {
+        if (finished) {
+          break;
+        }
+        process(subDir);
+      }
+    }
+
     private void filterDirectory(Path dir, List<Path> subDirs,
         List<FileStatus> filtered) throws IOException {
       subDirs.clear();
@@ -222,6 +498,21 @@ public class DirectoryTraversal {
       if (dir == null) {
         return;
       }
+      String dirName = dir.toUri().getPath();
+      boolean recurse = !filesOnly.contains(dirName);
+      long mtime = -1;
+      boolean checkFiles = true;
+      if (summary != null) {
+        Long queuedMtime = dirMtimes.remove(dirName);
+        mtime = queuedMtime != null ?
+          queuedMtime : fs.getFileStatus(dir).getModificationTime();
+        if (summary.isSettledLeaf(dirName, mtime)) {
+          // Nothing changed since all the files were settled and there
+          // were no sub directories, no need to list.
+          return;
+        }
+        checkFiles = !summary.isSettled(dirName, mtime);
+      }
       FileStatus[] elements;
       if (avatarFs != null) {
     	  elements = avatarFs.listStatus(dir, true);
@@ -229,34 +520,72 @@ public class DirectoryTraversal {
     	  elements = fs.listStatus(dir);
       }
       cache.clear();
+      int numElements = elements == null ? 0 : elements.length;
+      directoriesListed.incrementAndGet();
+      entriesListed.addAndGet(numElements);
+      RaidNodeMetrics metrics =
+        RaidNodeMetrics.getInstance(RaidNodeMetrics.DEFAULT_NAMESPACE_ID);
+      metrics.traversalDirectories.inc();
+      metrics.traversalEntries.inc(numElements);
+      metrics.traversalQueueDepth.set(allQueuedDirectories.get());
+      boolean settled = true;
+      boolean leaf = true;
       if (elements != null) {
         for (FileStatus element : elements) {
+          if (element.isDir()) {
+            leaf = false;
+            if (recurse) {
+              subDirs.add(element.getPath());
+              if (summary != null) {
+                dirMtimes.put(element.getPath().toUri().getPath(),
+                  element.getModificationTime());
+              }
+            }
+            if (!checkFiles) {
+              continue;
+            }
+          } else if (!checkFiles) {
+            continue;
+          }
           if (filter.check(element)) {
             filtered.add(element);
-          }
-          if (element.isDir()) {
-            subDirs.add(element.getPath());
+            settled = false;
+          } else if (settled && !element.isDir()) {
+            settled = filter instanceof SettlingFilter &&
+              ((SettlingFilter) filter).isSettled(element);
           }
         }
       }
+      if (summary != null && checkFiles && recurse) {
+        summary.setSettled(dirName, mtime, settled, leaf);
+      }
     }
 
     /**
      * Submit filtered result to output and directories. Will swallow interrupt
      * unless {@link finished} is set to true.
+     * @return The sub directories that were not queued because too many
+     *         directories are queued already.
      */
-    private void submitOutputs(List<FileStatus> filtered, List<Path> subDirs) {
+    private List<Path> submitOutputs(List<FileStatus> filtered,
+        List<Path> subDirs, InFlight state) {
       if (doShuffle) {
         Collections.shuffle(subDirs);
       }
-      for (Path subDir : subDirs) {
-        while (!finished) {
-          try {
-            directories.putFirst(subDir);
-            break;
-          } catch (InterruptedException e) {
+      List<Path> inline = new ArrayList<Path>();
+      queueLock.readLock().lock();
+      try {
+        for (Path subDir : subDirs) {
+          inFlight.put(subDir.toUri().getPath(), new InFlight());
+          if (queuedDirectories.get() < maxQueuedDirectories) {
+            push(subDir);
+          } else {
+            inline.add(subDir);
           }
         }
+        state.listed = true;
+      } finally {
+        queueLock.readLock().unlock();
       }
       for (FileStatus out : filtered) {
         while (!finished) {
@@ -267,6 +596,7 @@ public class DirectoryTraversal {
           }
         }
       }
+      return inline;
     }
   }
 
@@ -308,8 +638,23 @@ public class DirectoryTraversal {
       final PolicyInfo info, List<Path> roots, Collection<PolicyInfo> allInfos,
       Configuration conf, int numThreads, boolean doShuffle, boolean allowStandby)
       throws IOException {
+    return raidFileRetriever(info, roots, allInfos, conf, numThreads,
+      doShuffle, allowStandby, null, Collections.<Path>emptyList());
+  }
+
+  /**
+   * Retrieves the files that should be raided. Files that are raided, too
+   * small or not covered by the policy are settled.
+   */
+  public static DirectoryTraversal raidFileRetriever(
+      final PolicyInfo info, List<Path> roots, Collection<PolicyInfo> allInfos,
+      Configuration conf, int numThreads, boolean doShuffle, boolean allowStandby,
+      DirectorySummary summary, Collection<Path> filesOnlyRoots)
+      throws IOException {
     final RaidState.Checker checker = new RaidState.Checker(allInfos, conf);
-    Filter filter = new Filter() {
+    // The state of the last file checked by each thread.
+    final ThreadLocal<RaidState> lastState = new ThreadLocal<RaidState>();
+    Filter filter = new SettlingFilter() {
       @Override
       public boolean check(FileStatus f) throws IOException {
         long now = RaidNode.now();
@@ -317,12 +662,22 @@ public class DirectoryTraversal {
           return false;
         }
         RaidState state = checker.check(info, f, now, false);
+        lastState.set(state);
         LOG.debug(f.getPath().toUri().getPath() + " : " + state);
         return state == RaidState.NOT_RAIDED_BUT_SHOULD;
       }
+
+      @Override
+      public boolean isSettled(FileStatus f) {
+        RaidState state = lastState.get();
+        return state == RaidState.RAIDED ||
+          state == RaidState.NOT_RAIDED_TOO_SMALL ||
+          state == RaidState.NOT_RAIDED_NO_POLICY;
+      }
     };
     FileSystem fs = new Path(Path.SEPARATOR).getFileSystem(conf);
     return new DirectoryTraversal("Raid File Retriever ", roots, fs, filter,
-      numThreads, doShuffle, allowStandby);
+      numThreads, doShuffle, allowStandby, summary, filesOnlyRoots,
+      conf.getInt(MAX_QUEUED_DIRECTORIES_KEY, DEFAULT_MAX_QUEUED_DIRECTORIES));
   }
 }
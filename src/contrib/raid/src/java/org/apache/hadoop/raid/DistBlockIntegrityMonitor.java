@@ -18,20 +18,21 @@
 
 package org.apache.hadoop.raid;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.lang.reflect.Constructor;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -41,9 +42,14 @@ import java.util.regex.Pattern;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSClient;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.DistributedRaidFileSystem;
+import org.apache.hadoop.hdfs.protocol.CorruptFileBlocks;
 import org.apache.hadoop.hdfs.tools.DFSck;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.SequenceFile;
@@ -81,6 +87,7 @@ import org.apache.hadoop.util.StringUtils;
 public class DistBlockIntegrityMonitor extends BlockIntegrityMonitor {
 
   private static final String IN_FILE_SUFFIX = ".in";
+  private static final String SPLITS_SUFFIX = ".splits";
   private static final String PART_PREFIX = "part-";
   static final Pattern LIST_CORRUPT_FILE_PATTERN =
       Pattern.compile("blk_-*\\d+\\s+(.*)");
@@ -131,6 +138,10 @@ public class DistBlockIntegrityMonitor extends BlockIntegrityMonitor {
   private final SimpleDateFormat dateFormat =
     new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss");
   
+  // Lists corrupt files incrementally across the cycles of the
+  // corruption worker.
+  private CorruptFileFeed corruptFileFeed = null;
+
   private Worker corruptionWorker = new CorruptionWorker();
   private Worker decommissioningWorker = new DecommissioningWorker();
 
@@ -195,6 +206,16 @@ public class DistBlockIntegrityMonitor extends BlockIntegrityMonitor {
       new HashMap<String, LostFileInfo>();
     protected Map<Job, List<LostFileInfo>> jobIndex =
       new HashMap<Job, List<LostFileInfo>>();
+    // The ranks of the lost files found in the last check, files without a
+    // rank are reconstructed after the ranked files of their priority.
+    protected Map<String, ReconstructionRank> fileRanks =
+      new HashMap<String, ReconstructionRank>();
+    // The block locations looked up to rank the files.
+    protected Map<String, BlockLocation[]> fileLocations =
+      new HashMap<String, BlockLocation[]>();
+    // The erasure codes by codec id, to tell which stripes can be decoded.
+    protected Map<String, ErasureCode> erasureCodes =
+      new HashMap<String, ErasureCode>();
 
     private long jobCounter = 0;
     private volatile int numJobsRunning = 0;
@@ -337,6 +358,9 @@ public class DistBlockIntegrityMonitor extends BlockIntegrityMonitor {
               // If we got counters, perform extra validation.
               this.recentSlotSeconds += ctrs.findCounter(
                   JobInProgress.Counter.SLOTS_MILLIS_MAPS).getValue() / 1000;
+              RaidNodeMetrics.getInstance(
+                RaidNodeMetrics.DEFAULT_NAMESPACE_ID).addLatencyCounters(
+                  ctrs.getGroup(RaidNodeMetrics.LATENCY_COUNTER_GROUP));
               
               long filesSucceeded =
                   ctrs.findCounter(Counter.FILES_SUCCEEDED) != null ?
@@ -461,19 +485,34 @@ public class DistBlockIntegrityMonitor extends BlockIntegrityMonitor {
       }
     }
 
-    // Start jobs for all the lost files.
+    private ReconstructionRank getRank(String file) {
+      ReconstructionRank rank = fileRanks.get(file);
+      return rank == null ? ReconstructionRank.UNKNOWN : rank;
+    }
+
+    // Start jobs for all the lost files, the files of each priority in rank
+    // order.
     private void startJobs(Map<String, Priority> filePriorities)
     throws IOException, InterruptedException, ClassNotFoundException {
       String startTimeStr = dateFormat.format(new Date());
 
       for (Priority pri : Priority.values()) {
-        Set<String> jobFiles = new HashSet<String>();
+        List<String> priFiles = new ArrayList<String>();
         for (Map.Entry<String, Priority> entry: filePriorities.entrySet()) {
           // Check if file priority matches the current round.
-          if (entry.getValue() != pri) {
-            continue;
+          if (entry.getValue() == pri) {
+            priFiles.add(entry.getKey());
+          }
+        }
+        Collections.sort(priFiles, new Comparator<String>() {
+          @Override
+          public int compare(String f1, String f2) {
+            return getRank(f1).compareTo(getRank(f2));
           }
-          jobFiles.add(entry.getKey());
+        });
+        Set<String> jobFiles = new LinkedHashSet<String>();
+        for (String file: priFiles) {
+          jobFiles.add(file);
           // Check if we have hit the threshold for number of files in a job.
           if (jobFiles.size() == filesPerTask * TASKS_PER_JOB) {
             String jobName = JOB_NAME_PREFIX + "." + jobCounter +
@@ -572,20 +611,52 @@ public class DistBlockIntegrityMonitor extends BlockIntegrityMonitor {
       long index = 0L;
 
       List<String> filesAdded = new ArrayList<String>();
-      int count = 0;
+      // Tasks read the surviving blocks of the stripes they fix, so group
+      // the files by the hosts holding them, and give the tasks about the
+      // same number of bytes to read.
+      boolean locality =
+        getConf().getBoolean(LocalityGrouper.LOCALITY_KEY, true);
+      LocalityGrouper<String> grouper = new LocalityGrouper<String>();
       for (String lostFileName: lostFiles) {
-        fileOut.append(new LongWritable(index++), new Text(lostFileName));
-        filesAdded.add(lostFileName);
-        count++;
-
-        if (index % filesPerTask == 0) {
-          fileOut.sync(); // create sync point to make sure we can split here
+        grouper.add(lostFileName,
+            locality ? getBlockLocations(lostFileName) : null,
+            getRank(lostFileName).cost);
+      }
+      LocalityGrouper.SplitWriter splitWriter =
+        new LocalityGrouper.SplitWriter(fileOut);
+      for (LocalityGrouper.Group<String> group :
+           grouper.getGroups((int) filesPerTask)) {
+        splitWriter.startGroup(group.getHosts());
+        for (String lostFileName: group.items) {
+          fileOut.append(new LongWritable(index++), new Text(lostFileName));
+          filesAdded.add(lostFileName);
         }
       }
-
+      LocalityGrouper.writeSplits(fs,
+          new Path(inDir, jobName + SPLITS_SUFFIX), splitWriter.finish());
       fileOut.close();
       return filesAdded;
     }
+
+    /**
+     * @return The locations of the blocks of a file, or null if they cannot
+     *         be found.
+     */
+    private BlockLocation[] getBlockLocations(String file) {
+      BlockLocation[] locations = fileLocations.get(file);
+      if (locations != null) {
+        return locations;
+      }
+      Path path = new Path(file);
+      try {
+        FileSystem fs = path.getFileSystem(getConf());
+        return fs.getFileBlockLocations(fs.getFileStatus(path), 0,
+            Long.MAX_VALUE);
+      } catch (IOException e) {
+        LOG.warn("Could not get the block locations of " + file + ": " + e);
+        return null;
+      }
+    }
   
     /**
      * Update {@link lastStatus} so that it can be viewed from outside
@@ -703,6 +774,10 @@ public class DistBlockIntegrityMonitor extends BlockIntegrityMonitor {
   }
   
   public class CorruptionWorker extends Worker {
+    // The ranks of the corrupt files by path, reused while a file keeps
+    // its modification time and number of corrupt blocks.
+    private Map<String, RankedFile> rankCache =
+      new HashMap<String, RankedFile>();
     
     public CorruptionWorker() {
       super(LogFactory.getLog(CorruptionWorker.class), 
@@ -712,9 +787,7 @@ public class DistBlockIntegrityMonitor extends BlockIntegrityMonitor {
 
     @Override
     protected Map<String, Integer> getLostFiles() throws IOException {
-      return DistBlockIntegrityMonitor.this.getLostFiles(LIST_CORRUPT_FILE_PATTERN, 
-                    new String[]{"-list-corruptfileblocks", "-limit", 
-                      new Integer(lostFilesLimit).toString()});
+      return DistBlockIntegrityMonitor.this.getCorruptFiles();
     }
 
     @Override
@@ -724,6 +797,8 @@ public class DistBlockIntegrityMonitor extends BlockIntegrityMonitor {
 
       Map<String, Priority> fileToPriority = new HashMap<String, Priority>();
       Set<String> srcDirsToWatchOutFor = new HashSet<String>();
+      fileRanks.clear();
+      fileLocations.clear();
       // Loop over parity files once.
       for (Iterator<String> it = corruptFiles.keySet().iterator(); it.hasNext(); ) {
         String p = it.next();
@@ -743,6 +818,11 @@ public class DistBlockIntegrityMonitor extends BlockIntegrityMonitor {
             parentUriPath.substring(parentUriPath.indexOf(Path.SEPARATOR, 1)));
         int numCorrupt = corruptFiles.get(p);
         Priority priority = (numCorrupt > 1) ? Priority.HIGH : Priority.LOW;
+        ReconstructionRank rank = rankFile(fs, p, null, numCorrupt,
+            BlockIntegrityMonitor.getParityFileCodec(p), false);
+        if (rank.isAtRisk()) {
+          priority = Priority.HIGH;
+        }
         LostFileInfo fileInfo = fileIndex.get(p);
         if (fileInfo == null || priority.higherThan(fileInfo.getHighestPriority())) {
           fileToPriority.put(p, priority);
@@ -756,7 +836,8 @@ public class DistBlockIntegrityMonitor extends BlockIntegrityMonitor {
           if (stat.getReplication() >= notRaidedReplication) {
             continue;
           }
-          if (BlockIntegrityMonitor.doesParityDirExist(fs, p)) {
+          Codec codec = BlockIntegrityMonitor.getParityDirCodec(fs, p);
+          if (codec != null) {
             int numCorrupt = corruptFiles.get(p);
             Priority priority = Priority.LOW;
             if (stat.getReplication() > 1) {
@@ -777,6 +858,11 @@ public class DistBlockIntegrityMonitor extends BlockIntegrityMonitor {
                 priority = Priority.HIGH;
               }
             }
+            // A stripe that has lost as many blocks as it has parity blocks
+            // is lost with the next failure.
+            if (rankFile(fs, p, stat, numCorrupt, codec, true).isAtRisk()) {
+              priority = Priority.HIGH;
+            }
             LostFileInfo fileInfo = fileIndex.get(p);
             if (fileInfo == null || priority.higherThan(fileInfo.getHighestPriority())) {
               fileToPriority.put(p, priority);
@@ -784,8 +870,53 @@ public class DistBlockIntegrityMonitor extends BlockIntegrityMonitor {
           }
         }
       }
+      rankCache.keySet().retainAll(corruptFiles.keySet());
       return fileToPriority;
     }
+
+    /**
+     * Ranks a lost file by the stripes it has lost blocks in and records
+     * the rank for the packing of the reconstruction jobs. The block
+     * locations are only looked up again when the file or its number of
+     * corrupt blocks changed since the last check.
+     */
+    private ReconstructionRank rankFile(FileSystem fs, String p,
+        FileStatus stat, int numCorrupt, Codec codec, boolean isSource) {
+      ReconstructionRank rank = ReconstructionRank.UNKNOWN;
+      if (codec != null) {
+        try {
+          if (stat == null) {
+            stat = fs.getFileStatus(new Path(p));
+          }
+          RankedFile cached = rankCache.get(p);
+          if (cached != null &&
+              cached.mtime == stat.getModificationTime() &&
+              cached.numCorrupt == numCorrupt) {
+            fileLocations.put(p, cached.locations);
+            fileRanks.put(p, cached.rank);
+            return cached.rank;
+          }
+          BlockLocation[] locations =
+            fs.getFileBlockLocations(stat, 0, stat.getLen());
+          fileLocations.put(p, locations);
+          ErasureCode code = erasureCodes.get(codec.id);
+          if (code == null) {
+            code = codec.createErasureCode(getConf());
+            erasureCodes.put(codec.id, code);
+          }
+          rank = ReconstructionRank.compute(locations, codec, code, isSource);
+          rankCache.put(p, new RankedFile(stat.getModificationTime(),
+              numCorrupt, locations, rank));
+        } catch (IOException e) {
+          LOG.warn("Could not rank " + p + ": " + e);
+        }
+      }
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Rank of " + p + ": " + rank);
+      }
+      fileRanks.put(p, rank);
+      return rank;
+    }
     
     @Override
     protected void updateRaidNodeMetrics() {
@@ -870,6 +1001,38 @@ public class DistBlockIntegrityMonitor extends BlockIntegrityMonitor {
 
   // ---- Methods which can be overridden by tests ----
 
+  /**
+   * Gets the next batch of corrupt files from the name node. The files are
+   * listed incrementally, each call continues where the last one stopped.
+   *
+   * @return A map of corrupt files' filenames to num lost blocks for that
+   *         file
+   */
+  protected Map<String, Integer> getCorruptFiles() throws IOException {
+    if (corruptFileFeed == null) {
+      FileSystem fs = new Path("/").getFileSystem(getConf());
+      // if we got a raid fs, get the underlying fs
+      if (fs instanceof DistributedRaidFileSystem) {
+        fs = ((DistributedRaidFileSystem) fs).getFileSystem();
+      }
+      if (!(fs instanceof DistributedFileSystem)) {
+        throw new IOException("expected DistributedFileSystem but got " +
+                  fs.getClass().getName());
+      }
+      final DFSClient client = ((DistributedFileSystem) fs).getClient();
+      corruptFileFeed = new CorruptFileFeed(new CorruptFileFeed.Lister() {
+        public CorruptFileBlocks list(String path, String cookie)
+            throws IOException {
+          return client.listCorruptFileBlocks(path, cookie);
+        }
+      }, "/");
+    }
+    Map<String, Integer> lostFiles = corruptFileFeed.nextBatch(lostFilesLimit);
+    RaidUtils.filterTrash(getConf(), lostFiles.keySet().iterator());
+    LOG.info("getCorruptFiles returning " + lostFiles.size() + " files");
+    return lostFiles;
+  }
+
   /**
    * Gets a list of lost files from the name node via DFSck
    * 
@@ -880,20 +1043,17 @@ public class DistBlockIntegrityMonitor extends BlockIntegrityMonitor {
   protected Map<String, Integer> getLostFiles(
       Pattern pattern, String[] dfsckArgs) throws IOException {
 
-    Map<String, Integer> lostFiles = new HashMap<String, Integer>();
-    BufferedReader reader = getLostFileReader(dfsckArgs);
-    String line = reader.readLine(); // remove the header line
-    while ((line = reader.readLine()) != null) {
-      Matcher m = pattern.matcher(line);
-      if (!m.find()) {
-        continue;
-      }
-      String fileName = m.group(1).trim();
-      Integer numLost = lostFiles.get(fileName);
-      numLost = numLost == null ? 0 : numLost;
-      numLost += 1;
-      lostFiles.put(fileName, numLost);
+    // The output is parsed as it is written rather than buffered.
+    LostFileCollector collector = new LostFileCollector(pattern);
+    PrintStream ps = new PrintStream(collector, true);
+    DFSck dfsck = new DFSck(getConf(), ps);
+    try {
+      dfsck.run(dfsckArgs);
+    } catch (Exception e) {
+      throw new IOException(e);
     }
+    ps.close();
+    Map<String, Integer> lostFiles = collector.lostFiles;
     LOG.info("FSCK returned " + lostFiles.size() + " files with args " +
       Arrays.toString(dfsckArgs));
     RaidUtils.filterTrash(getConf(), lostFiles.keySet().iterator());
@@ -902,19 +1062,71 @@ public class DistBlockIntegrityMonitor extends BlockIntegrityMonitor {
     return lostFiles;
   }
 
-  private BufferedReader getLostFileReader(String[] dfsckArgs) 
-      throws IOException {
+  /**
+   * The rank of a corrupt file and what it was computed from.
+   */
+  static class RankedFile {
+    final long mtime;
+    final int numCorrupt;
+    final BlockLocation[] locations;
+    final ReconstructionRank rank;
+
+    RankedFile(long mtime, int numCorrupt, BlockLocation[] locations,
+        ReconstructionRank rank) {
+      this.mtime = mtime;
+      this.numCorrupt = numCorrupt;
+      this.locations = locations;
+      this.rank = rank;
+    }
+  }
 
-    ByteArrayOutputStream bout = new ByteArrayOutputStream();
-    PrintStream ps = new PrintStream(bout, true);
-    DFSck dfsck = new DFSck(getConf(), ps);
-    try {
-      dfsck.run(dfsckArgs);
-    } catch (Exception e) {
-      throw new IOException(e);
+  /**
+   * Counts the lost blocks of each file in DFSck output, one line at a time.
+   */
+  static class LostFileCollector extends OutputStream {
+    final Map<String, Integer> lostFiles = new HashMap<String, Integer>();
+    private final Pattern pattern;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private boolean headerSeen = false;
+
+    LostFileCollector(Pattern pattern) {
+      this.pattern = pattern;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (b == '\n') {
+        endLine();
+      } else {
+        line.write(b);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (line.size() > 0) {
+        endLine();
+      }
+    }
+
+    private void endLine() throws IOException {
+      String text = line.toString("UTF-8");
+      line.reset();
+      if (!headerSeen) {
+        // remove the header line
+        headerSeen = true;
+        return;
+      }
+      Matcher m = pattern.matcher(text);
+      if (!m.find()) {
+        return;
+      }
+      String fileName = m.group(1).trim();
+      Integer numLost = lostFiles.get(fileName);
+      numLost = numLost == null ? 0 : numLost;
+      numLost += 1;
+      lostFiles.put(fileName, numLost);
     }
-    ByteArrayInputStream bin = new ByteArrayInputStream(bout.toByteArray());
-    return new BufferedReader(new InputStreamReader(bin));
   }
   
   public void configureJob(Job job, 
@@ -983,6 +1195,17 @@ public class DistBlockIntegrityMonitor extends BlockIntegrityMonitor {
               (inFile.getName().equals(job.getJobName() + IN_FILE_SUFFIX))) {
 
             fileCounter++;
+            List<LocalityGrouper.Split> located = LocalityGrouper.readSplits(
+                fs, new Path(inPath, job.getJobName() + SPLITS_SUFFIX));
+            if (located != null) {
+              // The input file was written in groups of files local to the
+              // same hosts, one split per group.
+              for (LocalityGrouper.Split split : located) {
+                splits.add(new FileSplit(inFile, split.start, split.length,
+                                         split.hosts));
+              }
+              continue;
+            }
             SequenceFile.Reader inFileReader = 
               new SequenceFile.Reader(fs, inFile, job.getConfiguration());
             
@@ -1115,6 +1338,19 @@ public class DistBlockIntegrityMonitor extends BlockIntegrityMonitor {
 
       context.progress();
     }
+
+    @Override
+    protected void cleanup(Context context)
+        throws IOException, InterruptedException {
+      // Hand the latencies of this task to the RaidNode.
+      for (Map.Entry<String, Long> c : RaidNodeMetrics.getInstance(
+          RaidNodeMetrics.DEFAULT_NAMESPACE_ID).drainLatencyCounters()
+          .entrySet()) {
+        context.getCounter(RaidNodeMetrics.LATENCY_COUNTER_GROUP,
+          c.getKey()).increment(c.getValue());
+      }
+      super.cleanup(context);
+    }
   }
 
   /**
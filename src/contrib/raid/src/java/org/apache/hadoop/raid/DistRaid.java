@@ -1,17 +1,27 @@
 package org.apache.hadoop.raid;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
@@ -44,8 +54,11 @@ public class DistRaid {
   static final String JOB_DIR_LABEL = NAME + ".job.dir";
   static final String OP_LIST_LABEL = NAME + ".op.list";
   static final String OP_COUNT_LABEL = NAME + ".op.count";
+  static final String SPLIT_LIST_LABEL = NAME + ".split.list";
   static final String SCHEDULER_OPTION_LABEL = NAME + ".scheduleroption";
   static final String IGNORE_FAILURES_OPTION_LABEL = NAME + ".ignore.failures";
+  static final String BATCH_SIZE_LABEL = NAME + ".batch.size";
+  static final int DEFAULT_BATCH_SIZE = 32;
   static final int   OP_LIST_BLOCK_SIZE = 32 * 1024 * 1024; // block size of control file
   static final short OP_LIST_REPLICATION = 10; // replication factor of control file
 
@@ -115,7 +128,9 @@ public class DistRaid {
 
     /**
      * Produce splits such that each is no greater than the quotient of the
-     * total size and the number of splits requested.
+     * total size and the number of splits requested. If the op list was
+     * written in groups of files local to the same hosts, produce one split
+     * per group located on those hosts instead.
      * 
      * @param job
      *          The handle to the JobConf object
@@ -134,6 +149,26 @@ public class DistRaid {
       Path srcs = new Path(srclist);
       FileSystem fs = srcs.getFileSystem(job);
 
+      String splitList = job.get(SPLIT_LIST_LABEL);
+      if (splitList != null) {
+        // The op list was written in groups of files local to the same
+        // hosts, one split per group.
+        Path splitPath = new Path(splitList);
+        List<LocalityGrouper.Split> located = LocalityGrouper.readSplits(
+            splitPath.getFileSystem(job), splitPath);
+        if (located != null) {
+          FileSplit[] splits = new FileSplit[located.size()];
+          for (int i = 0; i < splits.length; i++) {
+            LocalityGrouper.Split split = located.get(i);
+            splits[i] = new FileSplit(srcs, split.start, split.length,
+                split.hosts);
+          }
+          LOG.info("jobname= " + jobName + " numSplits=" + numSplits +
+                   ", located splits=" + splits.length);
+          return splits;
+        }
+      }
+
       List<FileSplit> splits = new ArrayList<FileSplit>(numSplits);
 
       Text key = new Text();
@@ -171,16 +206,32 @@ public class DistRaid {
     }
   }
 
-  /** The mapper for raiding files. */
+  /**
+   * The mapper for raiding files. The files of a split are raided in batches
+   * of BATCH_SIZE_LABEL files: the statuses of files in the same directory
+   * are fetched with a single listing, one encoder per codec is shared by the
+   * batch and the block locations of the next file are fetched while the
+   * current file is being encoded.
+   */
   static class DistRaidMapper implements
       Mapper<Text, PolicyInfo, WritableComparable, Text> {
     private JobConf jobconf;
     private boolean ignoreFailures;
+    private int batchSize;
 
     private int failcount = 0;
     private int succeedcount = 0;
     private Statistics st = null;
     private Reporter reporter = null;
+    private OutputCollector<WritableComparable, Text> out = null;
+
+    private List<String> batchFiles = new ArrayList<String>();
+    private List<PolicyInfo> batchPolicies = new ArrayList<PolicyInfo>();
+    // Copies of the policies by name, shared by the records of a policy.
+    private Map<String, PolicyInfo> policies =
+      new HashMap<String, PolicyInfo>();
+    private Map<String, Encoder> encoders = new HashMap<String, Encoder>();
+    private ExecutorService prefetcher = null;
 
     private String getCountString() {
       return "Succeeded: " + succeedcount + " Failed: " + failcount;
@@ -190,22 +241,158 @@ public class DistRaid {
     public void configure(JobConf job) {
       this.jobconf = job;
       ignoreFailures = jobconf.getBoolean(IGNORE_FAILURES_OPTION_LABEL, true);
+      batchSize = Math.max(1, jobconf.getInt(BATCH_SIZE_LABEL,
+                                             DEFAULT_BATCH_SIZE));
       st = new Statistics();
     }
 
-    /** Run a FileOperation */
+    /** Queue a file to be raided with the current batch */
     public void map(Text key, PolicyInfo policy,
         OutputCollector<WritableComparable, Text> out, Reporter reporter)
         throws IOException {
       this.reporter = reporter;
+      this.out = out;
+      batchFiles.add(key.toString());
+      // The record reader reuses the value object.
+      PolicyInfo copy = policies.get(policy.getName());
+      if (copy == null) {
+        copy = new PolicyInfo();
+        copy.copyFrom(policy);
+        policies.put(policy.getName(), copy);
+      }
+      batchPolicies.add(copy);
+      if (batchFiles.size() >= batchSize) {
+        raidBatch();
+      }
+    }
+
+    /** Raid the queued files */
+    private void raidBatch() throws IOException {
       try {
         Codec.initializeCodecs(jobconf);
+        IOException[] errors = new IOException[batchFiles.size()];
+        FileStatus[] stats = getFileStatuses(batchFiles, errors);
+        Future<BlockLocation[]> next = prefetchLocations(stats[0]);
+        for (int i = 0; i < stats.length; i++) {
+          Future<BlockLocation[]> current = next;
+          next = (i + 1 < stats.length) ? prefetchLocations(stats[i + 1]) : null;
+          raidFile(batchFiles.get(i), batchPolicies.get(i), stats[i],
+              errors[i], current);
+        }
+      } finally {
+        batchFiles.clear();
+        batchPolicies.clear();
+      }
+    }
+
+    /**
+     * Get the statuses of the files. Files sharing a parent directory are
+     * looked up with one listing of the directory. Files that could not be
+     * looked up get a null status, and the error of the lookup if there was
+     * one, so that they fail without failing the rest of the batch.
+     */
+    private FileStatus[] getFileStatuses(List<String> files,
+        IOException[] errors) {
+      Map<Path, List<Integer>> byParent = new HashMap<Path, List<Integer>>();
+      Path[] paths = new Path[files.size()];
+      for (int i = 0; i < paths.length; i++) {
+        paths[i] = new Path(files.get(i));
+        List<Integer> siblings = byParent.get(paths[i].getParent());
+        if (siblings == null) {
+          siblings = new ArrayList<Integer>();
+          byParent.put(paths[i].getParent(), siblings);
+        }
+        siblings.add(i);
+      }
+      FileStatus[] stats = new FileStatus[paths.length];
+      for (Map.Entry<Path, List<Integer>> e : byParent.entrySet()) {
+        List<Integer> siblings = e.getValue();
+        if (siblings.size() > 1) {
+          try {
+            FileSystem fs = e.getKey().getFileSystem(jobconf);
+            FileStatus[] listing = fs.listStatus(e.getKey());
+            Map<String, FileStatus> byName = new HashMap<String, FileStatus>();
+            if (listing != null) {
+              for (FileStatus stat : listing) {
+                byName.put(stat.getPath().getName(), stat);
+              }
+            }
+            for (int i : siblings) {
+              stats[i] = byName.get(paths[i].getName());
+            }
+            continue;
+          } catch (IOException ex) {
+            LOG.warn("Could not list " + e.getKey() + ", looking up " +
+                     siblings.size() + " files one by one", ex);
+          }
+        }
+        for (int i : siblings) {
+          try {
+            stats[i] = paths[i].getFileSystem(jobconf).getFileStatus(paths[i]);
+          } catch (IOException ex) {
+            stats[i] = null;
+            errors[i] = ex;
+          }
+        }
+      }
+      return stats;
+    }
+
+    /**
+     * Fetch the block locations of a file in the background.
+     */
+    private Future<BlockLocation[]> prefetchLocations(final FileStatus stat) {
+      if (stat == null) {
+        return null;
+      }
+      if (prefetcher == null) {
+        prefetcher = Executors.newSingleThreadExecutor();
+      }
+      return prefetcher.submit(new Callable<BlockLocation[]>() {
+        public BlockLocation[] call() throws IOException {
+          FileSystem fs = stat.getPath().getFileSystem(jobconf);
+          return fs.getFileBlockLocations(stat, 0, stat.getLen());
+        }
+      });
+    }
 
-        LOG.info("Raiding file=" + key.toString() + " policy=" + policy);
-        Path p = new Path(key.toString());
-        FileStatus fs = p.getFileSystem(jobconf).getFileStatus(p);
+    /** Raid a file of the batch */
+    private void raidFile(String file, PolicyInfo policy, FileStatus stat,
+        IOException statError, Future<BlockLocation[]> locations)
+        throws IOException {
+      try {
+        LOG.info("Raiding file=" + file + " policy=" + policy);
+        if (statError != null) {
+          throw statError;
+        }
+        if (stat == null) {
+          throw new FileNotFoundException("File " + file + " does not exist.");
+        }
+        BlockLocation[] blocks;
+        try {
+          blocks = locations.get();
+        } catch (InterruptedException e) {
+          throw new IOException("Interrupted while getting locations of " +
+                                file);
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
+          }
+          throw new IOException(e.getCause());
+        }
         st.clear();
-        RaidNode.doRaid(jobconf, policy, fs, st, reporter);
+        Codec codec = Codec.getCodec(policy.getCodecId());
+        Encoder encoder = encoders.get(codec.id);
+        if (encoder == null) {
+          encoder = new Encoder(jobconf, codec);
+          encoders.put(codec.id, encoder);
+        }
+        String simulate = policy.getProperty("simulate");
+        RaidNode.doRaid(jobconf, stat, blocks, encoder,
+            new Path(codec.parityDirectory), codec, st, reporter,
+            simulate == null ? false : Boolean.parseBoolean(simulate),
+            Integer.parseInt(policy.getProperty("targetReplication")),
+            Integer.parseInt(policy.getProperty("metaReplication")));
 
         ++succeedcount;
 
@@ -219,7 +406,7 @@ public class DistRaid {
         ++failcount;
         reporter.incrCounter(Counter.FILES_FAILED, 1);
 
-        String s = "FAIL: " + policy + ", " + key + " "
+        String s = "FAIL: " + policy + ", " + file + " "
             + StringUtils.stringifyException(e);
         out.collect(null, new Text(s));
         LOG.info(s);
@@ -230,6 +417,28 @@ public class DistRaid {
 
     /** {@inheritDoc} */
     public void close() throws IOException {
+      try {
+        if (!batchFiles.isEmpty()) {
+          raidBatch();
+        }
+      } finally {
+        if (prefetcher != null) {
+          prefetcher.shutdownNow();
+        }
+        for (Encoder encoder : encoders.values()) {
+          encoder.close();
+        }
+        encoders.clear();
+      }
+      if (reporter != null) {
+        // Hand the latencies of this task to the RaidNode.
+        for (Map.Entry<String, Long> c : RaidNodeMetrics.getInstance(
+            RaidNodeMetrics.DEFAULT_NAMESPACE_ID).drainLatencyCounters()
+            .entrySet()) {
+          reporter.incrCounter(RaidNodeMetrics.LATENCY_COUNTER_GROUP,
+            c.getKey(), c.getValue());
+        }
+      }
       if (failcount == 0 || ignoreFailures) {
         return;
       }
@@ -317,6 +526,8 @@ public class DistRaid {
          long slotSeconds = ctrs.findCounter(
           JobInProgress.Counter.SLOTS_MILLIS_MAPS).getValue() / 1000;
          metrics.raidSlotSeconds.inc(slotSeconds);
+         metrics.addLatencyCounters(
+           ctrs.getGroup(RaidNodeMetrics.LATENCY_COUNTER_GROUP));
        }
        return true;
      } else {
@@ -362,6 +573,24 @@ public class DistRaid {
      }
    }
 
+  /**
+   * @return The locations of the blocks of a file, or null if they cannot
+   *         be found.
+   */
+  private BlockLocation[] getBlockLocations(FileStatus st) {
+    if (st instanceof LocatedFileStatus) {
+      return ((LocatedFileStatus) st).getBlockLocations();
+    }
+    try {
+      return st.getPath().getFileSystem(jobconf).getFileBlockLocations(
+          st, 0, st.getLen());
+    } catch (IOException e) {
+      LOG.warn("Could not get the block locations of " + st.getPath() +
+        ": " + e);
+      return null;
+    }
+  }
+
   /**
    * set up input file which has the list of input files.
    * 
@@ -391,11 +620,19 @@ public class DistRaid {
     Path opList = new Path(jobdir, "_" + OP_LIST_LABEL);
     jobconf.set(OP_LIST_LABEL, opList.toString());
     int opCount = 0, synCount = 0;
+    for (RaidPolicyPathPair p : raidPolicyPathPairList) {
+      opCount += p.srcPaths.size();
+    }
+    jobconf.setNumMapTasks(getMapCount(opCount, new JobClient(jobconf)
+        .getClusterStatus().getTaskTrackers()));
+    boolean locality = jobconf.getBoolean(LocalityGrouper.LOCALITY_KEY, true);
     SequenceFile.Writer opWriter = null;
 
     try {
       opWriter = SequenceFile.createWriter(fs, jobconf, opList, Text.class,
           PolicyInfo.class, SequenceFile.CompressionType.NONE);
+      LocalityGrouper<RaidPolicyPathPair> grouper =
+        new LocalityGrouper<RaidPolicyPathPair>();
       for (RaidPolicyPathPair p : raidPolicyPathPairList) {
         // If a large set of files are Raided for the first time, files
         // in the same directory that tend to have the same size will end up
@@ -403,15 +640,37 @@ public class DistRaid {
         // mix of files.
         java.util.Collections.shuffle(p.srcPaths);
         for (FileStatus st : p.srcPaths) {
+          if (locality) {
+            // Files are raided one at a time, keep the policy with each.
+            grouper.add(new RaidPolicyPathPair(p.policy,
+                java.util.Collections.singletonList(st)),
+                getBlockLocations(st));
+            continue;
+          }
           opWriter.append(new Text(st.getPath().toString()), p.policy);
-          opCount++;
           if (++synCount > SYNC_FILE_MAX) {
             opWriter.sync();
             synCount = 0;
           }
         }
       }
-
+      if (locality) {
+        int filesPerMap = (opCount + jobconf.getNumMapTasks() - 1) /
+          jobconf.getNumMapTasks();
+        LocalityGrouper.SplitWriter splitWriter =
+          new LocalityGrouper.SplitWriter(opWriter);
+        for (LocalityGrouper.Group<RaidPolicyPathPair> group :
+             grouper.getGroups(filesPerMap)) {
+          splitWriter.startGroup(group.getHosts());
+          for (RaidPolicyPathPair p : group.items) {
+            opWriter.append(
+                new Text(p.srcPaths.get(0).getPath().toString()), p.policy);
+          }
+        }
+        Path splitList = new Path(jobdir, "_" + SPLIT_LIST_LABEL);
+        LocalityGrouper.writeSplits(fs, splitList, splitWriter.finish());
+        jobconf.set(SPLIT_LIST_LABEL, splitList.toString());
+      }
     } finally {
       if (opWriter != null) {
         opWriter.close();
@@ -422,8 +681,6 @@ public class DistRaid {
     
     jobconf.setInt(OP_COUNT_LABEL, opCount);
     LOG.info("Number of files=" + opCount);
-    jobconf.setNumMapTasks(getMapCount(opCount, new JobClient(jobconf)
-        .getClusterStatus().getTaskTrackers()));
     LOG.info("jobName= " + jobName + " numMapTasks=" + jobconf.getNumMapTasks());
     return opCount != 0;
 
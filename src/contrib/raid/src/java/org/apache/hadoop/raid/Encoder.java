@@ -24,7 +24,11 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.HashSet;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -45,14 +49,23 @@ public class Encoder {
   public static final Log LOG = LogFactory.getLog(
                                   "org.apache.hadoop.raid.Encoder");
   public static final int DEFAULT_PARALLELISM = 4;
+  public static final int DEFAULT_READAHEAD_SLICES = 2;
+  public static final int DEFAULT_PARITY_BUFFERS = 2;
   protected Configuration conf;
   protected int parallelism;
+  // Number of slices read ahead of the encoding.
+  protected int readaheadSlices;
   protected Codec codec;
   protected ErasureCode code;
   protected Random rand;
   protected int bufSize;
   protected byte[][] readBufs;
   protected byte[][] writeBufs;
+  // Ring of parity buffers shared by the encoding and the writer thread.
+  protected byte[][][] parityBufs;
+  protected BufferPool pool;
+  // Directories this encoder has already created.
+  private Set<Path> createdDirs = new HashSet<Path>();
 
   /**
    * A class that acts as a sink for data, similar to /dev/null.
@@ -71,13 +84,39 @@ public class Encoder {
     this.code = codec.createErasureCode(conf);
     this.rand = new Random();
     this.bufSize = conf.getInt("raid.encoder.bufsize", 1024 * 1024);
+    this.readaheadSlices = Math.max(1,
+      conf.getInt("raid.encoder.readahead.slices", DEFAULT_READAHEAD_SLICES));
+    this.pool = BufferPool.getInstance(conf);
     this.writeBufs = new byte[codec.parityLength][];
+    this.parityBufs = new byte[Math.max(1,
+      conf.getInt("raid.encoder.parity.buffers", DEFAULT_PARITY_BUFFERS))][][];
     allocateBuffers();
   }
 
   private void allocateBuffers() {
     for (int i = 0; i < codec.parityLength; i++) {
-      writeBufs[i] = new byte[bufSize];
+      pool.returnBuffer(writeBufs[i]);
+      writeBufs[i] = pool.getBuffer(bufSize);
+    }
+    for (int i = 0; i < parityBufs.length; i++) {
+      if (parityBufs[i] == null) {
+        parityBufs[i] = new byte[codec.parityLength][];
+      }
+      for (int j = 0; j < codec.parityLength; j++) {
+        pool.returnBuffer(parityBufs[i][j]);
+        parityBufs[i][j] = pool.getBuffer(bufSize);
+      }
+    }
+  }
+
+  /**
+   * Returns the buffers of this encoder to the pool. The encoder cannot be
+   * used afterwards.
+   */
+  public void close() {
+    pool.returnBuffers(writeBufs);
+    for (byte[][] bufs : parityBufs) {
+      pool.returnBuffers(bufs);
     }
   }
 
@@ -107,7 +146,20 @@ public class Encoder {
   public void encodeFile(
     FileSystem fs, Path srcFile, FileSystem parityFs, Path parityFile,
     short parityRepl, Progressable reporter) throws IOException {
-    FileStatus srcStat = fs.getFileStatus(srcFile);
+    encodeFile(fs, fs.getFileStatus(srcFile), parityFs, parityFile,
+      parityRepl, reporter);
+  }
+
+  /**
+   * Generates a parity file for a source file whose status is already known.
+   * The directories created for the parity files are remembered, so that
+   * encoding many files with the same Encoder only creates them once.
+   */
+  public void encodeFile(
+    FileSystem fs, FileStatus srcStat, FileSystem parityFs, Path parityFile,
+    short parityRepl, Progressable reporter) throws IOException {
+    long startTime = System.currentTimeMillis();
+    Path srcFile = srcStat.getPath();
     long srcSize = srcStat.getLen();
     long blockSize = srcStat.getBlockSize();
     long numBlocks = (srcSize % blockSize == 0) ?
@@ -121,7 +173,7 @@ public class Encoder {
 
     // Create a tmp file to which we will write first.
     Path tmpDir = new Path(codec.tmpParityDirectory);
-    if (!parityFs.mkdirs(tmpDir)) {
+    if (!mkdirsOnce(parityFs, tmpDir)) {
       throw new IOException("Could not create tmp dir " + tmpDir);
     }
     Path parityTmp = new Path(tmpDir,
@@ -143,6 +195,7 @@ public class Encoder {
                                tmpRepl,
                                blockSize);
 
+    boolean renamed = false;
     try {
       encodeFileToStream(fs, srcFile, srcSize, blockSize, out, reporter);
       out.close();
@@ -155,29 +208,51 @@ public class Encoder {
       }
 
       // delete destination if exists
-      if (parityFs.exists(parityFile)){
-        parityFs.delete(parityFile, false);
-      }
-      parityFs.mkdirs(parityFile.getParent());
+      parityFs.delete(parityFile, false);
+      mkdirsOnce(parityFs, parityFile.getParent());
       if (tmpRepl > parityRepl) {
         parityFs.setReplication(parityTmp, parityRepl);
       }
       if (!parityFs.rename(parityTmp, parityFile)) {
-        String msg = "Unable to rename file " + parityTmp + " to " + parityFile;
-        throw new IOException (msg);
+        // The parent may have been removed since we created it.
+        createdDirs.remove(parityFile.getParent());
+        parityFs.mkdirs(parityFile.getParent());
+        if (!parityFs.rename(parityTmp, parityFile)) {
+          String msg = "Unable to rename file " + parityTmp + " to " + parityFile;
+          throw new IOException (msg);
+        }
       }
+      renamed = true;
       LOG.info("Wrote parity file " + parityFile);
+      RaidNodeMetrics.getInstance(RaidNodeMetrics.DEFAULT_NAMESPACE_ID)
+        .encodeFileLatency.add(System.currentTimeMillis() - startTime);
     } finally {
       try {
         if (out != null) {
           out.close();
         }
       } finally {
-        parityFs.delete(parityTmp, false);
+        if (!renamed) {
+          parityFs.delete(parityTmp, false);
+        }
       }
     }
   }
 
+  /**
+   * Creates a directory unless this encoder has already created it.
+   */
+  private boolean mkdirsOnce(FileSystem fs, Path dir) throws IOException {
+    if (createdDirs.contains(dir)) {
+      return true;
+    }
+    if (!fs.mkdirs(dir)) {
+      return false;
+    }
+    createdDirs.add(dir);
+    return true;
+  }
+
   /**
    * Recovers a corrupt block in a parity file to a local file.
    *
@@ -372,6 +447,10 @@ public class Encoder {
    * Having buffers of the right size is extremely important. If the the
    * buffer size is not a divisor of the block size, we may end up reading
    * across block boundaries.
+   *
+   * The stripe is encoded in a pipeline of three stages: the parallel reader
+   * reads ahead readaheadSlices slices, the calling thread encodes into the
+   * ring of parity buffers and a writer thread drains them to the outputs.
    */
   void encodeStripe(
     InputStream[] blocks,
@@ -380,35 +459,169 @@ public class Encoder {
     OutputStream[] outs,
     Progressable reporter) throws IOException {
     configureBuffers(blockSize);
-    int boundedBufferCapacity = 1;
     ParallelStreamReader parallelReader = new ParallelStreamReader(
-      reporter, blocks, bufSize, parallelism, boundedBufferCapacity, blockSize);
+      reporter, blocks, bufSize, parallelism, readaheadSlices, blockSize,
+      pool);
+    ParityWriter writer = new ParityWriter(outs, parityBufs, bufSize,
+      reporter);
+    RaidNodeMetrics metrics =
+      RaidNodeMetrics.getInstance(RaidNodeMetrics.DEFAULT_NAMESPACE_ID);
+    long encodeTime = 0;
     parallelReader.start();
+    writer.start();
     try {
       for (long encoded = 0; encoded < blockSize; encoded += bufSize) {
         ParallelStreamReader.ReadResult readResult = null;
+        byte[][] parity = null;
         try {
           readResult = parallelReader.getReadResult();
+          metrics.encodeReadQueueDepth.set(parallelReader.getQueueSize());
+          // Waits for the writer to release a parity buffer.
+          parity = writer.takeFreeBuffer();
         } catch (InterruptedException e) {
           throw new IOException("Interrupted while waiting for read result");
         }
         // Cannot tolerate any IO errors.
         IOException readEx = readResult.getException();
         if (readEx != null) {
+          readResult.release();
           throw readEx;
         }
 
-        code.encodeBulk(readResult.readBufs, writeBufs);
+        long start = System.currentTimeMillis();
+        code.encodeBulk(readResult.readBufs, parity);
+        encodeTime += System.currentTimeMillis() - start;
+        readResult.release();
         reporter.progress();
 
-        // Now that we have some data to write, send it to the temp files.
-        for (int i = 0; i < codec.parityLength; i++) {
-          outs[i].write(writeBufs[i], 0, bufSize);
-          reporter.progress();
+        // Hand the parity over to the writer thread.
+        try {
+          writer.write(parity);
+        } catch (InterruptedException e) {
+          throw new IOException("Interrupted while writing parity");
         }
+        metrics.encodeWriteQueueDepth.set(writer.getQueueSize());
       }
+      writer.finish();
     } finally {
+      writer.shutdown();
       parallelReader.shutdown();
+      metrics.encodeReadBusyTime.inc(parallelReader.readTime);
+      metrics.encodeComputeBusyTime.inc(encodeTime);
+      metrics.encodeWriteBusyTime.inc(writer.writeTime);
+    }
+  }
+
+  /**
+   * Writes the parity buffers produced by the encoding to the outputs in a
+   * separate thread, so that the writes overlap with the reads and the
+   * encoding of the next slices.
+   */
+  static class ParityWriter extends Thread {
+    private final OutputStream[] outs;
+    private final int bufSize;
+    private final Progressable reporter;
+    private final BlockingQueue<byte[][]> freeBuffers;
+    private final BlockingQueue<byte[][]> pendingBuffers;
+    // Marks the end of the parity data in pendingBuffers.
+    private static final byte[][] END = new byte[0][];
+    private volatile IOException error = null;
+    volatile long writeTime = 0;
+
+    ParityWriter(OutputStream[] outs, byte[][][] buffers, int bufSize,
+        Progressable reporter) {
+      this.outs = outs;
+      this.bufSize = bufSize;
+      this.reporter = reporter;
+      this.freeBuffers = new ArrayBlockingQueue<byte[][]>(buffers.length);
+      this.pendingBuffers =
+        new ArrayBlockingQueue<byte[][]>(buffers.length + 1);
+      for (byte[][] buffer : buffers) {
+        freeBuffers.add(buffer);
+      }
+      setName("ParityWriter");
+      setDaemon(true);
+    }
+
+    /**
+     * Get a parity buffer that is not being written.
+     */
+    byte[][] takeFreeBuffer() throws IOException, InterruptedException {
+      checkError();
+      return freeBuffers.take();
+    }
+
+    /**
+     * Queue a parity buffer to be written out.
+     */
+    void write(byte[][] parity) throws IOException, InterruptedException {
+      checkError();
+      pendingBuffers.put(parity);
+    }
+
+    int getQueueSize() {
+      return pendingBuffers.size();
+    }
+
+    /**
+     * Wait for all the queued buffers to be written out.
+     */
+    void finish() throws IOException {
+      try {
+        pendingBuffers.put(END);
+        join();
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted while writing parity");
+      }
+      checkError();
+    }
+
+    /**
+     * Stop the writer and wait for it to exit, so that it does not write to
+     * the outputs once they are closed.
+     */
+    void shutdown() {
+      interrupt();
+      try {
+        join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    private void checkError() throws IOException {
+      if (error != null) {
+        throw error;
+      }
+    }
+
+    public void run() {
+      try {
+        while (true) {
+          byte[][] parity = pendingBuffers.take();
+          if (parity == END) {
+            return;
+          }
+          // After an error keep recycling the buffers, so that the encoding
+          // does not block before it sees the error.
+          if (error == null) {
+            long start = System.currentTimeMillis();
+            try {
+              for (int i = 0; i < outs.length; i++) {
+                outs[i].write(parity[i], 0, bufSize);
+              }
+              reporter.progress();
+            } catch (IOException e) {
+              LOG.warn("Error writing parity", e);
+              error = e;
+            }
+            writeTime += System.currentTimeMillis() - start;
+          }
+          freeBuffers.put(parity);
+        }
+      } catch (InterruptedException e) {
+        // Shut down.
+      }
     }
   }
 }
@@ -21,6 +21,7 @@ package org.apache.hadoop.raid;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 
 public abstract class ErasureCode {
@@ -60,10 +61,38 @@ public abstract class ErasureCode {
    */
   public List<Integer> locationsToReadForDecode(List<Integer> erasedLocations)
       throws TooManyErasedLocations {
+    return locationsToReadForDecode(erasedLocations, null);
+  }
+
+  /**
+   * Figure out which locations need to be read to decode erased locations,
+   * preferring the locations that are cheaper to read. Locations of equal
+   * cost are chosen in the same order as locationsToReadForDecode(List).
+   *
+   * @param erasedLocations The erased locations.
+   * @param locationCosts The cost of reading each location, for example its
+   *                      observed read latency, or null if unknown.
+   * @return The locations to read.
+   */
+  public List<Integer> locationsToReadForDecode(List<Integer> erasedLocations,
+      final long[] locationCosts) throws TooManyErasedLocations {
     List<Integer> locationsToRead = new ArrayList<Integer>(stripeSize());
     int limit = stripeSize() + paritySize();
-    // Loop through all possible locations in the stripe.
+    Integer[] candidates = new Integer[limit];
     for (int loc = 0; loc < limit; loc++) {
+      candidates[loc] = loc;
+    }
+    if (locationCosts != null) {
+      // The sort is stable, so equal costs keep the location order.
+      Arrays.sort(candidates, new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          long diff = locationCosts[a] - locationCosts[b];
+          return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+      });
+    }
+    // Loop through all possible locations in the stripe.
+    for (int loc : candidates) {
       // Is the location good.
       if (erasedLocations.indexOf(loc) == -1) {
         locationsToRead.add(loc);
@@ -84,6 +113,27 @@ public abstract class ErasureCode {
     return locationsToRead;
   }
 
+  /**
+   * Whether a location can be decoded when the erased locations are not
+   * available. Any paritySize() erased locations can be decoded by default.
+   *
+   * @param erasedLocations The locations that are not available.
+   * @param location The location to decode, one of erasedLocations.
+   */
+  public boolean canDecode(List<Integer> erasedLocations, int location) {
+    return erasedLocations.size() <= paritySize();
+  }
+
+  /**
+   * Whether all the erased locations can be decoded from the others. Any
+   * paritySize() erased locations can be decoded by default.
+   *
+   * @param erasedLocations The locations that are not available.
+   */
+  public boolean canDecode(List<Integer> erasedLocations) {
+    return erasedLocations.size() <= paritySize();
+  }
+
   /**
    * The number of elements in the message.
    */
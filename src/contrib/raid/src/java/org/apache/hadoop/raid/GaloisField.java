@@ -31,6 +31,7 @@ public class GaloisField {
   private final int[] powTable;
   private final int[][] mulTable;
   private final int[][] divTable;
+  private final byte[][] byteMulTable;
   private final int fieldSize;
   private final int primitivePeriod;
   private final int primitivePolynomial;
@@ -99,6 +100,17 @@ public class GaloisField {
         mulTable[i][j] = z;
       }
     }
+    // byte form of the multiplication table, used by the bulk codecs
+    if (fieldSize <= 256) {
+      byteMulTable = new byte[fieldSize][fieldSize];
+      for (int i = 0; i < fieldSize; i++) {
+        for (int j = 0; j < fieldSize; j++) {
+          byteMulTable[i][j] = (byte) mulTable[i][j];
+        }
+      }
+    } else {
+      byteMulTable = null;
+    }
     // building division table
     for (int i = 0; i < fieldSize; i++) {
       for (int j = 1; j < fieldSize; j++) {
@@ -152,6 +164,23 @@ public class GaloisField {
     return mulTable[x][y];
   }
 
+  /**
+   * Return the products of x with every element of the field as bytes, such
+   * that table[y & 0xFF] == multiply(x, y). Only available for fields with
+   * at most 256 elements. The returned table is shared and must not be
+   * modified.
+   * @param x input field
+   * @return multiplication table of x
+   */
+  public byte[] getByteMultiplyTable(int x) {
+    assert(x >= 0 && x < getFieldSize());
+    if (byteMulTable == null) {
+      throw new UnsupportedOperationException(
+        "No byte multiplication table for field size " + fieldSize);
+    }
+    return byteMulTable[x];
+  }
+
   /**
    * Compute the division of two fields
    * @param x input field
@@ -22,9 +22,14 @@ import java.io.InputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.List;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
 
 import org.apache.hadoop.util.LineReader;
 import org.apache.hadoop.fs.FileStatus;
@@ -35,12 +40,49 @@ import org.apache.hadoop.io.Text;
 /**
  * Represents the contents of a HAR Index file. The HAR is assumed to be
  * comprising of RAID parity files only and no directories.
+ *
+ * A HAR of parity files can hold hundreds of thousands of files, so the
+ * entries are kept in columns sorted by file name instead of one object
+ * per entry. The file names are split into a table of the directories,
+ * shared by the files in a directory, and the base names. Lookups by name
+ * and by part file offset are binary searches, and {@link IndexEntry}
+ * objects are only created for the entries returned.
  */
 public class HarIndex {
   static final String INDEX = "_index";
   static final String HAR = ".har";
-  private List<IndexEntry> entries = new LinkedList<IndexEntry>();
+
+  // The parsed indexes of the last HARs used, by index file.
+  private static final int INDEX_CACHE_SIZE = 8;
+  private static final Map<String, HarIndex> indexCache =
+    Collections.synchronizedMap(
+      new LinkedHashMap<String, HarIndex>(INDEX_CACHE_SIZE, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(
+          Map.Entry<String, HarIndex> eldest) {
+          return size() > INDEX_CACHE_SIZE;
+        }
+      });
+
   private Path harDirectory;
+  // The modification time and the length of the index file when read.
+  private long indexMtime = -1;
+  private long indexLength = -1;
+
+  // The directories of the files, sorted.
+  private String[] dirs;
+  private String[] partNames;
+  // The columns of the entries, sorted by directory and base name.
+  private int size = 0;
+  private int[] dirIds = new int[16];
+  private String[] baseNames = new String[16];
+  private long[] startOffsets = new long[16];
+  private long[] lengths = new long[16];
+  private long[] mtimes = new long[16];
+  private int[] partIds = new int[16];
+  // The entries sorted by part file and start offset.
+  private int[] byPartOffset;
 
   /**
    * Represents information in a single line of the HAR index file.
@@ -72,29 +114,36 @@ public class HarIndex {
 
   /**
    * Creates a HarIndex object with the path to either the HAR
-   * or a part file in the HAR.
+   * or a part file in the HAR. The index is parsed again only if the
+   * index file changed since it was last parsed.
    */
   public static HarIndex getHarIndex(FileSystem fs, Path initializer)
       throws IOException {
     if (!initializer.getName().endsWith(HAR)) {
       initializer = initializer.getParent();
     }
-    InputStream in = null;
-    try {
-      Path indexFile = new Path(initializer, INDEX);
-      FileStatus indexStat = fs.getFileStatus(indexFile);
-      in = fs.open(indexFile);
-      HarIndex harIndex = new HarIndex(in, indexStat.getLen());
-      harIndex.harDirectory = initializer;
+    Path indexFile = new Path(initializer, INDEX);
+    FileStatus indexStat = fs.getFileStatus(indexFile);
+    String key = indexStat.getPath().toString();
+    HarIndex harIndex = indexCache.get(key);
+    if (harIndex != null &&
+        harIndex.indexMtime == indexStat.getModificationTime() &&
+        harIndex.indexLength == indexStat.getLen()) {
       return harIndex;
+    }
+    InputStream in = fs.open(indexFile);
+    try {
+      harIndex = new HarIndex(in, indexStat.getLen());
     } finally {
-      if (in != null) {
-        in.close();
-      }
+      in.close();
     }
+    harIndex.harDirectory = initializer;
+    harIndex.indexMtime = indexStat.getModificationTime();
+    harIndex.indexLength = indexStat.getLen();
+    indexCache.put(key, harIndex);
+    return harIndex;
   }
 
-
   /**
    * Constructor that reads the contents of the index file.
    * @param in An input stream to the index file.
@@ -104,18 +153,26 @@ public class HarIndex {
   public HarIndex(InputStream in, long max) throws IOException {
     LineReader lineReader = new LineReader(in);
     Text text = new Text();
+    Map<String, Integer> dirTable = new HashMap<String, Integer>();
+    Map<String, Integer> partTable = new HashMap<String, Integer>();
     long nread = 0;
     while (nread < max) {
       int n = lineReader.readLine(text);
+      if (n == 0) {
+        break;
+      }
       nread += n;
       String line = text.toString();
       try {
-        parseLine(line);
+        parseLine(line, dirTable, partTable);
       } catch (UnsupportedEncodingException e) {
         throw new IOException("UnsupportedEncodingException after reading " +
                               nread + "bytes");
       }
     }
+    dirs = toTable(dirTable);
+    partNames = toTable(partTable);
+    sortEntries(dirTable);
   }
 
   /**
@@ -123,25 +180,167 @@ public class HarIndex {
    * @param line
    * @throws UnsupportedEncodingException
    */
-  void parseLine(String line) throws UnsupportedEncodingException {
+  void parseLine(String line, Map<String, Integer> dirTable,
+      Map<String, Integer> partTable) throws UnsupportedEncodingException {
     String[] splits = line.split(" ");
 
     boolean isDir = "dir".equals(splits[1]) ? true: false;
     if (!isDir && splits.length >= 6) {
-      String name = URLDecoder.decode(splits[0], "UTF-8");
-      String partName = URLDecoder.decode(splits[2], "UTF-8");
+      String name = decode(splits[0]);
+      String partName = decode(splits[2]);
       long startIndex = Long.parseLong(splits[3]);
       long length = Long.parseLong(splits[4]);
-      String[] newsplits = URLDecoder.decode(splits[5],"UTF-8").split(" ");
+      String[] newsplits = decode(splits[5]).split(" ");
       if (newsplits != null && newsplits.length >= 5) {
         long mtime = Long.parseLong(newsplits[0]);
-        IndexEntry entry = new IndexEntry(
-          name, startIndex, length, mtime, partName);
-        entries.add(entry);
+        int slash = name.lastIndexOf(Path.SEPARATOR_CHAR);
+        add(intern(dirTable, name.substring(0, slash + 1)),
+            name.substring(slash + 1), startIndex, length, mtime,
+            intern(partTable, partName));
       }
     }
   }
 
+  private static String decode(String s)
+      throws UnsupportedEncodingException {
+    if (s.indexOf('%') < 0 && s.indexOf('+') < 0) {
+      return s;
+    }
+    return URLDecoder.decode(s, "UTF-8");
+  }
+
+  private static int intern(Map<String, Integer> table, String s) {
+    Integer id = table.get(s);
+    if (id == null) {
+      id = table.size();
+      table.put(s, id);
+    }
+    return id;
+  }
+
+  private static String[] toTable(Map<String, Integer> table) {
+    String[] result = new String[table.size()];
+    for (Map.Entry<String, Integer> e : table.entrySet()) {
+      result[e.getValue()] = e.getKey();
+    }
+    return result;
+  }
+
+  private void add(int dirId, String baseName, long startOffset,
+      long length, long mtime, int partId) {
+    if (size == dirIds.length) {
+      int capacity = size * 2;
+      dirIds = Arrays.copyOf(dirIds, capacity);
+      baseNames = Arrays.copyOf(baseNames, capacity);
+      startOffsets = Arrays.copyOf(startOffsets, capacity);
+      lengths = Arrays.copyOf(lengths, capacity);
+      mtimes = Arrays.copyOf(mtimes, capacity);
+      partIds = Arrays.copyOf(partIds, capacity);
+    }
+    dirIds[size] = dirId;
+    baseNames[size] = baseName;
+    startOffsets[size] = startOffset;
+    lengths[size] = length;
+    mtimes[size] = mtime;
+    partIds[size] = partId;
+    size++;
+  }
+
+  /**
+   * Sorts the directories, then the entries by name, and builds the order
+   * of the entries by part file offset.
+   */
+  private void sortEntries(Map<String, Integer> dirTable) {
+    // Renumber the directories in sorted order.
+    String[] sortedDirs = dirs.clone();
+    Arrays.sort(sortedDirs);
+    int[] newDirId = new int[dirs.length];
+    for (int i = 0; i < sortedDirs.length; i++) {
+      newDirId[dirTable.get(sortedDirs[i])] = i;
+    }
+    dirs = sortedDirs;
+    for (int i = 0; i < size; i++) {
+      dirIds[i] = newDirId[dirIds[i]];
+    }
+
+    Integer[] order = new Integer[size];
+    for (int i = 0; i < size; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return compareName(a, dirIds[b], baseNames[b]);
+      }
+    });
+    int[] newDirIds = new int[size];
+    String[] newBaseNames = new String[size];
+    long[] newStartOffsets = new long[size];
+    long[] newLengths = new long[size];
+    long[] newMtimes = new long[size];
+    int[] newPartIds = new int[size];
+    for (int i = 0; i < size; i++) {
+      int j = order[i];
+      newDirIds[i] = dirIds[j];
+      newBaseNames[i] = baseNames[j];
+      newStartOffsets[i] = startOffsets[j];
+      newLengths[i] = lengths[j];
+      newMtimes[i] = mtimes[j];
+      newPartIds[i] = partIds[j];
+    }
+    dirIds = newDirIds;
+    baseNames = newBaseNames;
+    startOffsets = newStartOffsets;
+    lengths = newLengths;
+    mtimes = newMtimes;
+    partIds = newPartIds;
+
+    for (int i = 0; i < size; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return comparePartOffset(a, partIds[b], startOffsets[b]);
+      }
+    });
+    byPartOffset = new int[size];
+    for (int i = 0; i < size; i++) {
+      byPartOffset[i] = order[i];
+    }
+  }
+
+  private int compareName(int i, int dirId, String baseName) {
+    if (dirIds[i] != dirId) {
+      return dirIds[i] < dirId ? -1 : 1;
+    }
+    return baseNames[i].compareTo(baseName);
+  }
+
+  private int comparePartOffset(int i, int partId, long offset) {
+    if (partIds[i] != partId) {
+      return partIds[i] < partId ? -1 : 1;
+    }
+    if (startOffsets[i] != offset) {
+      return startOffsets[i] < offset ? -1 : 1;
+    }
+    return 0;
+  }
+
+  private IndexEntry getEntry(int i) {
+    return new IndexEntry(dirs[dirIds[i]] + baseNames[i], startOffsets[i],
+        lengths[i], mtimes[i], partNames[partIds[i]]);
+  }
+
+  private static int indexOf(String[] table, String s) {
+    for (int i = 0; i < table.length; i++) {
+      if (table[i].equals(s)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
   /**
    * Finds the index entry corresponding to a HAR partFile at an offset.
    * @param partName The name of the part file (part-*).
@@ -149,12 +348,36 @@ public class HarIndex {
    * @return The entry corresponding to partName:partFileOffset.
    */
   public IndexEntry findEntry(String partName, long partFileOffset) {
-    for (IndexEntry e: entries) {
-      boolean nameMatch = partName.equals(e.partFileName);
-      boolean inRange = (partFileOffset >= e.startOffset) &&
-                        (partFileOffset < e.startOffset + e.length);
-      if (nameMatch && inRange) {
-        return e;
+    // There are few part files.
+    int partId = indexOf(partNames, partName);
+    if (partId < 0) {
+      return null;
+    }
+    // The last entry of the part file starting at or before the offset.
+    int lo = 0;
+    int hi = size - 1;
+    int found = -1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (comparePartOffset(byPartOffset[mid], partId, partFileOffset) <= 0) {
+        found = mid;
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    // Skip the empty files that start at the same offset.
+    for (; found >= 0; found--) {
+      int i = byPartOffset[found];
+      if (partIds[i] != partId) {
+        break;
+      }
+      if (partFileOffset < startOffsets[i] + lengths[i]) {
+        return getEntry(i);
+      }
+      if (lengths[i] > 0) {
+        // The files do not overlap, the earlier ones end before this one.
+        break;
       }
     }
     return null;
@@ -164,16 +387,61 @@ public class HarIndex {
    * Finds the index entry corresponding to a file in the archive
    */
   public IndexEntry findEntryByFileName(String fileName) {
-    for (IndexEntry e: entries) {
-      if (fileName.equals(e.fileName)) {
-        return e;
+    int slash = fileName.lastIndexOf(Path.SEPARATOR_CHAR);
+    int dirId = Arrays.binarySearch(dirs, fileName.substring(0, slash + 1));
+    if (dirId < 0) {
+      return null;
+    }
+    String baseName = fileName.substring(slash + 1);
+    int lo = 0;
+    int hi = size - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int cmp = compareName(mid, dirId, baseName);
+      if (cmp < 0) {
+        lo = mid + 1;
+      } else if (cmp > 0) {
+        hi = mid - 1;
+      } else {
+        return getEntry(mid);
       }
     }
     return null;
   }
 
+  /**
+   * @return The entries, sorted by file name, so that the files of a
+   *         directory are next to each other.
+   */
   public Iterator<IndexEntry> getEntries() {
-    return entries.iterator();
+    return new Iterator<IndexEntry>() {
+      private int next = 0;
+
+      @Override
+      public boolean hasNext() {
+        return next < size;
+      }
+
+      @Override
+      public IndexEntry next() {
+        if (next >= size) {
+          throw new NoSuchElementException();
+        }
+        return getEntry(next++);
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * @return The number of files in the HAR.
+   */
+  public int size() {
+    return size;
   }
 
   public Path partFilePath(IndexEntry entry) {
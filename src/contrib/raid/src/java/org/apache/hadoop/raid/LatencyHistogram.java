@@ -0,0 +1,167 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.raid;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A histogram of latencies in milliseconds. Bucket i holds the latencies
+ * in [2^(i-1), 2^i), so percentiles are accurate to a factor of two.
+ */
+public class LatencyHistogram {
+  static final int NUM_BUCKETS = 40;
+  static final String SUM_COUNTER = "sum";
+  private final long[] counts = new long[NUM_BUCKETS];
+  private long count = 0;
+  private long sum = 0;
+  private long max = 0;
+
+  static int bucket(long millis) {
+    if (millis <= 0) {
+      return 0;
+    }
+    return Math.min(NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis));
+  }
+
+  /**
+   * The largest latency that falls in a bucket.
+   */
+  static long bucketLimit(int bucket) {
+    return bucket == 0 ? 0 : (1L << bucket) - 1;
+  }
+
+  public synchronized void add(long millis) {
+    counts[bucket(millis)]++;
+    count++;
+    sum += millis;
+    max = Math.max(max, millis);
+  }
+
+  /**
+   * Add the latencies of another histogram to this one.
+   */
+  public void add(LatencyHistogram other) {
+    long[] otherCounts;
+    long otherCount, otherSum, otherMax;
+    synchronized (other) {
+      otherCounts = other.counts.clone();
+      otherCount = other.count;
+      otherSum = other.sum;
+      otherMax = other.max;
+    }
+    synchronized (this) {
+      for (int i = 0; i < NUM_BUCKETS; i++) {
+        counts[i] += otherCounts[i];
+      }
+      count += otherCount;
+      sum += otherSum;
+      max = Math.max(max, otherMax);
+    }
+  }
+
+  public synchronized long getCount() {
+    return count;
+  }
+
+  public synchronized long getMean() {
+    return count == 0 ? 0 : sum / count;
+  }
+
+  public synchronized long getMax() {
+    return max;
+  }
+
+  /**
+   * Estimates a percentile of the latencies, within a factor of two.
+   * @param percentile The percentile, between 0 and 100.
+   * @return The estimate, or 0 if there are no latencies.
+   */
+  public synchronized long getPercentile(double percentile) {
+    if (count == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(count * percentile / 100.0);
+    long seen = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank && seen > 0) {
+        return Math.min(bucketLimit(i), max);
+      }
+    }
+    return max;
+  }
+
+  /**
+   * Returns the latencies as counters that add up across the tasks of a
+   * job, and empties the histogram. The counters are named by bucket
+   * number, only the buckets holding latencies are returned, plus
+   * SUM_COUNTER with the sum of the latencies.
+   */
+  public synchronized Map<String, Long> drainCounters() {
+    Map<String, Long> counters = new LinkedHashMap<String, Long>();
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      if (counts[i] > 0) {
+        counters.put(Integer.toString(i), counts[i]);
+      }
+    }
+    if (count > 0) {
+      counters.put(SUM_COUNTER, sum);
+    }
+    reset();
+    return counters;
+  }
+
+  /**
+   * Adds a counter returned by drainCounters. The maximum is estimated
+   * from the largest bucket.
+   */
+  public synchronized void addCounter(String counter, long value) {
+    if (SUM_COUNTER.equals(counter)) {
+      sum += value;
+      return;
+    }
+    int bucket;
+    try {
+      bucket = Integer.parseInt(counter);
+    } catch (NumberFormatException e) {
+      return;
+    }
+    if (bucket < 0 || bucket >= NUM_BUCKETS) {
+      return;
+    }
+    counts[bucket] += value;
+    count += value;
+    max = Math.max(max, bucketLimit(bucket));
+  }
+
+  public synchronized void reset() {
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      counts[i] = 0;
+    }
+    count = 0;
+    sum = 0;
+    max = 0;
+  }
+
+  public synchronized String toString() {
+    return "count=" + count + " mean=" + getMean() + " p50=" +
+      getPercentile(50) + " p99=" + getPercentile(99) + " max=" + max;
+  }
+}
@@ -0,0 +1,409 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.raid;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.net.NetworkTopology;
+
+/**
+ * Groups the files of a raid or block fixer job by the rack and the host
+ * holding most of their blocks, so that each task of the job works on
+ * files whose data is local to the same few hosts, and the scheduler is
+ * told which hosts those are.
+ *
+ * Files are first grouped by host, the files left over on the hosts of a
+ * rack are grouped by rack, and the rest are grouped in the order they
+ * were added. Items can have a weight, such as the bytes a task reads for
+ * them, and the groups cut from the same items get about the same weight.
+ *
+ * The job writes the files of each group to its control file with a
+ * SplitWriter, which records the range of every group in the control file
+ * together with its hosts. The input format of the job reads the ranges
+ * back with readSplits() to build splits with location hints.
+ */
+class LocalityGrouper<T> {
+  public static final Log LOG = LogFactory.getLog(LocalityGrouper.class);
+
+  public static final String LOCALITY_KEY = "raid.split.locality";
+  public static final int MAX_SPLIT_HOSTS = 3;
+
+  private static final int SPLITS_VERSION = 1;
+
+  /**
+   * A set of items that should be handled by the same task.
+   */
+  static class Group<T> {
+    final List<T> items = new ArrayList<T>();
+    final Map<String, Long> hostBytes = new HashMap<String, Long>();
+
+    /**
+     * @return The hosts holding the most data of the items.
+     */
+    String[] getHosts() {
+      List<Map.Entry<String, Long>> entries =
+        new ArrayList<Map.Entry<String, Long>>(hostBytes.entrySet());
+      Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+        @Override
+        public int compare(Map.Entry<String, Long> e1,
+            Map.Entry<String, Long> e2) {
+          int cmp = e2.getValue().compareTo(e1.getValue());
+          return cmp != 0 ? cmp : e1.getKey().compareTo(e2.getKey());
+        }
+      });
+      String[] hosts = new String[Math.min(MAX_SPLIT_HOSTS, entries.size())];
+      for (int i = 0; i < hosts.length; i++) {
+        hosts[i] = entries.get(i).getKey();
+      }
+      return hosts;
+    }
+  }
+
+  private static class Item<T> {
+    final T item;
+    final Map<String, Long> hostBytes;
+    final long weight;
+
+    Item(T item, Map<String, Long> hostBytes, long weight) {
+      this.item = item;
+      this.hostBytes = hostBytes;
+      this.weight = weight;
+    }
+  }
+
+  // rack -> host -> items whose data is mostly on that host.
+  private final Map<String, Map<String, List<Item<T>>>> byRack =
+    new TreeMap<String, Map<String, List<Item<T>>>>();
+  private final List<Item<T>> unplaced = new ArrayList<Item<T>>();
+  private int size = 0;
+
+  /**
+   * Adds an item with the locations of the blocks it reads. Corrupt
+   * replicas are not counted.
+   */
+  void add(T item, BlockLocation[] locations) throws IOException {
+    add(item, locations, 0L);
+  }
+
+  /**
+   * Adds an item with the locations of the blocks it reads and its weight.
+   */
+  void add(T item, BlockLocation[] locations, long weight)
+      throws IOException {
+    size++;
+    Map<String, Long> hostBytes = new HashMap<String, Long>();
+    Map<String, Long> rackBytes = new HashMap<String, Long>();
+    Map<String, String> hostRack = new HashMap<String, String>();
+    if (locations != null) {
+      for (BlockLocation loc : locations) {
+        if (loc.isCorrupt()) {
+          continue;
+        }
+        String[] hosts = loc.getHosts();
+        String[] topologyPaths = loc.getTopologyPaths();
+        // A block counts once for a rack however many replicas it holds.
+        Set<String> racks = new HashSet<String>();
+        for (int i = 0; i < hosts.length; i++) {
+          String rack = i < topologyPaths.length ?
+            getRack(topologyPaths[i]) : NetworkTopology.DEFAULT_RACK;
+          addBytes(hostBytes, hosts[i], loc.getLength());
+          hostRack.put(hosts[i], rack);
+          if (racks.add(rack)) {
+            addBytes(rackBytes, rack, loc.getLength());
+          }
+        }
+      }
+    }
+    if (hostBytes.isEmpty()) {
+      unplaced.add(new Item<T>(item, hostBytes, weight));
+      return;
+    }
+    String rack = getMax(rackBytes, null, null);
+    String host = getMax(hostBytes, hostRack, rack);
+    Map<String, List<Item<T>>> byHost = byRack.get(rack);
+    if (byHost == null) {
+      byHost = new TreeMap<String, List<Item<T>>>();
+      byRack.put(rack, byHost);
+    }
+    List<Item<T>> items = byHost.get(host);
+    if (items == null) {
+      items = new ArrayList<Item<T>>();
+      byHost.put(host, items);
+    }
+    items.add(new Item<T>(item, hostBytes, weight));
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Groups the items, itemsPerGroup at a time. Only the last group can be
+   * smaller.
+   */
+  List<Group<T>> getGroups(int itemsPerGroup) {
+    itemsPerGroup = Math.max(1, itemsPerGroup);
+    List<Group<T>> groups = new ArrayList<Group<T>>();
+    int rackGroups = 0;
+    List<Item<T>> offRack = new ArrayList<Item<T>>();
+    for (Map<String, List<Item<T>>> byHost : byRack.values()) {
+      List<Item<T>> rackLocal = new ArrayList<Item<T>>();
+      for (List<Item<T>> items : byHost.values()) {
+        rackLocal.addAll(cut(items, itemsPerGroup, groups));
+      }
+      int before = groups.size();
+      offRack.addAll(cut(rackLocal, itemsPerGroup, groups));
+      rackGroups += groups.size() - before;
+    }
+    int hostGroups = groups.size() - rackGroups;
+    offRack.addAll(unplaced);
+    List<Item<T>> rest = cut(offRack, itemsPerGroup, groups);
+    if (!rest.isEmpty()) {
+      groups.add(newGroup(rest));
+    }
+    LOG.info("Grouped " + size + " items into " + groups.size() +
+      " groups, " + hostGroups + " host local and " + rackGroups +
+      " rack local");
+    return groups;
+  }
+
+  /**
+   * Adds the full groups at the head of items to groups. The heaviest item
+   * goes to the lightest group that is not full, so that the groups have
+   * about the same weight. Items of the same weight keep their order.
+   * @return The items left over.
+   */
+  private List<Item<T>> cut(List<Item<T>> items, int itemsPerGroup,
+      List<Group<T>> groups) {
+    int full = items.size() - items.size() % itemsPerGroup;
+    int numGroups = full / itemsPerGroup;
+    if (numGroups == 0) {
+      return items;
+    }
+    List<Item<T>> heaviestFirst =
+      new ArrayList<Item<T>>(items.subList(0, full));
+    Collections.sort(heaviestFirst, new Comparator<Item<T>>() {
+      @Override
+      public int compare(Item<T> i1, Item<T> i2) {
+        return i1.weight > i2.weight ? -1 : (i1.weight < i2.weight ? 1 : 0);
+      }
+    });
+    final long[] weights = new long[numGroups];
+    List<List<Item<T>>> members = new ArrayList<List<Item<T>>>(numGroups);
+    PriorityQueue<Integer> lightest = new PriorityQueue<Integer>(numGroups,
+      new Comparator<Integer>() {
+        @Override
+        public int compare(Integer g1, Integer g2) {
+          int cmp = Long.valueOf(weights[g1]).compareTo(weights[g2]);
+          return cmp != 0 ? cmp : g1.compareTo(g2);
+        }
+      });
+    for (int g = 0; g < numGroups; g++) {
+      members.add(new ArrayList<Item<T>>(itemsPerGroup));
+      lightest.add(g);
+    }
+    for (Item<T> item : heaviestFirst) {
+      int g = lightest.poll();
+      members.get(g).add(item);
+      weights[g] += item.weight;
+      if (members.get(g).size() < itemsPerGroup) {
+        lightest.add(g);
+      }
+    }
+    for (List<Item<T>> group : members) {
+      groups.add(newGroup(group));
+    }
+    return items.subList(full, items.size());
+  }
+
+  private Group<T> newGroup(List<Item<T>> items) {
+    Group<T> group = new Group<T>();
+    for (Item<T> item : items) {
+      group.items.add(item.item);
+      for (Map.Entry<String, Long> e : item.hostBytes.entrySet()) {
+        addBytes(group.hostBytes, e.getKey(), e.getValue());
+      }
+    }
+    return group;
+  }
+
+  private static void addBytes(Map<String, Long> bytes, String key,
+      long length) {
+    Long old = bytes.get(key);
+    bytes.put(key, old == null ? length : old + length);
+  }
+
+  /**
+   * @return The key with the most bytes, among the keys mapped to value
+   *         by filter if filter is not null.
+   */
+  private static String getMax(Map<String, Long> bytes,
+      Map<String, String> filter, String value) {
+    String max = null;
+    long maxBytes = -1;
+    for (Map.Entry<String, Long> e : bytes.entrySet()) {
+      if (filter != null && !value.equals(filter.get(e.getKey()))) {
+        continue;
+      }
+      long b = e.getValue();
+      if (b > maxBytes || (b == maxBytes && e.getKey().compareTo(max) < 0)) {
+        max = e.getKey();
+        maxBytes = b;
+      }
+    }
+    return max;
+  }
+
+  /**
+   * @return The rack of a topology path such as /rack/host:port.
+   */
+  static String getRack(String topologyPath) {
+    int i = topologyPath.lastIndexOf(Path.SEPARATOR_CHAR);
+    return i > 0 ?
+      topologyPath.substring(0, i) : NetworkTopology.DEFAULT_RACK;
+  }
+
+  /**
+   * A range of a control file to be handled by one task, with the hosts
+   * holding most of the data of the range.
+   */
+  static class Split {
+    final long start;
+    final long length;
+    final String[] hosts;
+
+    Split(long start, long length, String[] hosts) {
+      this.start = start;
+      this.length = length;
+      this.hosts = hosts;
+    }
+  }
+
+  /**
+   * Records the ranges of the groups written to a control file. Every group
+   * after the first starts at a sync mark, so that the record reader of a
+   * split reads exactly the records of its group.
+   */
+  static class SplitWriter {
+    private final SequenceFile.Writer out;
+    private final List<Split> splits = new ArrayList<Split>();
+    private long start = -1;
+    private String[] hosts;
+
+    SplitWriter(SequenceFile.Writer out) {
+      this.out = out;
+    }
+
+    /**
+     * Starts a new group, the records appended next belong to it.
+     */
+    void startGroup(String[] hosts) throws IOException {
+      if (start < 0) {
+        start = 0;
+      } else {
+        long pos = out.getLength();
+        splits.add(new Split(start, pos - start, this.hosts));
+        out.sync();
+        start = pos;
+      }
+      this.hosts = hosts;
+    }
+
+    /**
+     * Ends the last group, call before closing the control file.
+     */
+    List<Split> finish() throws IOException {
+      if (start >= 0) {
+        splits.add(new Split(start, out.getLength() - start, hosts));
+        start = -1;
+      }
+      return splits;
+    }
+  }
+
+  static void writeSplits(FileSystem fs, Path file, List<Split> splits)
+      throws IOException {
+    DataOutputStream out = fs.create(file, true);
+    try {
+      out.writeInt(SPLITS_VERSION);
+      out.writeInt(splits.size());
+      for (Split split : splits) {
+        out.writeLong(split.start);
+        out.writeLong(split.length);
+        out.writeInt(split.hosts.length);
+        for (String host : split.hosts) {
+          Text.writeString(out, host);
+        }
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * @return The splits written by writeSplits() or null if there are none.
+   */
+  static List<Split> readSplits(FileSystem fs, Path file)
+      throws IOException {
+    if (!fs.exists(file)) {
+      return null;
+    }
+    DataInputStream in = fs.open(file);
+    try {
+      int version = in.readInt();
+      if (version != SPLITS_VERSION) {
+        LOG.warn("Ignoring splits " + file + " with version " + version);
+        return null;
+      }
+      int n = in.readInt();
+      List<Split> splits = new ArrayList<Split>(n);
+      for (int i = 0; i < n; i++) {
+        long start = in.readLong();
+        long length = in.readLong();
+        String[] hosts = new String[in.readInt()];
+        for (int j = 0; j < hosts.length; j++) {
+          hosts[j] = Text.readString(in);
+        }
+        splits.add(new Split(start, length, hosts));
+      }
+      return splits;
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,522 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.raid;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONObject;
+
+/**
+ * A locally repairable code. The message is cut into groups of
+ * local_group_size symbols, each with an XOR parity, and the whole message
+ * also gets global Reed Solomon parities. A lost symbol of a group is
+ * decoded from the rest of its group only, other losses from any
+ * stripeSize() independent locations.
+ *
+ * The codec JSON sets local_group_size, and optionally local_parity_length
+ * and global_parity_length, which must add up to parity_length. The parity
+ * locations hold the local parities first, group by group, followed by the
+ * global parities.
+ */
+public class LocallyRepairableCode extends ErasureCode {
+  public static final Log LOG = LogFactory.getLog(LocallyRepairableCode.class);
+
+  private static final int DECODE_MATRIX_CACHE_SIZE = 100;
+
+  private int stripeSize;
+  private int paritySize;
+  private int groupSize;
+  private int localParitySize;
+  private int globalParitySize;
+  private GaloisField GF = GaloisField.getInstance();
+  // Computes the global parities, and does the bulk matrix products.
+  private ReedSolomonCode globalCode;
+  private int[] globalParity;
+  // generator[loc] is the value of location loc as a linear function of
+  // the message.
+  private int[][] generator;
+  private ReedSolomonCode.CodingMatrix encodeMatrix;
+  private Map<List<Integer>, ReedSolomonCode.CodingMatrix> decodeMatrixCache;
+
+  public LocallyRepairableCode() {
+  }
+
+  @Deprecated
+  public LocallyRepairableCode(int stripeSize, int groupSize,
+      int globalParitySize) {
+    init(stripeSize, groupSize, globalParitySize);
+  }
+
+  @Override
+  public void init(Codec codec) {
+    JSONObject json = codec.json;
+    int groupSize = json.optInt("local_group_size", codec.stripeLength);
+    int localParitySize = json.optInt("local_parity_length",
+        numGroups(codec.stripeLength, groupSize));
+    int globalParitySize = json.optInt("global_parity_length",
+        codec.parityLength - localParitySize);
+    if (localParitySize != numGroups(codec.stripeLength, groupSize) ||
+        localParitySize + globalParitySize != codec.parityLength) {
+      throw new IllegalArgumentException("Codec " + codec.id +
+          " has " + localParitySize + " local and " + globalParitySize +
+          " global parities for stripes of " + codec.stripeLength +
+          " in groups of " + groupSize + " and parity_length " +
+          codec.parityLength);
+    }
+    init(codec.stripeLength, groupSize, globalParitySize);
+    LOG.info("Initialized " + LocallyRepairableCode.class +
+             " stripeLength:" + codec.stripeLength +
+             " parityLength:" + codec.parityLength +
+             " localGroupSize:" + groupSize);
+  }
+
+  private static int numGroups(int stripeSize, int groupSize) {
+    return (stripeSize + groupSize - 1) / groupSize;
+  }
+
+  @SuppressWarnings("deprecation")
+  private void init(int stripeSize, int groupSize, int globalParitySize) {
+    if (groupSize <= 0 || globalParitySize <= 0) {
+      throw new IllegalArgumentException("Bad local group size " + groupSize +
+          " or global parity length " + globalParitySize);
+    }
+    this.stripeSize = stripeSize;
+    this.groupSize = groupSize;
+    this.localParitySize = numGroups(stripeSize, groupSize);
+    this.globalParitySize = globalParitySize;
+    this.paritySize = localParitySize + globalParitySize;
+    this.globalCode = new ReedSolomonCode(stripeSize, globalParitySize);
+    this.globalParity = new int[globalParitySize];
+
+    int[] message = new int[stripeSize];
+    int[] parity = new int[paritySize];
+    generator = new int[paritySize + stripeSize][stripeSize];
+    for (int j = 0; j < stripeSize; j++) {
+      Arrays.fill(message, 0);
+      message[j] = 1;
+      encode(message, parity);
+      for (int i = 0; i < paritySize; i++) {
+        generator[i][j] = parity[i];
+      }
+      generator[paritySize + j][j] = 1;
+    }
+    encodeMatrix = new ReedSolomonCode.CodingMatrix(
+        Arrays.copyOf(generator, paritySize), GF);
+    decodeMatrixCache = Collections.synchronizedMap(
+      new LinkedHashMap<List<Integer>, ReedSolomonCode.CodingMatrix>(
+          DECODE_MATRIX_CACHE_SIZE, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(
+          Map.Entry<List<Integer>, ReedSolomonCode.CodingMatrix> eldest) {
+          return size() > DECODE_MATRIX_CACHE_SIZE;
+        }
+      });
+  }
+
+  /**
+   * The local group of a location, or -1 for a global parity.
+   */
+  int groupOf(int location) {
+    if (location < localParitySize) {
+      return location;
+    }
+    if (location < paritySize) {
+      return -1;
+    }
+    return (location - paritySize) / groupSize;
+  }
+
+  /**
+   * The locations of a local group: its parity and its message symbols.
+   */
+  List<Integer> groupLocations(int group) {
+    List<Integer> locations = new ArrayList<Integer>(groupSize + 1);
+    locations.add(group);
+    int end = Math.min(stripeSize, (group + 1) * groupSize);
+    for (int i = group * groupSize; i < end; i++) {
+      locations.add(paritySize + i);
+    }
+    return locations;
+  }
+
+  @Override
+  public void encode(int[] message, int[] parity) {
+    assert(message.length == stripeSize && parity.length == paritySize);
+    for (int g = 0; g < localParitySize; g++) {
+      int end = Math.min(stripeSize, (g + 1) * groupSize);
+      int val = 0;
+      for (int i = g * groupSize; i < end; i++) {
+        val ^= message[i];
+      }
+      parity[g] = val;
+    }
+    globalCode.encode(message, globalParity);
+    System.arraycopy(globalParity, 0, parity, localParitySize,
+        globalParitySize);
+  }
+
+  @Override
+  public void decode(int[] data, int[] erasedLocations, int[] erasedValues) {
+    if (erasedLocations.length == 0) {
+      return;
+    }
+    int[][] coefficients = getDecodeMatrix(erasedLocations).coefficients;
+    for (int i = 0; i < erasedLocations.length; i++) {
+      int val = 0;
+      for (int j = 0; j < data.length; j++) {
+        if (coefficients[i][j] != 0) {
+          val ^= GF.multiply(coefficients[i][j], data[j]);
+        }
+      }
+      erasedValues[i] = val;
+    }
+  }
+
+  @Override
+  public void encodeBulk(byte[][] inputs, byte[][] outputs) {
+    assert(stripeSize == inputs.length);
+    assert(paritySize == outputs.length);
+    globalCode.multiplyBulk(encodeMatrix, inputs, outputs, outputs[0].length);
+  }
+
+  @Override
+  public void decodeBulk(
+    byte[][] readBufs, byte[][] writeBufs, int[] erasedLocations) {
+    if (erasedLocations.length == 0) {
+      return;
+    }
+    globalCode.multiplyBulk(getDecodeMatrix(erasedLocations),
+      readBufs, writeBufs, readBufs[0].length);
+  }
+
+  /**
+   * Single losses in a group are read from the rest of the group. Any
+   * other erasure pattern reads the cheapest locations that together
+   * determine the message.
+   */
+  @Override
+  public List<Integer> locationsToReadForDecode(List<Integer> erasedLocations,
+      final long[] locationCosts) throws TooManyErasedLocations {
+    List<Integer> locationsToRead = localLocationsToRead(erasedLocations);
+    if (locationsToRead != null) {
+      return locationsToRead;
+    }
+    int limit = stripeSize + paritySize;
+    Integer[] candidates = new Integer[limit];
+    for (int loc = 0; loc < limit; loc++) {
+      candidates[loc] = loc;
+    }
+    if (locationCosts != null) {
+      Arrays.sort(candidates, new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          long diff = locationCosts[a] - locationCosts[b];
+          return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+      });
+    }
+    // Take the locations that add to the rank of the rows read so far.
+    locationsToRead = new ArrayList<Integer>(stripeSize);
+    List<int[]> basis = new ArrayList<int[]>(stripeSize);
+    List<Integer> others = new ArrayList<Integer>();
+    for (int loc : candidates) {
+      if (erasedLocations.indexOf(loc) != -1) {
+        continue;
+      }
+      if (basis.size() < stripeSize && addToBasis(basis, generator[loc])) {
+        locationsToRead.add(loc);
+      } else {
+        others.add(loc);
+      }
+    }
+    if (basis.size() < stripeSize) {
+      // The message is lost, but the erased locations may not need it.
+      locationsToRead.addAll(others);
+      for (int[] row : solve(locationsToRead, erasedLocations)) {
+        if (row == null) {
+          throw new TooManyErasedLocations("Locations " + erasedLocations);
+        }
+      }
+    }
+    return locationsToRead;
+  }
+
+  @Override
+  public boolean canDecode(List<Integer> erasedLocations, int location) {
+    List<Integer> readLocations = new ArrayList<Integer>();
+    for (int loc = 0; loc < stripeSize + paritySize; loc++) {
+      if (erasedLocations.indexOf(loc) == -1) {
+        readLocations.add(loc);
+      }
+    }
+    return solve(readLocations, Collections.singletonList(location))[0] != null;
+  }
+
+  @Override
+  public boolean canDecode(List<Integer> erasedLocations) {
+    List<Integer> readLocations = new ArrayList<Integer>();
+    for (int loc = 0; loc < stripeSize + paritySize; loc++) {
+      if (erasedLocations.indexOf(loc) == -1) {
+        readLocations.add(loc);
+      }
+    }
+    for (int[] row : solve(readLocations, erasedLocations)) {
+      if (row == null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The locations to read if every erased location is the only loss of its
+   * group, null otherwise.
+   */
+  private List<Integer> localLocationsToRead(List<Integer> erasedLocations) {
+    List<Integer> locationsToRead = new ArrayList<Integer>();
+    for (int erased : erasedLocations) {
+      int group = groupOf(erased);
+      if (group == -1) {
+        return null;
+      }
+      for (int loc : groupLocations(group)) {
+        if (loc == erased) {
+          continue;
+        }
+        if (erasedLocations.indexOf(loc) != -1) {
+          return null;
+        }
+        if (locationsToRead.indexOf(loc) == -1) {
+          locationsToRead.add(loc);
+        }
+      }
+    }
+    return locationsToRead;
+  }
+
+  /**
+   * Reduces row against the basis, which is kept in echelon form, and adds
+   * it if it is independent of the basis.
+   * @return true if row was added.
+   */
+  private boolean addToBasis(List<int[]> basis, int[] row) {
+    int[] reduced = row.clone();
+    for (int[] b : basis) {
+      int pivot = pivotOf(b);
+      int factor = reduced[pivot];
+      if (factor != 0) {
+        for (int j = pivot; j < stripeSize; j++) {
+          reduced[j] ^= GF.multiply(factor, b[j]);
+        }
+      }
+    }
+    int pivot = pivotOf(reduced);
+    if (pivot == -1) {
+      return false;
+    }
+    int inverse = GF.divide(1, reduced[pivot]);
+    for (int j = pivot; j < stripeSize; j++) {
+      reduced[j] = GF.multiply(inverse, reduced[j]);
+    }
+    basis.add(reduced);
+    return true;
+  }
+
+  private int pivotOf(int[] row) {
+    for (int j = 0; j < row.length; j++) {
+      if (row[j] != 0) {
+        return j;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Get the decoding matrix of an erasure pattern, computing it only if it
+   * is not cached yet. All the locations that are not erased are taken to
+   * be read, and the erased locations that cannot be decoded from them,
+   * like the other groups in a local repair, are decoded as zeros.
+   */
+  ReedSolomonCode.CodingMatrix getDecodeMatrix(int[] erasedLocations) {
+    List<Integer> key = new ArrayList<Integer>(erasedLocations.length);
+    for (int loc : erasedLocations) {
+      key.add(loc);
+    }
+    ReedSolomonCode.CodingMatrix matrix = decodeMatrixCache.get(key);
+    if (matrix == null) {
+      List<Integer> readLocations = new ArrayList<Integer>();
+      for (int loc = 0; loc < stripeSize + paritySize; loc++) {
+        if (key.indexOf(loc) == -1) {
+          readLocations.add(loc);
+        }
+      }
+      int[][] coefficients = solve(readLocations, key);
+      for (int i = 0; i < coefficients.length; i++) {
+        if (coefficients[i] == null) {
+          coefficients[i] = new int[stripeSize + paritySize];
+        }
+      }
+      matrix = new ReedSolomonCode.CodingMatrix(coefficients, GF);
+      decodeMatrixCache.put(key, matrix);
+    }
+    return matrix;
+  }
+
+  /**
+   * Writes each erased location as a linear combination of the read
+   * locations. Single losses of a group only use the rest of the group.
+   * @return one row per erased location and one column per location of the
+   *         stripe, the row is null if the location cannot be decoded.
+   */
+  private int[][] solve(List<Integer> readLocations,
+      List<Integer> erasedLocations) {
+    int dataSize = stripeSize + paritySize;
+    int[][] coefficients = new int[erasedLocations.size()][dataSize];
+    // The system has one equation per message symbol and one unknown per
+    // read location, with a right hand side per erased location.
+    int numReads = readLocations.size();
+    int numErased = erasedLocations.size();
+    int[][] system = new int[stripeSize][numReads + numErased];
+    for (int j = 0; j < numReads; j++) {
+      for (int i = 0; i < stripeSize; i++) {
+        system[i][j] = generator[readLocations.get(j)][i];
+      }
+    }
+    for (int e = 0; e < numErased; e++) {
+      for (int i = 0; i < stripeSize; i++) {
+        system[i][numReads + e] = generator[erasedLocations.get(e)][i];
+      }
+    }
+    int[] pivotColumns = new int[stripeSize];
+    int rank = eliminate(system, numReads, pivotColumns);
+    for (int e = 0; e < numErased; e++) {
+      int erased = erasedLocations.get(e);
+      int group = groupOf(erased);
+      if (group != -1 && isLocallyDecodable(erased, group, readLocations)) {
+        for (int loc : groupLocations(group)) {
+          if (loc != erased) {
+            coefficients[e][loc] = 1;
+          }
+        }
+        continue;
+      }
+      boolean decodable = true;
+      for (int i = rank; i < stripeSize; i++) {
+        if (system[i][numReads + e] != 0) {
+          decodable = false;
+        }
+      }
+      if (!decodable) {
+        coefficients[e] = null;
+        continue;
+      }
+      for (int i = 0; i < rank; i++) {
+        coefficients[e][readLocations.get(pivotColumns[i])] =
+          system[i][numReads + e];
+      }
+    }
+    return coefficients;
+  }
+
+  private boolean isLocallyDecodable(int erased, int group,
+      List<Integer> readLocations) {
+    for (int loc : groupLocations(group)) {
+      if (loc != erased && readLocations.indexOf(loc) == -1) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Brings the first columns of the matrix to reduced row echelon form,
+   * applying the same row operations to the remaining columns.
+   * @return the rank, with the pivot column of each of the first rank rows
+   *         in pivotColumns.
+   */
+  private int eliminate(int[][] matrix, int columns, int[] pivotColumns) {
+    int rank = 0;
+    for (int col = 0; col < columns && rank < matrix.length; col++) {
+      int pivotRow = -1;
+      for (int i = rank; i < matrix.length; i++) {
+        if (matrix[i][col] != 0) {
+          pivotRow = i;
+          break;
+        }
+      }
+      if (pivotRow == -1) {
+        continue;
+      }
+      int[] tmp = matrix[rank];
+      matrix[rank] = matrix[pivotRow];
+      matrix[pivotRow] = tmp;
+      int[] row = matrix[rank];
+      int inverse = GF.divide(1, row[col]);
+      for (int j = 0; j < row.length; j++) {
+        row[j] = GF.multiply(inverse, row[j]);
+      }
+      for (int i = 0; i < matrix.length; i++) {
+        int factor = matrix[i][col];
+        if (i == rank || factor == 0) {
+          continue;
+        }
+        for (int j = 0; j < row.length; j++) {
+          matrix[i][j] ^= GF.multiply(factor, row[j]);
+        }
+      }
+      pivotColumns[rank++] = col;
+    }
+    return rank;
+  }
+
+  @Override
+  public int stripeSize() {
+    return this.stripeSize;
+  }
+
+  @Override
+  public int paritySize() {
+    return this.paritySize;
+  }
+
+  public int localGroupSize() {
+    return this.groupSize;
+  }
+
+  public int localParitySize() {
+    return this.localParitySize;
+  }
+
+  public int globalParitySize() {
+    return this.globalParitySize;
+  }
+
+  @Override
+  public int symbolSize() {
+    return (int) Math.round(Math.log(GF.getFieldSize()) / Math.log(2));
+  }
+}
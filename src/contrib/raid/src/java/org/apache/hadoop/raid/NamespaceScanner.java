@@ -0,0 +1,390 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.raid;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Walks a tree once and hands every file and directory found to a set of
+ * consumers, so that the monitors interested in the same tree share one
+ * traversal instead of each listing the tree on its own.
+ *
+ * A scan is driven by the thread that calls scan(). Other threads can ask
+ * to be part of the next scan of a root with joinNext() or scanNext(), the
+ * latter running the scan itself if nobody starts one in time.
+ */
+class NamespaceScanner {
+  public static final Log LOG = LogFactory.getLog(NamespaceScanner.class);
+
+  /**
+   * Receives the entries found by a scan.
+   */
+  interface Consumer {
+    /**
+     * Called from the traversal threads for every file and directory, so
+     * it must be thread safe. This is where the expensive checks go, since
+     * they run in parallel.
+     * @return true if accept() should be called for the entry.
+     */
+    boolean check(FileStatus f) throws IOException;
+
+    /**
+     * Called from the scanning thread for the entries that passed check(),
+     * in the order of the consumers of the scan.
+     * @return false if the consumer deleted the entry, so that neither it
+     *         nor the entries under it are handed to the consumers after
+     *         this one.
+     */
+    boolean accept(FileStatus f) throws IOException;
+  }
+
+  private static class Match {
+    final Consumer consumer;
+    final FileStatus status;
+
+    Match(Consumer consumer, FileStatus status) {
+      this.consumer = consumer;
+      this.status = status;
+    }
+  }
+
+  /**
+   * A consumer waiting for the next scan of a root.
+   */
+  private static class Waiter {
+    final String root;
+    final Consumer consumer;
+    boolean started = false;
+    boolean done = false;
+    IOException error = null;
+
+    Waiter(String root, Consumer consumer) {
+      this.root = root;
+      this.consumer = consumer;
+    }
+  }
+
+  private final String friendlyName;
+  private final FileSystem fs;
+  private final int numThreads;
+  private final boolean doShuffle;
+  private final boolean allowUseStandby;
+  private final List<Waiter> waiters = new LinkedList<Waiter>();
+  private volatile long scans = 0;
+
+  NamespaceScanner(String friendlyName, FileSystem fs, int numThreads,
+      boolean doShuffle, boolean allowUseStandby) {
+    this.friendlyName = friendlyName;
+    this.fs = fs;
+    this.numThreads = numThreads;
+    this.doShuffle = doShuffle;
+    this.allowUseStandby = allowUseStandby;
+  }
+
+  /**
+   * Walks the roots once, handing the entries to the consumers and to the
+   * consumers waiting for the next scan of one of the roots.
+   */
+  void scan(List<Path> roots, List<? extends Consumer> consumers)
+      throws IOException {
+    scan(roots, consumers, null);
+  }
+
+  /**
+   * Walks the roots once like scan(roots, consumers), and keeps the
+   * position of the walk in state so that a walk cut short by a restart
+   * resumes where it stopped. A resumed walk only covers what was left of
+   * the roots, so the waiting consumers are left for the next full walk.
+   * @param state Where to keep the position of the walk, may be null.
+   */
+  void scan(List<Path> roots, List<? extends Consumer> consumers,
+      DirectoryScanState state) throws IOException {
+    final List<Consumer> all = new ArrayList<Consumer>(consumers);
+    List<Waiter> joined = new ArrayList<Waiter>();
+    boolean resume = state != null && state.hasPendingDirectories();
+    synchronized (this) {
+      for (Iterator<Waiter> it = waiters.iterator();
+           !resume && it.hasNext();) {
+        Waiter w = it.next();
+        for (Path root : roots) {
+          if (w.root.equals(root.toUri().getPath())) {
+            w.started = true;
+            joined.add(w);
+            all.add(roots.size() == 1 ?
+              w.consumer : underRoot(w.root, w.consumer));
+            it.remove();
+            break;
+          }
+        }
+      }
+    }
+    IOException error = null;
+    try {
+      doScan(roots, all, state);
+    } catch (IOException e) {
+      error = e;
+      throw e;
+    } catch (RuntimeException e) {
+      error = new IOException(e);
+      throw e;
+    } finally {
+      synchronized (this) {
+        for (Waiter w : joined) {
+          w.done = true;
+          w.error = error;
+        }
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Hands the entries of the next scan of root to the consumer. If no scan
+   * of the root starts within maxWait milliseconds, scans the root in the
+   * calling thread instead.
+   */
+  void scanNext(Path root, Consumer consumer, long maxWait)
+      throws IOException, InterruptedException {
+    if (joinNext(root, consumer, maxWait)) {
+      return;
+    }
+    LOG.info("No scan of " + root + " started in " + maxWait +
+      " msec, scanning it for a waiting consumer");
+    scan(Collections.singletonList(root),
+      Collections.singletonList(consumer));
+  }
+
+  /**
+   * Hands the entries of the next scan of root to the consumer, if a scan
+   * of the root starts within maxWait milliseconds.
+   * @return false if no scan started in time, and the consumer was given
+   *         nothing.
+   */
+  boolean joinNext(Path root, Consumer consumer, long maxWait)
+      throws IOException, InterruptedException {
+    Waiter w = new Waiter(root.toUri().getPath(), consumer);
+    long deadline = RaidNode.now() + maxWait;
+    synchronized (this) {
+      waiters.add(w);
+      try {
+        long now;
+        while (!w.started && (now = RaidNode.now()) < deadline) {
+          wait(deadline - now);
+        }
+      } catch (InterruptedException e) {
+        if (!w.started) {
+          waiters.remove(w);
+          throw e;
+        }
+        Thread.currentThread().interrupt();
+      }
+      if (w.started) {
+        // The scan may touch the state of the consumer, wait for it even
+        // if interrupted.
+        boolean interrupted = false;
+        while (!w.done) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+        if (w.error != null) {
+          throw w.error;
+        }
+        return true;
+      }
+      waiters.remove(w);
+    }
+    return false;
+  }
+
+  /**
+   * The number of scans done.
+   */
+  long getScans() {
+    return scans;
+  }
+
+  private void doScan(List<Path> roots, final List<Consumer> consumers,
+      DirectoryScanState state) throws IOException {
+    final Queue<Match> matches = new ConcurrentLinkedQueue<Match>();
+    // The entries deleted by a consumer during this scan.
+    Set<String> deleted = new HashSet<String>();
+    DirectoryTraversal.Filter filter = new DirectoryTraversal.Filter() {
+      @Override
+      public boolean check(FileStatus f) throws IOException {
+        boolean matched = false;
+        for (Consumer c : consumers) {
+          if (c.check(f)) {
+            matches.add(new Match(c, f));
+            matched = true;
+          }
+        }
+        return matched;
+      }
+    };
+    DirectoryTraversal traversal;
+    if (state != null && state.hasPendingDirectories()) {
+      LOG.info("Resuming the scan of " + roots + " for " + consumers.size() +
+        " consumers");
+      traversal = new DirectoryTraversal(friendlyName,
+        state.getPendingDirectories(), fs, filter, numThreads, doShuffle,
+        allowUseStandby, null, state.getFilesOnlyDirectories());
+    } else {
+      LOG.info("Scanning " + roots + " for " + consumers.size() +
+        " consumers");
+      if (state != null) {
+        state.startTraversal(RaidNode.now());
+      }
+      traversal = new DirectoryTraversal(friendlyName,
+        roots, fs, filter, numThreads, doShuffle, allowUseStandby);
+    }
+    // A match is queued before its entry is output, so every match has
+    // been queued once the traversal finishes, and the matches of the
+    // entries output so far are accepted before a checkpoint.
+    try {
+      while (traversal.next() != DirectoryTraversal.FINISH_TOKEN) {
+        acceptMatches(matches, deleted);
+        if (state != null) {
+          state.checkpoint(traversal);
+        }
+      }
+    } finally {
+      // Does nothing once the traversal is done.
+      traversal.stop();
+    }
+    acceptMatches(matches, deleted);
+    if (state != null) {
+      state.finishTraversal();
+    }
+    scans++;
+    LOG.info("Finished scanning " + roots + ", listed " +
+      traversal.getDirectoriesListed() + " directories and " +
+      traversal.getEntriesListed() + " entries");
+  }
+
+  /**
+   * Accepts the queued matches, skipping the entries that an earlier
+   * consumer deleted. A directory is queued before the entries under it,
+   * so its deletion is known by the time they are accepted.
+   */
+  private static void acceptMatches(Queue<Match> matches,
+      Set<String> deleted) throws IOException {
+    Match m;
+    while ((m = matches.poll()) != null) {
+      if (isDeleted(m.status.getPath(), deleted)) {
+        continue;
+      }
+      if (!m.consumer.accept(m.status)) {
+        deleted.add(m.status.getPath().toUri().getPath());
+      }
+    }
+  }
+
+  private static boolean isDeleted(Path p, Set<String> deleted) {
+    if (deleted.isEmpty()) {
+      return false;
+    }
+    for (; p != null; p = p.getParent()) {
+      if (deleted.contains(p.toUri().getPath())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Restricts a consumer to the entries under root.
+   */
+  static Consumer underRoot(final String root, final Consumer consumer) {
+    return new Consumer() {
+      @Override
+      public boolean check(FileStatus f) throws IOException {
+        return isUnder(f.getPath().toUri().getPath(), root) &&
+          consumer.check(f);
+      }
+
+      @Override
+      public boolean accept(FileStatus f) throws IOException {
+        return consumer.accept(f);
+      }
+    };
+  }
+
+  /**
+   * @return true if path is root or is under root.
+   */
+  static boolean isUnder(String path, String root) {
+    if (!path.startsWith(root)) {
+      return false;
+    }
+    return path.length() == root.length() ||
+      root.endsWith(Path.SEPARATOR) ||
+      path.charAt(root.length()) == Path.SEPARATOR_CHAR;
+  }
+
+  /**
+   * Drops the roots that are under another root, so that overlapping
+   * roots are walked once.
+   */
+  static List<Path> outermostRoots(Collection<Path> roots) {
+    List<Path> sorted = new ArrayList<Path>(roots);
+    Collections.sort(sorted);
+    List<Path> result = new ArrayList<Path>();
+    List<String> kept = new ArrayList<String>();
+    for (Path root : sorted) {
+      String path = root.toUri().getPath();
+      // Siblings like /a-x sort between /a and /a/b, so the last kept
+      // root is not enough.
+      boolean covered = false;
+      for (String outer : kept) {
+        if (isUnder(path, outer)) {
+          covered = true;
+          break;
+        }
+      }
+      if (covered) {
+        continue;
+      }
+      result.add(root);
+      kept.add(path);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,86 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.raid;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.util.NativeCodeLoader;
+
+/**
+ * JNI bindings to the SIMD Galois field kernels of the native-hadoop library.
+ * The kernels work on GF(2^8) with the primitive polynomial of
+ * {@link GaloisField#getInstance()}.
+ */
+public class NativeGaloisField {
+  public static final Log LOG = LogFactory.getLog(NativeGaloisField.class);
+
+  private static boolean nativeLoaded = false;
+
+  static {
+    if (NativeCodeLoader.isNativeCodeLoaded()) {
+      try {
+        init(GaloisField.getInstance().getPrimitivePolynomial());
+        nativeLoaded = true;
+        LOG.info("Loaded the native erasure code kernels");
+      } catch (Throwable t) {
+        // The library may have been built without the raid kernels.
+        LOG.warn("Failed to initialize the native erasure code kernels, " +
+                 "using builtin-java classes: " + t);
+      }
+    } else {
+      LOG.warn("Cannot load the native erasure code kernels without " +
+               "native-hadoop library, using builtin-java classes");
+    }
+  }
+
+  /**
+   * Check if the native kernels are loaded and initialized.
+   */
+  public static boolean isNativeLoaded() {
+    return nativeLoaded;
+  }
+
+  /**
+   * Packs a matrix of field elements into bytes, row by row.
+   */
+  static byte[] pack(int[][] matrix) {
+    int columns = matrix.length == 0 ? 0 : matrix[0].length;
+    byte[] packed = new byte[matrix.length * columns];
+    for (int i = 0; i < matrix.length; i++) {
+      for (int j = 0; j < columns; j++) {
+        packed[i * columns + j] = (byte) matrix[i][j];
+      }
+    }
+    return packed;
+  }
+
+  /**
+   * Computes outputs[i] = sum over j of matrix[i * inputs.length + j] *
+   * inputs[j] for the first len bytes of the buffers.
+   * @param matrix The coefficients, packed row by row.
+   * @param inputs The input buffers.
+   * @param outputs (out) The output buffers.
+   * @param numOutputs The number of rows of the matrix.
+   * @param len The number of bytes to process.
+   */
+  static native void multiplyBulk(byte[] matrix, byte[][] inputs,
+      byte[][] outputs, int numOutputs, int len);
+
+  private static native void init(int primitivePolynomial);
+}
@@ -0,0 +1,50 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.raid;
+
+/**
+ * A {@link ReedSolomonCode} whose bulk operations run in the native SIMD
+ * kernels. Falls back to the builtin-java implementation when the native
+ * library is not available.
+ */
+public class NativeReedSolomonCode extends ReedSolomonCode {
+
+  public NativeReedSolomonCode() {
+  }
+
+  @Override
+  public void init(Codec codec) {
+    super.init(codec);
+    if (!NativeGaloisField.isNativeLoaded()) {
+      LOG.warn("Native erasure code kernels not loaded for codec " +
+               codec.id + ", using builtin-java implementation");
+    }
+  }
+
+  @Override
+  protected void multiplyBulk(
+    CodingMatrix matrix, byte[][] inputs, byte[][] outputs, int len) {
+    if (!NativeGaloisField.isNativeLoaded()) {
+      super.multiplyBulk(matrix, inputs, outputs, len);
+      return;
+    }
+    NativeGaloisField.multiplyBulk(matrix.getPacked(),
+      inputs, outputs, matrix.coefficients.length, len);
+  }
+}
@@ -0,0 +1,71 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.raid;
+
+import java.util.Arrays;
+
+/**
+ * An {@link XORCode} whose bulk operations run in the native SIMD kernels.
+ * Falls back to the builtin-java implementation when the native library is
+ * not available.
+ */
+public class NativeXORCode extends XORCode {
+
+  public NativeXORCode() {
+  }
+
+  @Override
+  public void init(Codec codec) {
+    super.init(codec);
+    if (!NativeGaloisField.isNativeLoaded()) {
+      LOG.warn("Native erasure code kernels not loaded for codec " +
+               codec.id + ", using builtin-java implementation");
+    }
+  }
+
+  @Override
+  public void encodeBulk(byte[][] inputs, byte[][] outputs) {
+    if (!NativeGaloisField.isNativeLoaded()) {
+      super.encodeBulk(inputs, outputs);
+      return;
+    }
+    // The parity is the sum of all the inputs.
+    byte[] matrix = new byte[inputs.length];
+    Arrays.fill(matrix, (byte) 1);
+    NativeGaloisField.multiplyBulk(
+      matrix, inputs, outputs, 1, outputs[0].length);
+  }
+
+  @Override
+  public void decodeBulk(
+    byte[][] readBufs, byte[][] writeBufs, int[] erasedLocations) {
+    if (!NativeGaloisField.isNativeLoaded()) {
+      super.decodeBulk(readBufs, writeBufs, erasedLocations);
+      return;
+    }
+    assert(erasedLocations.length == writeBufs.length);
+    assert(erasedLocations.length <= 1);
+    // The erased value is the sum of all the other locations.
+    byte[] matrix = new byte[readBufs.length];
+    Arrays.fill(matrix, (byte) 1);
+    matrix[erasedLocations[0]] = 0;
+    NativeGaloisField.multiplyBulk(
+      matrix, readBufs, writeBufs, 1, readBufs[0].length);
+  }
+}
@@ -51,16 +51,69 @@ public class ParallelStreamReader {
   int bufSize;
   long readTime = 0;
   volatile boolean running = true;
+  BufferPool pool;
+  // Number of streams that may still be left behind as stragglers.
+  int stragglersAllowed = 0;
+  long minStragglerWait = DEFAULT_MIN_STRAGGLER_WAIT;
+  // Streams left behind as stragglers. They are read as zeros afterwards.
+  boolean[] demoted;
+  LatencyHistogram[] latencies;
+  private final RaidNodeMetrics metrics =
+    RaidNodeMetrics.getInstance(RaidNodeMetrics.DEFAULT_NAMESPACE_ID);
+
+  public static final long DEFAULT_MIN_STRAGGLER_WAIT = 100;
+  // A read is a straggler if it takes this many times as long as the
+  // slowest read that was needed.
+  public static final long STRAGGLER_FACTOR = 3;
 
   public static class ReadResult {
     public byte[][] readBufs;
     public IOException[] ioExceptions;
-    ReadResult(int numStreams, int bufSize) {
+    // Streams whose data is missing from this result because they were
+    // too slow. Their buffers must be ignored.
+    public boolean[] abandoned;
+    private boolean[] done;
+    private int numDone = 0;
+    private BufferPool pool;
+    ReadResult(int numStreams, int bufSize, BufferPool pool) {
+      this.pool = pool;
       this.readBufs = new byte[numStreams][];
       for (int i = 0; i < readBufs.length; i++) {
-        this.readBufs[i] = new byte[bufSize];
+        this.readBufs[i] = pool.getBuffer(bufSize);
       }
       this.ioExceptions = new IOException[readBufs.length];
+      this.abandoned = new boolean[readBufs.length];
+      this.done = new boolean[readBufs.length];
+    }
+
+    /**
+     * Return the buffers to the pool once the data has been consumed.
+     * The buffers must not be used after this. The buffers of abandoned
+     * reads may still be written to, so they are not returned.
+     */
+    public synchronized void release() {
+      for (int i = 0; i < readBufs.length; i++) {
+        if (done[i]) {
+          pool.returnBuffer(readBufs[i]);
+        }
+        readBufs[i] = null;
+      }
+    }
+
+    synchronized void setDone(int idx) {
+      done[idx] = true;
+      numDone++;
+      notifyAll();
+    }
+
+    public int numAbandoned() {
+      int n = 0;
+      for (int i = 0; i < abandoned.length; i++) {
+        if (abandoned[i]) {
+          n++;
+        }
+      }
+      return n;
     }
 
     void setException(int idx, Exception e) {
@@ -106,6 +159,23 @@ public class ParallelStreamReader {
       int numThreads,
       int boundedBufferCapacity,
       long maxBytesPerStream) {
+    this(reporter, streams, bufSize, numThreads, boundedBufferCapacity,
+      maxBytesPerStream, new BufferPool(0, false));
+  }
+
+  /**
+   * Reads data from multiple streams in parallel, with the read buffers
+   * borrowed from a buffer pool.
+   */
+  public ParallelStreamReader(
+      Progressable reporter,
+      InputStream[] streams,
+      int bufSize,
+      int numThreads,
+      int boundedBufferCapacity,
+      long maxBytesPerStream,
+      BufferPool pool) {
+    this.pool = pool;
     this.reporter = reporter;
     this.streams = new InputStream[streams.length];
     for (int i = 0; i < streams.length; i++) {
@@ -124,6 +194,33 @@ public class ParallelStreamReader {
     this.slots = new Semaphore(this.numThreads);
     this.readPool = Executors.newFixedThreadPool(this.numThreads);
     this.mainThread = new MainThread();
+    this.demoted = new boolean[streams.length];
+    this.latencies = new LatencyHistogram[streams.length];
+    for (int i = 0; i < streams.length; i++) {
+      latencies[i] = new LatencyHistogram();
+    }
+  }
+
+  /**
+   * Allows up to numStragglers streams to be left behind. Once all but the
+   * allowed number of reads of a slice have completed, the remaining reads
+   * get a grace period of STRAGGLER_FACTOR times the time taken so far, but
+   * at least minWait milliseconds. Reads still running after that are
+   * abandoned: the slice is returned with those streams marked in
+   * ReadResult.abandoned and the streams are read as zeros from then on.
+   * Must be called before start().
+   */
+  public void setStragglersAllowed(int numStragglers, long minWait) {
+    this.stragglersAllowed = numStragglers;
+    this.minStragglerWait = minWait;
+  }
+
+  /**
+   * The latencies of the reads of each stream, including the reads
+   * that were abandoned.
+   */
+  public LatencyHistogram[] getLatencies() {
+    return latencies;
   }
 
   public void start() {
@@ -147,26 +244,40 @@ public class ParallelStreamReader {
         } catch (IOException e) {}
       }
     }
+    // Nobody will consume the results still in the queue.
+    ReadResult readResult;
+    while ((readResult = boundedBuffer.poll()) != null) {
+      readResult.release();
+    }
   }
 
   public ReadResult getReadResult() throws InterruptedException {
     return boundedBuffer.take();
   }
 
+  /**
+   * Number of read results that are ready but not yet consumed.
+   */
+  public int getQueueSize() {
+    return boundedBuffer.size();
+  }
+
   class MainThread extends Thread {
     public void run() {
       while (running) {
-        ReadResult readResult = new ReadResult(streams.length, bufSize);
+        // Do not try to read more data if the desired amount of data has
+        // been read.
+        if (remainingBytesPerStream <= 0) {
+          return;
+        }
+        ReadResult readResult = new ReadResult(streams.length, bufSize, pool);
+        // The last slice is only partially read, the rest is zeros.
+        int toRead = (int)Math.min((long)bufSize, remainingBytesPerStream);
         try {
-          // Do not try to read more data if the desired amount of data has
-          // been read.
-          if (remainingBytesPerStream == 0) {
-            return;
-          }
-          performReads(readResult);
+          performReads(readResult, toRead);
           // Enqueue to bounder buffer.
           boundedBuffer.put(readResult);
-          remainingBytesPerStream -= bufSize;
+          remainingBytesPerStream -= toRead;
         } catch (InterruptedException e) {
           running = false;
         }
@@ -176,27 +287,49 @@ public class ParallelStreamReader {
 
   /**
    * Performs a batch of reads from the given streams and waits
-   * for the reads to finish.
+   * for the reads to finish, or for all but the allowed stragglers
+   * to finish.
    */
-  private void performReads(ReadResult readResult) throws InterruptedException {
+  private void performReads(ReadResult readResult, int toRead)
+      throws InterruptedException {
     long start = System.currentTimeMillis();
     for (int i = 0; i < streams.length; ) {
       boolean acquired = slots.tryAcquire(1, 10, TimeUnit.SECONDS);
       reporter.progress();
       if (acquired) {
-        readPool.execute(new ReadOperation(readResult, i));
+        readPool.execute(
+          new ReadOperation(readResult, i, streams[i], toRead));
         i++;
       }
     }
     // All read operations have been submitted to the readPool.
-    // Now wait for the operations to finish and release the semaphore.
-    while (true) {
-      boolean acquired =
-        slots.tryAcquire(numThreads, 10, TimeUnit.SECONDS);
-      reporter.progress();
-      if (acquired) {
-        slots.release(numThreads);
-        break;
+    // Now wait for the operations to finish.
+    int needed = streams.length - stragglersAllowed;
+    long deadline = Long.MAX_VALUE;
+    synchronized (readResult) {
+      while (readResult.numDone < streams.length) {
+        long now = System.currentTimeMillis();
+        if (readResult.numDone >= needed && deadline == Long.MAX_VALUE) {
+          deadline = now + Math.max(minStragglerWait,
+                                    STRAGGLER_FACTOR * (now - start));
+        }
+        if (now >= deadline) {
+          break;
+        }
+        readResult.wait(Math.min(10000, deadline - now));
+        reporter.progress();
+      }
+      if (readResult.numDone < streams.length) {
+        for (int i = 0; i < streams.length; i++) {
+          if (!readResult.done[i]) {
+            LOG.warn("Abandoning slow read of stream " + i + " after " +
+              (System.currentTimeMillis() - start) + "ms");
+            readResult.abandoned[i] = true;
+            demoted[i] = true;
+            streams[i] = null;
+            stragglersAllowed--;
+          }
+        }
       }
     }
 
@@ -206,30 +339,57 @@ public class ParallelStreamReader {
   class ReadOperation implements Runnable {
     ReadResult readResult;
     int idx;
-    ReadOperation(ReadResult readResult, int idx) {
+    InputStream stream;
+    int toRead;
+    ReadOperation(ReadResult readResult, int idx, InputStream stream,
+        int toRead) {
       this.readResult = readResult;
       this.idx = idx;
+      this.stream = stream;
+      this.toRead = toRead;
     }
 
     public void run() {
       readResult.setException(idx, null);
+      long start = System.currentTimeMillis();
       try {
-        if (streams[idx] == null) {
+        if (stream == null) {
           // We encountered an error in this stream earlier, use zeros.
           Arrays.fill(readResult.readBufs[idx], (byte) 0);
+          readResult.abandoned[idx] = demoted[idx];
           return;
         }
         boolean eofOK = true;
         byte[] buffer = readResult.readBufs[idx];
-        RaidUtils.readTillEnd(streams[idx], buffer, eofOK);
+        RaidUtils.readTillEnd(stream, buffer, toRead, eofOK);
       } catch (Exception e) {
         LOG.warn("Encountered exception in stream " + idx, e);
-        readResult.setException(idx, e);
+        synchronized (readResult) {
+          // The result of an abandoned read has already been handed out.
+          if (!readResult.abandoned[idx]) {
+            readResult.setException(idx, e);
+          }
+        }
         try {
-          streams[idx].close();
+          stream.close();
         } catch (IOException ioe) {}
         streams[idx] = null;
       } finally {
+        if (stream != null) {
+          long latency = System.currentTimeMillis() - start;
+          latencies[idx].add(latency);
+          metrics.stripeReadLatency.add(latency);
+        }
+        synchronized (readResult) {
+          if (readResult.abandoned[idx] && stream != null) {
+            // This read was too slow and the stream has been demoted.
+            try {
+              stream.close();
+            } catch (IOException ioe) {}
+          } else {
+            readResult.setDone(idx);
+          }
+        }
         ParallelStreamReader.this.slots.release();
       }
     }
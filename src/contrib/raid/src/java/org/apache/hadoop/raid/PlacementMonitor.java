@@ -20,7 +20,6 @@ package org.apache.hadoop.raid;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumMap;
 import java.util.HashMap;
@@ -66,23 +65,57 @@ public class PlacementMonitor {
   private volatile long lastUpdateStartTime = 0L;
   private volatile long lastUpdateFinishTime = 0L;
   private volatile long lastUpdateUsedTime = 0L;
-  public static ThreadLocal<HashMap<String, LocatedFileStatus>> 
-      locatedFileStatusCache = new ThreadLocal<HashMap<String, LocatedFileStatus>>() {
+  /**
+   * The located statuses of the files of the last few directories listed
+   * by a thread, by directory and then by file. Used to look up the block
+   * locations of all the files of a directory with one listLocatedStatus.
+   */
+  static class LocatedStatusCache
+      extends LinkedHashMap<String, Map<String, LocatedFileStatus>> {
+    private static final long serialVersionUID = 1L;
+    static final int MAX_DIRECTORIES = 16;
+
+    LocatedStatusCache() {
+      super(MAX_DIRECTORIES, 0.75f, true);
+    }
+
+    @Override
+    protected boolean removeEldestEntry(
+        Map.Entry<String, Map<String, LocatedFileStatus>> eldest) {
+      return size() > MAX_DIRECTORIES;
+    }
+  }
+
+  public static ThreadLocal<LocatedStatusCache>
+      locatedFileStatusCache = new ThreadLocal<LocatedStatusCache>() {
         @Override
-        protected HashMap<String, LocatedFileStatus> initialValue() {
-          return new HashMap<String, LocatedFileStatus>();
+        protected LocatedStatusCache initialValue() {
+          return new LocatedStatusCache();
         }
       };
-  
+
+  // The located blocks of parity HAR part files, shared by the checks of
+  // all the source files in a part file. Cleared every checking cycle.
+  final Map<Path, Map<Long, LocatedBlockWithMetaInfo>> partFileBlocks;
+  // Datanodes by name, shared by all the resolvers. Cleared every
+  // checking cycle.
+  final Map<String, DatanodeInfo> datanodes;
+
   RaidNodeMetrics metrics;
   BlockMover blockMover;
 
   final static String NUM_MOVING_THREADS_KEY = "hdfs.raid.block.move.threads";
   final static String SIMULATE_KEY = "hdfs.raid.block.move.simulate";
   final static String BLOCK_MOVE_QUEUE_LENGTH_KEY = "hdfs.raid.block.move.queue.length";
+  final static String PART_FILE_CACHE_SIZE_KEY =
+    "hdfs.raid.placement.partfile.cache.size";
+  final static String DATANODE_CACHE_SIZE_KEY =
+    "hdfs.raid.placement.datanode.cache.size";
   final static int DEFAULT_NUM_MOVING_THREADS = 10;
   final static int DEFAULT_BLOCK_MOVE_QUEUE_LENGTH = 30000;
   final static int ALWAYS_SUBMIT_PRIORITY = 3;
+  final static int DEFAULT_PART_FILE_CACHE_SIZE = 8;
+  final static int DEFAULT_DATANODE_CACHE_SIZE = 1024;
 
   PlacementMonitor(Configuration conf) throws IOException {
     this.conf = conf;
@@ -97,6 +130,21 @@ public class PlacementMonitor {
         numMovingThreads, maxMovingQueueSize, simulate,
         ALWAYS_SUBMIT_PRIORITY, conf);
     this.metrics = RaidNodeMetrics.getInstance(RaidNodeMetrics.DEFAULT_NAMESPACE_ID);
+    this.partFileBlocks = lruMap(conf.getInt(
+        PART_FILE_CACHE_SIZE_KEY, DEFAULT_PART_FILE_CACHE_SIZE));
+    this.datanodes = lruMap(conf.getInt(
+        DATANODE_CACHE_SIZE_KEY, DEFAULT_DATANODE_CACHE_SIZE));
+  }
+
+  static <K, V> Map<K, V> lruMap(final int maxEntries) {
+    Map<K, V> map = new LinkedHashMap<K, V>(maxEntries, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+        return size() > maxEntries;
+      }
+    };
+    return Collections.synchronizedMap(map);
   }
 
   private Map<String, Map<Integer, Long>> createEmptyHistograms() {
@@ -118,6 +166,9 @@ public class PlacementMonitor {
 
   public void startCheckingFiles() {
     lastUpdateStartTime = RaidNode.now();
+    // Blocks and datanodes may have moved since the last cycle.
+    partFileBlocks.clear();
+    datanodes.clear();
   }
 
   public int getMovingQueueSize() {
@@ -133,7 +184,8 @@ public class PlacementMonitor {
     }
     if (srcFs.getUri().equals(parityFs.getUri())) {
       BlockAndDatanodeResolver resolver = new BlockAndDatanodeResolver(
-          srcFile.getPath(), srcFs, partFile, parityFs);
+          srcFile.getPath(), srcFs, partFile, parityFs, partFileBlocks,
+          datanodes);
       checkBlockLocations(
           getBlockInfos(srcFs, srcFile),
           getBlockInfos(parityFs, partFile, entry.startOffset, entry.length),
@@ -152,7 +204,8 @@ public class PlacementMonitor {
       throws IOException {
     if (srcFs.equals(parityFs)) {
       BlockAndDatanodeResolver resolver = new BlockAndDatanodeResolver(
-          srcFile.getPath(), srcFs, parityFile.getPath(), parityFs);
+          srcFile.getPath(), srcFs, parityFile.getPath(), parityFs, null,
+          datanodes);
       checkBlockLocations(
           getBlockInfos(srcFs, srcFile),
           getBlockInfos(parityFs, parityFile),
@@ -163,33 +216,25 @@ public class PlacementMonitor {
     }
   }
 
-  LocatedFileStatus getLocatedFileStatus(
+  static LocatedFileStatus getLocatedFileStatus(
       FileSystem fs, Path p) throws IOException {
-    HashMap<String, LocatedFileStatus> cache = 
-        locatedFileStatusCache.get();
-    LocatedFileStatus result = cache.get(p.toUri().getPath());
-    if (result != null) {
-      return result;
+    LocatedStatusCache cache = locatedFileStatusCache.get();
+    String parentPath = p.getParent().toUri().getPath();
+    Map<String, LocatedFileStatus> listing = cache.get(parentPath);
+    if (listing == null) {
+      // List the whole directory, the other files in it are likely to be
+      // looked up next.
+      listing = new HashMap<String, LocatedFileStatus>();
+      RemoteIterator<LocatedFileStatus> iter =
+        fs.listLocatedStatus(p.getParent());
+      while (iter.hasNext()) {
+        LocatedFileStatus stat = iter.next();
+        listing.put(stat.getPath().toUri().getPath(), stat);
+      }
+      cache.put(parentPath, listing);
     }
-    Path parent = p.getParent();
-    String parentPath = parent.toUri().getPath();
-    //If we already did listlocatedStatus on parent path,
-    //it means path p doesn't exist, we don't need to list again 
-    if (cache.containsKey(parentPath) && 
-        cache.get(parentPath) == null) {
-      return null;
-    }
-    
-    RemoteIterator<LocatedFileStatus> iter = fs.listLocatedStatus(parent);
-    while (iter.hasNext()) {
-      LocatedFileStatus stat = iter.next();
-      cache.put(stat.getPath().toUri().getPath(), stat);
-    }
-    // trick: add parent path to the cache with value = null 
-    cache.put(parentPath, null);
-    result = cache.get(p.toUri().getPath());
-    // This may still return null
-    return result;
+    // This may return null if the file does not exist
+    return listing.get(p.toUri().getPath());
   }
 
   static class BlockInfo {
@@ -478,6 +523,10 @@ public class PlacementMonitor {
     final Path parity;
     final FileSystem parityFs;
 
+    // Shared with other resolvers, may be null.
+    final Map<Path, Map<Long, LocatedBlockWithMetaInfo>> parityCache;
+    final Map<String, DatanodeInfo> datanodeCache;
+
     private boolean inited = false;
     private Map<String, DatanodeInfo> nameToDatanodeInfo = null;
     private Map<Path, Map<Long, LocatedBlockWithMetaInfo>>
@@ -489,14 +538,31 @@ public class PlacementMonitor {
       this.srcFs = null;
       this.parity =null;
       this.parityFs = null;
+      this.parityCache = null;
+      this.datanodeCache = null;
     }
 
     BlockAndDatanodeResolver(
         Path src, FileSystem srcFs, Path parity, FileSystem parityFs) {
+      this(src, srcFs, parity, parityFs, null, null);
+    }
+
+    /**
+     * @param parityCache The located blocks of the parity files fetched by
+     *                    other resolvers. Used when many source files share
+     *                    a parity file, as with HAR part files.
+     * @param datanodeCache The datanodes found by other resolvers.
+     */
+    BlockAndDatanodeResolver(
+        Path src, FileSystem srcFs, Path parity, FileSystem parityFs,
+        Map<Path, Map<Long, LocatedBlockWithMetaInfo>> parityCache,
+        Map<String, DatanodeInfo> datanodeCache) {
       this.src = src;
       this.srcFs = srcFs;
       this.parity = parity;
       this.parityFs = parityFs;
+      this.parityCache = parityCache;
+      this.datanodeCache = datanodeCache;
     }
 
     public LocatedBlockWithMetaInfo getLocatedBlock(BlockInfo blk) throws IOException {
@@ -518,7 +584,11 @@ public class PlacementMonitor {
 
     public DatanodeInfo getDatanodeInfo(String name) throws IOException {
       checkInitialized();
-      return nameToDatanodeInfo.get(name);
+      DatanodeInfo dn = nameToDatanodeInfo.get(name);
+      if (dn == null && datanodeCache != null) {
+        dn = datanodeCache.get(name);
+      }
+      return dn;
     }
 
     private void checkInitialized() throws IOException{
@@ -531,21 +601,33 @@ public class PlacementMonitor {
     private void initialize() throws IOException {
       pathAndOffsetToLocatedBlock =
           new HashMap<Path, Map<Long, LocatedBlockWithMetaInfo>>();
-      VersionedLocatedBlocks srcLbs = getLocatedBlocks(src, srcFs);
-      VersionedLocatedBlocks parityLbs = getLocatedBlocks(parity, parityFs);
-      pathAndOffsetToLocatedBlock.put(
-          src, createOffsetToLocatedBlockMap(srcLbs));
+      nameToDatanodeInfo = new HashMap<String, DatanodeInfo>();
       pathAndOffsetToLocatedBlock.put(
-          parity, createOffsetToLocatedBlockMap(parityLbs));
+          src, createOffsetToLocatedBlockMap(getLocatedBlocks(src, srcFs)));
+      Map<Long, LocatedBlockWithMetaInfo> parityBlocks = null;
+      if (parityCache != null) {
+        parityBlocks = parityCache.get(parity);
+      }
+      if (parityBlocks == null) {
+        parityBlocks = createOffsetToLocatedBlockMap(
+            getLocatedBlocks(parity, parityFs));
+        if (parityCache != null) {
+          parityCache.put(parity, parityBlocks);
+        }
+      }
+      pathAndOffsetToLocatedBlock.put(parity, parityBlocks);
 
-      nameToDatanodeInfo = new HashMap<String, DatanodeInfo>();
-      for (LocatedBlocks lbs : Arrays.asList(srcLbs, parityLbs)) {
-        for (LocatedBlock lb : lbs.getLocatedBlocks()) {
+      for (Map<Long, LocatedBlockWithMetaInfo> blocks :
+           pathAndOffsetToLocatedBlock.values()) {
+        for (LocatedBlock lb : blocks.values()) {
           for (DatanodeInfo dn : lb.getLocations()) {
             nameToDatanodeInfo.put(dn.getName(), dn);
           }
         }
       }
+      if (datanodeCache != null) {
+        datanodeCache.putAll(nameToDatanodeInfo);
+      }
     }
 
     private Map<Long, LocatedBlockWithMetaInfo> createOffsetToLocatedBlockMap(
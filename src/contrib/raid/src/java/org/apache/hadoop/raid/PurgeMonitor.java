@@ -20,11 +20,16 @@ package org.apache.hadoop.raid;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.Arrays;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
@@ -34,29 +39,58 @@ import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.raid.protocol.PolicyInfo;
+import org.apache.hadoop.util.StringUtils;
 
 /**
  * Periodically delete orphaned parity files.
+ *
+ * The parity directories are walked by raid.purge.threads threads. The
+ * source files and the parity files of the other codecs are looked up in
+ * listings of their directories, one listing for all the files of a
+ * directory, and an entry is only deleted once the unbatched checks agree.
+ * If raid.scan.state.dir is set, the position of the walk is saved there
+ * so that a restarted RaidNode resumes it. Deletes are limited to
+ * raid.purge.max.deletes.per.sec, with no limit if it is 0.
  */
 public class PurgeMonitor implements Runnable {
   public static final Log LOG = LogFactory.getLog(PurgeMonitor.class);
 
+  public static final String PURGE_THREADS_KEY = "raid.purge.threads";
+  public static final String MAX_DELETES_PER_SEC_KEY =
+    "raid.purge.max.deletes.per.sec";
+  // The scan state of a codec is named after the codec with this prefix.
+  static final String SCAN_STATE_PREFIX = "purge.";
+
   volatile boolean running = true;
 
   private Configuration conf;
   private PlacementMonitor placementMonitor;
   private int directoryTraversalThreads;
   private boolean directoryTraversalShuffle;
+  private final DeleteLimiter deleteLimiter;
+
+  private final Map<FileSystem, NamespaceScanner> parityScanners =
+    new HashMap<FileSystem, NamespaceScanner>();
+  private final Map<String, DirectoryScanState> scanStates =
+    new HashMap<String, DirectoryScanState>();
 
   AtomicLong entriesProcessed;
+  final AtomicLong entriesPurged = new AtomicLong(0);
+  private volatile long cycleStartTime = RaidNode.now();
+  private volatile long cycleStartProcessed = 0;
+  private volatile long cycleStartPurged = 0;
+  private volatile long lastCycleTime = 0;
+  private volatile long resumedScans = 0;
 
   public PurgeMonitor(Configuration conf, PlacementMonitor placementMonitor) {
     this.conf = conf;
     this.placementMonitor = placementMonitor;
     this.directoryTraversalShuffle =
         conf.getBoolean(RaidNode.RAID_DIRECTORYTRAVERSAL_SHUFFLE, true);
-    this.directoryTraversalThreads =
-        conf.getInt(RaidNode.RAID_DIRECTORYTRAVERSAL_THREADS, 4);
+    this.directoryTraversalThreads = conf.getInt(PURGE_THREADS_KEY,
+        conf.getInt(RaidNode.RAID_DIRECTORYTRAVERSAL_THREADS, 4));
+    this.deleteLimiter =
+      new DeleteLimiter(conf.getFloat(MAX_DELETES_PER_SEC_KEY, 0));
     this.entriesProcessed = new AtomicLong(0);
   }
 
@@ -74,47 +108,15 @@ public class PurgeMonitor implements Runnable {
     }
   }
 
-  /**
-   * Traverse the parity destination directory, removing directories that
-   * no longer existing in the source.
-   * @throws IOException
-   */
-  private void purgeDirectories(FileSystem fs, Path root) throws IOException {
-    DirectoryTraversal traversal =
-        DirectoryTraversal.directoryRetriever(Arrays.asList(root), fs,
-            directoryTraversalThreads, directoryTraversalShuffle);
-    String prefix = root.toUri().getPath();
-    List<FileStatus> startPaths = new LinkedList<FileStatus>();
-    try {
-      startPaths.add(fs.getFileStatus(root));
-    } catch (FileNotFoundException e) {
-      return;
-    }
-    FileStatus dir;
-    while ((dir = traversal.next()) != DirectoryTraversal.FINISH_TOKEN) {
-      Path dirPath = dir.getPath();
-      if (dirPath.toUri().getPath().endsWith(RaidNode.HAR_SUFFIX)) {
-        continue;
-      }
-      String dirStr = dirPath.toUri().getPath();
-      if (!dirStr.startsWith(prefix)) {
-        continue;
-      }
-      entriesProcessed.incrementAndGet();
-      String src = dirStr.replaceFirst(prefix, "");
-      if (src.length() == 0) continue;
-      Path srcPath = new Path(src);
-      if (!fs.exists(srcPath)) {
-        performDelete(fs, dirPath, true);
-      }
-    }
-  }
-
   void doPurge() throws IOException, InterruptedException {
     entriesProcessed.set(0);
+    entriesPurged.set(0);
     while (running) {
       Thread.sleep(10 * 1000L);
 
+      cycleStartTime = RaidNode.now();
+      cycleStartProcessed = entriesProcessed.get();
+      cycleStartPurged = entriesPurged.get();
       placementMonitor.startCheckingFiles();
       try {
         for (Codec c : Codec.getCodecs()) {
@@ -123,6 +125,7 @@ public class PurgeMonitor implements Runnable {
       } finally {
         placementMonitor.clearAndReport();
       }
+      lastCycleTime = RaidNode.now() - cycleStartTime;
     }
   }
 
@@ -130,10 +133,6 @@ public class PurgeMonitor implements Runnable {
     Path parityPath = new Path(codec.parityDirectory);
     FileSystem parityFs = parityPath.getFileSystem(conf);
 
-    // One pass to purge directories that dont exists in the src.
-    // This is cheaper than looking at parities.
-    purgeDirectories(parityFs, parityPath);
-
     FileSystem srcFs = parityFs;  // Assume src == parity
 
     FileStatus stat = null;
@@ -142,38 +141,254 @@ public class PurgeMonitor implements Runnable {
     } catch (FileNotFoundException e) {}
     if (stat == null) return;
 
+    // One pass purges the directories that dont exist in the src, the
+    // obsolete parity files and the obsolete parity HARs, and feeds the
+    // consumers waiting for a scan of the parity directory.
     LOG.info("Purging obsolete parity files for " + parityPath);
-    DirectoryTraversal obsoleteParityFileRetriever =
-      new DirectoryTraversal(
-        "Purge File ",
-        Collections.singletonList(parityPath),
-        parityFs,
-        new PurgeParityFileFilter(conf, codec, srcFs, parityFs,
-          parityPath.toUri().getPath(), placementMonitor, entriesProcessed),
-        directoryTraversalThreads,
-        directoryTraversalShuffle);
-    FileStatus obsolete = null;
-    while ((obsolete = obsoleteParityFileRetriever.next()) !=
-              DirectoryTraversal.FINISH_TOKEN) {
-      performDelete(parityFs, obsolete.getPath(), false);
+    String parityPrefix = parityPath.toUri().getPath();
+    Set<String> purgedDirs =
+      Collections.synchronizedSet(new HashSet<String>());
+    List<NamespaceScanner.Consumer> consumers =
+      new ArrayList<NamespaceScanner.Consumer>();
+    consumers.add(new PurgeConsumer(parityFs,
+      new PurgeDirectoryFilter(srcFs, parityPrefix, entriesProcessed),
+      true, purgedDirs, this));
+    consumers.add(new PurgeConsumer(parityFs,
+      new PurgeParityFileFilter(conf, codec, srcFs, parityFs,
+        parityPrefix, placementMonitor, entriesProcessed),
+      false, purgedDirs, this));
+    consumers.add(new PurgeConsumer(parityFs,
+      new PurgeHarFilter(conf, codec, srcFs, parityFs,
+        parityPrefix, placementMonitor, entriesProcessed),
+      true, purgedDirs, this));
+    DirectoryScanState state = getScanState(codec);
+    if (state != null && state.hasPendingDirectories()) {
+      resumedScans++;
     }
+    getParityScanner(parityFs).scan(
+      Collections.singletonList(parityPath), consumers, state);
+  }
 
-    DirectoryTraversal obsoleteParityHarRetriever =
-      new DirectoryTraversal(
-        "Purge HAR ",
-        Collections.singletonList(parityPath),
-        parityFs,
-        new PurgeHarFilter(conf, codec, srcFs, parityFs,
-          parityPath.toUri().getPath(), placementMonitor, entriesProcessed),
-        directoryTraversalThreads,
-        directoryTraversalShuffle);
-    while ((obsolete = obsoleteParityHarRetriever.next()) !=
-              DirectoryTraversal.FINISH_TOKEN) {
-      performDelete(parityFs, obsolete.getPath(), true);
+  /**
+   * The saved position of the purge of a codec, null if scan state is not
+   * configured.
+   */
+  private synchronized DirectoryScanState getScanState(Codec codec)
+      throws IOException {
+    if (!scanStates.containsKey(codec.id)) {
+      scanStates.put(codec.id,
+        DirectoryScanState.load(conf, SCAN_STATE_PREFIX + codec.id));
     }
+    return scanStates.get(codec.id);
   }
 
-  static void performDelete(FileSystem fs, Path p, boolean recursive)
+  /**
+   * Deletes an entry that was found to be obsolete, waiting first if the
+   * deletes are limited.
+   */
+  boolean purge(FileSystem fs, Path p, boolean recursive) throws IOException {
+    deleteLimiter.acquire();
+    if (performDelete(fs, p, recursive)) {
+      entriesPurged.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Spaces the deletes so that there are at most maxPerSec of them a
+   * second.
+   */
+  static class DeleteLimiter {
+    private final long intervalNanos;
+    private long nextDelete = 0;
+
+    DeleteLimiter(float maxPerSec) {
+      this.intervalNanos = maxPerSec > 0 ? (long)(1e9 / maxPerSec) : 0;
+    }
+
+    synchronized void acquire() throws InterruptedIOException {
+      if (intervalNanos == 0) {
+        return;
+      }
+      long now = System.nanoTime();
+      long wait = nextDelete - now;
+      if (wait > 0) {
+        try {
+          Thread.sleep(wait / 1000000L, (int)(wait % 1000000L));
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException("Interrupted waiting to delete");
+        }
+      }
+      nextDelete = Math.max(now, nextDelete) + intervalNanos;
+    }
+  }
+
+  /**
+   * Looks files up in listings of their directories. The traversal checks
+   * the entries of a directory together, so one listing answers for all
+   * of them. Each thread keeps its last listings for a short while. The
+   * answers may be stale, so they are good to rule a delete out but not to
+   * decide one.
+   */
+  static class ListingLookup {
+    static final int MAX_DIRECTORIES = 16;
+    static final long MAX_AGE = 60 * 1000L;
+    static final AtomicLong listings = new AtomicLong(0);
+
+    private static class Listing {
+      final Map<String, FileStatus> entries =
+        new HashMap<String, FileStatus>();
+      final long time = RaidNode.now();
+    }
+
+    private static final ThreadLocal<Map<String, Listing>> cache =
+      new ThreadLocal<Map<String, Listing>>() {
+        @Override
+        protected Map<String, Listing> initialValue() {
+          return new LinkedHashMap<String, Listing>(
+              MAX_DIRECTORIES, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<String, Listing> eldest) {
+              return size() > MAX_DIRECTORIES;
+            }
+          };
+        }
+      };
+
+    /**
+     * @return the status of p, or null if it does not exist.
+     */
+    static FileStatus get(FileSystem fs, Path p) throws IOException {
+      Path parent = p.getParent();
+      if (parent == null) {
+        return fs.getFileStatus(p);
+      }
+      String key = fs.getUri() + parent.toUri().getPath();
+      Map<String, Listing> listingCache = cache.get();
+      Listing listing = listingCache.get(key);
+      if (listing == null || RaidNode.now() - listing.time > MAX_AGE) {
+        listing = new Listing();
+        FileStatus[] stats = null;
+        try {
+          stats = fs.listStatus(parent);
+        } catch (FileNotFoundException e) {
+        }
+        if (stats != null) {
+          for (FileStatus stat : stats) {
+            listing.entries.put(stat.getPath().toUri().getPath(), stat);
+          }
+        }
+        listings.incrementAndGet();
+        listingCache.put(key, listing);
+      }
+      return listing.entries.get(p.toUri().getPath());
+    }
+  }
+
+  /**
+   * The scanner of the parity directories. Other monitors can join the
+   * scans done by the purge with NamespaceScanner.scanNext().
+   */
+  synchronized NamespaceScanner getParityScanner(FileSystem parityFs) {
+    NamespaceScanner scanner = parityScanners.get(parityFs);
+    if (scanner == null) {
+      scanner = new NamespaceScanner("Purge Scan ", parityFs,
+        directoryTraversalThreads, directoryTraversalShuffle, false);
+      parityScanners.put(parityFs, scanner);
+    }
+    return scanner;
+  }
+
+  /**
+   * Deletes the entries that pass a purge filter, unless they are under a
+   * directory that was purged already.
+   */
+  static class PurgeConsumer implements NamespaceScanner.Consumer {
+    final FileSystem fs;
+    final DirectoryTraversal.Filter filter;
+    final boolean recursive;
+    final Set<String> purgedDirs;
+    final PurgeMonitor monitor;
+
+    PurgeConsumer(FileSystem fs, DirectoryTraversal.Filter filter,
+        boolean recursive, Set<String> purgedDirs, PurgeMonitor monitor) {
+      this.fs = fs;
+      this.filter = filter;
+      this.recursive = recursive;
+      this.purgedDirs = purgedDirs;
+      this.monitor = monitor;
+    }
+
+    @Override
+    public boolean check(FileStatus f) throws IOException {
+      return !isPurged(f.getPath().getParent()) && filter.check(f);
+    }
+
+    @Override
+    public boolean accept(FileStatus f) throws IOException {
+      Path p = f.getPath();
+      if (isPurged(p)) {
+        return false;
+      }
+      if (!monitor.purge(fs, p, recursive)) {
+        return true;
+      }
+      if (recursive) {
+        purgedDirs.add(p.toUri().getPath());
+      }
+      return false;
+    }
+
+    private boolean isPurged(Path p) {
+      for (; p != null; p = p.getParent()) {
+        if (purgedDirs.contains(p.toUri().getPath())) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Accepts the parity directories whose source directory does not exist.
+   */
+  static class PurgeDirectoryFilter implements DirectoryTraversal.Filter {
+    FileSystem srcFs;
+    String parityPrefix;
+    AtomicLong counter;
+
+    PurgeDirectoryFilter(FileSystem srcFs, String parityPrefix,
+        AtomicLong counter) {
+      this.srcFs = srcFs;
+      this.parityPrefix = parityPrefix;
+      this.counter = counter;
+    }
+
+    @Override
+    public boolean check(FileStatus f) throws IOException {
+      if (!f.isDir()) return false;
+      String dirStr = f.getPath().toUri().getPath();
+      if (dirStr.endsWith(RaidNode.HAR_SUFFIX)) return false;
+      if (!dirStr.startsWith(parityPrefix)) return false;
+      counter.incrementAndGet();
+      String src = dirStr.replaceFirst(parityPrefix, "");
+      if (src.length() == 0) return false;
+      Path srcPath = new Path(src);
+      try {
+        if (ListingLookup.get(srcFs, srcPath) != null) {
+          return false;
+        }
+      } catch (IOException e) {
+        LOG.warn("Error looking up " + src, e);
+      }
+      return !srcFs.exists(srcPath);
+    }
+  }
+
+  static boolean performDelete(FileSystem fs, Path p, boolean recursive)
       throws IOException {
     boolean success = fs.delete(p, recursive);
     if (success) {
@@ -182,6 +397,7 @@ public class PurgeMonitor implements Runnable {
     } else {
       LOG.error("Could not delete " + p);
     }
+    return success;
   }
 
   static class PurgeHarFilter implements DirectoryTraversal.Filter {
@@ -276,6 +492,21 @@ public class PurgeMonitor implements Runnable {
       String src = pathStr.replaceFirst(parityPrefix, "");
 
       Path srcPath = new Path(src);
+      try {
+        FileStatus srcStat = lookupSource(srcPath);
+        if (srcStat != null && isParityFileOf(f, srcPath, srcStat) &&
+            !existsBetterParityFileInListings(codec, srcPath, srcStat,
+              conf)) {
+          // This parity file matches the source file.
+          if (placementMonitor != null) {
+            placementMonitor.checkFile(srcFs, srcStat, parityFs, f, codec);
+          }
+          return false;
+        }
+      } catch (IOException e) {
+        LOG.warn("Error looking up " + src, e);
+      }
+      // The listings may be stale, look again before deleting.
       boolean shouldDelete = false;
       FileStatus srcStat = null;
       try {
@@ -311,6 +542,69 @@ public class PurgeMonitor implements Runnable {
       }
       return shouldDelete;
     }
+
+    /**
+     * The status of a source file from a listing of its directory, null if
+     * it does not exist. The listing of the placement monitor is shared
+     * with its placement check.
+     */
+    private FileStatus lookupSource(Path srcPath) throws IOException {
+      if (placementMonitor == null) {
+        return ListingLookup.get(srcFs, srcPath);
+      }
+      try {
+        return placementMonitor.getLocatedFileStatus(srcFs, srcPath);
+      } catch (FileNotFoundException e) {
+        return null;
+      }
+    }
+
+    /**
+     * Whether f is the parity file of the source file, as
+     * ParityFilePair.getParityFile() would find it. Falls back to it if
+     * there is a parity HAR for the source directory.
+     */
+    private boolean isParityFileOf(FileStatus f, Path srcPath,
+        FileStatus srcStat) throws IOException {
+      Path harPath = new Path(f.getPath().getParent(),
+        srcPath.getParent().getName() + RaidNode.HAR_SUFFIX);
+      if (ListingLookup.get(parityFs, harPath) != null) {
+        return false;
+      }
+      return ParityFilePair.verifyParity(srcStat, f, codec, conf);
+    }
+  }
+
+  /**
+   * Like existsBetterParityFile(), but looks the parity files up in
+   * listings of their directories. May miss a parity file created since
+   * the listing.
+   */
+  private static boolean existsBetterParityFileInListings(Codec codec,
+      Path srcPath, FileStatus srcStat, Configuration conf)
+      throws IOException {
+    for (Codec c : Codec.getCodecs()) {
+      if (c.priority > codec.priority) {
+        Path destPathPrefix = new Path(c.parityDirectory);
+        FileSystem fsDest = destPathPrefix.getFileSystem(conf);
+        Path parityPath =
+          RaidNode.getOriginalParityFile(destPathPrefix, srcPath);
+        Path harPath = new Path(parityPath.getParent(),
+          srcPath.getParent().getName() + RaidNode.HAR_SUFFIX);
+        if (ListingLookup.get(fsDest, harPath) != null) {
+          if (ParityFilePair.getParityFile(c, srcPath, conf) != null) {
+            return true;
+          }
+          continue;
+        }
+        FileStatus parityStat = ListingLookup.get(fsDest, parityPath);
+        if (parityStat != null &&
+            ParityFilePair.verifyParity(srcStat, parityStat, c, conf)) {
+          return true;
+        }
+      }
+    }
+    return false;
   }
 
   /**
@@ -341,6 +635,9 @@ public class PurgeMonitor implements Runnable {
     PlacementMonitor placementMonitor) throws IOException {
 
     HarIndex harIndex = HarIndex.getHarIndex(parityFs, harPath);
+    // The entries are sorted by name, so the files of a source directory
+    // are checked together and their block locations are fetched with one
+    // listing of the directory.
     Iterator<HarIndex.IndexEntry> entryIt = harIndex.getEntries();
     int numUseless = 0;
     int filesInHar = 0;
@@ -356,7 +653,9 @@ public class PurgeMonitor implements Runnable {
         continue;
       }
       try {
-        FileStatus srcStatus = srcFs.getFileStatus(new Path(src));
+        FileStatus srcStatus = placementMonitor != null ?
+          placementMonitor.getLocatedFileStatus(srcFs, new Path(src)) :
+          srcFs.getFileStatus(new Path(src));
         if (srcStatus == null) {
           numUseless++;
         } else if (entry.mtime != srcStatus.getModificationTime()) {
@@ -383,11 +682,27 @@ public class PurgeMonitor implements Runnable {
   }
 
   public String htmlTable() {
+    long elapsed = Math.max(1, RaidNode.now() - cycleStartTime);
+    long processed = entriesProcessed.get() - cycleStartProcessed;
+    long purged = entriesPurged.get() - cycleStartPurged;
     return JspUtils.tableSimple(
-            JspUtils.tr(
-              JspUtils.td("Entries Processed") +
+            htmlRow("Entries Processed", entriesProcessed.toString()) +
+            htmlRow("Entries Purged", entriesPurged.toString()) +
+            htmlRow("Entries Processed/sec",
+              Long.toString(processed * 1000 / elapsed)) +
+            htmlRow("Entries Purged/sec",
+              Long.toString(purged * 1000 / elapsed)) +
+            htmlRow("Directory Listings", ListingLookup.listings.toString()) +
+            htmlRow("Last Purge Cycle",
+              StringUtils.formatTime(lastCycleTime)) +
+            htmlRow("Resumed Scans", Long.toString(resumedScans)));
+  }
+
+  private static String htmlRow(String name, String value) {
+    return JspUtils.tr(
+              JspUtils.td(name) +
               JspUtils.td(":") +
-              JspUtils.td(entriesProcessed.toString())));
+              JspUtils.td(value));
   }
 }
 
@@ -28,10 +28,14 @@ import java.lang.reflect.InvocationTargetException;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -462,9 +466,22 @@ public abstract class RaidNode implements RaidProtocol {
       // or a file with the list of files to raid.
       DirectoryTraversal pendingTraversal = null;
       BufferedReader fileListReader = null;
+      // The persistent state of the traversals, may be null.
+      DirectoryScanState savedState = null;
+      // The directories left by a traversal that failed, resumed by the
+      // next traversal when there is no saved state.
+      List<Path> pendingDirectories = null;
+      List<Path> filesOnlyDirectories = null;
 
       PolicyState() {}
 
+      PolicyState(DirectoryScanState savedState) {
+        this.savedState = savedState;
+        if (savedState != null) {
+          startTime = savedState.getStartTime();
+        }
+      }
+
       boolean isFileListReadInProgress() {
         return fileListReader != null;
       }
@@ -476,14 +493,42 @@ public abstract class RaidNode implements RaidProtocol {
       }
 
       boolean isScanInProgress() {
-        return pendingTraversal != null;
+        return pendingTraversal != null || pendingDirectories != null ||
+          (savedState != null && savedState.hasPendingDirectories());
       }
       void resetTraversal() {
-        pendingTraversal = null;
+        if (pendingTraversal != null) {
+          pendingTraversal.stop();
+          pendingTraversal = null;
+        }
       }
       void setTraversal(DirectoryTraversal pendingTraversal) {
         this.pendingTraversal = pendingTraversal;
       }
+      /**
+       * Stops a traversal that failed and keeps the directories it has not
+       * finished, so that the next traversal resumes from them instead of
+       * starting over. A directory that could not be listed is already
+       * skipped by the traversal.
+       */
+      void suspendTraversal() {
+        if (pendingTraversal == null) {
+          return;
+        }
+        pendingTraversal.stop();
+        if (savedState != null) {
+          savedState.checkpointNow(pendingTraversal);
+        } else {
+          List<Path> filesOnly = new ArrayList<Path>();
+          List<Path> pending =
+            pendingTraversal.getPendingDirectories(filesOnly);
+          if (!pending.isEmpty() || !filesOnly.isEmpty()) {
+            pendingDirectories = pending;
+            filesOnlyDirectories = filesOnly;
+          }
+        }
+        pendingTraversal = null;
+      }
     }
 
     private Map<String, PolicyState> policyStateMap =
@@ -561,28 +606,54 @@ public abstract class RaidNode implements RaidProtocol {
       PolicyState scanState = policyStateMap.get(policyName);
 
       List<FileStatus> returnSet = new ArrayList<FileStatus>(selectLimit);
+      DirectoryScanState savedState = scanState.savedState;
       DirectoryTraversal traversal;
-      if (scanState.isScanInProgress()) {
+      if (scanState.pendingTraversal != null) {
         LOG.info("Resuming traversal for policy " + policyName);
         traversal = scanState.pendingTraversal;
+      } else if (savedState != null && savedState.hasPendingDirectories()) {
+        LOG.info("Resuming saved traversal for policy " + policyName);
+        traversal = DirectoryTraversal.raidFileRetriever(
+            info, savedState.getPendingDirectories(), allPolicies, conf,
+            directoryTraversalThreads, directoryTraversalShuffle,
+            true, savedState, savedState.getFilesOnlyDirectories());
+        scanState.setTraversal(traversal);
+      } else if (scanState.pendingDirectories != null) {
+        LOG.info("Resuming suspended traversal for policy " + policyName);
+        traversal = DirectoryTraversal.raidFileRetriever(
+            info, scanState.pendingDirectories, allPolicies, conf,
+            directoryTraversalThreads, directoryTraversalShuffle,
+            true, savedState, scanState.filesOnlyDirectories);
+        scanState.pendingDirectories = null;
+        scanState.filesOnlyDirectories = null;
+        scanState.setTraversal(traversal);
       } else {
         LOG.info("Start new traversal for policy " + policyName);
         scanState.startTime = now();
+        if (savedState != null) {
+          savedState.startTraversal(scanState.startTime);
+        }
         traversal = DirectoryTraversal.raidFileRetriever(
             info, info.getSrcPathExpanded(), allPolicies, conf,
             directoryTraversalThreads, directoryTraversalShuffle,
-            true);
+            true, savedState, Collections.<Path>emptyList());
         scanState.setTraversal(traversal);
       }
 
-      FileStatus f;
-      while ((f = traversal.next()) != DirectoryTraversal.FINISH_TOKEN) {
-        returnSet.add(f);
-        if (returnSet.size() == selectLimit) {
-          return returnSet;
-        }
+      boolean done;
+      try {
+        done = takeFiles(traversal, selectLimit, returnSet, savedState);
+      } catch (IOException e) {
+        scanState.suspendTraversal();
+        throw e;
+      }
+      if (!done) {
+        return returnSet;
       }
       scanState.resetTraversal();
+      if (savedState != null) {
+        savedState.finishTraversal();
+      }
       return returnSet;
     }
 
@@ -645,15 +716,34 @@ public abstract class RaidNode implements RaidProtocol {
         boolean reloaded = configMgr.reloadConfigsIfNecessary();
         if (reloaded) {
           allPolicies.clear();
+          Set<String> policyNames = new HashSet<String>();
           for (PolicyInfo info : configMgr.getAllPolicies()) {
               allPolicies.add(info);
+              policyNames.add(info.getName());
+          }
+          // Stop the traversals of the policies that are gone.
+          for (Iterator<Map.Entry<String, PolicyState>> it =
+                 policyStateMap.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, PolicyState> e = it.next();
+            if (!policyNames.contains(e.getKey())) {
+              e.getValue().resetTraversal();
+              e.getValue().resetFileListRead();
+              it.remove();
+            }
           }
         }
         LOG.info("TriggerMonitor.doProcess " + allPolicies.size());
 
         for (PolicyInfo info: allPolicies) {
           if (!policyStateMap.containsKey(info.getName())) {
-            policyStateMap.put(info.getName(), new PolicyState());
+            DirectoryScanState savedState = null;
+            try {
+              savedState = DirectoryScanState.load(conf, info.getName());
+            } catch (IOException e) {
+              LOG.warn("Could not load the scan state of policy " +
+                info.getName() + ", starting a new scan", e);
+            }
+            policyStateMap.put(info.getName(), new PolicyState(savedState));
           }
 
           List<FileStatus> filteredPaths = null;
@@ -695,6 +785,29 @@ public abstract class RaidNode implements RaidProtocol {
     }
   }
 
+  /**
+   * Takes up to limit files from a traversal. The scan state is
+   * checkpointed after every file, so that a long walk that finds few
+   * files can still be resumed after a restart. checkpoint() is rate
+   * limited by the checkpoint interval.
+   * @return true if the traversal is done.
+   */
+  static boolean takeFiles(DirectoryTraversal traversal, int limit,
+      List<FileStatus> returnSet, DirectoryScanState savedState)
+      throws IOException {
+    FileStatus f;
+    while ((f = traversal.next()) != DirectoryTraversal.FINISH_TOKEN) {
+      returnSet.add(f);
+      if (savedState != null) {
+        savedState.checkpoint(traversal);
+      }
+      if (returnSet.size() == limit) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   /**
    * raid a list of files, this will be overridden by subclasses of RaidNode
    */
@@ -790,7 +903,22 @@ public abstract class RaidNode implements RaidProtocol {
 
     // extract block locations from File system
     BlockLocation[] locations = srcFs.getFileBlockLocations(stat, 0, stat.getLen());
-    
+    return doRaid(conf, stat, locations, null, destPath, codec, statistics,
+                  reporter, doSimulate, targetRepl, metaRepl);
+  }
+
+  /**
+   * RAID an individual file whose block locations are already known.
+   * The encoder is reused if not null, so that a batch of files can share
+   * the encoder buffers and the directories it has created.
+   */
+  static boolean doRaid(Configuration conf, FileStatus stat,
+      BlockLocation[] locations, Encoder encoder, Path destPath, Codec codec,
+      Statistics statistics, Progressable reporter, boolean doSimulate,
+      int targetRepl, int metaRepl) throws IOException {
+    Path p = stat.getPath();
+    FileSystem srcFs = p.getFileSystem(conf);
+
     // if the file has fewer than 2 blocks, then nothing to do
     if (locations.length <= 2) {
       return false;
@@ -806,7 +934,7 @@ public abstract class RaidNode implements RaidProtocol {
 
     // generate parity file
     generateParityFile(conf, stat, targetRepl, reporter, srcFs, destPath, codec, locations,
-                       metaRepl);
+                       metaRepl, encoder);
     if (!doSimulate) {
       if (srcFs.setReplication(p, (short)targetRepl) == false) {
         LOG.info("Error in reducing replication of " + p + " to " + targetRepl);
@@ -845,7 +973,8 @@ public abstract class RaidNode implements RaidProtocol {
                                   Path destPathPrefix,
                                   Codec codec,
                                   BlockLocation[] locations,
-                                  int metaRepl) throws IOException {
+                                  int metaRepl,
+                                  Encoder encoder) throws IOException {
 
     Path inpath = stat.getPath();
     Path outpath =  getOriginalParityFile(destPathPrefix, inpath);
@@ -866,8 +995,18 @@ public abstract class RaidNode implements RaidProtocol {
       // ignore errors because the raid file might not exist yet.
     }
 
-    Encoder encoder = new Encoder(conf, codec);
-    encoder.encodeFile(inFs, inpath, outFs, outpath, (short)metaRepl, reporter);
+    if (encoder == null) {
+      Encoder ownEncoder = new Encoder(conf, codec);
+      try {
+        ownEncoder.encodeFile(inFs, stat, outFs, outpath, (short)metaRepl,
+          reporter);
+      } finally {
+        ownEncoder.close();
+      }
+    } else {
+      encoder.encodeFile(inFs, stat, outFs, outpath, (short)metaRepl,
+        reporter);
+    }
 
     // set the modification time of the RAID file. This is done so that the modTime of the
     // RAID file reflects that contents of the source file that it has RAIDed. This should
@@ -932,10 +1071,71 @@ public abstract class RaidNode implements RaidProtocol {
       } catch (IOException e2) {
       }
       throw e;
+    } finally {
+      decoder.close();
     }
     return recoveredBlock;
   }
 
+  /**
+   * Reconstructs a range of a corrupt block without reconstructing the
+   * rest of the block. Only the same range of the other blocks in the
+   * stripe is read.
+   * @param offset The offset of the range in the source file.
+   * @param len The length of the range. The range must not cross the end
+   *            of the block.
+   * @param out The stream to write the range to.
+   * @return false if there is no parity file for the codec.
+   */
+  public static boolean unRaidCorruptRange(Configuration conf, Path srcPath,
+    Codec codec, long offset, long len, java.io.OutputStream out)
+      throws IOException {
+    ParityFilePair ppair = ParityFilePair.getParityFile(codec, srcPath, conf);
+    if (ppair == null) {
+      LOG.warn("Could not find " + codec.id + " parity file for " + srcPath);
+      return false;
+    }
+    FileSystem srcFs = srcPath.getFileSystem(conf);
+    FileStatus stat = srcFs.getFileStatus(srcPath);
+    Decoder decoder = new Decoder(conf, codec);
+    try {
+      unRaidCorruptRange(srcFs, srcPath, stat, ppair, decoder, offset, len,
+        out);
+    } finally {
+      decoder.close();
+    }
+    return true;
+  }
+
+  /**
+   * Reconstructs a range of a corrupt block with a decoder and a parity
+   * file that the caller looked up already, so that readers of several
+   * ranges of the same file do not repeat the lookups.
+   * @param stat The status of the source file.
+   * @param ppair The parity file of the source file.
+   * @param decoder A decoder for the codec of the parity file.
+   * @param offset The offset of the range in the source file.
+   * @param len The length of the range. The range must not cross the end
+   *            of the block.
+   * @param out The stream to write the range to.
+   */
+  public static void unRaidCorruptRange(FileSystem srcFs, Path srcPath,
+    FileStatus stat, ParityFilePair ppair, Decoder decoder, long offset,
+    long len, java.io.OutputStream out) throws IOException {
+    long blockSize = stat.getBlockSize();
+    long offsetInBlock = offset % blockSize;
+    if (offsetInBlock + len > blockSize) {
+      throw new IOException("Range " + offset + ":" + len + " of " + srcPath +
+        " crosses a block boundary");
+    }
+    len = Math.min(len, stat.getLen() - offset);
+    LOG.info("Reconstructing range " + offset + ":" + len + " of " + srcPath);
+    decoder.fixErasedBlock(srcFs, srcPath,
+        ppair.getFileSystem(), ppair.getPath(),
+        blockSize, offset - offsetInBlock, offsetInBlock, len, out,
+        RaidUtils.NULL_PROGRESSABLE);
+  }
+
   
   private void doHar() throws IOException, InterruptedException {
     long prevExec = 0;
@@ -19,6 +19,7 @@ package org.apache.hadoop.raid;
 
 import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentHashMap;
@@ -33,6 +34,7 @@ import org.apache.hadoop.metrics.util.MetricsBase;
 import org.apache.hadoop.metrics.util.MetricsLongValue;
 import org.apache.hadoop.metrics.util.MetricsRegistry;
 import org.apache.hadoop.metrics.util.MetricsTimeVaryingLong;
+import org.apache.hadoop.mapreduce.Counter;
 
 public class RaidNodeMetrics implements Updater {
   public static final Log LOG = LogFactory.getLog(
@@ -81,6 +83,42 @@ public class RaidNodeMetrics implements Updater {
   public static final String decomFilesLowPriMetric = "decom_files_low_pri";
   // Number of files being copied off decommissioning hosts  with lowest priority
   public static final String decomFilesLowestPriMetric = "decom_files_lowest_pri";
+  // Milliseconds spent reading the source data while encoding
+  public static final String encodeReadBusyMetric = "encode_read_busy_msec";
+  // Milliseconds spent computing the parity while encoding
+  public static final String encodeComputeBusyMetric = "encode_compute_busy_msec";
+  // Milliseconds spent writing the parity while encoding
+  public static final String encodeWriteBusyMetric = "encode_write_busy_msec";
+  // Number of slices read ahead of the encoding
+  public static final String encodeReadQueueDepthMetric = "encode_read_queue_depth";
+  // Number of parity slices waiting to be written
+  public static final String encodeWriteQueueDepthMetric = "encode_write_queue_depth";
+  // Number of buffers served from the buffer pool
+  public static final String bufferPoolHitsMetric = "bufferpool_hits";
+  // Number of buffers allocated because the buffer pool had none
+  public static final String bufferPoolMissesMetric = "bufferpool_misses";
+  // Bytes borrowed from the buffer pool and not yet returned
+  public static final String bufferPoolOutstandingMetric = "bufferpool_outstanding_bytes";
+  // Number of directories listed by directory traversals
+  public static final String traversalDirectoriesMetric = "traversal_directories";
+  // Number of files and directories listed by directory traversals
+  public static final String traversalEntriesMetric = "traversal_entries";
+  // Number of directories waiting to be listed by directory traversals
+  public static final String traversalQueueDepthMetric = "traversal_queue_depth";
+  // Milliseconds to encode a file
+  public static final String encodeFileLatencyMetric = "encode_file_msec";
+  // Milliseconds to read a slice of a stripe from one stream
+  public static final String stripeReadLatencyMetric = "stripe_read_msec";
+  // Milliseconds spent decoding a lost block
+  public static final String decodeLatencyMetric = "decode_msec";
+  // Milliseconds to send a reconstructed block to a datanode
+  public static final String blockSendLatencyMetric = "block_send_msec";
+  // Milliseconds of the NameNode calls made to find lost blocks
+  public static final String namenodeRpcLatencyMetric = "namenode_rpc_msec";
+  // The job counter group the map tasks report their latencies in
+  public static final String LATENCY_COUNTER_GROUP = "RaidNodeLatencies";
+  // The percentiles published for each latency histogram
+  static final int[] LATENCY_PERCENTILES = {50, 95, 99};
   // Monitor number of misplaced blocks in a stripe
   public static final int MAX_MONITORED_MISPLACED_BLOCKS = 5;
   
@@ -141,11 +179,80 @@ public class RaidNodeMetrics implements Updater {
     new MetricsLongValue(decomFilesLowPriMetric, registry);
   MetricsLongValue decomFilesLowestPri =
     new MetricsLongValue(decomFilesLowestPriMetric, registry);  
+  MetricsTimeVaryingLong encodeReadBusyTime =
+    new MetricsTimeVaryingLong(encodeReadBusyMetric, registry);
+  MetricsTimeVaryingLong encodeComputeBusyTime =
+    new MetricsTimeVaryingLong(encodeComputeBusyMetric, registry);
+  MetricsTimeVaryingLong encodeWriteBusyTime =
+    new MetricsTimeVaryingLong(encodeWriteBusyMetric, registry);
+  MetricsLongValue encodeReadQueueDepth =
+    new MetricsLongValue(encodeReadQueueDepthMetric, registry);
+  MetricsLongValue encodeWriteQueueDepth =
+    new MetricsLongValue(encodeWriteQueueDepthMetric, registry);
+  MetricsTimeVaryingLong bufferPoolHits =
+    new MetricsTimeVaryingLong(bufferPoolHitsMetric, registry);
+  MetricsTimeVaryingLong bufferPoolMisses =
+    new MetricsTimeVaryingLong(bufferPoolMissesMetric, registry);
+  MetricsLongValue bufferPoolOutstandingBytes =
+    new MetricsLongValue(bufferPoolOutstandingMetric, registry);
+  MetricsTimeVaryingLong traversalDirectories =
+    new MetricsTimeVaryingLong(traversalDirectoriesMetric, registry);
+  MetricsTimeVaryingLong traversalEntries =
+    new MetricsTimeVaryingLong(traversalEntriesMetric, registry);
+  MetricsLongValue traversalQueueDepth =
+    new MetricsLongValue(traversalQueueDepthMetric, registry);
+  LatencyHistogram encodeFileLatency = new LatencyHistogram();
+  LatencyHistogram stripeReadLatency = new LatencyHistogram();
+  LatencyHistogram decodeLatency = new LatencyHistogram();
+  LatencyHistogram blockSendLatency = new LatencyHistogram();
+  LatencyHistogram namenodeRpcLatency = new LatencyHistogram();
+  // The latency histograms by metric name.
+  Map<String, LatencyHistogram> latencies;
+  private Map<String, LatencyMetrics> latencyMetrics;
+  private long lastLatencyReset = RaidNode.now();
+  private RaidNodeActivityMBean activityMBean;
+
+  /**
+   * The metrics publishing the count, mean, maximum and percentiles of a
+   * latency histogram.
+   */
+  private static class LatencyMetrics {
+    final LatencyHistogram histogram;
+    final MetricsLongValue count;
+    final MetricsLongValue mean;
+    final MetricsLongValue max;
+    final MetricsLongValue[] percentiles;
+
+    LatencyMetrics(String name, LatencyHistogram histogram,
+        MetricsRegistry registry) {
+      this.histogram = histogram;
+      count = new MetricsLongValue(name + "_count", registry);
+      mean = new MetricsLongValue(name + "_mean", registry);
+      max = new MetricsLongValue(name + "_max", registry);
+      percentiles = new MetricsLongValue[LATENCY_PERCENTILES.length];
+      for (int i = 0; i < percentiles.length; i++) {
+        percentiles[i] = new MetricsLongValue(
+          name + "_p" + LATENCY_PERCENTILES[i], registry);
+      }
+    }
+
+    void update() {
+      synchronized (histogram) {
+        count.set(histogram.getCount());
+        mean.set(histogram.getMean());
+        max.set(histogram.getMax());
+        for (int i = 0; i < percentiles.length; i++) {
+          percentiles[i].set(
+            histogram.getPercentile(LATENCY_PERCENTILES[i]));
+        }
+      }
+    }
+  }
 
   public static RaidNodeMetrics getInstance(int namespaceId) {
     RaidNodeMetrics metric = instances.get(namespaceId);
     if (metric == null) {
-      metric = new RaidNodeMetrics();
+      metric = new RaidNodeMetrics(namespaceId);
       RaidNodeMetrics old = instances.putIfAbsent(namespaceId, metric);
       if (old != null) {
         metric = old;
@@ -154,7 +261,7 @@ public class RaidNodeMetrics implements Updater {
     return metric;
   }
 
-  private RaidNodeMetrics() {
+  private RaidNodeMetrics(int namespaceId) {
     // Create a record for raid metrics
     context = MetricsUtil.getContext("raidnode");
     metricsRecord = MetricsUtil.createRecord(context, "raidnode");
@@ -162,6 +269,60 @@ public class RaidNodeMetrics implements Updater {
     initPlacementMetrics();
     initSourceMetrics();
     initParityMetrics();
+    initLatencyMetrics();
+    // Created last, the MBean publishes the metrics registered so far.
+    activityMBean = new RaidNodeActivityMBean(registry,
+      namespaceId == DEFAULT_NAMESPACE_ID ?
+        "RaidNodeActivity" : "RaidNodeActivity-" + namespaceId);
+  }
+
+  private void initLatencyMetrics() {
+    latencies = new LinkedHashMap<String, LatencyHistogram>();
+    latencies.put(encodeFileLatencyMetric, encodeFileLatency);
+    latencies.put(stripeReadLatencyMetric, stripeReadLatency);
+    latencies.put(decodeLatencyMetric, decodeLatency);
+    latencies.put(blockSendLatencyMetric, blockSendLatency);
+    latencies.put(namenodeRpcLatencyMetric, namenodeRpcLatency);
+    latencyMetrics = new LinkedHashMap<String, LatencyMetrics>();
+    for (Map.Entry<String, LatencyHistogram> e : latencies.entrySet()) {
+      latencyMetrics.put(e.getKey(),
+        new LatencyMetrics(e.getKey(), e.getValue(), registry));
+    }
+  }
+
+  /**
+   * Empties the latency histograms into job counters, so that the
+   * latencies recorded by the map tasks add up in the counters of their
+   * job. Called by the tasks when they finish.
+   * @return The counters to add to LATENCY_COUNTER_GROUP.
+   */
+  Map<String, Long> drainLatencyCounters() {
+    Map<String, Long> counters = new LinkedHashMap<String, Long>();
+    for (Map.Entry<String, LatencyHistogram> e : latencies.entrySet()) {
+      for (Map.Entry<String, Long> c :
+           e.getValue().drainCounters().entrySet()) {
+        counters.put(e.getKey() + "." + c.getKey(), c.getValue());
+      }
+    }
+    return counters;
+  }
+
+  /**
+   * Adds the latencies the tasks of a finished job reported in
+   * LATENCY_COUNTER_GROUP.
+   */
+  void addLatencyCounters(Iterable<? extends Counter> counters) {
+    for (Counter counter : counters) {
+      String name = counter.getName();
+      int dot = name.lastIndexOf('.');
+      if (dot < 0) {
+        continue;
+      }
+      LatencyHistogram histogram = latencies.get(name.substring(0, dot));
+      if (histogram != null) {
+        histogram.addCounter(name.substring(dot + 1), counter.getValue());
+      }
+    }
   }
 
   private void initPlacementMetrics() {
@@ -249,6 +410,17 @@ public class RaidNodeMetrics implements Updater {
   @Override
   public void doUpdates(MetricsContext context) {
     synchronized (this) {
+      for (LatencyMetrics m : latencyMetrics.values()) {
+        m.update();
+      }
+      long now = RaidNode.now();
+      if (now - lastLatencyReset > metricsResetInterval) {
+        // The percentiles of the last interval, not of the whole uptime.
+        for (LatencyHistogram histogram : latencies.values()) {
+          histogram.reset();
+        }
+        lastLatencyReset = now;
+      }
       for (MetricsBase m : registry.getMetricsList()) {
         m.pushMetric(metricsRecord);
       }
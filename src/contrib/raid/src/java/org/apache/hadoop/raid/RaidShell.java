@@ -20,7 +20,11 @@ package org.apache.hadoop.raid;
 
 import java.io.IOException;
 import java.io.FileNotFoundException;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -33,6 +37,7 @@ import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
 import javax.security.auth.login.LoginException;
@@ -55,6 +60,7 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FileUtil;
 import org.apache.hadoop.fs.BlockLocation;
 import org.apache.hadoop.fs.HarFileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
 import org.apache.hadoop.fs.RemoteIterator;
 
 import org.apache.hadoop.hdfs.DistributedFileSystem;
@@ -81,6 +87,14 @@ public class RaidShell extends Configured implements Tool {
   volatile boolean clientRunning = true;
   private Configuration conf;
   AtomicInteger corruptCounter = new AtomicInteger();
+  // The erasure codes by codec id, to tell which stripes fsck can decode.
+  private final Map<String, ErasureCode> erasureCodes =
+    new HashMap<String, ErasureCode>();
+
+  // The number of parity HAR indexes and part file locations a fsck scan
+  // keeps.
+  final static String FSCK_HAR_CACHE_SIZE_KEY = "raid.fsck.har.cache.size";
+  final static int DEFAULT_FSCK_HAR_CACHE_SIZE = 64;
 
   /**
    * Start RaidShell.
@@ -194,7 +208,8 @@ public class RaidShell extends Configured implements Tool {
       System.err.println(
         "Usage: java RaidShell -raidFile <path-to-file> <path-to-raidDir> <XOR|RS>");
     } else if ("-fsck".equals(cmd)) {
-      System.err.println("Usage: java RaidShell [-fsck [path [-threads numthreads]]]");
+      System.err.println("Usage: java RaidShell [-fsck [path [-threads numthreads]" +
+                         " [-scan] [-report file]]]");
     } else if ("-usefulHar".equals(cmd)) {
       System.err.println("Usage: java RaidShell [-usefulHar <XOR|RS> [path-to-raid-har]]");
     } else if ("-checkFile".equals(cmd)) {
@@ -212,7 +227,7 @@ public class RaidShell extends Configured implements Tool {
       System.err.println("           [-recover srcPath1 corruptOffset]");
       System.err.println("           [-recoverBlocks path1 path2...]");
       System.err.println("           [-raidFile <path-to-file> <path-to-raidDir> <XOR|RS>");
-      System.err.println("           [-fsck [path [-threads numthreads]]]");
+      System.err.println("           [-fsck [path [-threads numthreads] [-scan] [-report file]]]");
       System.err.println("           [-usefulHar <XOR|RS> [path-to-raid-har]]");
       System.err.println("           [-checkFile path]");
       System.err.println("           -purgeParity path <XOR|RS>");
@@ -249,7 +264,7 @@ public class RaidShell extends Configured implements Tool {
         return exitCode;
       }
     } else if ("-fsck".equals(cmd)) {
-      if ((argv.length < 1) || (argv.length > 4)) {
+      if ((argv.length < 1) || (argv.length > 7)) {
         printUsage(cmd);
         return exitCode;
       }
@@ -416,40 +431,68 @@ public class RaidShell extends Configured implements Tool {
   protected boolean isFileCorrupt(final DistributedFileSystem dfs, 
                                 final Path filePath) 
     throws IOException {
+    return isFileCorrupt(dfs, filePath, null, null);
+  }
+
+  /**
+   * checks whether a file has more than the allowable number of
+   * corrupt blocks. A fsck scan passes the block locations shared by
+   * its threads, damaged collects the stripes missing blocks if not null.
+   */
+  boolean isFileCorrupt(final DistributedFileSystem dfs,
+                        final Path filePath,
+                        final FsckLocations locations,
+                        final Collection<StripeReport> damaged)
+    throws IOException {
     try {
-      // corruptBlocksPerStripe: 
-      // map stripe # -> # of corrupt blocks in that stripe (data + parity)
-      HashMap<Integer, Integer> corruptBlocksPerStripe =
-        new LinkedHashMap<Integer, Integer>();
+      // corruptBlocksPerStripe:
+      // map stripe # -> locations of the corrupt blocks in that stripe,
+      // numbered as by the Decoder: parity blocks first, then data blocks
+      HashMap<Integer, List<Integer>> corruptBlocksPerStripe =
+        new LinkedHashMap<Integer, List<Integer>>();
 
-      RaidInfo raidInfo = getFileRaidInfo(filePath);
+      // figure out which blocks are missing/corrupted
+      final FileStatus fileStatus;
+      final BlockLocation[] fileBlocks;
+      if (locations == null) {
+        fileStatus = dfs.getFileStatus(filePath);
+        fileBlocks =
+          dfs.getFileBlockLocations(fileStatus, 0, fileStatus.getLen());
+      } else {
+        LocatedFileStatus located = lookupLocated(dfs, filePath);
+        if (located == null) {
+          // deleted since its directory was listed
+          return false;
+        }
+        fileStatus = located;
+        fileBlocks = located.getBlockLocations();
+      }
+      if (damaged == null && !hasMissingBlocks(fileBlocks)) {
+        // the parity blocks do not matter if all the data blocks are there
+        return false;
+      }
 
-      // read conf
-      final int stripeBlocks = raidInfo.codec.stripeLength;
+      RaidInfo raidInfo = locations == null ?
+        getFileRaidInfo(filePath) : locations.getRaidInfo(dfs, fileStatus);
 
-      // figure out which blocks are missing/corrupted
-      final FileStatus fileStatus = dfs.getFileStatus(filePath);
       final long blockSize = fileStatus.getBlockSize();
       final long fileLength = fileStatus.getLen();
       final long fileLengthInBlocks = (fileLength / blockSize) +
         (((fileLength % blockSize) == 0) ? 0L : 1L);
+      // a file without parity is one stripe that cannot lose any block
+      final long stripeBlocks = raidInfo.codec == null ?
+        Math.max(1L, fileLengthInBlocks) : raidInfo.codec.stripeLength;
       final long fileStripes = (fileLengthInBlocks / stripeBlocks) +
         (((fileLengthInBlocks % stripeBlocks) == 0) ? 0L : 1L);
-      final BlockLocation[] fileBlocks = 
-        dfs.getFileBlockLocations(fileStatus, 0, fileLength);
-      
+
       // figure out which stripes these corrupted blocks belong to
       for (BlockLocation fileBlock: fileBlocks) {
         int blockNo = (int) (fileBlock.getOffset() / blockSize);
         final int stripe = (int) (blockNo / stripeBlocks);
         if (fileBlock.isCorrupt() || 
             (fileBlock.getNames().length == 0 && fileBlock.getLength() > 0)) {
-          if (corruptBlocksPerStripe.get(stripe) == null) {
-            corruptBlocksPerStripe.put(stripe, 1);
-          } else {
-            corruptBlocksPerStripe.put(stripe, corruptBlocksPerStripe.
-                                       get(stripe) + 1);
-          }
+          addCorruptLocation(corruptBlocksPerStripe, stripe,
+            raidInfo.parityBlocksPerStripe + (int) (blockNo % stripeBlocks));
           LOG.debug("file " + filePath.toString() + " corrupt in block " + 
                    blockNo + "/" + fileLengthInBlocks + ", stripe " + stripe +
                    "/" + fileStripes);
@@ -467,13 +510,24 @@ public class RaidShell extends Configured implements Tool {
       }
 
       final int maxCorruptBlocksPerStripe = raidInfo.parityBlocksPerStripe;
-
-      for (int corruptBlocksInStripe: corruptBlocksPerStripe.values()) {
-        if (corruptBlocksInStripe > maxCorruptBlocksPerStripe) {
-          return true;
+      // not every pattern of parity length losses can be decoded by codes
+      // that are not MDS
+      final ErasureCode code = raidInfo.codec == null ?
+        null : getErasureCode(raidInfo.codec);
+
+      boolean corrupt = false;
+      for (Map.Entry<Integer, List<Integer>> e:
+             corruptBlocksPerStripe.entrySet()) {
+        if (code == null || !code.canDecode(e.getValue())) {
+          corrupt = true;
+        }
+        if (damaged != null) {
+          damaged.add(new StripeReport(filePath, raidInfo.codec, e.getKey(),
+                                       e.getValue().size(),
+                                       maxCorruptBlocksPerStripe));
         }
       }
-      return false;
+      return corrupt;
     } catch (SocketException e) {
       // Re-throw network-related exceptions.
       throw e;
@@ -484,6 +538,45 @@ public class RaidShell extends Configured implements Tool {
     }
   }
 
+  private static void addCorruptLocation(
+    final HashMap<Integer, List<Integer>> corruptBlocksPerStripe,
+    final int stripe, final int location) {
+    List<Integer> locations = corruptBlocksPerStripe.get(stripe);
+    if (locations == null) {
+      locations = new ArrayList<Integer>();
+      corruptBlocksPerStripe.put(stripe, locations);
+    }
+    locations.add(location);
+  }
+
+  /**
+   * returns the erasure code of a codec, created once per codec
+   */
+  private ErasureCode getErasureCode(final Codec codec) {
+    synchronized (erasureCodes) {
+      ErasureCode code = erasureCodes.get(codec.id);
+      if (code == null) {
+        code = codec.createErasureCode(conf);
+        erasureCodes.put(codec.id, code);
+      }
+      return code;
+    }
+  }
+
+  /**
+   * returns true if a block has no valid replica
+   */
+  private static boolean hasMissingBlocks(BlockLocation[] blocks)
+    throws IOException {
+    for (BlockLocation block: blocks) {
+      if (block.isCorrupt() ||
+          (block.getNames().length == 0 && block.getLength() > 0)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   /**
    * holds raid type and parity file pair
    */
@@ -494,10 +587,183 @@ public class RaidShell extends Configured implements Tool {
       this.codec = codec;
       this.parityPair = parityPair;
       this.parityBlocksPerStripe = parityBlocksPerStripe;
+      this.parityStatus = null;
+      this.parityBlocks = null;
+    }
+    /**
+     * parity file found in the directory listings of a fsck scan
+     */
+    public RaidInfo(final Codec codec,
+                    final FileStatus parityStatus,
+                    final BlockLocation[] parityBlocks,
+                    final int parityBlocksPerStripe) {
+      this.codec = codec;
+      this.parityPair = null;
+      this.parityBlocksPerStripe = parityBlocksPerStripe;
+      this.parityStatus = parityStatus;
+      this.parityBlocks = parityBlocks;
     }
     public final Codec codec;
     public final ParityFilePair parityPair;
     public final int parityBlocksPerStripe;
+    public final FileStatus parityStatus;
+    public final BlockLocation[] parityBlocks;
+  }
+
+  /**
+   * returns the status of a file from the listing of its directory,
+   * or null if the file or its directory does not exist
+   */
+  private static LocatedFileStatus lookupLocated(FileSystem fs, Path p)
+    throws IOException {
+    try {
+      return PlacementMonitor.getLocatedFileStatus(fs, p);
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+  }
+
+  /**
+   * The parity files and block locations looked up by a fsck scan.
+   * The source and parity files are found in the listing of their
+   * directory, which the processor threads of the traversal cache, and
+   * the index and part file blocks of a parity HAR are shared by all
+   * the source files it holds the parity of.
+   */
+  class FsckLocations {
+    private final Map<Path, HarIndex> harIndexes;
+    private final Map<Path, BlockLocation[]> partFileBlocks;
+
+    FsckLocations() {
+      int cacheSize = conf.getInt(FSCK_HAR_CACHE_SIZE_KEY,
+                                  DEFAULT_FSCK_HAR_CACHE_SIZE);
+      this.harIndexes = PlacementMonitor.lruMap(cacheSize);
+      this.partFileBlocks = PlacementMonitor.lruMap(cacheSize);
+    }
+
+    /**
+     * returns the raid info of a file, looking for the parity files the
+     * same way as ParityFilePair.getParityFile
+     */
+    RaidInfo getRaidInfo(FileSystem fs, FileStatus srcStatus)
+      throws IOException {
+      Path srcPath = srcStatus.getPath();
+      for (Codec codec : Codec.getCodecs()) {
+        Path parityPath = RaidNode.getOriginalParityFile(
+          new Path(codec.parityDirectory), srcPath);
+        Path harPath = new Path(parityPath.getParent(),
+          srcPath.getParent().getName() + RaidNode.HAR_SUFFIX);
+        // check the HAR first, it is created after the parity file
+        if (lookupLocated(fs, harPath) != null) {
+          HarIndex harIndex = getHarIndex(fs, harPath);
+          HarIndex.IndexEntry entry =
+            harIndex.findEntryByFileName(parityPath.toUri().getPath());
+          if (entry != null) {
+            FileStatus parityStatus = new FileStatus(entry.length, false,
+              0, 0, entry.mtime, new Path("har://",
+                harPath.toUri().getPath() + "/" + parityPath.toUri().getPath()));
+            if (ParityFilePair.verifyParity(srcStatus, parityStatus, codec,
+                                            conf)) {
+              return new RaidInfo(codec, parityStatus,
+                getHarParityBlocks(fs, harIndex, entry), codec.parityLength);
+            }
+          }
+        }
+        LocatedFileStatus parityStatus = lookupLocated(fs, parityPath);
+        if (parityStatus != null &&
+            ParityFilePair.verifyParity(srcStatus, parityStatus, codec, conf)) {
+          return new RaidInfo(codec, parityStatus,
+            parityStatus.getBlockLocations(), codec.parityLength);
+        }
+      }
+      return new RaidInfo(null, (ParityFilePair) null, 0);
+    }
+
+    private HarIndex getHarIndex(FileSystem fs, Path harPath)
+      throws IOException {
+      HarIndex harIndex = harIndexes.get(harPath);
+      if (harIndex == null) {
+        harIndex = HarIndex.getHarIndex(fs, harPath);
+        harIndexes.put(harPath, harIndex);
+      }
+      return harIndex;
+    }
+
+    /**
+     * returns the part file blocks holding a parity file, with offsets
+     * relative to the parity file like HarFileSystem returns them
+     */
+    private BlockLocation[] getHarParityBlocks(FileSystem fs,
+                                               HarIndex harIndex,
+                                               HarIndex.IndexEntry entry)
+      throws IOException {
+      Path partFile = harIndex.partFilePath(entry);
+      BlockLocation[] partBlocks = partFileBlocks.get(partFile);
+      if (partBlocks == null) {
+        LocatedFileStatus partStatus = lookupLocated(fs, partFile);
+        if (partStatus == null) {
+          throw new FileNotFoundException(partFile.toString());
+        }
+        partBlocks = partStatus.getBlockLocations();
+        partFileBlocks.put(partFile, partBlocks);
+      }
+      long end = entry.startOffset + entry.length;
+      List<BlockLocation> parityBlocks = new ArrayList<BlockLocation>();
+      for (BlockLocation partBlock: partBlocks) {
+        long blockEnd = partBlock.getOffset() + partBlock.getLength();
+        if (blockEnd <= entry.startOffset || partBlock.getOffset() >= end) {
+          continue;
+        }
+        long start = Math.max(partBlock.getOffset(), entry.startOffset);
+        parityBlocks.add(new BlockLocation(partBlock.getNames(),
+          partBlock.getHosts(), partBlock.getTopologyPaths(),
+          start - entry.startOffset, Math.min(blockEnd, end) - start,
+          partBlock.isCorrupt()));
+      }
+      return parityBlocks.toArray(new BlockLocation[parityBlocks.size()]);
+    }
+  }
+
+  /**
+   * A stripe with missing blocks found by fsck. The stripes with the
+   * most missing blocks come first.
+   */
+  static class StripeReport implements Comparable<StripeReport> {
+    static final String HEADER = "#missing\ttolerated\tcodec\tstripe\tfile";
+
+    final String file;
+    final String codec;
+    final int stripe;
+    final int missingBlocks;
+    final int toleratedBlocks;
+
+    StripeReport(Path file, Codec codec, int stripe, int missingBlocks,
+                 int toleratedBlocks) {
+      this.file = file.toUri().getPath();
+      this.codec = codec == null ? "none" : codec.id;
+      this.stripe = stripe;
+      this.missingBlocks = missingBlocks;
+      this.toleratedBlocks = toleratedBlocks;
+    }
+
+    public int compareTo(StripeReport other) {
+      if (missingBlocks != other.missingBlocks) {
+        return missingBlocks > other.missingBlocks ? -1 : 1;
+      }
+      if (toleratedBlocks != other.toleratedBlocks) {
+        return toleratedBlocks < other.toleratedBlocks ? -1 : 1;
+      }
+      int cmp = file.compareTo(other.file);
+      if (cmp != 0) {
+        return cmp;
+      }
+      return stripe < other.stripe ? -1 : (stripe == other.stripe ? 0 : 1);
+    }
+
+    public String toString() {
+      return missingBlocks + "\t" + toleratedBlocks + "\t" + codec + "\t" +
+        stripe + "\t" + file;
+    }
   }
 
   /**
@@ -529,6 +795,20 @@ public class RaidShell extends Configured implements Tool {
     throws IOException {
 
 
+    if (raidInfo.parityBlocks != null) {
+      // found in the directory listings of a fsck scan
+      FileStatus parityFileStatus = raidInfo.parityStatus;
+      checkParityLength(parityFileStatus.getLen(), blockSize, fileStripes,
+                        raidInfo);
+      if (!"har".equals(parityFileStatus.getPath().toUri().getScheme()) &&
+          parityFileStatus.getBlockSize() != blockSize) {
+        throw new IOException("file block size is " + blockSize + 
+                              " but parity file block size is " + 
+                              parityFileStatus.getBlockSize());
+      }
+      return raidInfo.parityBlocks;
+    }
+
     final String parityPathStr = raidInfo.parityPair.getPath().toUri().
       getPath();
     FileSystem parityFS = raidInfo.parityPair.getFileSystem();
@@ -537,15 +817,7 @@ public class RaidShell extends Configured implements Tool {
     FileStatus parityFileStatus = parityFS.
       getFileStatus(new Path(parityPathStr));
     long parityFileLength = parityFileStatus.getLen();
-
-    if (parityFileLength != fileStripes * raidInfo.parityBlocksPerStripe *
-        blockSize) {
-      throw new IOException("expected parity file of length" + 
-                            (fileStripes * raidInfo.parityBlocksPerStripe *
-                             blockSize) +
-                            " but got parity file of length " + 
-                            parityFileLength);
-    }
+    checkParityLength(parityFileLength, blockSize, fileStripes, raidInfo);
 
     BlockLocation[] parityBlocks = 
       parityFS.getFileBlockLocations(parityFileStatus, 0L, parityFileLength);
@@ -567,12 +839,27 @@ public class RaidShell extends Configured implements Tool {
     return parityBlocks;
   }
 
+  private static void checkParityLength(final long parityFileLength,
+                                        final long blockSize,
+                                        final long fileStripes,
+                                        final RaidInfo raidInfo)
+    throws IOException {
+    if (parityFileLength != fileStripes * raidInfo.parityBlocksPerStripe *
+        blockSize) {
+      throw new IOException("expected parity file of length" + 
+                            (fileStripes * raidInfo.parityBlocksPerStripe *
+                             blockSize) +
+                            " but got parity file of length " + 
+                            parityFileLength);
+    }
+  }
+
   /**
    * checks the parity blocks for a given file and modifies
    * corruptBlocksPerStripe accordingly
    */
   private void checkParityBlocks(final Path filePath,
-                                 final HashMap<Integer, Integer>
+                                 final HashMap<Integer, List<Integer>>
                                  corruptBlocksPerStripe,
                                  final long blockSize,
                                  final long fileStripes,
@@ -624,13 +911,8 @@ public class RaidShell extends Configured implements Tool {
                    " corrupt in block " + block +
                    ", stripe " + stripe + "/" + fileStripes);
           
-          if (corruptBlocksPerStripe.get(stripe) == null) {
-            corruptBlocksPerStripe.put(stripe, 1);
-          } else {
-            corruptBlocksPerStripe.put(stripe, 
-                                       corruptBlocksPerStripe.get(stripe) +
-                                       1);
-          }
+          addCorruptLocation(corruptBlocksPerStripe, stripe,
+            (int) ((offset % parityStripeLength) / blockSize));
         } else {
           LOG.debug("parity file for " + filePath.toString() + 
                    " OK in block " + block +
@@ -649,20 +931,33 @@ public class RaidShell extends Configured implements Tool {
 
   /**
    * checks the raided file system, prints a list of corrupt files to
-   * System.out and returns the number of corrupt files
+   * System.out and returns the number of corrupt files.
+   * With -scan all the files under the path are checked as a parallel
+   * traversal finds them, instead of the files the NameNode reports
+   * corrupt. With -report the stripes missing blocks are written to a
+   * local file, the stripes missing the most blocks first.
    */
   public void fsck(String cmd, String[] args, int startIndex) throws IOException {
     final int numFsckArgs = args.length - startIndex;
     int numThreads = 16;
     String path = "/";
+    boolean scan = false;
+    String reportFile = null;
     boolean argsOk = false;
     if (numFsckArgs >= 1) {
       argsOk = true;
       path = args[startIndex];
     }
-    if (numFsckArgs == 3 && args[startIndex + 1].equals("-threads")) {
-      argsOk = true;
-      numThreads = Integer.parseInt(args[startIndex + 2]);
+    for (int i = startIndex + 1; argsOk && i < args.length; i++) {
+      if (args[i].equals("-threads") && i + 1 < args.length) {
+        numThreads = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-scan")) {
+        scan = true;
+      } else if (args[i].equals("-report") && i + 1 < args.length) {
+        reportFile = args[++i];
+      } else {
+        argsOk = false;
+      }
     }
     if (!argsOk) {
       printUsage(cmd);
@@ -685,6 +980,25 @@ public class RaidShell extends Configured implements Tool {
     }
     final DistributedFileSystem dfs = (DistributedFileSystem) fs;
 
+    List<StripeReport> damaged = reportFile == null ? null :
+      Collections.synchronizedList(new ArrayList<StripeReport>());
+    if (scan) {
+      fsckScan(dfs, path, numThreads, damaged);
+    } else {
+      fsckCorruptFiles(dfs, path, numThreads, damaged);
+    }
+    if (reportFile != null) {
+      writeStripeReport(reportFile, damaged);
+    }
+  }
+
+  /**
+   * checks the files the NameNode reports corrupt
+   */
+  private void fsckCorruptFiles(final DistributedFileSystem dfs,
+                                String path, int numThreads,
+                                final Collection<StripeReport> damaged)
+    throws IOException {
     // get a list of corrupted files (not considering parity blocks just yet)
     // from the name node
     // these are the only files we need to consider:
@@ -721,7 +1035,8 @@ public class RaidShell extends Configured implements Tool {
       Runnable work = new Runnable() {
         public void run() {
           try {
-            if (isFileCorrupt(dfs, new Path(corruptFileCandidate))) {
+            if (isFileCorrupt(dfs, new Path(corruptFileCandidate), null,
+                              damaged)) {
               incrCorruptCount();
               System.out.println(corruptFileCandidate);
             }
@@ -745,6 +1060,68 @@ public class RaidShell extends Configured implements Tool {
     }
   }
 
+  /**
+   * checks all the files under path with a parallel traversal, printing
+   * the corrupt files as they are found
+   */
+  private void fsckScan(final DistributedFileSystem dfs, String path,
+                        int numThreads, final Collection<StripeReport> damaged)
+    throws IOException {
+    System.err.println("Scanning " + path + " using " + numThreads +
+      " threads");
+    final FsckLocations locations = new FsckLocations();
+    final Pattern trashPattern = RaidUtils.getTrashPattern(conf);
+    DirectoryTraversal.Filter filter = new DirectoryTraversal.Filter() {
+      public boolean check(FileStatus f) throws IOException {
+        if (f.isDir()) {
+          return false;
+        }
+        String file = f.getPath().toUri().getPath();
+        // parity files are checked with their source files
+        for (Codec c : Codec.getCodecs()) {
+          if (file.startsWith(c.parityDirectory)) {
+            return false;
+          }
+        }
+        if (trashPattern.matcher(file).matches()) {
+          return false;
+        }
+        return isFileCorrupt(dfs, f.getPath(), locations, damaged);
+      }
+    };
+    DirectoryTraversal traversal = new DirectoryTraversal("Raid Fsck ",
+      Collections.singletonList(new Path(path)), dfs, filter, numThreads,
+      false, false, null, Collections.<Path>emptyList(),
+      conf.getInt(DirectoryTraversal.MAX_QUEUED_DIRECTORIES_KEY,
+                  DirectoryTraversal.DEFAULT_MAX_QUEUED_DIRECTORIES));
+    try {
+      FileStatus corrupt;
+      while ((corrupt = traversal.next()) != DirectoryTraversal.FINISH_TOKEN) {
+        incrCorruptCount();
+        System.out.println(corrupt.getPath().toUri().getPath());
+      }
+    } finally {
+      traversal.stop();
+    }
+  }
+
+  private void writeStripeReport(String reportFile,
+                                 List<StripeReport> damaged)
+    throws IOException {
+    Collections.sort(damaged);
+    PrintWriter out = new PrintWriter(new FileWriter(reportFile));
+    try {
+      out.println(StripeReport.HEADER);
+      for (StripeReport stripe: damaged) {
+        out.println(stripe);
+      }
+    } finally {
+      out.close();
+    }
+    System.err.println("Wrote " + damaged.size() + " stripes missing blocks to " +
+      reportFile);
+  }
+
   // For testing.
   private void incrCorruptCount() {
     corruptCounter.incrementAndGet();
@@ -56,9 +56,7 @@ public class RaidUtils {
 
   public static void filterTrash(Configuration conf, Iterator<String> fileIt) {
     // Remove files under Trash.
-    String trashPattern = conf.get("raid.blockfixer.trash.pattern",
-                                   "^/user/.*/\\.Trash.*|^/tmp/.*");
-    Pattern compiledPattern = Pattern.compile(trashPattern);
+    Pattern compiledPattern = getTrashPattern(conf);
     while (fileIt.hasNext()) {
       Matcher m = compiledPattern.matcher(fileIt.next());
       if (m.matches()) {
@@ -67,9 +65,26 @@ public class RaidUtils {
     }
   }
 
+  /**
+   * @return The pattern of the files marked for deletion.
+   */
+  public static Pattern getTrashPattern(Configuration conf) {
+    String trashPattern = conf.get("raid.blockfixer.trash.pattern",
+                                   "^/user/.*/\\.Trash.*|^/tmp/.*");
+    return Pattern.compile(trashPattern);
+  }
+
   public static void readTillEnd(InputStream in, byte[] buf, boolean eofOK)
     throws IOException {
-    int toRead = buf.length;
+    readTillEnd(in, buf, buf.length, eofOK);
+  }
+
+  /**
+   * Reads toRead bytes into the start of buf and fills the rest of buf
+   * with zeros.
+   */
+  public static void readTillEnd(InputStream in, byte[] buf, int toRead,
+      boolean eofOK) throws IOException {
     int numRead = 0;
     while (numRead < toRead) {
       int nread = in.read(buf, numRead, toRead - numRead);
@@ -86,6 +101,9 @@ public class RaidUtils {
         numRead += nread;
       }
     }
+    if (toRead < buf.length) {
+      Arrays.fill(buf, toRead, buf.length, (byte)0);
+    }
   }
 
   public static void copyBytes(
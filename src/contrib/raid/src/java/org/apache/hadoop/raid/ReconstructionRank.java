@@ -0,0 +1,153 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.raid;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.fs.BlockLocation;
+
+/**
+ * How close a file with lost blocks is to losing data, and how much it
+ * costs to reconstruct it. Files are reconstructed in rank order: the
+ * files whose worst stripe can survive the fewest further block losses
+ * first, and among those the cheapest first.
+ *
+ * A stripe of a source file holds stripeLength blocks and a stripe of a
+ * parity file parityLength blocks. A damaged stripe is reconstructed by
+ * reading stripeLength blocks of the stripe and its parity. Stripes whose
+ * lost blocks the erasure code cannot decode are counted but do not make
+ * the file urgent. Codes that are not MDS, like LocallyRepairableCode,
+ * cannot decode every pattern of parityLength losses, so a damaged stripe
+ * has no margin left if a single further loss would make it
+ * undecodable.
+ */
+class ReconstructionRank implements Comparable<ReconstructionRank> {
+  /**
+   * The rank of the files that could not be looked at. They are
+   * reconstructed after all the others.
+   */
+  static final ReconstructionRank UNKNOWN =
+    new ReconstructionRank(Integer.MAX_VALUE, 0L, 0, 0);
+
+  /** The fewest further losses that a damaged stripe can survive. */
+  final int margin;
+  /** The bytes read to reconstruct the damaged stripes. */
+  final long cost;
+  final int damagedStripes;
+  final int lostStripes;
+
+  ReconstructionRank(int margin, long cost, int damagedStripes,
+      int lostStripes) {
+    this.margin = margin;
+    this.cost = cost;
+    this.damagedStripes = damagedStripes;
+    this.lostStripes = lostStripes;
+  }
+
+  /**
+   * Ranks a file from the locations of its blocks. A block is lost if it
+   * is corrupt or has no locations. The blocks of the other file of the
+   * stripes are taken to be available.
+   * @param code The erasure code of the codec.
+   * @param isSource true for a source file, false for a parity file.
+   */
+  static ReconstructionRank compute(BlockLocation[] locations, Codec codec,
+      ErasureCode code, boolean isSource) throws IOException {
+    int blocksPerStripe = isSource ? codec.stripeLength : codec.parityLength;
+    // The locations of the blocks in the stripe, as the Decoder numbers
+    // them: the parity blocks first, then the source blocks.
+    int firstLocation = isSource ? codec.parityLength : 0;
+    int margin = Integer.MAX_VALUE;
+    long cost = 0;
+    int damagedStripes = 0, lostStripes = 0;
+    for (int start = 0; start < locations.length; start += blocksPerStripe) {
+      int end = Math.min(locations.length, start + blocksPerStripe);
+      List<Integer> erased = new ArrayList<Integer>();
+      long blockSize = 0;
+      for (int i = start; i < end; i++) {
+        BlockLocation loc = locations[i];
+        if (loc.isCorrupt() || loc.getHosts().length == 0) {
+          erased.add(firstLocation + i - start);
+        }
+        blockSize = Math.max(blockSize, loc.getLength());
+      }
+      if (erased.isEmpty()) {
+        continue;
+      }
+      if (!code.canDecode(erased)) {
+        lostStripes++;
+        continue;
+      }
+      damagedStripes++;
+      int stripeMargin = codec.parityLength - erased.size();
+      if (stripeMargin > 0 && !survivesOneMoreLoss(code, codec, erased)) {
+        stripeMargin = 0;
+      }
+      margin = Math.min(margin, stripeMargin);
+      cost += blockSize * codec.stripeLength;
+    }
+    return new ReconstructionRank(margin, cost, damagedStripes, lostStripes);
+  }
+
+  /**
+   * @return true if the stripe can still be decoded after the loss of any
+   *         one more of its locations.
+   */
+  private static boolean survivesOneMoreLoss(ErasureCode code, Codec codec,
+      List<Integer> erased) {
+    List<Integer> more = new ArrayList<Integer>(erased);
+    more.add(-1);
+    for (int loc = 0; loc < codec.parityLength + codec.stripeLength; loc++) {
+      if (erased.indexOf(loc) != -1) {
+        continue;
+      }
+      more.set(more.size() - 1, loc);
+      if (!code.canDecode(more)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return true if one more lost block can make a stripe unrecoverable.
+   */
+  boolean isAtRisk() {
+    return margin <= 0;
+  }
+
+  @Override
+  public int compareTo(ReconstructionRank other) {
+    if (margin != other.margin) {
+      return margin < other.margin ? -1 : 1;
+    }
+    if (cost != other.cost) {
+      return cost < other.cost ? -1 : 1;
+    }
+    return 0;
+  }
+
+  @Override
+  public String toString() {
+    return "margin=" + margin + " cost=" + cost + " damagedStripes=" +
+      damagedStripes + " lostStripes=" + lostStripes;
+  }
+}
@@ -18,6 +18,10 @@
 
 package org.apache.hadoop.raid;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -34,6 +38,95 @@ public class ReedSolomonCode extends ErasureCode {
   private int[] errSignature;
   private int[] paritySymbolLocations;
   private int[] dataBuff;
+  // The parity symbols as a linear function of the message symbols.
+  private CodingMatrix encodeMatrix;
+
+  // Number of bytes processed per pass in the bulk operations. The output
+  // chunk stays in cache while all the inputs are folded into it.
+  private static final int BULK_CHUNK_SIZE = 4096;
+
+  // The decoding matrices only depend on the code parameters and the erasure
+  // pattern, which stays fixed for a whole block reconstruction. They are
+  // cached in an LRU map shared by all the instances in the JVM.
+  private static final int DECODE_MATRIX_CACHE_SIZE = 1000;
+  private static final Map<DecodeMatrixKey, CodingMatrix> decodeMatrixCache =
+    Collections.synchronizedMap(
+      new LinkedHashMap<DecodeMatrixKey, CodingMatrix>(
+          DECODE_MATRIX_CACHE_SIZE, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(
+          Map.Entry<DecodeMatrixKey, CodingMatrix> eldest) {
+          return size() > DECODE_MATRIX_CACHE_SIZE;
+        }
+      });
+
+  /**
+   * A matrix over the Galois field together with the byte multiplication
+   * table of each coefficient.
+   */
+  static class CodingMatrix {
+    // coefficients[i][j] is the weight of input j in output i.
+    final int[][] coefficients;
+    // mulTables[i][j] multiplies by coefficients[i][j], null if it is zero.
+    final byte[][][] mulTables;
+
+    CodingMatrix(int[][] coefficients, GaloisField gf) {
+      this.coefficients = coefficients;
+      this.mulTables = new byte[coefficients.length][][];
+      for (int i = 0; i < coefficients.length; i++) {
+        mulTables[i] = new byte[coefficients[i].length][];
+        for (int j = 0; j < coefficients[i].length; j++) {
+          int c = coefficients[i][j];
+          mulTables[i][j] = c == 0 ? null : gf.getByteMultiplyTable(c);
+        }
+      }
+    }
+
+    // The coefficients packed for the native kernels, made on first use.
+    private volatile byte[] packed;
+
+    byte[] getPacked() {
+      byte[] p = packed;
+      if (p == null) {
+        p = NativeGaloisField.pack(coefficients);
+        packed = p;
+      }
+      return p;
+    }
+  }
+
+  /**
+   * Identifies the decoding matrix of an erasure pattern of a code.
+   */
+  private static class DecodeMatrixKey {
+    private final int stripeSize;
+    private final int paritySize;
+    private final int[] erasedLocations;
+
+    DecodeMatrixKey(int stripeSize, int paritySize, int[] erasedLocations) {
+      this.stripeSize = stripeSize;
+      this.paritySize = paritySize;
+      this.erasedLocations = erasedLocations.clone();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof DecodeMatrixKey)) {
+        return false;
+      }
+      DecodeMatrixKey other = (DecodeMatrixKey) o;
+      return stripeSize == other.stripeSize &&
+             paritySize == other.paritySize &&
+             Arrays.equals(erasedLocations, other.erasedLocations);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * stripeSize + paritySize) +
+             Arrays.hashCode(erasedLocations);
+    }
+  }
 
   @Deprecated
   public ReedSolomonCode(int stripeSize, int paritySize) {
@@ -77,6 +170,26 @@ public class ReedSolomonCode extends ErasureCode {
     }
     // generating polynomial has all generating roots
     generatingPolynomial = gen;
+    encodeMatrix = computeEncodeMatrix();
+  }
+
+  /**
+   * The parity is a linear function of the message. Recover the matrix of
+   * that function by encoding unit messages.
+   */
+  private CodingMatrix computeEncodeMatrix() {
+    int[] message = new int[stripeSize];
+    int[] parity = new int[paritySize];
+    int[][] coefficients = new int[paritySize][stripeSize];
+    for (int j = 0; j < stripeSize; j++) {
+      Arrays.fill(message, 0);
+      message[j] = 1;
+      encode(message, parity);
+      for (int i = 0; i < paritySize; i++) {
+        coefficients[i][j] = parity[i];
+      }
+    }
+    return new CodingMatrix(coefficients, GF);
   }
 
   @Override
@@ -110,6 +223,96 @@ public class ReedSolomonCode extends ErasureCode {
     GF.solveVandermondeSystem(errSignature, erasedValue, erasedLocation.length);
   }
 
+  @Override
+  public void encodeBulk(byte[][] inputs, byte[][] outputs) {
+    assert(stripeSize == inputs.length);
+    assert(paritySize == outputs.length);
+    multiplyBulk(encodeMatrix, inputs, outputs, outputs[0].length);
+  }
+
+  @Override
+  public void decodeBulk(
+    byte[][] readBufs, byte[][] writeBufs, int[] erasedLocations) {
+    if (erasedLocations.length == 0) {
+      return;
+    }
+    multiplyBulk(getDecodeMatrix(erasedLocations),
+      readBufs, writeBufs, readBufs[0].length);
+  }
+
+  /**
+   * Get the decoding matrix of an erasure pattern, computing it only if it
+   * is not cached yet.
+   */
+  CodingMatrix getDecodeMatrix(int[] erasedLocations) {
+    DecodeMatrixKey key =
+      new DecodeMatrixKey(stripeSize, paritySize, erasedLocations);
+    CodingMatrix matrix = decodeMatrixCache.get(key);
+    if (matrix == null) {
+      // Concurrent misses may compute the same matrix, which is harmless.
+      matrix = computeDecodeMatrix(erasedLocations);
+      decodeMatrixCache.put(key, matrix);
+    }
+    return matrix;
+  }
+
+  /**
+   * For a fixed set of erased locations the decoded values are a linear
+   * function of the data. Recover the matrix of that function by decoding
+   * unit vectors.
+   * @param erasedLocations The erased locations.
+   * @return The matrix with one row per erased location and one column per
+   *         location of the stripe.
+   */
+  private CodingMatrix computeDecodeMatrix(int[] erasedLocations) {
+    int dataSize = stripeSize + paritySize;
+    int[] data = new int[dataSize];
+    int[] values = new int[erasedLocations.length];
+    int[][] coefficients = new int[erasedLocations.length][dataSize];
+    for (int j = 0; j < dataSize; j++) {
+      Arrays.fill(data, 0);
+      data[j] = 1;
+      // Erased locations are zeroed by decode, so their columns stay zero.
+      decode(data, erasedLocations, values);
+      for (int i = 0; i < erasedLocations.length; i++) {
+        coefficients[i][j] = values[i];
+      }
+    }
+    return new CodingMatrix(coefficients, GF);
+  }
+
+  /**
+   * Computes outputs[i] = sum over j of coefficient(i, j) * inputs[j] for the
+   * first len bytes of each buffer. Subclasses may replace this with a
+   * faster implementation of the same product.
+   * @param matrix The coefficients.
+   * @param inputs The input buffers.
+   * @param outputs (out) The output buffers, one for each row of matrix.
+   * @param len The number of bytes to process.
+   */
+  protected void multiplyBulk(
+    CodingMatrix matrix, byte[][] inputs, byte[][] outputs, int len) {
+    byte[][][] mulTables = matrix.mulTables;
+    for (int start = 0; start < len; start += BULK_CHUNK_SIZE) {
+      int end = Math.min(start + BULK_CHUNK_SIZE, len);
+      for (int i = 0; i < mulTables.length; i++) {
+        byte[] output = outputs[i];
+        byte[][] rowTables = mulTables[i];
+        Arrays.fill(output, start, end, (byte) 0);
+        for (int j = 0; j < rowTables.length; j++) {
+          byte[] table = rowTables[j];
+          if (table == null) {
+            continue;
+          }
+          byte[] input = inputs[j];
+          for (int k = start; k < end; k++) {
+            output[k] ^= table[input[k] & 0x000000FF];
+          }
+        }
+      }
+    }
+  }
+
   @Override
   public int stripeSize() {
     return this.stripeSize;
@@ -44,6 +44,9 @@ public class StatisticsCollector implements Runnable {
     "raid.statscollector.submit.raid.jobs";
   public static final String STATS_SNAPSHOT_FILE_KEY =
     "fs.raid.statscollector.snapshotFile";
+  public static final String STATS_COLLECTOR_SHARED_SCAN_WAIT_KEY =
+    "raid.statscollector.shared.scan.wait";
+  public static final long DEFAULT_SHARED_SCAN_WAIT = 60 * 1000L;
 
   final static public Log LOG = LogFactory.getLog(StatisticsCollector.class);
   final static public long UPDATE_PERIOD = 20 * 60 * 1000L;
@@ -63,6 +66,9 @@ public class StatisticsCollector implements Runnable {
   private volatile boolean running = true;
   private volatile long filesScanned = 0;
   private boolean submitRaidJobs;
+  // How long to wait for the purge monitor to scan a parity directory
+  // before scanning it alone.
+  private long sharedScanWait;
 
   public StatisticsCollector(RaidNode raidNode, ConfigManager configManager,
       Configuration conf)
@@ -77,6 +83,9 @@ public class StatisticsCollector implements Runnable {
     this.numThreads = conf.getInt(RaidNode.RAID_DIRECTORYTRAVERSAL_THREADS, 4);
     this.submitRaidJobs = conf.getBoolean(STATS_COLLECTOR_SUBMIT_JOBS_CONFIG, true);
     this.snapshotFileName = conf.get(STATS_SNAPSHOT_FILE_KEY);
+    this.sharedScanWait =
+      conf.getLong(STATS_COLLECTOR_SHARED_SCAN_WAIT_KEY,
+        DEFAULT_SHARED_SCAN_WAIT);
   }
 
   @Override
@@ -327,27 +336,79 @@ public class StatisticsCollector implements Runnable {
     long now = RaidNode.now();
     RaidState.Checker checker =
         new RaidState.Checker(allPolicyInfos, conf);
+    // The source trees of the policies are walked together, once.
+    List<PolicySourceConsumer> consumers =
+        new ArrayList<PolicySourceConsumer>();
+    List<Path> roots = new ArrayList<Path>();
     for (PolicyInfo info : allPolicyInfos) {
       LOG.info("Collecting statistics for policy:" + info.getName() + ".");
-      String code = info.getCodecId();
-      Statistics statistics = codeToRaidStatistics.get(code);
-      DirectoryTraversal retriever =
-          DirectoryTraversal.fileRetriever(
-              info.getSrcPathExpanded(), fs, numThreads, false, true);
-      int targetReplication =
+      List<Path> srcPaths = info.getSrcPathExpanded();
+      consumers.add(new PolicySourceConsumer(info,
+          codeToRaidStatistics.get(info.getCodecId()), checker, now,
+          srcPaths));
+      roots.addAll(srcPaths);
+    }
+    new NamespaceScanner("Source Statistics ", fs, numThreads, false, true)
+        .scan(NamespaceScanner.outermostRoots(roots), consumers);
+    for (PolicySourceConsumer consumer : consumers) {
+      consumer.finish();
+    }
+  }
+
+  /**
+   * Adds the files of a policy to the statistics of its codec, and raids
+   * the files that should be raided.
+   */
+  private class PolicySourceConsumer implements NamespaceScanner.Consumer {
+    final PolicyInfo info;
+    final Statistics statistics;
+    final RaidState.Checker checker;
+    final long now;
+    final int targetReplication;
+    final List<String> srcPaths = new ArrayList<String>();
+    List<FileStatus> filesToRaid = new ArrayList<FileStatus>();
+
+    PolicySourceConsumer(PolicyInfo info, Statistics statistics,
+        RaidState.Checker checker, long now, List<Path> srcPaths) {
+      this.info = info;
+      this.statistics = statistics;
+      this.checker = checker;
+      this.now = now;
+      this.targetReplication =
           Integer.parseInt(info.getProperty("targetReplication"));
-      FileStatus file;
-      List<FileStatus> filesToRaid = new ArrayList<FileStatus>();
-      while ((file = retriever.next()) != DirectoryTraversal.FINISH_TOKEN) {
-        boolean shouldBeRaided =
-          statistics.addSourceFile(info, file, checker, now, targetReplication);
-        if (shouldBeRaided &&
-            filesToRaid.size() < MAX_FILES_TO_RAID_QUEUE_SIZE) {
-          filesToRaid.add(file);
+      for (Path p : srcPaths) {
+        this.srcPaths.add(p.toUri().getPath());
+      }
+    }
+
+    @Override
+    public boolean check(FileStatus f) {
+      if (f.isDir()) {
+        return false;
+      }
+      String path = f.getPath().toUri().getPath();
+      for (String srcPath : srcPaths) {
+        if (NamespaceScanner.isUnder(path, srcPath)) {
+          return true;
         }
-        filesToRaid = submitRaidJobsWhenPossible(info, filesToRaid, false);
-        incFileScanned();
       }
+      return false;
+    }
+
+    @Override
+    public boolean accept(FileStatus file) throws IOException {
+      boolean shouldBeRaided =
+        statistics.addSourceFile(info, file, checker, now, targetReplication);
+      if (shouldBeRaided &&
+          filesToRaid.size() < MAX_FILES_TO_RAID_QUEUE_SIZE) {
+        filesToRaid.add(file);
+      }
+      filesToRaid = submitRaidJobsWhenPossible(info, filesToRaid, false);
+      incFileScanned();
+      return true;
+    }
+
+    void finish() {
       filesToRaid = submitRaidJobsWhenPossible(info, filesToRaid, true);
       if (!filesToRaid.isEmpty()) {
         // Note that there might be some files not raided. But we don't want to
@@ -392,15 +453,37 @@ public class StatisticsCollector implements Runnable {
   }
 
   private void collectParityStatistics(Path parityLocation,
-      Statistics statistics) throws IOException {
+      final Statistics statistics) throws IOException {
     LOG.info("Collecting parity statistics in " + parityLocation + ".");
-    DirectoryTraversal retriever =
-        DirectoryTraversal.fileRetriever(
-            Arrays.asList(parityLocation), fs, numThreads, false, true);
-    FileStatus file;
-    while ((file = retriever.next()) != DirectoryTraversal.FINISH_TOKEN) {
-      statistics.addParityFile(file);
-      incFileScanned();
+    NamespaceScanner.Consumer consumer = new NamespaceScanner.Consumer() {
+      @Override
+      public boolean check(FileStatus f) {
+        return !f.isDir();
+      }
+
+      @Override
+      public boolean accept(FileStatus file) {
+        statistics.addParityFile(file);
+        incFileScanned();
+        return true;
+      }
+    };
+    PurgeMonitor purgeMonitor = raidNode.getPurgeMonitor();
+    boolean joined = false;
+    if (purgeMonitor != null && purgeMonitor.running) {
+      // Join the purge monitor if it is about to scan the parity files,
+      // the files it deletes are not counted.
+      try {
+        joined = purgeMonitor.getParityScanner(fs).joinNext(
+            parityLocation, consumer, sharedScanWait);
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException(
+            "Interrupted while collecting statistics in " + parityLocation);
+      }
+    }
+    if (!joined) {
+      new NamespaceScanner("Parity Statistics ", fs, numThreads, false, true)
+          .scan(Arrays.asList(parityLocation), Arrays.asList(consumer));
     }
     LOG.info("Finish collecting statistics in " +
         parityLocation + "\n" + statistics);
@@ -18,6 +18,7 @@
 
 package org.apache.hadoop.raid;
 
+import java.util.Arrays;
 import java.util.Set;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -99,14 +100,10 @@ public class XORCode extends ErasureCode {
     byte[] output = outputs[0];
     int bufSize = output.length;
     // Get the first buffer's data.
-    for (int j = 0; j < bufSize; j++) {
-      output[j] = inputs[0][j];
-    }
+    System.arraycopy(inputs[0], 0, output, 0, bufSize);
     // XOR with everything else.
     for (int i = 1; i < inputs.length; i++) {
-      for (int j = 0; j < bufSize; j++) {
-        output[j] ^= inputs[i][j];
-      }
+      xor(inputs[i], output, bufSize);
     }
   }
 
@@ -118,19 +115,25 @@ public class XORCode extends ErasureCode {
     byte[] output = writeBufs[0];
     int erasedIdx = erasedLocations[0];
     // Set the output to zeros.
-    for (int j = 0; j < output.length; j++) {
-      output[j] = 0;
-    }
+    Arrays.fill(output, (byte)0);
     // Process the inputs.
     for (int i = 0; i < readBufs.length; i++) {
       // Skip the erased location.
       if (i == erasedIdx) {
         continue;
       }
-      byte[] input = readBufs[i];
-      for (int j = 0; j < input.length; j++) {
-        output[j] ^= input[j];
-      }
+      xor(readBufs[i], output, readBufs[i].length);
+    }
+  }
+
+  /**
+   * dst[i] ^= src[i] for the first len bytes. This simple counted loop is
+   * turned into word-wide (SIMD) XORs by the JIT, which is faster than going
+   * through a long view of the arrays.
+   */
+  static void xor(byte[] src, byte[] dst, int len) {
+    for (int i = 0; i < len; i++) {
+      dst[i] ^= src[i];
     }
   }
 }
@@ -0,0 +1,199 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+public class TestDegradedReadCache extends TestCase {
+  final static String TEST_DIR = new File(System.getProperty("test.build.data",
+      "build/contrib/raid/test/data")).getAbsolutePath();
+
+  FileSystem localFs;
+  Path dir;
+
+  protected void setUp() throws Exception {
+    localFs = FileSystem.getLocal(new Configuration());
+    dir = new Path(TEST_DIR, "degradedreadcache");
+    localFs.delete(dir, true);
+    localFs.mkdirs(dir);
+  }
+
+  /**
+   * Writes a file of the given length, counting the reconstructions.
+   */
+  class FileReconstructor implements DegradedReadCache.Reconstructor {
+    final Path path;
+    final int length;
+    final AtomicInteger calls = new AtomicInteger();
+    FileReconstructor(String name, int length) {
+      this.path = new Path(dir, name);
+      this.length = length;
+    }
+    public Path reconstruct() throws IOException {
+      calls.incrementAndGet();
+      FSDataOutputStream out = localFs.create(path);
+      out.write(new byte[length]);
+      out.close();
+      return path;
+    }
+  }
+
+  DegradedReadCache.BlockKey key(long offset) {
+    return new DegradedReadCache.BlockKey(
+      new Path("/user/foo"), offset, 1L, "rs");
+  }
+
+  public void testHitsAndEviction() throws Exception {
+    DegradedReadCache cache = new DegradedReadCache(localFs, 250);
+    FileReconstructor r0 = new FileReconstructor("b0", 100);
+    FileReconstructor r1 = new FileReconstructor("b1", 100);
+    FileReconstructor r2 = new FileReconstructor("b2", 100);
+
+    DegradedReadCache.CachedBlock b0 = cache.acquire(key(0), r0);
+    assertEquals(r0.path, b0.getPath());
+    cache.release(b0);
+    b0 = cache.acquire(key(0), r0);
+    cache.release(b0);
+    assertEquals(1, r0.calls.get());
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+
+    // A different generation of the file is another block.
+    DegradedReadCache.CachedBlock other = cache.acquire(
+      new DegradedReadCache.BlockKey(new Path("/user/foo"), 0, 2L, "rs"), r0);
+    cache.release(other);
+    assertEquals(2, r0.calls.get());
+
+    cache.release(cache.acquire(key(100), r1));
+    DegradedReadCache.CachedBlock b2 = cache.acquire(key(200), r2);
+    // The least recently used block is gone.
+    assertEquals(1, cache.getEvictions());
+    assertEquals(200, cache.getSize());
+    assertFalse(localFs.exists(r0.path));
+
+    // Blocks in use are not evicted.
+    cache.release(cache.acquire(key(0), r0));
+    assertTrue(localFs.exists(r2.path));
+    cache.release(b2);
+
+    cache.close();
+    assertEquals(0, cache.getNumBlocks());
+    assertFalse(localFs.exists(r2.path));
+  }
+
+  public void testLookup() throws Exception {
+    DegradedReadCache cache = new DegradedReadCache(localFs, 1000);
+    FileReconstructor r0 = new FileReconstructor("b0", 100);
+    // Lookups do not reconstruct.
+    assertNull(cache.lookup(key(0)));
+    assertEquals(0, cache.getNumBlocks());
+
+    cache.release(cache.acquire(key(0), r0));
+    DegradedReadCache.CachedBlock b0 = cache.lookup(key(0));
+    assertEquals(r0.path, b0.getPath());
+    assertEquals(1, r0.calls.get());
+    assertEquals(1, cache.getHits());
+
+    // A block found by a lookup is not evicted until it is released.
+    DegradedReadCache small = new DegradedReadCache(localFs, 150);
+    FileReconstructor r1 = new FileReconstructor("b1", 100);
+    FileReconstructor r2 = new FileReconstructor("b2", 100);
+    small.release(small.acquire(key(100), r1));
+    DegradedReadCache.CachedBlock b1 = small.lookup(key(100));
+    small.release(small.acquire(key(200), r2));
+    assertTrue(localFs.exists(r1.path));
+    small.release(b1);
+    assertFalse(localFs.exists(r1.path));
+
+    cache.release(b0);
+    cache.close();
+    small.close();
+  }
+
+  public void testFailuresNotCached() throws Exception {
+    DegradedReadCache cache = new DegradedReadCache(localFs, 1000);
+    final AtomicInteger calls = new AtomicInteger();
+    DegradedReadCache.Reconstructor failing =
+      new DegradedReadCache.Reconstructor() {
+        public Path reconstruct() throws IOException {
+          calls.incrementAndGet();
+          return null;
+        }
+      };
+    assertNull(cache.acquire(key(0), failing));
+    assertNull(cache.acquire(key(0), failing));
+    assertEquals(2, calls.get());
+    assertEquals(0, cache.getNumBlocks());
+  }
+
+  public void testSharedReconstruction() throws Exception {
+    final DegradedReadCache cache = new DegradedReadCache(localFs, 1000);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch proceed = new CountDownLatch(1);
+    final FileReconstructor slow = new FileReconstructor("slow", 100) {
+      public Path reconstruct() throws IOException {
+        started.countDown();
+        try {
+          proceed.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        return super.reconstruct();
+      }
+    };
+    final DegradedReadCache.CachedBlock[] results =
+      new DegradedReadCache.CachedBlock[4];
+    Thread[] threads = new Thread[results.length];
+    for (int i = 0; i < threads.length; i++) {
+      final int idx = i;
+      threads[i] = new Thread() {
+        public void run() {
+          try {
+            results[idx] = cache.acquire(key(0), slow);
+          } catch (IOException e) {
+          }
+        }
+      };
+      threads[i].start();
+      if (i == 0) {
+        started.await();
+      }
+    }
+    proceed.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertEquals(1, slow.calls.get());
+    for (DegradedReadCache.CachedBlock block : results) {
+      assertSame(results[0], block);
+    }
+    assertEquals(3, cache.getHits());
+    assertEquals(0.75, cache.getHitRate(), 0.001);
+    cache.close();
+  }
+}
@@ -23,6 +23,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.net.URI;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.zip.CRC32;
 
@@ -262,6 +263,17 @@ public class TestRaidDfs extends TestCase {
       stm = raidfs.open(file);
       stm.readFully(0, filebytes);
       assertEquals(crc, bufferCRC(filebytes));
+
+      // Test that a positional read of a small range of a missing block
+      // returns the right data.
+      byte[] range = new byte[100];
+      long rangeStart = 4 * 8192L + 1000;
+      stm.readFully(rangeStart, range);
+      for (int i = 0; i < range.length; i++) {
+        assertEquals(filebytes[(int)rangeStart + i], range[i]);
+      }
+      assertEquals(range.length, stm.read(rangeStart, range, 0, range.length));
+      stm.close();
     } finally {
       myTearDown();
     }
@@ -388,6 +400,27 @@ public class TestRaidDfs extends TestCase {
     }
   }
 
+  /**
+   * Ranges reconstructed by positional reads are written straight into
+   * the caller's buffer.
+   */
+  public void testRangeOutputStream() throws Exception {
+    byte[] buf = new byte[8];
+    DistributedRaidFileSystem.RangeOutputStream out =
+      new DistributedRaidFileSystem.RangeOutputStream(buf, 2, 4);
+    out.write(1);
+    out.write(new byte[] {9, 2, 3, 9}, 1, 2);
+    assertEquals(3, out.getWritten());
+    try {
+      out.write(new byte[2], 0, 2);
+      fail("Wrote past the end of the range");
+    } catch (IOException e) {
+    }
+    out.write(4);
+    assertTrue(Arrays.equals(new byte[] {0, 0, 1, 2, 3, 4, 0, 0}, buf));
+    assertEquals(4, out.getWritten());
+  }
+
   public void testTooManyErrorsDecodeXOR() throws Exception {
     long blockSize = 8192L;
     int numBlocks = 8;
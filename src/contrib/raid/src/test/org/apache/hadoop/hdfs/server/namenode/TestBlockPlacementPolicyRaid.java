@@ -25,6 +25,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.Assert;
 
@@ -114,6 +116,14 @@ public class TestBlockPlacementPolicyRaid {
       }
       verifyCachedBlocksResult(cachedBlocks, namesystem, file2);
       verifyCachedBlocksResult(cachedBlocks, namesystem, file1);
+      // A range of the blocks
+      List<LocatedBlock> all = cachedBlocks.get(file2);
+      List<LocatedBlock> range = cachedBlocks.get(file2, 1, 3);
+      Assert.assertEquals(2, range.size());
+      Assert.assertEquals(all.get(1).getBlock(), range.get(0).getBlock());
+      Assert.assertEquals(all.get(2).getBlock(), range.get(1).getBlock());
+      Assert.assertEquals(1, cachedBlocks.get(file2, 3, 10).size());
+      Assert.assertEquals(0, cachedBlocks.get(file2, 4, 6).size());
 
       // test full path cache
       CachedFullPathNames cachedFullPathNames = new CachedFullPathNames(conf, namesystem);
@@ -332,6 +342,73 @@ public class TestBlockPlacementPolicyRaid {
     }
   }
 
+  /**
+   * Test the size bound, the hit rate and the reload of expired entries of
+   * BlockPlacementPolicyRaid.Cache.
+   */
+  @Test
+  public void testCache() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt("raid.blockplacement.cache.size", 10);
+    conf.setLong("raid.blockplacement.cache.timeout", 100000L);
+    final AtomicInteger loads = new AtomicInteger(0);
+    BlockPlacementPolicyRaid.Cache<Integer, Integer> cache =
+        new BlockPlacementPolicyRaid.Cache<Integer, Integer>(conf) {
+          @Override
+          protected Integer getDirectly(Integer key) {
+            loads.incrementAndGet();
+            return key * 2;
+          }
+        };
+    for (int i = 0; i < 100; i++) {
+      Assert.assertEquals(2 * i, cache.get(i).intValue());
+      Assert.assertEquals(2 * i, cache.get(i).intValue());
+    }
+    Assert.assertEquals(100, loads.get());
+    Assert.assertTrue(cache.size() <= 10);
+    Assert.assertEquals(0.5, cache.getHitRate(), 1e-9);
+
+    // While one thread reloads an expired entry the others get the old
+    // value.
+    conf.setLong("raid.blockplacement.cache.timeout", 50L);
+    final CountDownLatch loading = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger version = new AtomicInteger(0);
+    final BlockPlacementPolicyRaid.Cache<Integer, Integer> slowCache =
+        new BlockPlacementPolicyRaid.Cache<Integer, Integer>(conf) {
+          @Override
+          protected Integer getDirectly(Integer key) throws IOException {
+            if (version.get() > 0) {
+              loading.countDown();
+              try {
+                release.await();
+              } catch (InterruptedException e) {
+                throw new IOException(e);
+              }
+            }
+            return version.incrementAndGet();
+          }
+        };
+    Assert.assertEquals(1, slowCache.get(0).intValue());
+    Thread.sleep(100L);
+    final Integer[] reloaded = new Integer[1];
+    Thread reloader = new Thread() {
+      public void run() {
+        try {
+          reloaded[0] = slowCache.get(0);
+        } catch (IOException e) {
+        }
+      }
+    };
+    reloader.start();
+    loading.await();
+    Assert.assertEquals(1, slowCache.get(0).intValue());
+    release.countDown();
+    reloader.join();
+    Assert.assertEquals(2, reloaded[0].intValue());
+    Assert.assertTrue(slowCache.get(0) >= 2);
+  }
+
   // create a new BlockPlacementPolicyRaid to clear the cache
   private void refreshPolicy() {
       policy = new BlockPlacementPolicyRaid();
@@ -0,0 +1,437 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.raid;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * Measures the throughput of the erasure codes and of the parallel reads
+ * of a stripe, so that codec changes can be compared across commits.
+ *
+ * Every combination of code, stripe length, parity length and buffer size
+ * is encoded, decoded with every erasure pattern and number of erasures
+ * the code can recover from, and read from local files with
+ * ParallelStreamReader with and without a buffer pool. Each case runs for
+ * -time milliseconds after a warm up of the same length.
+ *
+ * One tab separated line is printed per case, and appended to -output if
+ * given, with the columns of HEADER. The bytes of a case are the bytes of
+ * stripe data encoded, decoded or read. The allocated bytes are measured
+ * on the benchmark thread where the JVM supports it, and are -1
+ * otherwise. For the reads they are the bytes of the buffers the reader
+ * had to allocate.
+ *
+ * Run it with "ant bench" from src/contrib/raid, with the options in
+ * -Dbench.args.
+ */
+public class ErasureCodeBenchmark extends Configured implements Tool {
+  static final String HEADER = "#tag\tbenchmark\tcode\tstripe\tparity" +
+    "\tbufsize\tpattern\terasures\tbytes\tmsec\tMB/s\talloc/byte";
+
+  static final String[] PATTERNS = {"data", "parity", "mixed"};
+
+  private static final Random RAND = new Random(0);
+
+  private String tag = "-";
+  private String[] codes = {"XORCode", "ReedSolomonCode"};
+  private int[] stripeLengths = {5, 10};
+  private int[] parityLengths = {1, 3, 4};
+  private int[] bufSizes = {64 * 1024, 1024 * 1024};
+  private String[] patterns = PATTERNS;
+  private long caseTime = 1000;
+  private long readFileSize = 32 * 1024 * 1024;
+  private String output = null;
+  private File readDir = new File(System.getProperty("test.build.data",
+    "build/contrib/raid/test/data"), "erasurecodebenchmark");
+  private final List<PrintStream> outs = new ArrayList<PrintStream>();
+
+  static int printUsage() {
+    ToolRunner.printGenericCommandUsage(System.out);
+    System.out.println(
+"Usage: ErasureCodeBenchmark [-tag <label>] [-codes <class,...>]\n" +
+"         [-stripes <n,...>] [-parities <n,...>] [-buffers <bytes,...>]\n" +
+"         [-patterns <data|parity|mixed,...>] [-time <msec per case>]\n" +
+"         [-readFileSize <bytes>] [-readDir <dir>] [-output <file>]\n" +
+"Codes without a package are looked up in org.apache.hadoop.raid.\n" +
+"XOR codes are only run with a parity length of 1.\n" +
+"A -readFileSize of 0 skips the parallel read benchmark.");
+    return -1;
+  }
+
+  public int run(String[] args) throws Exception {
+    try {
+      for (int i = 0; i < args.length; i++) {
+        if ("-tag".equals(args[i])) {
+          tag = args[++i];
+        } else if ("-codes".equals(args[i])) {
+          codes = args[++i].split(",");
+        } else if ("-stripes".equals(args[i])) {
+          stripeLengths = parseInts(args[++i]);
+        } else if ("-parities".equals(args[i])) {
+          parityLengths = parseInts(args[++i]);
+        } else if ("-buffers".equals(args[i])) {
+          bufSizes = parseInts(args[++i]);
+        } else if ("-patterns".equals(args[i])) {
+          patterns = args[++i].split(",");
+        } else if ("-time".equals(args[i])) {
+          caseTime = Long.parseLong(args[++i]);
+        } else if ("-readFileSize".equals(args[i])) {
+          readFileSize = Long.parseLong(args[++i]);
+        } else if ("-readDir".equals(args[i])) {
+          readDir = new File(args[++i]);
+        } else if ("-output".equals(args[i])) {
+          output = args[++i];
+        } else {
+          return printUsage();
+        }
+      }
+    } catch (RuntimeException e) {
+      // A missing or malformed option value.
+      return printUsage();
+    }
+
+    outs.add(System.out);
+    if (output != null) {
+      File file = new File(output);
+      boolean isNew = !file.exists() || file.length() == 0;
+      if (file.getParentFile() != null) {
+        file.getParentFile().mkdirs();
+      }
+      PrintStream out = new PrintStream(new FileOutputStream(file, true));
+      if (isNew) {
+        out.println(HEADER);
+      }
+      outs.add(out);
+    }
+    System.out.println(HEADER);
+    try {
+      for (String code : codes) {
+        for (int stripe : stripeLengths) {
+          for (int parity : parityLengths) {
+            ErasureCode ec = createCode(code, stripe, parity);
+            if (ec == null) {
+              continue;
+            }
+            for (int bufSize : bufSizes) {
+              benchEncode(ec, bufSize);
+              for (String pattern : patterns) {
+                for (int erasures = 1; erasures <= parity; erasures++) {
+                  benchDecode(ec, bufSize, pattern, erasures);
+                }
+              }
+            }
+          }
+        }
+      }
+      if (readFileSize > 0) {
+        benchReads();
+      }
+    } finally {
+      if (output != null) {
+        outs.get(1).close();
+      }
+    }
+    return 0;
+  }
+
+  private static int[] parseInts(String s) {
+    String[] parts = s.split(",");
+    int[] values = new int[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      values[i] = Integer.parseInt(parts[i].trim());
+    }
+    return values;
+  }
+
+  /**
+   * Creates a code the way the RaidNode does, from a codec description.
+   * @return The code or null if it does not support the lengths.
+   */
+  ErasureCode createCode(String code, int stripe, int parity)
+      throws IOException {
+    String className = code.indexOf('.') < 0 ?
+      ErasureCode.class.getPackage().getName() + "." + code : code;
+    Class<?> clazz;
+    try {
+      clazz = getConf().getClassByName(className);
+    } catch (ClassNotFoundException e) {
+      throw new IOException("Unknown code " + code);
+    }
+    if (XORCode.class.isAssignableFrom(clazz) && parity != 1) {
+      return null;
+    }
+    Configuration conf = new Configuration(getConf());
+    conf.set("raid.codecs.json", "[ { " +
+      "\"id\":\"benchmark\"," +
+      "\"parity_dir\":\"/benchmark\"," +
+      "\"stripe_length\":" + stripe + "," +
+      "\"parity_length\":" + parity + "," +
+      "\"priority\":100," +
+      "\"erasure_code\":\"" + className + "\"," +
+      "\"description\":\"Benchmark\"," +
+      " } ]");
+    Codec.initializeCodecs(conf);
+    return Codec.getCodec("benchmark").createErasureCode(conf);
+  }
+
+  private static byte[][] randomBuffers(int n, int size) {
+    byte[][] bufs = new byte[n][size];
+    for (byte[] buf : bufs) {
+      RAND.nextBytes(buf);
+    }
+    return bufs;
+  }
+
+  void benchEncode(final ErasureCode ec, int bufSize) {
+    final byte[][] message = randomBuffers(ec.stripeSize(), bufSize);
+    final byte[][] parity = new byte[ec.paritySize()][bufSize];
+    Result r = time(new Runnable() {
+      public void run() {
+        ec.encodeBulk(message, parity);
+      }
+    });
+    report("encode", ec, bufSize, "-", 0,
+      r.iterations * ec.stripeSize() * (long) bufSize, r);
+  }
+
+  /**
+   * The locations erased by a pattern. Parity locations come first in the
+   * stripe, as ErasureCode.decode expects.
+   */
+  static int[] erasedLocations(String pattern, int stripe, int parity,
+      int erasures) {
+    int[] erased = new int[erasures];
+    int nextParity = 0, nextData = parity;
+    for (int i = 0; i < erasures; i++) {
+      boolean useParity;
+      if ("data".equals(pattern)) {
+        useParity = nextData >= parity + stripe;
+      } else if ("parity".equals(pattern)) {
+        useParity = nextParity < parity;
+      } else if ("mixed".equals(pattern)) {
+        useParity = (i % 2 == 0 && nextParity < parity) ||
+          nextData >= parity + stripe;
+      } else {
+        throw new IllegalArgumentException("Unknown pattern " + pattern);
+      }
+      erased[i] = useParity ? nextParity++ : nextData++;
+    }
+    return erased;
+  }
+
+  void benchDecode(final ErasureCode ec, int bufSize, String pattern,
+      int erasures) {
+    int stripe = ec.stripeSize();
+    int parity = ec.paritySize();
+    final byte[][] data = new byte[stripe + parity][];
+    byte[][] message = randomBuffers(stripe, bufSize);
+    byte[][] parityBufs = new byte[parity][bufSize];
+    ec.encodeBulk(message, parityBufs);
+    for (int i = 0; i < parity; i++) {
+      data[i] = parityBufs[i];
+    }
+    for (int i = 0; i < stripe; i++) {
+      data[parity + i] = message[i];
+    }
+    final int[] erased = erasedLocations(pattern, stripe, parity, erasures);
+    for (int loc : erased) {
+      data[loc] = new byte[bufSize];
+    }
+    final byte[][] decoded = new byte[erasures][bufSize];
+    Result r = time(new Runnable() {
+      public void run() {
+        ec.decodeBulk(data, decoded, erased);
+      }
+    });
+    report("decode", ec, bufSize, pattern, erasures,
+      r.iterations * stripe * (long) bufSize, r);
+  }
+
+  /**
+   * Reads stripes of local files with ParallelStreamReader, with and
+   * without a buffer pool.
+   */
+  void benchReads() throws IOException, InterruptedException {
+    int maxStripe = 0;
+    for (int stripe : stripeLengths) {
+      maxStripe = Math.max(maxStripe, stripe);
+    }
+    File[] files = new File[maxStripe];
+    readDir.mkdirs();
+    byte[] buf = new byte[64 * 1024];
+    for (int i = 0; i < files.length; i++) {
+      files[i] = new File(readDir, "block" + i);
+      if (files[i].length() == readFileSize) {
+        continue;
+      }
+      OutputStream out = new FileOutputStream(files[i]);
+      try {
+        for (long written = 0; written < readFileSize;
+             written += buf.length) {
+          RAND.nextBytes(buf);
+          out.write(buf, 0, (int) Math.min(buf.length,
+            readFileSize - written));
+        }
+      } finally {
+        out.close();
+      }
+    }
+    for (int stripe : stripeLengths) {
+      for (int bufSize : bufSizes) {
+        for (boolean pooled : new boolean[] {false, true}) {
+          benchRead(files, stripe, bufSize, pooled);
+        }
+      }
+    }
+  }
+
+  private void benchRead(File[] files, int stripe, int bufSize,
+      boolean pooled) throws IOException, InterruptedException {
+    BufferPool pool = new BufferPool(
+      pooled ? BufferPool.DEFAULT_MAX_BYTES : 0, false);
+    // Once to warm up the page cache and the code, once to measure.
+    long bytes = 0, msec = 0, misses = 0;
+    for (int round = 0; round < 2; round++) {
+      InputStream[] streams = new InputStream[stripe];
+      for (int i = 0; i < stripe; i++) {
+        streams[i] = new FileInputStream(files[i]);
+      }
+      long missesBefore = pool.getMisses();
+      long start = System.nanoTime();
+      ParallelStreamReader reader = new ParallelStreamReader(
+        RaidUtils.NULL_PROGRESSABLE, streams, bufSize, stripe, 2,
+        readFileSize, pool);
+      reader.start();
+      try {
+        long slices = (readFileSize + bufSize - 1) / bufSize;
+        for (long s = 0; s < slices; s++) {
+          ParallelStreamReader.ReadResult result = reader.getReadResult();
+          if (result.getException() != null) {
+            throw result.getException();
+          }
+          result.release();
+        }
+      } finally {
+        reader.shutdown();
+      }
+      msec = (System.nanoTime() - start) / 1000000;
+      bytes = stripe * readFileSize;
+      misses = pool.getMisses() - missesBefore;
+    }
+    Result r = new Result();
+    r.msec = msec;
+    r.allocated = misses * bufSize;
+    report(pooled ? "read-pooled" : "read", "ParallelStreamReader", stripe,
+      0, bufSize, "-", 0, bytes, r);
+  }
+
+  static class Result {
+    long iterations;
+    long msec;
+    long allocated = -1;
+  }
+
+  /**
+   * Runs op for caseTime milliseconds after a warm up of the same length.
+   */
+  Result time(Runnable op) {
+    long end = System.currentTimeMillis() + caseTime;
+    while (System.currentTimeMillis() < end) {
+      op.run();
+    }
+    Result r = new Result();
+    long allocatedBefore = allocatedBytes();
+    long start = System.nanoTime();
+    end = System.currentTimeMillis() + caseTime;
+    do {
+      op.run();
+      r.iterations++;
+    } while (System.currentTimeMillis() < end);
+    r.msec = Math.max(1, (System.nanoTime() - start) / 1000000);
+    long allocatedAfter = allocatedBytes();
+    if (allocatedBefore >= 0 && allocatedAfter >= 0) {
+      r.allocated = allocatedAfter - allocatedBefore;
+    }
+    return r;
+  }
+
+  /**
+   * @return The bytes allocated by the current thread so far, or -1 if the
+   *         JVM does not tell.
+   */
+  static long allocatedBytes() {
+    try {
+      Class<?> beanClass =
+        Class.forName("com.sun.management.ThreadMXBean");
+      Object bean = ManagementFactory.getThreadMXBean();
+      if (!beanClass.isInstance(bean)) {
+        return -1;
+      }
+      Method m = beanClass.getMethod("getThreadAllocatedBytes", long.class);
+      return (Long) m.invoke(bean, Thread.currentThread().getId());
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+
+  private void report(String benchmark, ErasureCode ec, int bufSize,
+      String pattern, int erasures, long bytes, Result r) {
+    report(benchmark, ec.getClass().getSimpleName(), ec.stripeSize(),
+      ec.paritySize(), bufSize, pattern, erasures, bytes, r);
+  }
+
+  private void report(String benchmark, String code, int stripe, int parity,
+      int bufSize, String pattern, int erasures, long bytes, Result r) {
+    long msec = Math.max(1, r.msec);
+    double mbPerSec = (bytes / (1024.0 * 1024.0)) / (msec / 1000.0);
+    double allocPerByte = r.allocated < 0 || bytes == 0 ?
+      -1 : (double) r.allocated / bytes;
+    String line = tag + "\t" + benchmark + "\t" + code + "\t" + stripe +
+      "\t" + parity + "\t" + bufSize + "\t" + pattern + "\t" + erasures +
+      "\t" + bytes + "\t" + msec +
+      "\t" + String.format(Locale.US, "%.2f", mbPerSec) +
+      "\t" + String.format(Locale.US, "%.4f", allocPerByte);
+    for (PrintStream out : outs) {
+      out.println(line);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(new Configuration(),
+      new ErasureCodeBenchmark(), args);
+    System.exit(res);
+  }
+}
@@ -647,17 +647,18 @@ public class TestBlockCopier extends TestCase {
       ((JobConf)job.getConfiguration()).setStrings("hdfs.testblockcopier.blockhashes", hashes);
     }
     
+    @Override
+    protected Map<String, Integer> getCorruptFiles() throws IOException {
+      // Disable CorruptionMonitor 
+      return new HashMap<String, Integer>();
+    }
+    
     @Override
     protected Map<String, Integer> getLostFiles(
         Pattern pattern, String[] dfsckArgs) throws IOException {
       
       Map<String, Integer> map = new HashMap<String, Integer>();
       
-      // Disable CorruptionMonitor 
-      if (pattern.equals(DistBlockIntegrityMonitor.LIST_CORRUPT_FILE_PATTERN)) {
-        return map;
-      }
-      
       for (String file : TestBlockCopier.decommissioningFiles) {
         map.put(file, 1);
       }
@@ -0,0 +1,110 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.raid;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class TestBufferPool extends TestCase {
+
+  public void testSizeClasses() {
+    BufferPool pool = new BufferPool(1024, false);
+    byte[] a = pool.getBuffer(100);
+    byte[] b = pool.getBuffer(200);
+    assertEquals(100, a.length);
+    assertEquals(200, b.length);
+    assertEquals(2, pool.getMisses());
+    assertEquals(300, pool.getOutstandingBytes());
+
+    pool.returnBuffer(a);
+    pool.returnBuffer(b);
+    assertEquals(0, pool.getOutstandingBytes());
+    assertEquals(300, pool.getPooledBytes());
+
+    // Buffers are only reused for the exact same size.
+    assertSame(b, pool.getBuffer(200));
+    assertEquals(1, pool.getHits());
+    byte[] c = pool.getBuffer(150);
+    assertEquals(150, c.length);
+    assertEquals(3, pool.getMisses());
+    assertSame(a, pool.getBuffer(100));
+    assertEquals(0, pool.getPooledBytes());
+  }
+
+  public void testBounded() {
+    BufferPool pool = new BufferPool(250, false);
+    byte[] a = pool.getBuffer(100);
+    byte[] b = pool.getBuffer(100);
+    byte[] c = pool.getBuffer(100);
+    pool.returnBuffers(new byte[][]{a, b, c});
+    // The third buffer does not fit.
+    assertEquals(200, pool.getPooledBytes());
+    assertEquals(0, pool.getOutstandingBytes());
+  }
+
+  public void testByteBuffers() {
+    BufferPool pool = new BufferPool(1024, true);
+    ByteBuffer a = pool.getByteBuffer(64);
+    assertTrue(a.isDirect());
+    a.putLong(1L);
+    pool.returnByteBuffer(a);
+    ByteBuffer b = pool.getByteBuffer(64);
+    assertSame(a, b);
+    assertEquals(0, b.position());
+    assertEquals(64, b.remaining());
+    assertEquals(1, pool.getHits());
+  }
+
+  public void testReadResultsReturned() throws Exception {
+    BufferPool pool = new BufferPool(1024 * 1024, false);
+    int bufSize = 1024;
+    int numSlices = 8;
+    InputStream[] streams = new InputStream[3];
+    for (int i = 0; i < streams.length; i++) {
+      byte[] data = new byte[bufSize * numSlices];
+      for (int j = 0; j < data.length; j++) {
+        data[j] = (byte) (i + j);
+      }
+      streams[i] = new ByteArrayInputStream(data);
+    }
+    ParallelStreamReader reader = new ParallelStreamReader(
+      RaidUtils.NULL_PROGRESSABLE, streams, bufSize, 2, 2,
+      bufSize * numSlices, pool);
+    reader.start();
+    try {
+      for (int slice = 0; slice < numSlices; slice++) {
+        ParallelStreamReader.ReadResult result = reader.getReadResult();
+        assertNull(result.getException());
+        for (int i = 0; i < streams.length; i++) {
+          assertEquals((byte) (i + slice * bufSize), result.readBufs[i][0]);
+        }
+        result.release();
+      }
+    } finally {
+      reader.shutdown();
+    }
+    // At most the queued slices and the one being read were ever allocated.
+    assertTrue(pool.getMisses() <= 4 * streams.length);
+    assertEquals(numSlices * streams.length,
+                 pool.getHits() + pool.getMisses());
+    assertEquals(0, pool.getOutstandingBytes());
+  }
+}
@@ -0,0 +1,171 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.raid;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.protocol.LocatedBlockWithMetaInfo;
+
+public class TestChecksummedBlockPipe extends TestCase {
+  final static int BYTES_PER_CHECKSUM = 512;
+
+  /**
+   * The data and the metadata read from the pipe should be the same as
+   * the block written to it and its metadata computed from a local copy.
+   */
+  public void testDataAndMetadata() throws Exception {
+    Random rand = new Random();
+    // Full buffers, a partial buffer and a partial checksum chunk.
+    int[] lengths = {0, 1, BYTES_PER_CHECKSUM, 4 * BYTES_PER_CHECKSUM,
+                     10 * BYTES_PER_CHECKSUM + 17};
+    for (int length : lengths) {
+      byte[] data = new byte[length];
+      rand.nextBytes(data);
+      byte[][] result = transfer(data);
+      assertTrue(Arrays.equals(data, result[0]));
+      assertTrue("Metadata mismatch for length " + length,
+          Arrays.equals(expectedMetadata(data), result[1]));
+    }
+  }
+
+  public void testAbort() throws Exception {
+    final ChecksummedBlockPipe pipe =
+      new ChecksummedBlockPipe(BYTES_PER_CHECKSUM, 2, 2);
+    Thread writer = new Thread() {
+      public void run() {
+        try {
+          pipe.getOutputStream().write(new byte[BYTES_PER_CHECKSUM * 2]);
+        } catch (IOException e) {
+        }
+        pipe.abort(new IOException("Reconstruction failed"));
+      }
+    };
+    writer.start();
+    InputStream in = pipe.getDataStream();
+    byte[] buf = new byte[BYTES_PER_CHECKSUM * 2];
+    assertEquals(buf.length, in.read(buf, 0, buf.length));
+    try {
+      in.read(buf, 0, buf.length);
+      fail("Expected the write error");
+    } catch (IOException e) {
+      assertEquals("Reconstruction failed", e.getMessage());
+    }
+    writer.join();
+  }
+
+  public void testCancel() throws Exception {
+    final ChecksummedBlockPipe pipe =
+      new ChecksummedBlockPipe(BYTES_PER_CHECKSUM, 1, 1);
+    final IOException[] error = new IOException[1];
+    Thread writer = new Thread() {
+      public void run() {
+        try {
+          OutputStream out = pipe.getOutputStream();
+          // Writes until the reader goes away.
+          while (true) {
+            out.write(new byte[BYTES_PER_CHECKSUM]);
+          }
+        } catch (IOException e) {
+          error[0] = e;
+        }
+      }
+    };
+    writer.start();
+    pipe.getDataStream().read(new byte[10], 0, 10);
+    pipe.cancel();
+    writer.join(10000);
+    assertFalse(writer.isAlive());
+    assertNotNull(error[0]);
+  }
+
+  /**
+   * Writes data to a pipe and reads it the way BlockSender does, checksums
+   * of a packet before its data.
+   */
+  private byte[][] transfer(final byte[] data) throws Exception {
+    final ChecksummedBlockPipe pipe =
+      new ChecksummedBlockPipe(BYTES_PER_CHECKSUM, 4, 2);
+    Thread writer = new Thread() {
+      public void run() {
+        try {
+          OutputStream out = pipe.getOutputStream();
+          // Odd sized writes.
+          for (int off = 0; off < data.length; off += 100) {
+            out.write(data, off, Math.min(100, data.length - off));
+          }
+          out.close();
+        } catch (IOException e) {
+          pipe.abort(e);
+        }
+      }
+    };
+    writer.start();
+
+    ByteArrayOutputStream dataOut = new ByteArrayOutputStream();
+    ByteArrayOutputStream metaOut = new ByteArrayOutputStream();
+    InputStream dataIn = pipe.getDataStream();
+    InputStream metaIn = pipe.getMetadataStream();
+    byte[] header = new byte[7];
+    RaidUtils.readTillEnd(metaIn, header, false);
+    metaOut.write(header);
+    byte[] chk = new byte[4];
+    byte[] chunk = new byte[BYTES_PER_CHECKSUM];
+    for (int off = 0; off < data.length; off += BYTES_PER_CHECKSUM) {
+      int len = Math.min(BYTES_PER_CHECKSUM, data.length - off);
+      RaidUtils.readTillEnd(metaIn, chk, false);
+      metaOut.write(chk);
+      RaidUtils.readTillEnd(dataIn, chunk, len, false);
+      dataOut.write(chunk, 0, len);
+    }
+    assertEquals(-1, dataIn.read());
+    assertEquals(-1, metaIn.read());
+    writer.join();
+    return new byte[][] {dataOut.toByteArray(), metaOut.toByteArray()};
+  }
+
+  private byte[] expectedMetadata(byte[] data) throws IOException {
+    Configuration conf = new Configuration();
+    conf.setInt("io.bytes.per.checksum", BYTES_PER_CHECKSUM);
+    BlockReconstructor reconstructor = new BlockReconstructor(conf) {
+      List<LocatedBlockWithMetaInfo> lostBlocksInFile(
+          DistributedFileSystem fs, String uriPath, FileStatus stat) {
+        return null;
+      }
+    };
+    InputStream meta = reconstructor.computeMetadata(conf,
+        new ByteArrayInputStream(data));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int b;
+    while ((b = meta.read()) >= 0) {
+      out.write(b);
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.raid;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.hdfs.protocol.CorruptFileBlocks;
+
+public class TestCorruptFileFeed extends TestCase {
+
+  /**
+   * Serves a fixed list of corrupt blocks, pageSize blocks at a time, with
+   * the position in the list as the cookie like the namenode does.
+   */
+  static class FakeLister implements CorruptFileFeed.Lister {
+    String[] blocks;
+    final int pageSize;
+    int calls = 0;
+
+    FakeLister(String[] blocks, int pageSize) {
+      this.blocks = blocks;
+      this.pageSize = pageSize;
+    }
+
+    public CorruptFileBlocks list(String path, String cookie) {
+      calls++;
+      int start = cookie == null ? 0 : Integer.parseInt(cookie);
+      int end = Math.min(blocks.length, start + pageSize);
+      String[] page = Arrays.copyOfRange(blocks, Math.min(start, end), end);
+      return new CorruptFileBlocks(page, Integer.toString(end));
+    }
+  }
+
+  public void testSingleSweep() throws IOException {
+    FakeLister lister = new FakeLister(
+      new String[] {"/a", "/b", "/a", "/c", "/a"}, 2);
+    CorruptFileFeed feed = new CorruptFileFeed(lister, "/");
+    Map<String, Integer> files = feed.nextBatch(100);
+    assertEquals(3, files.size());
+    assertEquals(3, files.get("/a").intValue());
+    assertEquals(1, files.get("/b").intValue());
+    assertEquals(1, files.get("/c").intValue());
+    assertEquals(1, feed.getSweeps());
+    // Three pages and the empty page that ends the list.
+    assertEquals(4, lister.calls);
+  }
+
+  public void testIncremental() throws IOException {
+    FakeLister lister = new FakeLister(
+      new String[] {"/a", "/b", "/c", "/d", "/e"}, 2);
+    CorruptFileFeed feed = new CorruptFileFeed(lister, "/");
+    // Each batch only fetches the pages it needs.
+    Map<String, Integer> files = feed.nextBatch(2);
+    assertEquals(2, files.size());
+    assertTrue(files.containsKey("/a") && files.containsKey("/b"));
+    assertEquals(1, lister.calls);
+
+    files = feed.nextBatch(2);
+    assertEquals(2, files.size());
+    assertTrue(files.containsKey("/c") && files.containsKey("/d"));
+    assertEquals(0, feed.getSweeps());
+
+    files = feed.nextBatch(2);
+    assertEquals(1, files.size());
+    assertTrue(files.containsKey("/e"));
+    assertEquals(1, feed.getSweeps());
+
+    // The next sweep starts from the beginning and sees the new list.
+    lister.blocks = new String[] {"/f"};
+    files = feed.nextBatch(2);
+    assertEquals(1, files.size());
+    assertTrue(files.containsKey("/f"));
+    assertEquals(2, feed.getSweeps());
+  }
+
+  public void testEmpty() throws IOException {
+    FakeLister lister = new FakeLister(new String[0], 2);
+    CorruptFileFeed feed = new CorruptFileFeed(lister, "/");
+    assertTrue(feed.nextBatch(10).isEmpty());
+    assertTrue(feed.nextBatch(10).isEmpty());
+    assertEquals(2, feed.getSweeps());
+  }
+
+  public void testLostFileCollector() throws IOException {
+    DistBlockIntegrityMonitor.LostFileCollector collector =
+      new DistBlockIntegrityMonitor.LostFileCollector(
+        DistBlockIntegrityMonitor.LIST_DECOMMISSION_FILE_PATTERN);
+    PrintStream ps = new PrintStream(collector, true);
+    ps.println("The list of corrupt files under path '/' are:");
+    ps.println("blk_123\t/user/foo");
+    ps.println("blk_-456\t/user/foo");
+    ps.print("blk_789\t/user/bar");
+    ps.close();
+    assertEquals(2, collector.lostFiles.size());
+    assertEquals(2, collector.lostFiles.get("/user/foo").intValue());
+    assertEquals(1, collector.lostFiles.get("/user/bar").intValue());
+  }
+}
@@ -19,10 +19,16 @@ package org.apache.hadoop.raid;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.TestCase;
 
@@ -112,6 +118,7 @@ public class TestDirectoryTraversal extends TestCase {
         filesCreated.clear();
         createDirectoryTree(root, 5, 5, 0.3, 0.3, fs);
         LOG.info("Files created:" + filesCreated.size());
+        int numEntries = dirsCreated.size() + filesCreated.size();
         DirectoryTraversal dt =
           DirectoryTraversal.fileRetriever(Arrays.asList(root), fs, 5, true, true);
         FileStatus file;
@@ -123,6 +130,340 @@ public class TestDirectoryTraversal extends TestCase {
           assertTrue(filesCreated.remove(name));
         }
         assertEquals(0, filesCreated.size());
+        assertEquals(dirsCreated.size() + 1, dt.getDirectoriesListed());
+        assertEquals(numEntries, dt.getEntriesListed());
+        assertEquals(0, dt.getQueuedDirectories());
+      } finally {
+        fs.delete(root, true);
+      }
+    }
+  }
+
+  /**
+   * A deep and narrow tree and a wide directory with more threads than
+   * there is work for most of the time.
+   */
+  public void testManyThreads() throws Exception {
+    Path root = new Path(TEST_DIR + Path.SEPARATOR + "manythreads");
+    FileSystem fs = root.getFileSystem(conf);
+    fs.delete(root, true);
+    try {
+      Set<String> expected = new HashSet<String>();
+      Path dir = new Path(root, "deep");
+      for (int i = 0; i < 30; ++i) {
+        dir = new Path(dir, "d" + i);
+        Path file = new Path(dir, "f" + i);
+        createFile(fs, file);
+        expected.add(file.toUri().getPath());
+      }
+      for (int i = 0; i < 200; ++i) {
+        Path file = new Path(root, "wide/d" + i + "/f");
+        createFile(fs, file);
+        expected.add(file.toUri().getPath());
+      }
+      DirectoryTraversal dt = DirectoryTraversal.fileRetriever(
+          Arrays.asList(root), fs, 32, true, false);
+      Set<String> found = new HashSet<String>();
+      FileStatus f;
+      while ((f = dt.next()) != DirectoryTraversal.FINISH_TOKEN) {
+        assertTrue(found.add(f.getPath().toUri().getPath()));
+      }
+      assertEquals(expected, found);
+      // root, deep, 30 deep directories, wide and 200 wide directories.
+      assertEquals(234, dt.getDirectoriesListed());
+    } finally {
+      fs.delete(root, true);
+    }
+  }
+
+  /**
+   * With a small queue limit most directories are listed by the processor
+   * that finds them instead of being queued.
+   */
+  public void testInlineListing() throws Exception {
+    Path root = new Path(TEST_DIR + Path.SEPARATOR + "inline");
+    FileSystem fs = root.getFileSystem(conf);
+    fs.delete(root, true);
+    try {
+      Set<String> expected = new HashSet<String>();
+      for (int i = 0; i < 5; ++i) {
+        for (int j = 0; j < 3; ++j) {
+          Path file = new Path(root, "d" + i + "/e" + j + "/f");
+          createFile(fs, file);
+          expected.add(file.toUri().getPath());
+        }
+      }
+      long queuedBefore = DirectoryTraversal.getAllQueuedDirectories();
+      final DirectoryTraversal[] traversal = new DirectoryTraversal[1];
+      final AtomicInteger maxQueued = new AtomicInteger(0);
+      DirectoryTraversal.Filter filter = new DirectoryTraversal.Filter() {
+        public boolean check(FileStatus f) {
+          DirectoryTraversal dt = traversal[0];
+          if (dt != null) {
+            int queued = dt.getQueuedDirectories();
+            if (queued > maxQueued.get()) {
+              maxQueued.set(queued);
+            }
+          }
+          return !f.isDir();
+        }
+      };
+      traversal[0] = new DirectoryTraversal("Test ", Arrays.asList(root), fs,
+          filter, 1, false, false, null, Collections.<Path>emptyList(), 1);
+      Set<String> found = new HashSet<String>();
+      FileStatus f;
+      while ((f = traversal[0].next()) != DirectoryTraversal.FINISH_TOKEN) {
+        assertTrue(found.add(f.getPath().toUri().getPath()));
+      }
+      assertEquals(expected, found);
+      // root, 5 d directories and 15 e directories.
+      assertEquals(21, traversal[0].getDirectoriesListed());
+      assertTrue("queued " + maxQueued.get(), maxQueued.get() <= 1);
+      assertEquals(queuedBefore, DirectoryTraversal.getAllQueuedDirectories());
+    } finally {
+      fs.delete(root, true);
+    }
+  }
+
+  /**
+   * The directories queued by a traversal that is stopped before the end
+   * are dropped from the count of all the queued directories.
+   */
+  public void testStop() throws Exception {
+    Path root = new Path(TEST_DIR + Path.SEPARATOR + "stop");
+    FileSystem fs = root.getFileSystem(conf);
+    fs.delete(root, true);
+    try {
+      for (int i = 0; i < 20; ++i) {
+        createFile(fs, new Path(root, "d" + i + "/f"));
+      }
+      long queuedBefore = DirectoryTraversal.getAllQueuedDirectories();
+      final CountDownLatch blocked = new CountDownLatch(1);
+      final CountDownLatch release = new CountDownLatch(1);
+      // Blocks the only processor in the first sub directory, with the
+      // other sub directories queued.
+      DirectoryTraversal.Filter filter = new DirectoryTraversal.Filter() {
+        public boolean check(FileStatus f) {
+          if (f.isDir()) {
+            return false;
+          }
+          blocked.countDown();
+          try {
+            release.await(60, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+          }
+          return true;
+        }
+      };
+      DirectoryTraversal dt = new DirectoryTraversal("Test ",
+          Arrays.asList(root), fs, filter, 1, false);
+      assertTrue(blocked.await(60, TimeUnit.SECONDS));
+      assertEquals(19, dt.getQueuedDirectories());
+      dt.stop();
+      for (int i = 0; i < 100 && dt.getQueuedDirectories() > 0; i++) {
+        Thread.sleep(100);
+      }
+      release.countDown();
+      assertEquals(0, dt.getQueuedDirectories());
+      assertEquals(queuedBefore, DirectoryTraversal.getAllQueuedDirectories());
+    } finally {
+      fs.delete(root, true);
+    }
+  }
+
+  /**
+   * Counts the files checked, accepts the files named x* and treats the
+   * other files as settled.
+   */
+  static class CountingFilter implements DirectoryTraversal.SettlingFilter {
+    final AtomicInteger filesChecked = new AtomicInteger(0);
+
+    public boolean check(FileStatus f) {
+      if (f.isDir()) {
+        return false;
+      }
+      filesChecked.incrementAndGet();
+      return f.getPath().getName().startsWith("x");
+    }
+
+    public boolean isSettled(FileStatus f) {
+      return true;
+    }
+  }
+
+  private Set<String> traverse(FileSystem fs, List<Path> roots,
+      List<Path> filesOnlyRoots, DirectoryTraversal.Filter filter,
+      DirectoryTraversal.DirectorySummary summary) throws IOException {
+    DirectoryTraversal dt = new DirectoryTraversal("Test ", roots, fs,
+        filter, 3, true, false, summary, filesOnlyRoots);
+    Set<String> result = new HashSet<String>();
+    FileStatus f;
+    while ((f = dt.next()) != DirectoryTraversal.FINISH_TOKEN) {
+      result.add(f.getPath().toUri().getPath());
+    }
+    return result;
+  }
+
+  public void testScanState() throws Exception {
+    Path root = new Path(TEST_DIR + Path.SEPARATOR + "scanstate");
+    FileSystem fs = root.getFileSystem(conf);
+    fs.delete(root, true);
+    try {
+      createFile(fs, new Path(root, "a/f1"));
+      createFile(fs, new Path(root, "a/f2"));
+      createFile(fs, new Path(root, "b/c/f3"));
+      createFile(fs, new Path(root, "e/f4"));
+      createFile(fs, new Path(root, "e/x5"));
+      String x5 = new Path(root, "e/x5").toUri().getPath();
+
+      Configuration scanConf = new Configuration(conf);
+      scanConf.set(DirectoryScanState.SCAN_STATE_DIR_KEY,
+        new Path(root, "state").toString());
+      DirectoryScanState state =
+        DirectoryScanState.load(scanConf, "policy");
+      List<Path> roots = new ArrayList<Path>();
+      roots.add(new Path(root, "a"));
+      roots.add(new Path(root, "b"));
+      roots.add(new Path(root, "e"));
+      List<Path> none = Collections.<Path>emptyList();
+
+      CountingFilter filter = new CountingFilter();
+      assertEquals(Collections.singleton(x5),
+        traverse(fs, roots, none, filter, state));
+      assertEquals(5, filter.filesChecked.get());
+      // a, b and c are settled, e is not.
+      assertEquals(3, state.getNumSettledDirectories());
+
+      // Only the files of e are checked again.
+      filter = new CountingFilter();
+      assertEquals(Collections.singleton(x5),
+        traverse(fs, roots, none, filter, state));
+      assertEquals(2, filter.filesChecked.get());
+
+      // The state survives a restart.
+      state.finishTraversal();
+      state = DirectoryScanState.load(scanConf, "policy");
+      assertEquals(3, state.getNumSettledDirectories());
+      assertFalse(state.hasPendingDirectories());
+
+      // A changed directory is checked again.
+      Thread.sleep(1100);
+      createFile(fs, new Path(root, "a/x6"));
+      filter = new CountingFilter();
+      Set<String> result = traverse(fs, roots, none, filter, state);
+      assertEquals(2, result.size());
+      assertTrue(result.contains(new Path(root, "a/x6").toUri().getPath()));
+      assertEquals(5, filter.filesChecked.get());
+    } finally {
+      fs.delete(root, true);
+    }
+  }
+
+  /**
+   * A walk that finds fewer files than the job limit is checkpointed,
+   * so that a restart in the middle of it resumes from the pending
+   * directories.
+   */
+  public void testCheckpointWithFewMatches() throws Exception {
+    Path root = new Path(TEST_DIR + Path.SEPARATOR + "fewmatches");
+    FileSystem fs = root.getFileSystem(conf);
+    fs.delete(root, true);
+    try {
+      createFile(fs, new Path(root, "a/x1"));
+      createFile(fs, new Path(root, "b/f2"));
+      final String b = new Path(root, "b").toUri().getPath();
+
+      final Configuration scanConf = new Configuration(conf);
+      scanConf.set(DirectoryScanState.SCAN_STATE_DIR_KEY,
+        new Path(root, "state").toString());
+      scanConf.setLong(DirectoryScanState.CHECKPOINT_INTERVAL_KEY, 0);
+      final DirectoryScanState state =
+        DirectoryScanState.load(scanConf, "policy");
+      state.startTraversal(RaidNode.now());
+
+      // The walk of b stalls until the test has seen the checkpoint.
+      final CountDownLatch stall = new CountDownLatch(1);
+      DirectoryTraversal.Filter filter = new DirectoryTraversal.Filter() {
+        public boolean check(FileStatus f) {
+          if (f.isDir()) {
+            return false;
+          }
+          if (f.getPath().getParent().toUri().getPath().equals(b)) {
+            try {
+              stall.await(60, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+            }
+          }
+          return f.getPath().getName().startsWith("x");
+        }
+      };
+      final DirectoryTraversal traversal = new DirectoryTraversal("Test ",
+        Arrays.asList(new Path(root, "a"), new Path(root, "b")), fs, filter,
+        2, false, false, state, Collections.<Path>emptyList());
+      final List<FileStatus> selected = new ArrayList<FileStatus>();
+      final boolean[] done = new boolean[1];
+      Thread selector = new Thread() {
+        public void run() {
+          try {
+            done[0] = RaidNode.takeFiles(traversal, 100, selected, state);
+          } catch (IOException e) {
+            LOG.error("takeFiles failed", e);
+          }
+        }
+      };
+      selector.start();
+
+      // A restarted RaidNode would resume from b.
+      List<String> pending = new ArrayList<String>();
+      for (int i = 0; i < 100 && !pending.contains(b); i++) {
+        Thread.sleep(100);
+        pending.clear();
+        for (Path p : DirectoryScanState.load(scanConf, "policy")
+               .getPendingDirectories()) {
+          pending.add(p.toUri().getPath());
+        }
+      }
+      stall.countDown();
+      selector.join();
+      assertTrue("pending directories " + pending, pending.contains(b));
+      assertTrue(done[0]);
+      assertEquals(1, selected.size());
+      assertEquals("x1", selected.get(0).getPath().getName());
+    } finally {
+      fs.delete(root, true);
+    }
+  }
+
+  public void testResumeTraversal() throws Exception {
+    Path root = new Path(TEST_DIR + Path.SEPARATOR + "resume");
+    FileSystem fs = root.getFileSystem(conf);
+    for (int i = 0; i < 10; ++i) {
+      fs.delete(root, true);
+      fs.mkdirs(root);
+      try {
+        dirsCreated.clear();
+        filesCreated.clear();
+        createDirectoryTree(root, 5, 5, 0.3, 0.3, fs);
+        DirectoryTraversal dt = DirectoryTraversal.fileRetriever(
+            Arrays.asList(root), fs, 3, true, false);
+        Set<String> found = new HashSet<String>();
+        FileStatus f = dt.next();
+        if (f != DirectoryTraversal.FINISH_TOKEN) {
+          found.add(getSimpleName(f));
+        }
+        // Resuming from the pending directories finds the other files.
+        List<Path> filesOnly = new ArrayList<Path>();
+        List<Path> pending = dt.getPendingDirectories(filesOnly);
+        DirectoryTraversal.Filter fileFilter =
+          new DirectoryTraversal.Filter() {
+            public boolean check(FileStatus f) {
+              return !f.isDir();
+            }
+          };
+        for (String path : traverse(fs, pending, filesOnly, fileFilter, null)) {
+          found.add(new Path(path).getName());
+        }
+        assertTrue(found.containsAll(filesCreated));
       } finally {
         fs.delete(root, true);
       }
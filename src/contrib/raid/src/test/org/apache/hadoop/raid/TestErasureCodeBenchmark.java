@@ -0,0 +1,86 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.raid;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.util.ToolRunner;
+
+public class TestErasureCodeBenchmark extends TestCase {
+  final static String TEST_DIR = new File(System.getProperty("test.build.data",
+      "build/contrib/raid/test/data")).getAbsolutePath();
+
+  public void testErasedLocations() {
+    assertEquals("[3, 4]", Arrays.toString(
+        ErasureCodeBenchmark.erasedLocations("data", 5, 3, 2)));
+    assertEquals("[0, 1, 2]", Arrays.toString(
+        ErasureCodeBenchmark.erasedLocations("parity", 5, 3, 3)));
+    assertEquals("[0, 3, 1]", Arrays.toString(
+        ErasureCodeBenchmark.erasedLocations("mixed", 5, 3, 3)));
+    // Patterns fall back to the other kind of location when they run out.
+    assertEquals("[2, 0]", Arrays.toString(
+        ErasureCodeBenchmark.erasedLocations("data", 1, 2, 2)));
+  }
+
+  /**
+   * Runs a small sweep and checks that every case is reported.
+   */
+  public void testSmallSweep() throws Exception {
+    File dir = new File(TEST_DIR, "erasurecodebenchmark");
+    FileUtil.fullyDelete(dir);
+    File output = new File(dir, "results.tsv");
+    String[] args = {"-tag", "test", "-codes", "XORCode,ReedSolomonCode",
+      "-stripes", "3", "-parities", "1,2", "-buffers", "1024",
+      "-time", "5", "-readFileSize", "8192",
+      "-readDir", new File(dir, "read").getPath(),
+      "-output", output.getPath()};
+    assertEquals(0, ToolRunner.run(new Configuration(),
+        new ErasureCodeBenchmark(), args));
+
+    List<String[]> rows = new ArrayList<String[]>();
+    BufferedReader in = new BufferedReader(new FileReader(output));
+    try {
+      assertEquals(ErasureCodeBenchmark.HEADER, in.readLine());
+      String line;
+      while ((line = in.readLine()) != null) {
+        rows.add(line.split("\t"));
+      }
+    } finally {
+      in.close();
+    }
+    // xor 1 parity: 1 encode + 3 decodes. rs 1 parity: 1 + 3,
+    // rs 2 parities: 1 + 3 * 2. Reads with and without a pool: 2.
+    assertEquals(4 + 4 + 7 + 2, rows.size());
+    int header = ErasureCodeBenchmark.HEADER.split("\t").length;
+    for (String[] row : rows) {
+      assertEquals(header, row.length);
+      assertEquals("test", row[0]);
+      assertTrue(Long.parseLong(row[8]) > 0);
+    }
+    FileUtil.fullyDelete(dir);
+  }
+}
@@ -17,11 +17,14 @@
  */
 package org.apache.hadoop.raid;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
 import java.util.Set;
 
 import junit.framework.TestCase;
+import org.apache.hadoop.conf.Configuration;
 
 public class TestErasureCodes extends TestCase {
   final int TEST_CODES = 100;
@@ -65,6 +68,300 @@ public class TestErasureCodes extends TestCase {
     }
   }
 
+  public void testRSBulkEncodeDecode() {
+    for (int n = 0; n < TEST_CODES; n++) {
+      int stripeSize = RAND.nextInt(20) + 1;
+      int paritySize = RAND.nextInt(6) + 1;
+      int bufSize = RAND.nextInt(10000) + 1;
+      ErasureCode ec = new ReedSolomonCode(stripeSize, paritySize);
+      byte[][] message = new byte[stripeSize][bufSize];
+      for (int i = 0; i < stripeSize; i++) {
+        RAND.nextBytes(message[i]);
+      }
+      byte[][] parity = new byte[paritySize][bufSize];
+      ec.encodeBulk(message, parity);
+
+      // The bulk parity must match the symbol by symbol encoding.
+      int[] tmpIn = new int[stripeSize];
+      int[] tmpOut = new int[paritySize];
+      for (int k = 0; k < bufSize; k++) {
+        for (int j = 0; j < stripeSize; j++) {
+          tmpIn[j] = 0x000000FF & message[j][k];
+        }
+        ec.encode(tmpIn, tmpOut);
+        for (int i = 0; i < paritySize; i++) {
+          assertEquals("Bulk encode failed", (byte)tmpOut[i], parity[i][k]);
+        }
+      }
+
+      byte[][] data = new byte[stripeSize + paritySize][];
+      for (int i = 0; i < paritySize; i++) {
+        data[i] = parity[i].clone();
+      }
+      for (int i = 0; i < stripeSize; i++) {
+        data[i + paritySize] = message[i].clone();
+      }
+      int erasedLen = RAND.nextInt(paritySize) + 1;
+      int[] erasedLocations = randomErasedLocation(erasedLen, data.length);
+      for (int i = 0; i < erasedLen; i++) {
+        java.util.Arrays.fill(data[erasedLocations[i]], (byte)0);
+      }
+      byte[][] decoded = new byte[erasedLen][bufSize];
+      ec.decodeBulk(data, decoded, erasedLocations);
+      for (int i = 0; i < erasedLen; i++) {
+        int loc = erasedLocations[i];
+        byte[] expected = loc < paritySize ?
+          parity[loc] : message[loc - paritySize];
+        assertTrue("Bulk decode failed",
+          java.util.Arrays.equals(expected, decoded[i]));
+      }
+    }
+  }
+
+  public void testRSDecodeMatrixCached() {
+    ReedSolomonCode ec1 = new ReedSolomonCode(10, 4);
+    ReedSolomonCode ec2 = new ReedSolomonCode(10, 4);
+    ReedSolomonCode ec3 = new ReedSolomonCode(10, 5);
+    int[] erasedLocations = new int[]{4, 1, 5, 7};
+    ReedSolomonCode.CodingMatrix matrix =
+      ec1.getDecodeMatrix(erasedLocations);
+    // The same erasure pattern of the same code shares the matrix.
+    assertTrue(matrix == ec2.getDecodeMatrix(erasedLocations.clone()));
+    assertTrue(matrix != ec3.getDecodeMatrix(erasedLocations));
+    assertTrue(matrix != ec1.getDecodeMatrix(new int[]{1, 4, 5, 7}));
+  }
+
+  public void testLRCBulkEncodeDecode() throws Exception {
+    // Stripes of 10 in groups of 4, 4 and 2, with 2 global parities.
+    LocallyRepairableCode ec = new LocallyRepairableCode(10, 4, 2);
+    assertEquals(5, ec.paritySize());
+    assertEquals(3, ec.localParitySize());
+    int bufSize = 1000;
+    byte[][] message = new byte[10][bufSize];
+    for (int i = 0; i < 10; i++) {
+      RAND.nextBytes(message[i]);
+    }
+    byte[][] parity = new byte[5][bufSize];
+    ec.encodeBulk(message, parity);
+    // The local parities are the XOR of their groups.
+    byte[] xor = new byte[bufSize];
+    for (int i = 8; i < 10; i++) {
+      for (int k = 0; k < bufSize; k++) {
+        xor[k] ^= message[i][k];
+      }
+    }
+    assertTrue(java.util.Arrays.equals(xor, parity[2]));
+
+    // Any losses up to the number of global parities can be decoded.
+    for (int n = 0; n < TEST_TIMES; n++) {
+      int erasedLen = RAND.nextInt(2) + 1;
+      int[] erasedLocations = randomErasedLocation(erasedLen, 15);
+      List<Integer> erasedList = new ArrayList<Integer>();
+      for (int loc : erasedLocations) {
+        erasedList.add(loc);
+      }
+      List<Integer> toRead = ec.locationsToReadForDecode(erasedList);
+      int[] unread = new int[15 - toRead.size()];
+      byte[][] data = new byte[15][];
+      for (int loc = 0, u = 0; loc < 15; loc++) {
+        if (toRead.indexOf(loc) == -1) {
+          unread[u++] = loc;
+          data[loc] = new byte[bufSize];
+        } else {
+          data[loc] = loc < 5 ? parity[loc] : message[loc - 5];
+        }
+      }
+      byte[][] decoded = new byte[unread.length][bufSize];
+      ec.decodeBulk(data, decoded, unread);
+      for (int i = 0; i < unread.length; i++) {
+        int loc = unread[i];
+        if (erasedList.indexOf(loc) != -1) {
+          byte[] expected = loc < 5 ? parity[loc] : message[loc - 5];
+          assertTrue("Bulk decode failed",
+            java.util.Arrays.equals(expected, decoded[i]));
+        }
+      }
+    }
+  }
+
+  public void testLRCLocalRepair() throws Exception {
+    LocallyRepairableCode ec = new LocallyRepairableCode(10, 4, 2);
+    // A lost message symbol of the second group reads its group only.
+    List<Integer> erased = new ArrayList<Integer>();
+    erased.add(10);
+    assertEquals(java.util.Arrays.asList(1, 9, 11, 12),
+      ec.locationsToReadForDecode(erased));
+    // So does a lost local parity.
+    erased.set(0, 2);
+    assertEquals(java.util.Arrays.asList(13, 14),
+      ec.locationsToReadForDecode(erased));
+    // Two losses in a group need stripeSize() locations.
+    erased.set(0, 10);
+    erased.add(11);
+    assertEquals(10, ec.locationsToReadForDecode(erased).size());
+    // Losing a group and its parity on top of the global parities is fatal.
+    erased.add(1);
+    erased.add(3);
+    erased.add(4);
+    try {
+      ec.locationsToReadForDecode(erased);
+      fail("Decoded five losses in a group");
+    } catch (TooManyErasedLocations e) {
+    }
+  }
+
+  public void testLRCCodec() throws Exception {
+    Configuration conf = new Configuration();
+    String jsonStr =
+      "[ { \"id\":\"lrc\", \"parity_dir\":\"/raidlrc\"," +
+      "    \"stripe_length\":10, \"parity_length\":6, \"priority\":200," +
+      "    \"local_group_size\":5, \"global_parity_length\":4," +
+      "    \"erasure_code\":\"org.apache.hadoop.raid.LocallyRepairableCode\" }," +
+      "  { \"id\":\"badlrc\", \"parity_dir\":\"/raidbadlrc\"," +
+      "    \"stripe_length\":10, \"parity_length\":4, \"priority\":100," +
+      "    \"local_group_size\":5, \"global_parity_length\":3," +
+      "    \"erasure_code\":\"org.apache.hadoop.raid.LocallyRepairableCode\" } ]";
+    conf.set("raid.codecs.json", jsonStr);
+    Codec.initializeCodecs(conf);
+    LocallyRepairableCode ec = (LocallyRepairableCode)
+      Codec.getCodec("lrc").createErasureCode(conf);
+    assertEquals(5, ec.localGroupSize());
+    assertEquals(2, ec.localParitySize());
+    assertEquals(4, ec.globalParitySize());
+    try {
+      Codec.getCodec("badlrc").createErasureCode(conf);
+      fail("Parity lengths do not add up");
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
+  public void testNativeCodes() throws Exception {
+    Configuration conf = new Configuration();
+    String jsonStr =
+      "[ { \"id\":\"nxor\", \"parity_dir\":\"/raid\"," +
+      "    \"stripe_length\":10, \"parity_length\":1, \"priority\":100," +
+      "    \"erasure_code\":\"org.apache.hadoop.raid.NativeXORCode\" }," +
+      "  { \"id\":\"nrs\", \"parity_dir\":\"/raidrs\"," +
+      "    \"stripe_length\":10, \"parity_length\":4, \"priority\":300," +
+      "    \"erasure_code\":\"org.apache.hadoop.raid.NativeReedSolomonCode\" } ]";
+    conf.set("raid.codecs.json", jsonStr);
+    Codec.initializeCodecs(conf);
+    ErasureCode nativeXor = Codec.getCodec("nxor").createErasureCode(conf);
+    ErasureCode nativeRs = Codec.getCodec("nrs").createErasureCode(conf);
+    assertTrue(nativeXor instanceof NativeXORCode);
+    assertTrue(nativeRs instanceof NativeReedSolomonCode);
+    System.out.println("Native erasure code kernels loaded: " +
+      NativeGaloisField.isNativeLoaded());
+    // Whether or not the native library is loaded, the results must match
+    // the builtin-java codes.
+    verifySameBulkResults(new XORCode(10, 1), nativeXor);
+    verifySameBulkResults(new ReedSolomonCode(10, 4), nativeRs);
+    if (NativeGaloisField.isNativeLoaded()) {
+      verifyNullInputs();
+    }
+  }
+
+  /**
+   * Like the builtin-java product, the native one accepts null inputs
+   * that no output uses.
+   */
+  private void verifyNullInputs() {
+    byte[] x = new byte[10000];
+    byte[] y = new byte[10000];
+    RAND.nextBytes(x);
+    RAND.nextBytes(y);
+    byte[][] outputs = new byte[1][10000];
+    NativeGaloisField.multiplyBulk(new byte[] {1, 0, 1},
+      new byte[][] {x, null, y}, outputs, 1, x.length);
+    for (int k = 0; k < x.length; k++) {
+      assertEquals((byte) (x[k] ^ y[k]), outputs[0][k]);
+    }
+    try {
+      NativeGaloisField.multiplyBulk(new byte[] {1, 2, 1},
+        new byte[][] {x, null, y}, outputs, 1, x.length);
+      fail("Used a null input");
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
+  private void verifySameBulkResults(ErasureCode expected, ErasureCode actual) {
+    int stripeSize = expected.stripeSize();
+    int paritySize = expected.paritySize();
+    for (int n = 0; n < 10; n++) {
+      int bufSize = RAND.nextInt(100000) + 1;
+      byte[][] message = new byte[stripeSize][bufSize];
+      for (int i = 0; i < stripeSize; i++) {
+        RAND.nextBytes(message[i]);
+      }
+      byte[][] parity1 = new byte[paritySize][bufSize];
+      byte[][] parity2 = new byte[paritySize][bufSize];
+      expected.encodeBulk(message, parity1);
+      actual.encodeBulk(message, parity2);
+      for (int i = 0; i < paritySize; i++) {
+        assertTrue("Bulk encode differs",
+          java.util.Arrays.equals(parity1[i], parity2[i]));
+      }
+      byte[][] data = new byte[stripeSize + paritySize][];
+      for (int i = 0; i < paritySize; i++) {
+        data[i] = parity1[i];
+      }
+      for (int i = 0; i < stripeSize; i++) {
+        data[i + paritySize] = message[i];
+      }
+      int[] erasedLocations = randomErasedLocation(paritySize, data.length);
+      for (int loc : erasedLocations) {
+        data[loc] = new byte[bufSize];
+      }
+      byte[][] decoded1 = new byte[paritySize][bufSize];
+      byte[][] decoded2 = new byte[paritySize][bufSize];
+      expected.decodeBulk(data, decoded1, erasedLocations);
+      actual.decodeBulk(data, decoded2, erasedLocations);
+      for (int i = 0; i < paritySize; i++) {
+        assertTrue("Bulk decode differs",
+          java.util.Arrays.equals(decoded1[i], decoded2[i]));
+      }
+    }
+  }
+
+  public void testRSBulkPerformance() {
+    int stripeSize = 10;
+    int paritySize = 4;
+    ErasureCode ec = new ReedSolomonCode(stripeSize, paritySize);
+    int bufsize = 1024 * 1024 * 10;
+    byte[][] message = new byte[stripeSize][bufsize];
+    for (int i = 0; i < stripeSize; i++) {
+      RAND.nextBytes(message[i]);
+    }
+    byte[][] parity = new byte[paritySize][bufsize];
+    long encodeStart = System.currentTimeMillis();
+    ec.encodeBulk(message, parity);
+    long encodeEnd = System.currentTimeMillis();
+    float encodeMSecs = Math.max(1, encodeEnd - encodeStart);
+    System.out.println("Time to bulk encode rs = " + encodeMSecs +
+      "msec (" + message[0].length / (1000 * encodeMSecs) + " MB/s)");
+
+    byte[][] data = new byte[stripeSize + paritySize][];
+    for (int i = 0; i < paritySize; i++) {
+      data[i] = parity[i];
+    }
+    for (int i = 0; i < stripeSize; i++) {
+      data[i + paritySize] = message[i];
+    }
+    int[] erasedLocations = new int[]{4, 1, 5, 7};
+    byte[] copy = message[0].clone();
+    for (int loc : erasedLocations) {
+      data[loc] = new byte[bufsize];
+    }
+    byte[][] decoded = new byte[erasedLocations.length][bufsize];
+    long decodeStart = System.currentTimeMillis();
+    ec.decodeBulk(data, decoded, erasedLocations);
+    long decodeEnd = System.currentTimeMillis();
+    float decodeMSecs = Math.max(1, decodeEnd - decodeStart);
+    System.out.println("Time to bulk decode rs = " + decodeMSecs +
+      "msec (" + message[0].length / (1000 * decodeMSecs) + " MB/s)");
+    assertTrue("Decode failed", java.util.Arrays.equals(copy, decoded[0]));
+  }
+
   public void testRSPerformance() {
     int stripeSize = 10;
     int paritySize = 4;
@@ -129,6 +426,38 @@ public class TestErasureCodes extends TestCase {
     assertTrue("Decode failed", java.util.Arrays.equals(copy, message[0]));
   }
 
+  public void testXorBulkEncodeDecode() {
+    for (int n = 0; n < TEST_CODES; n++) {
+      int stripeSize = RAND.nextInt(20) + 1;
+      int bufSize = RAND.nextInt(10000) + 1;
+      XORCode ec = new XORCode(stripeSize, 1);
+      byte[][] message = new byte[stripeSize][bufSize];
+      byte[] expected = new byte[bufSize];
+      for (int i = 0; i < stripeSize; i++) {
+        RAND.nextBytes(message[i]);
+        for (int k = 0; k < bufSize; k++) {
+          expected[k] ^= message[i][k];
+        }
+      }
+      byte[][] parity = new byte[1][bufSize];
+      ec.encodeBulk(message, parity);
+      assertTrue("Bulk encode failed",
+        java.util.Arrays.equals(expected, parity[0]));
+
+      byte[][] data = new byte[stripeSize + 1][];
+      data[0] = parity[0];
+      for (int i = 0; i < stripeSize; i++) {
+        data[i + 1] = message[i];
+      }
+      int erased = RAND.nextInt(stripeSize + 1);
+      byte[] copy = data[erased];
+      data[erased] = new byte[bufSize];
+      byte[][] decoded = new byte[1][bufSize];
+      ec.decodeBulk(data, decoded, new int[]{erased});
+      assertTrue("Bulk decode failed", java.util.Arrays.equals(copy, decoded[0]));
+    }
+  }
+
   public void testXorPerformance() {
     java.util.Random RAND = new java.util.Random();
     int stripeSize = 10;
@@ -167,9 +496,36 @@ public class TestErasureCodes extends TestCase {
     System.out.println("Time to decode xor = " + decodeMSecs +
       " msec (" + message[0].length / (1000 * decodeMSecs) + "MB/s)");
     assertTrue("Decode failed", java.util.Arrays.equals(copy, message[0]));
+
+    XORCode ec = new XORCode(stripeSize, 1);
+    byte[][] bulkParity = new byte[1][bufsize];
+    long bulkEncodeStart = System.currentTimeMillis();
+    ec.encodeBulk(message, bulkParity);
+    long bulkEncodeEnd = System.currentTimeMillis();
+    float bulkEncodeMSecs = Math.max(1, bulkEncodeEnd - bulkEncodeStart);
+    System.out.println("Time to bulk encode xor = " + bulkEncodeMSecs +
+      " msec (" + message[0].length / (1000 * bulkEncodeMSecs) + "MB/s)");
+    assertTrue("Bulk encode failed",
+      java.util.Arrays.equals(parity, bulkParity[0]));
   }
 
 
+  public void testLocationsToReadByCost() throws Exception {
+    ReedSolomonCode ec = new ReedSolomonCode(4, 2);
+    List<Integer> erased = new ArrayList<Integer>();
+    erased.add(5);
+    // Without costs the first good locations are read.
+    assertEquals(java.util.Arrays.asList(0, 1, 2, 3),
+      ec.locationsToReadForDecode(erased));
+    // The most costly good location is left out.
+    long[] costs = new long[]{0, 40, 0, 0, 0, 0};
+    assertEquals(java.util.Arrays.asList(0, 2, 3, 4),
+      ec.locationsToReadForDecode(erased, costs));
+    costs[5] = Long.MAX_VALUE;
+    assertEquals(java.util.Arrays.asList(0, 2, 3, 4),
+      ec.locationsToReadForDecode(erased, costs));
+  }
+
   public void testComputeErrorLocations() {
     for (int i = 0; i < TEST_TIMES; ++i) {
       verifyErrorLocations(10, 4, 1);
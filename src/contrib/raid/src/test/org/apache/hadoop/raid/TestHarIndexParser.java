@@ -26,6 +26,7 @@ import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
+import java.util.Iterator;
 
 import junit.framework.TestCase;
 import org.apache.commons.logging.Log;
@@ -69,4 +70,38 @@ public class TestHarIndexParser extends TestCase {
 
     LOG.info("testHarIndexParser finished.");
   }
+
+  public void testLookups() throws IOException {
+    InputStream in = new FileInputStream(indexFile);
+    HarIndex parser = new HarIndex(in, indexFile.length());
+    in.close();
+    assertEquals(4, parser.size());
+
+    // Lookups by part file offset, at the boundaries of the files.
+    assertEquals("/f1", parser.findEntry("part-0", 0).fileName);
+    assertEquals("/f1", parser.findEntry("part-0", 1023).fileName);
+    assertEquals("/f2", parser.findEntry("part-0", 1024).fileName);
+    assertEquals("/f3", parser.findEntry("part-0", 3071).fileName);
+    assertNull(parser.findEntry("part-0", 3072));
+    assertEquals("/f4", parser.findEntry("part-1", 1000000).fileName);
+    assertNull(parser.findEntry("part-2", 0));
+
+    // Lookups by name.
+    HarIndex.IndexEntry entry = parser.findEntryByFileName("/f2");
+    assertEquals(1024, entry.startOffset);
+    assertEquals(1024, entry.length);
+    assertEquals(1282018144198L, entry.mtime);
+    assertEquals("part-0", entry.partFileName);
+    assertEquals("part-1", parser.findEntryByFileName("/f4").partFileName);
+    assertNull(parser.findEntryByFileName("/f5"));
+    assertNull(parser.findEntryByFileName("/dir/f1"));
+
+    // The entries are sorted by name.
+    Iterator<HarIndex.IndexEntry> it = parser.getEntries();
+    for (String name : new String[] {"/f1", "/f2", "/f3", "/f4"}) {
+      assertTrue(it.hasNext());
+      assertEquals(name, it.next().fileName);
+    }
+    assertFalse(it.hasNext());
+  }
 }
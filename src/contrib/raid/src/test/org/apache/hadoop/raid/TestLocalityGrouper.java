@@ -0,0 +1,167 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.raid;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.SequenceFileRecordReader;
+
+public class TestLocalityGrouper extends TestCase {
+  final static String TEST_DIR = new File(System.getProperty("test.build.data",
+      "build/contrib/raid/test/data")).getAbsolutePath();
+
+  /**
+   * The locations of a file with one block on each of the given hosts,
+   * written as rack/host.
+   */
+  private static BlockLocation[] locations(String... hosts) {
+    BlockLocation[] locs = new BlockLocation[hosts.length];
+    for (int i = 0; i < hosts.length; i++) {
+      String host = hosts[i].substring(hosts[i].indexOf('/') + 1);
+      locs[i] = new BlockLocation(new String[] {host + ":50010"},
+          new String[] {host}, new String[] {"/" + hosts[i] + ":50010"},
+          i * 100L, 100L);
+    }
+    return locs;
+  }
+
+  public void testGroups() throws IOException {
+    LocalityGrouper<String> grouper = new LocalityGrouper<String>();
+    grouper.add("a1", locations("r1/h1", "r1/h1", "r1/h2"));
+    grouper.add("b1", locations("r2/h3", "r2/h3"));
+    grouper.add("a2", locations("r1/h1", "r2/h3", "r1/h1"));
+    grouper.add("c1", locations("r1/h2", "r1/h2"));
+    grouper.add("b2", locations("r2/h4"));
+    grouper.add("u1", null);
+    assertEquals(6, grouper.size());
+
+    List<LocalityGrouper.Group<String>> groups = grouper.getGroups(2);
+    assertEquals(3, groups.size());
+    // Host local: the files mostly on h1.
+    assertEquals(Arrays.asList("a1", "a2"), groups.get(0).items);
+    assertEquals("h1", groups.get(0).getHosts()[0]);
+    assertEquals(3, groups.get(0).getHosts().length);
+    // Rack local: the files left over on the hosts of r2.
+    assertEquals(Arrays.asList("b1", "b2"), groups.get(1).items);
+    assertEquals(Arrays.asList("h3", "h4"),
+        Arrays.asList(groups.get(1).getHosts()));
+    // The rest, including the file without locations.
+    assertEquals(Arrays.asList("c1", "u1"), groups.get(2).items);
+    assertEquals(Arrays.asList("h2"),
+        Arrays.asList(groups.get(2).getHosts()));
+  }
+
+  public void testCorruptReplicasIgnored() throws IOException {
+    LocalityGrouper<String> grouper = new LocalityGrouper<String>();
+    BlockLocation[] locs = locations("r1/h1", "r1/h1", "r2/h2");
+    locs[0].setCorrupt(true);
+    locs[1].setCorrupt(true);
+    grouper.add("f", locs);
+    List<LocalityGrouper.Group<String>> groups = grouper.getGroups(1);
+    assertEquals(1, groups.size());
+    assertEquals(Arrays.asList("h2"),
+        Arrays.asList(groups.get(0).getHosts()));
+  }
+
+  public void testWeights() throws IOException {
+    LocalityGrouper<String> grouper = new LocalityGrouper<String>();
+    long[] weights = {1, 9, 2, 8, 5, 5};
+    for (int i = 0; i < weights.length; i++) {
+      grouper.add("f" + i, locations("r1/h1"), weights[i]);
+    }
+    List<LocalityGrouper.Group<String>> groups = grouper.getGroups(2);
+    assertEquals(3, groups.size());
+    // The heaviest files are spread over the groups.
+    assertEquals(Arrays.asList("f1", "f0"), groups.get(0).items);
+    assertEquals(Arrays.asList("f3", "f2"), groups.get(1).items);
+    assertEquals(Arrays.asList("f4", "f5"), groups.get(2).items);
+  }
+
+  public void testGetRack() {
+    assertEquals("/r1", LocalityGrouper.getRack("/r1/h1:50010"));
+    assertEquals("/dc/r1", LocalityGrouper.getRack("/dc/r1/h1:50010"));
+    assertEquals("/default-rack", LocalityGrouper.getRack("h1:50010"));
+  }
+
+  public void testSplitsMatchGroups() throws IOException {
+    Configuration conf = new Configuration();
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = new Path(TEST_DIR, "localitygrouper");
+    fs.delete(dir, true);
+    Path file = new Path(dir, "control");
+    Path splitFile = new Path(dir, "splits");
+    // Long names so that the writer also adds sync marks of its own.
+    char[] pad = new char[500];
+    Arrays.fill(pad, 'x');
+    List<List<String>> groups = new ArrayList<List<String>>();
+    SequenceFile.Writer out = SequenceFile.createWriter(fs, conf, file,
+        LongWritable.class, Text.class);
+    LocalityGrouper.SplitWriter splitWriter =
+      new LocalityGrouper.SplitWriter(out);
+    long index = 0;
+    for (int g = 0; g < 4; g++) {
+      splitWriter.startGroup(new String[] {"h" + g});
+      List<String> names = new ArrayList<String>();
+      for (int i = 0; i < 3 + g * 5; i++) {
+        String name = g + "/" + i + new String(pad);
+        out.append(new LongWritable(index++), new Text(name));
+        names.add(name);
+      }
+      groups.add(names);
+    }
+    LocalityGrouper.writeSplits(fs, splitFile, splitWriter.finish());
+    out.close();
+
+    List<LocalityGrouper.Split> splits =
+      LocalityGrouper.readSplits(fs, splitFile);
+    assertEquals(4, splits.size());
+    JobConf job = new JobConf(conf);
+    for (int g = 0; g < 4; g++) {
+      LocalityGrouper.Split split = splits.get(g);
+      assertEquals("h" + g, split.hosts[0]);
+      SequenceFileRecordReader<LongWritable, Text> reader =
+        new SequenceFileRecordReader<LongWritable, Text>(job,
+          new FileSplit(file, split.start, split.length, split.hosts));
+      List<String> names = new ArrayList<String>();
+      LongWritable key = new LongWritable();
+      Text value = new Text();
+      while (reader.next(key, value)) {
+        names.add(value.toString());
+      }
+      reader.close();
+      assertEquals(groups.get(g), names);
+    }
+    assertNull(LocalityGrouper.readSplits(fs, new Path(dir, "missing")));
+    fs.delete(dir, true);
+  }
+}
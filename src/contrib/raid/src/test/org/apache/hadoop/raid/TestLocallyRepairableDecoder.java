@@ -0,0 +1,190 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.raid;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.RaidDFSUtil;
+import org.apache.hadoop.hdfs.TestRaidDfs;
+import org.apache.hadoop.hdfs.protocol.LocatedBlocks;
+
+/**
+ * Reconstructs blocks of a file encoded with a LocallyRepairableCode. The
+ * code is not MDS: some patterns of parity length losses cannot be
+ * decoded.
+ */
+public class TestLocallyRepairableDecoder extends TestCase {
+  final static Log LOG = LogFactory.getLog(
+                            "org.apache.hadoop.raid.TestLocallyRepairableDecoder");
+  final static String TEST_DIR = new File(System.getProperty("test.build.data",
+      "build/contrib/raid/test/data")).getAbsolutePath();
+  final static int NUM_DATANODES = 3;
+  final static long BLOCK_SIZE = 8192L;
+
+  static {
+    ParityFilePair.disableCacheUsedInTestOnly();
+  }
+
+  Configuration conf;
+  MiniDFSCluster dfs = null;
+  FileSystem fileSys = null;
+  Codec codec;
+
+  private void mySetup() throws Exception {
+    new File(TEST_DIR).mkdirs(); // Make sure data directory exists
+    conf = new Configuration();
+
+    conf.setInt("raid.encoder.bufsize", 128);
+    conf.setInt("raid.decoder.bufsize", 128);
+    conf.setInt("dfs.client.max.block.acquire.failures", 1);
+
+    // Stripes of 4 blocks in 2 local groups of 2 blocks, with a local
+    // parity block per group and 1 global parity block. The parity
+    // locations are local 0, local 1, global, and the source locations
+    // follow.
+    String jsonStr =
+      "[ { \"id\":\"lrc\", \"parity_dir\":\"/raidlrc\"," +
+      "    \"tmp_parity_dir\":\"/tmp/raidlrc\"," +
+      "    \"tmp_har_dir\":\"/tmp/raidlrc_har\"," +
+      "    \"stripe_length\":4, \"parity_length\":3, \"priority\":200," +
+      "    \"local_group_size\":2, \"global_parity_length\":1," +
+      "    \"erasure_code\":\"org.apache.hadoop.raid.LocallyRepairableCode\"," +
+      "    \"description\":\"Locally Repairable Code\" } ]";
+    conf.set("raid.codecs.json", jsonStr);
+    Codec.initializeCodecs(conf);
+    codec = Codec.getCodec("lrc");
+
+    dfs = new MiniDFSCluster(conf, NUM_DATANODES, true, null);
+    dfs.waitActive();
+    fileSys = dfs.getFileSystem();
+    FileSystem.setDefaultUri(conf, fileSys.getUri().toString());
+  }
+
+  private void myTearDown() throws Exception {
+    if (dfs != null) { dfs.shutdown(); }
+  }
+
+  /**
+   * Creates a file of two stripes and raids it.
+   * @return the parity file.
+   */
+  private Path createRaidedFile(Path file) throws IOException {
+    TestRaidDfs.createTestFile(fileSys, file, 1, 8, BLOCK_SIZE);
+    RaidNode.doRaid(conf, fileSys.getFileStatus(file),
+      new Path(codec.parityDirectory), codec, new RaidNode.Statistics(),
+      RaidUtils.NULL_PROGRESSABLE, false, 1, 1);
+    return ParityFilePair.getParityFile(codec, file, conf).getPath();
+  }
+
+  private byte[] readBlock(Path file, int block) throws IOException {
+    byte[] buf = new byte[(int) BLOCK_SIZE];
+    FSDataInputStream in = fileSys.open(file);
+    try {
+      in.readFully(block * BLOCK_SIZE, buf);
+    } finally {
+      in.close();
+    }
+    return buf;
+  }
+
+  private void deleteBlock(Path file, int block) throws IOException {
+    LocatedBlocks locations = RaidDFSUtil.getBlockLocations(
+      (DistributedFileSystem) fileSys, file.toUri().getPath(), 0,
+      fileSys.getFileStatus(file).getLen());
+    TestRaidDfs.corruptBlock(file, locations.get(block).getBlock(),
+      NUM_DATANODES, true, dfs);
+  }
+
+  private byte[] fixBlock(Path file, Path parityFile, int block)
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Decoder decoder = new Decoder(conf, codec);
+    decoder.fixErasedBlock(fileSys, file, fileSys, parityFile, BLOCK_SIZE,
+      block * BLOCK_SIZE, BLOCK_SIZE, out, RaidUtils.NULL_PROGRESSABLE);
+    return out.toByteArray();
+  }
+
+  /**
+   * A single loss is repaired from its local group, which decodes more
+   * locations than the parity length. Two losses of a group need the
+   * global parity.
+   */
+  public void testFixErasedBlock() throws Exception {
+    mySetup();
+    try {
+      Path file = new Path("/user/raid/lrc/file1");
+      Path parityFile = createRaidedFile(file);
+      byte[] block1 = readBlock(file, 1);
+      byte[] block4 = readBlock(file, 4);
+      byte[] block5 = readBlock(file, 5);
+
+      deleteBlock(file, 1);
+      assertTrue(Arrays.equals(block1, fixBlock(file, parityFile, 1)));
+
+      deleteBlock(file, 4);
+      deleteBlock(file, 5);
+      assertTrue(Arrays.equals(block4, fixBlock(file, parityFile, 4)));
+      assertTrue(Arrays.equals(block5, fixBlock(file, parityFile, 5)));
+    } finally {
+      myTearDown();
+    }
+  }
+
+  /**
+   * Both blocks of a local group and its local parity cannot be decoded,
+   * although there are only as many losses as parity blocks.
+   */
+  public void testTooManyErrorsInGroup() throws Exception {
+    mySetup();
+    try {
+      ErasureCode code = codec.createErasureCode(conf);
+      assertFalse(code.canDecode(Arrays.asList(0, 3, 4)));
+      assertTrue(code.canDecode(Arrays.asList(2, 3, 5)));
+
+      Path file = new Path("/user/raid/lrc/file2");
+      Path parityFile = createRaidedFile(file);
+      deleteBlock(file, 0);
+      deleteBlock(file, 1);
+      deleteBlock(parityFile, 0);
+      boolean expectedExceptionThrown = false;
+      try {
+        fixBlock(file, parityFile, 0);
+      } catch (IOException e) {
+        LOG.info("Expected exception caught" + e);
+        expectedExceptionThrown = true;
+      }
+      assertTrue(expectedExceptionThrown);
+    } finally {
+      myTearDown();
+    }
+  }
+}
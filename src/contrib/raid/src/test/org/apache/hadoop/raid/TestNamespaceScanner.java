@@ -0,0 +1,211 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.raid;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+public class TestNamespaceScanner extends TestCase {
+  final static String TEST_DIR = new File(System.getProperty("test.build.data",
+      "build/contrib/raid/test/data")).getAbsolutePath();
+
+  FileSystem fs;
+  Path root;
+
+  protected void setUp() throws IOException {
+    fs = FileSystem.getLocal(new Configuration());
+    root = new Path(TEST_DIR, "namespacescanner");
+    fs.delete(root, true);
+    // 3 directories under root and 5 files.
+    createFile(new Path(root, "a/f1"));
+    createFile(new Path(root, "a/f2"));
+    createFile(new Path(root, "a/b/f3"));
+    createFile(new Path(root, "c/f4"));
+    createFile(new Path(root, "f5"));
+  }
+
+  protected void tearDown() throws IOException {
+    fs.delete(root, true);
+  }
+
+  private void createFile(Path p) throws IOException {
+    fs.create(p).close();
+  }
+
+  /**
+   * Counts the files or the directories it is given.
+   */
+  static class Counter implements NamespaceScanner.Consumer {
+    final boolean dirs;
+    final AtomicInteger checked = new AtomicInteger(0);
+    int accepted = 0;
+
+    Counter(boolean dirs) {
+      this.dirs = dirs;
+    }
+
+    public boolean check(FileStatus f) {
+      checked.incrementAndGet();
+      return f.isDir() == dirs;
+    }
+
+    public boolean accept(FileStatus f) {
+      accepted++;
+      return true;
+    }
+  }
+
+  public void testFanOut() throws IOException {
+    NamespaceScanner scanner = new NamespaceScanner("Test ", fs, 3, true,
+        false);
+    Counter files = new Counter(false);
+    Counter dirs = new Counter(true);
+    scanner.scan(Collections.singletonList(root), Arrays.asList(files, dirs));
+    assertEquals(1, scanner.getScans());
+    assertEquals(5, files.accepted);
+    assertEquals(3, dirs.accepted);
+    // Every consumer sees every entry of the one traversal.
+    assertEquals(8, files.checked.get());
+    assertEquals(8, dirs.checked.get());
+  }
+
+  public void testJoinNextScan() throws Exception {
+    final NamespaceScanner scanner = new NamespaceScanner("Test ", fs, 2,
+        false, false);
+    final Counter waiting = new Counter(false);
+    final Exception[] error = new Exception[1];
+    Thread waiter = new Thread() {
+      public void run() {
+        try {
+          scanner.scanNext(new Path(root, "a"), waiting, 60000L);
+        } catch (Exception e) {
+          error[0] = e;
+        }
+      }
+    };
+    waiter.start();
+    while (waiter.getState() != Thread.State.TIMED_WAITING) {
+      Thread.sleep(10);
+    }
+    Counter files = new Counter(false);
+    scanner.scan(Arrays.asList(new Path(root, "a"), new Path(root, "c")),
+        Collections.singletonList(files));
+    waiter.join();
+    assertNull(error[0]);
+    // The waiting consumer only gets the entries under its root.
+    assertEquals(3, waiting.accepted);
+    assertEquals(4, files.accepted);
+    assertEquals(1, scanner.getScans());
+  }
+
+  public void testScanAloneAfterWait() throws Exception {
+    NamespaceScanner scanner = new NamespaceScanner("Test ", fs, 2, false,
+        false);
+    Counter files = new Counter(false);
+    scanner.scanNext(root, files, 100L);
+    assertEquals(5, files.accepted);
+    assertEquals(1, scanner.getScans());
+  }
+
+  public void testDeletedEntriesSkipped() throws IOException {
+    NamespaceScanner scanner = new NamespaceScanner("Test ", fs, 1, false,
+        false);
+    // Stands for a consumer that deletes directory a.
+    NamespaceScanner.Consumer deleter = new NamespaceScanner.Consumer() {
+      public boolean check(FileStatus f) {
+        return f.isDir();
+      }
+
+      public boolean accept(FileStatus f) {
+        return !f.getPath().getName().equals("a");
+      }
+    };
+    Counter files = new Counter(false);
+    scanner.scan(Collections.singletonList(root),
+        Arrays.asList(deleter, files));
+    // The files under a are not handed to the consumers after the deleter.
+    assertEquals(2, files.accepted);
+  }
+
+  public void testScanState() throws IOException {
+    Configuration conf = new Configuration();
+    Path stateDir = new Path(TEST_DIR, "namespacescannerstate");
+    fs.delete(stateDir, true);
+    conf.set(DirectoryScanState.SCAN_STATE_DIR_KEY, stateDir.toString());
+    conf.setLong(DirectoryScanState.CHECKPOINT_INTERVAL_KEY, 0L);
+    NamespaceScanner scanner = new NamespaceScanner("Test ", fs, 1, false,
+        false);
+
+    // A full scan leaves nothing to resume.
+    DirectoryScanState state = DirectoryScanState.load(conf, "test");
+    Counter files = new Counter(false);
+    scanner.scan(Collections.singletonList(root),
+        Collections.singletonList(files), state);
+    assertEquals(5, files.accepted);
+    assertFalse(state.hasPendingDirectories());
+    assertTrue(fs.exists(new Path(stateDir, "test")));
+
+    // Save the position of a traversal that was cut short.
+    DirectoryTraversal traversal = new DirectoryTraversal(
+        Collections.singletonList(root), fs,
+        new DirectoryTraversal.Filter() {
+          public boolean check(FileStatus f) {
+            return !f.isDir();
+          }
+        }, 1, false);
+    assertTrue(traversal.next() != DirectoryTraversal.FINISH_TOKEN);
+    state.checkpoint(traversal);
+    state = DirectoryScanState.load(conf, "test");
+    assertTrue(state.hasPendingDirectories());
+
+    // The resumed scan is not joined by the consumers waiting for a full
+    // scan, and finishes the traversal.
+    files = new Counter(false);
+    scanner.scan(Collections.singletonList(root),
+        Collections.singletonList(files), state);
+    assertTrue(files.accepted > 0);
+    assertTrue(files.accepted <= 5);
+    assertFalse(state.hasPendingDirectories());
+    assertFalse(DirectoryScanState.load(conf, "test")
+        .hasPendingDirectories());
+    fs.delete(stateDir, true);
+  }
+
+  public void testOutermostRoots() {
+    List<Path> roots = NamespaceScanner.outermostRoots(Arrays.asList(
+        new Path("/a/b"), new Path("/ab"), new Path("/a"), new Path("/a/b/c"),
+        new Path("/d/e"), new Path("/a"), new Path("/a-x")));
+    assertEquals(Arrays.asList(new Path("/a"), new Path("/a-x"),
+        new Path("/ab"), new Path("/d/e")), roots);
+    assertTrue(NamespaceScanner.isUnder("/a/b", "/a"));
+    assertTrue(NamespaceScanner.isUnder("/a", "/a"));
+    assertTrue(NamespaceScanner.isUnder("/a", "/"));
+    assertFalse(NamespaceScanner.isUnder("/ab", "/a"));
+  }
+}
@@ -109,4 +109,46 @@ public class TestParallelReader extends TestCase {
 
     LOG.info("testParallelism finished");
   }
+
+  public void testStragglers() throws IOException, InterruptedException {
+    LOG.info("testStragglers starting");
+
+    int bufSize = 10;
+    long sleep = 10;
+    long slowSleep = 5000;
+    InputStream[] streams = new InputStream[10];
+    for (int i = 0; i < streams.length; i++) {
+      streams[i] = new SleepInputStream(i == 3 ? slowSleep : sleep);
+    }
+    ParallelStreamReader parallelReader = new ParallelStreamReader(
+      RaidUtils.NULL_PROGRESSABLE,
+      streams,
+      bufSize,
+      10,
+      1,
+      bufSize);
+    parallelReader.setStragglersAllowed(1, 100);
+    try {
+      parallelReader.start();
+      ParallelStreamReader.ReadResult readResult =
+        parallelReader.getReadResult();
+      LOG.info("Reads with a straggler finished in " +
+        parallelReader.readTime + " msec");
+      assertTrue("Straggler not left behind",
+        parallelReader.readTime < slowSleep / 2);
+      assertEquals(1, readResult.numAbandoned());
+      assertTrue(readResult.abandoned[3]);
+      for (int i = 0; i < streams.length; i++) {
+        assertNull(readResult.ioExceptions[i]);
+        if (i != 3) {
+          assertEquals(1, readResult.readBufs[i][0]);
+        }
+      }
+      readResult.release();
+    } finally {
+      parallelReader.shutdown();
+    }
+
+    LOG.info("testStragglers finished");
+  }
 }
@@ -203,6 +203,85 @@ public class TestPlacementMonitor {
     }
   }
 
+  /**
+   * Test that the resolvers of the source files of a part file share its
+   * located blocks, and that the located statuses of a directory are
+   * listed once.
+   */
+  @Test
+  public void testSharedLocations() throws Exception {
+    setupCluster();
+    try {
+      Path src1 = new Path("/dir/file1");
+      Path src2 = new Path("/dir/file2");
+      Path part = new Path("/raid/dir.har/part-0");
+      DFSTestUtil.createFile(fs, src1, 3, (short)2, 0L);
+      DFSTestUtil.createFile(fs, src2, 3, (short)2, 0L);
+      DFSTestUtil.createFile(fs, part, 4, (short)2, 0L);
+      DFSTestUtil.waitReplication(fs, src1, (short)2);
+      DFSTestUtil.waitReplication(fs, src2, (short)2);
+      DFSTestUtil.waitReplication(fs, part, (short)2);
+
+      Map<Path, Map<Long, LocatedBlockWithMetaInfo>> partFiles =
+          new HashMap<Path, Map<Long, LocatedBlockWithMetaInfo>>();
+      Map<String, DatanodeInfo> nodes = new HashMap<String, DatanodeInfo>();
+      BlockAndDatanodeResolver resolver1 = new BlockAndDatanodeResolver(
+          src1, fs, part, fs, partFiles, nodes);
+      BlockAndDatanodeResolver resolver2 = new BlockAndDatanodeResolver(
+          src2, fs, part, fs, partFiles, nodes);
+      List<BlockInfo> partInfos = placementMonitor.getBlockInfos(fs, part, 0, 4);
+      Assert.assertEquals(4, partInfos.size());
+      LocatedBlock lb1 = resolver1.getLocatedBlock(partInfos.get(2));
+      Assert.assertEquals(1, partFiles.size());
+      Map<Long, LocatedBlockWithMetaInfo> blocks = partFiles.get(part);
+      // The second resolver uses the located blocks of the first one.
+      LocatedBlock lb2 = resolver2.getLocatedBlock(partInfos.get(2));
+      Assert.assertSame(lb1, lb2);
+      Assert.assertSame(blocks, partFiles.get(part));
+      for (String name : partInfos.get(2).getNames()) {
+        Assert.assertNotNull(nodes.get(name));
+        Assert.assertEquals(name, resolver2.getDatanodeInfo(name).getName());
+      }
+
+      PlacementMonitor.LocatedStatusCache cache =
+          PlacementMonitor.locatedFileStatusCache.get();
+      cache.clear();
+      Assert.assertNotNull(
+          placementMonitor.getLocatedFileStatus(fs, src1));
+      Assert.assertEquals(1, cache.size());
+      Assert.assertEquals(2, cache.get("/dir").size());
+      Assert.assertNotNull(
+          placementMonitor.getLocatedFileStatus(fs, src2));
+      Assert.assertNull(placementMonitor.getLocatedFileStatus(fs,
+          new Path("/dir/nonexistent")));
+      Assert.assertEquals(1, cache.size());
+      cache.clear();
+    } finally {
+      if (cluster != null) {
+        cluster.shutdown();
+      }
+      if (placementMonitor != null) {
+        placementMonitor.stop();
+      }
+    }
+  }
+
+  /**
+   * Test that the located blocks and datanodes cached by one checking
+   * cycle are dropped when the next cycle starts.
+   */
+  @Test
+  public void testCachesClearedEveryCycle() throws Exception {
+    setupConf();
+    PlacementMonitor monitor = new PlacementMonitor(conf);
+    monitor.partFileBlocks.put(new Path("/raid/dir.har/part-0"),
+        new HashMap<Long, LocatedBlockWithMetaInfo>());
+    monitor.datanodes.put("host1.rack1.com:50010", new DatanodeInfo());
+    monitor.startCheckingFiles();
+    Assert.assertTrue(monitor.partFileBlocks.isEmpty());
+    Assert.assertTrue(monitor.datanodes.isEmpty());
+  }
+
   /**
    * Test that {@link PlacementMonitor} can choose a correct datanode
    * @throws Exception
@@ -36,7 +36,12 @@ import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MiniMRCluster;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.raid.protocol.PolicyInfo;
 import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.hdfs.DistributedFileSystem;
@@ -544,6 +549,70 @@ public class TestRaidNode extends TestCase {
     }
     LOG.info("Test testDistRaid completed.");
   }
+
+  /**
+   * Test that the DistRaid mapper raids all the files of a batch, including
+   * files that share a directory, and reports the missing ones.
+   */
+  public void testDistRaidMapperBatch() throws Exception {
+    LOG.info("Test testDistRaidMapperBatch started.");
+    new File(TEST_DIR).mkdirs();
+    conf = new Configuration();
+    Utils.loadTestCodecs(conf);
+    dfs = new MiniDFSCluster(conf, 3, true, null);
+    try {
+      dfs.waitActive();
+      fileSys = dfs.getFileSystem();
+      FileSystem.setDefaultUri(conf, fileSys.getUri().toString());
+      JobConf jobConf = new JobConf(conf);
+      jobConf.setInt(DistRaid.BATCH_SIZE_LABEL, 3);
+
+      PolicyInfo info = new PolicyInfo("testDistRaidMapperBatch", conf);
+      info.setSrcPath("/user/dhruba/raidtest");
+      info.setCodecId("xor");
+      info.setProperty("targetReplication", "1");
+      info.setProperty("metaReplication", "1");
+
+      Path[] files = new Path[] {
+        new Path("/user/dhruba/raidtest/dir1/file1"),
+        new Path("/user/dhruba/raidtest/dir1/file2"),
+        new Path("/user/dhruba/raidtest/dir1/file3"),
+        new Path("/user/dhruba/raidtest/dir2/file4"),
+      };
+      for (Path file : files) {
+        createOldFile(fileSys, file, 2, 4, 8192L);
+      }
+      Path missing = new Path("/user/dhruba/raidtest/dir1/missing");
+
+      final List<String> failures = new java.util.ArrayList<String>();
+      OutputCollector<WritableComparable, Text> out =
+        new OutputCollector<WritableComparable, Text>() {
+          public void collect(WritableComparable key, Text value) {
+            failures.add(value.toString());
+          }
+        };
+      DistRaid.DistRaidMapper mapper = new DistRaid.DistRaidMapper();
+      mapper.configure(jobConf);
+      mapper.map(new Text(files[0].toString()), info, out, Reporter.NULL);
+      mapper.map(new Text(missing.toString()), info, out, Reporter.NULL);
+      for (int i = 1; i < files.length; i++) {
+        mapper.map(new Text(files[i].toString()), info, out, Reporter.NULL);
+      }
+      mapper.close();
+
+      assertEquals(1, failures.size());
+      assertTrue(failures.get(0).contains(missing.toString()));
+      Codec codec = Codec.getCodec("xor");
+      for (Path file : files) {
+        ParityFilePair ppair = ParityFilePair.getParityFile(codec, file, conf);
+        assertNotNull("No parity for " + file, ppair);
+        assertEquals(1, fileSys.getFileStatus(file).getReplication());
+      }
+    } finally {
+      dfs.shutdown();
+    }
+    LOG.info("Test testDistRaidMapperBatch completed.");
+  }
   
   //
   // simulate a corruption at specified offset and verify that eveyrthing is good
@@ -17,9 +17,12 @@
  */
 package org.apache.hadoop.raid;
 
+import java.util.Map;
+
 import junit.framework.TestCase;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.mapreduce.Counters;
 
 public class TestRaidNodeMetrics extends TestCase {
   final static Log LOG = LogFactory.getLog(
@@ -34,4 +37,35 @@ public class TestRaidNodeMetrics extends TestCase {
     inst.doUpdates(inst.context);
     LOG.info("testRaidNodeMetrics succeeded");
   }
+
+  public void testLatencyCounters() {
+    // Two tasks report their latencies through the counters of a job.
+    RaidNodeMetrics task = RaidNodeMetrics.getInstance(1);
+    RaidNodeMetrics raidNode = RaidNodeMetrics.getInstance(2);
+    Counters counters = new Counters();
+    for (int t = 0; t < 2; t++) {
+      for (int i = 1; i <= 100; i++) {
+        task.decodeLatency.add(i);
+      }
+      task.blockSendLatency.add(1000);
+      for (Map.Entry<String, Long> c :
+           task.drainLatencyCounters().entrySet()) {
+        counters.findCounter(RaidNodeMetrics.LATENCY_COUNTER_GROUP,
+          c.getKey()).increment(c.getValue());
+      }
+      assertEquals(0, task.decodeLatency.getCount());
+    }
+    raidNode.addLatencyCounters(
+      counters.getGroup(RaidNodeMetrics.LATENCY_COUNTER_GROUP));
+
+    assertEquals(200, raidNode.decodeLatency.getCount());
+    assertEquals(50, raidNode.decodeLatency.getMean());
+    assertEquals(127, raidNode.decodeLatency.getMax());
+    assertEquals(63, raidNode.decodeLatency.getPercentile(50));
+    assertEquals(127, raidNode.decodeLatency.getPercentile(99));
+    assertEquals(2, raidNode.blockSendLatency.getCount());
+    assertEquals(1000, raidNode.blockSendLatency.getMean());
+    assertEquals(0, raidNode.encodeFileLatency.getCount());
+    raidNode.doUpdates(raidNode.context);
+  }
 }
@@ -17,7 +17,9 @@
  */
 package org.apache.hadoop.raid;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -35,6 +37,7 @@ import java.util.zip.CRC32;
 
 import org.junit.Test;
 import org.junit.After;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import org.apache.commons.logging.Log;
@@ -685,6 +688,110 @@ public class TestRaidShellFsck {
                Integer.toString(result), result == 1);
   }
 
+  /**
+   * checks fsck -scan with missing blocks in file block and parity block
+   * in the same stripe, and the report of the damaged stripes
+   */
+  @Test
+  public void testScanReport() throws Exception {
+    LOG.info("testScanReport");
+    setUp(false);
+    waitUntilCorruptFileCount(dfs, 0);
+    removeParityBlock(FILE_PATH0, 1);
+    waitUntilCorruptFileCount(dfs, 1);
+    removeFileBlock(FILE_PATH0, 1, 0);
+    removeFileBlock(FILE_PATH1, 0, 2);
+    waitUntilCorruptFileCount(dfs, 3);
+
+    File report = new File(TEST_DIR, "raidfsck.report");
+    report.delete();
+    String[] scanArgs = {"-fsck", DIR_PATH, "-threads", "2", "-scan",
+                         "-report", report.getPath()};
+    ToolRunner.run(shell, scanArgs);
+    int result = shell.getCorruptCount();
+    assertTrue("fsck should return 1, but returns " +
+               Integer.toString(result), result == 1);
+
+    BufferedReader in = new BufferedReader(new FileReader(report));
+    try {
+      assertEquals(RaidShell.StripeReport.HEADER, in.readLine());
+      String[] fields = in.readLine().split("\t");
+      assertEquals("2", fields[0]);
+      assertEquals("1", fields[3]);
+      assertEquals(FILE_PATH0.toString(), fields[4]);
+      fields = in.readLine().split("\t");
+      assertEquals("1", fields[0]);
+      assertEquals("0", fields[3]);
+      assertEquals(FILE_PATH1.toString(), fields[4]);
+      assertEquals(null, in.readLine());
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * checks fsck -scan when a codec has no parity directory for the
+   * source directory, and on a directory that is not raided at all:
+   * only the xor parity of the test files exists, /raidrs does not
+   */
+  @Test
+  public void testScanWithoutParityDirectory() throws Exception {
+    LOG.info("testScanWithoutParityDirectory");
+    setUp(false);
+    Path unraided = new Path("/user/pkling/unraided/raidfsck.test");
+    createTestFile(unraided);
+    waitUntilCorruptFileCount(dfs, 0);
+    removeFileBlock(FILE_PATH0, 0, 0);
+    waitUntilCorruptFileCount(dfs, 1);
+
+    File report = new File(TEST_DIR, "raidfsck.report");
+    report.delete();
+    String[] scanArgs = {"-fsck", "/user/pkling", "-scan",
+                         "-report", report.getPath()};
+    ToolRunner.run(shell, scanArgs);
+    int result = shell.getCorruptCount();
+    assertTrue("fsck should return 0, but returns " +
+               Integer.toString(result), result == 0);
+
+    // The recoverable stripe is reported, the intact unraided file is not.
+    BufferedReader in = new BufferedReader(new FileReader(report));
+    try {
+      assertEquals(RaidShell.StripeReport.HEADER, in.readLine());
+      String[] fields = in.readLine().split("\t");
+      assertEquals("1", fields[0]);
+      assertEquals("xor", fields[2]);
+      assertEquals("0", fields[3]);
+      assertEquals(FILE_PATH0.toString(), fields[4]);
+      assertEquals(null, in.readLine());
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * checks fsck -scan with the parity in a HAR, same blocks missing as
+   * in testFileBlockAndParityBlockMissingHar
+   */
+  @Test
+  public void testScanHar() throws Exception {
+    LOG.info("testScanHar");
+    setUp(true);
+    waitUntilCorruptFileCount(dfs, 0);
+    removeFileBlock(FILE_PATH0, 0, 0);
+    removeFileBlock(FILE_PATH0, 1, 0);
+    removeFileBlock(FILE_PATH1, 0, 0);
+    removeFileBlock(FILE_PATH1, 1, 0);
+    removeHarParityBlock(2);
+    waitUntilCorruptFileCount(dfs, 3);
+
+    String[] scanArgs = {"-fsck", DIR_PATH, "-scan"};
+    ToolRunner.run(shell, scanArgs);
+    int result = shell.getCorruptCount();
+
+    assertTrue("fsck should return 1, but returns " +
+               Integer.toString(result), result == 1);
+  }
+
   /**
    * checks that fsck does not report corrupt file that is not in
    * the specified path
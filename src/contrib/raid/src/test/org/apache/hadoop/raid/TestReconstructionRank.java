@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.raid;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+
+public class TestReconstructionRank extends TestCase {
+  Configuration conf;
+  Codec xor;
+  Codec rs;
+  ErasureCode xorCode;
+  ErasureCode rsCode;
+
+  protected void setUp() throws IOException {
+    // Stripes of 5 blocks, 1 xor parity block or 3 rs parity blocks.
+    conf = new Configuration();
+    Utils.loadTestCodecs(conf);
+    xor = Codec.getCodec("xor");
+    rs = Codec.getCodec("rs");
+    xorCode = xor.createErasureCode(conf);
+    rsCode = rs.createErasureCode(conf);
+  }
+
+  /**
+   * The locations of a file, a block is lost where lost is true.
+   */
+  private static BlockLocation[] locations(long blockSize, boolean... lost) {
+    BlockLocation[] locs = new BlockLocation[lost.length];
+    for (int i = 0; i < lost.length; i++) {
+      String[] hosts = lost[i] ? new String[0] : new String[] {"h" + i};
+      locs[i] = new BlockLocation(hosts, hosts, i * blockSize, blockSize);
+    }
+    return locs;
+  }
+
+  public void testSourceFile() throws IOException {
+    // Two lost blocks in the first stripe, one in the second.
+    BlockLocation[] locs = locations(10L,
+        false, true, false, true, false,
+        false, false, true, false, false,
+        false, false);
+    ReconstructionRank rank =
+      ReconstructionRank.compute(locs, rs, rsCode, true);
+    assertEquals(1, rank.margin);
+    assertEquals(2, rank.damagedStripes);
+    assertEquals(0, rank.lostStripes);
+    assertEquals(2 * 5 * 10L, rank.cost);
+    assertFalse(rank.isAtRisk());
+
+    // With xor the first stripe cannot be reconstructed.
+    rank = ReconstructionRank.compute(locs, xor, xorCode, true);
+    assertEquals(0, rank.margin);
+    assertEquals(1, rank.damagedStripes);
+    assertEquals(1, rank.lostStripes);
+    assertEquals(5 * 10L, rank.cost);
+    assertTrue(rank.isAtRisk());
+  }
+
+  public void testParityFile() throws IOException {
+    // Stripes of 3 rs parity blocks, the corrupt flag also marks loss.
+    BlockLocation[] locs = locations(10L,
+        false, false, false,
+        false, false, false);
+    locs[4].setCorrupt(true);
+    ReconstructionRank rank =
+      ReconstructionRank.compute(locs, rs, rsCode, false);
+    assertEquals(2, rank.margin);
+    assertEquals(1, rank.damagedStripes);
+    assertEquals(5 * 10L, rank.cost);
+  }
+
+  public void testLocallyRepairableCode() throws IOException {
+    // Stripes of 6 blocks in 2 local groups of 3 blocks, with a local
+    // parity block per group and 1 global parity block.
+    String jsonStr =
+      "[ { \"id\":\"lrc\", \"parity_dir\":\"/raidlrc\"," +
+      "    \"stripe_length\":6, \"parity_length\":3, \"priority\":200," +
+      "    \"local_group_size\":3, \"global_parity_length\":1," +
+      "    \"erasure_code\":\"org.apache.hadoop.raid.LocallyRepairableCode\" } ]";
+    conf.set("raid.codecs.json", jsonStr);
+    Codec.initializeCodecs(conf);
+    Codec lrc = Codec.getCodec("lrc");
+    ErasureCode lrcCode = lrc.createErasureCode(conf);
+
+    // The first stripe lost a whole group, which the local and global
+    // parity blocks cannot decode. The second stripe lost two blocks of a
+    // group: one more loss in the group would make it undecodable.
+    BlockLocation[] locs = locations(10L,
+        true, true, true, false, false, false,
+        true, true, false, false, false, false);
+    ReconstructionRank rank =
+      ReconstructionRank.compute(locs, lrc, lrcCode, true);
+    assertEquals(1, rank.lostStripes);
+    assertEquals(1, rank.damagedStripes);
+    assertEquals(0, rank.margin);
+    assertTrue(rank.isAtRisk());
+
+    // A single loss survives any further loss.
+    locs = locations(10L, false, false, false, false, true, false);
+    rank = ReconstructionRank.compute(locs, lrc, lrcCode, true);
+    assertEquals(0, rank.lostStripes);
+    assertEquals(2, rank.margin);
+    assertFalse(rank.isAtRisk());
+  }
+
+  public void testOrder() {
+    ReconstructionRank atRisk = new ReconstructionRank(0, 1000L, 1, 0);
+    ReconstructionRank cheap = new ReconstructionRank(1, 10L, 1, 0);
+    ReconstructionRank costly = new ReconstructionRank(1, 100L, 2, 0);
+    List<ReconstructionRank> ranks = new ArrayList<ReconstructionRank>(
+        Arrays.asList(ReconstructionRank.UNKNOWN, costly, cheap, atRisk));
+    Collections.sort(ranks);
+    assertEquals(Arrays.asList(atRisk, cheap, costly,
+        ReconstructionRank.UNKNOWN), ranks);
+  }
+}
@@ -0,0 +1,343 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Galois field GF(2^8) kernels for the erasure codes of the raid contrib
+ * module (org.apache.hadoop.raid.NativeGaloisField).
+ *
+ * The only operation is a matrix product over byte buffers:
+ *   outputs[i][k] = sum over j of matrix[i][j] * inputs[j][k]
+ * where sum is XOR. A multiplication by a constant c is done with two
+ * 16-entry tables, one for the low and one for the high nibble of the
+ * input byte: c * x = lo[x & 0x0f] ^ hi[x >> 4]. With SSSE3 or AVX2 the
+ * table lookups are done 16 or 32 bytes at a time by a byte shuffle.
+ */
+
+#if defined HAVE_CONFIG_H
+  #include <config.h>
+#endif
+
+#if defined HAVE_STDLIB_H
+  #include <stdlib.h>
+#else
+  #error 'stdlib.h not found'
+#endif
+
+#if defined HAVE_STRING_H
+  #include <string.h>
+#else
+  #error 'string.h not found'
+#endif
+
+#include <stdint.h>
+
+#include "org_apache_hadoop.h"
+
+#if defined(__GNUC__) && (defined(__x86_64__) || defined(__i386__)) && \
+    (__GNUC__ > 4 || (__GNUC__ == 4 && __GNUC_MINOR__ >= 9))
+  #define HADOOP_RAID_X86_SIMD 1
+  #include <immintrin.h>
+#endif
+
+/* Largest stripe + parity length of a code over GF(2^8). */
+#define MAX_LOCATIONS 256
+/* Bytes processed per pass, so that the output chunk stays in cache. */
+#define CHUNK_SIZE 4096
+
+static uint8_t gf_log[256];
+static uint8_t gf_exp[512];
+
+typedef void (*mul_xor_func)(const uint8_t *lo, const uint8_t *hi,
+                             const uint8_t *in, uint8_t *out, int len);
+typedef void (*xor_func)(const uint8_t *in, uint8_t *out, int len);
+
+static mul_xor_func mul_xor;
+static xor_func xor_into;
+
+static uint8_t gf_mul(uint8_t x, uint8_t y) {
+  if (x == 0 || y == 0) {
+    return 0;
+  }
+  return gf_exp[gf_log[x] + gf_log[y]];
+}
+
+static void mul_xor_generic(const uint8_t *lo, const uint8_t *hi,
+                            const uint8_t *in, uint8_t *out, int len) {
+  int k;
+  for (k = 0; k < len; k++) {
+    out[k] ^= lo[in[k] & 0x0f] ^ hi[in[k] >> 4];
+  }
+}
+
+static void xor_generic(const uint8_t *in, uint8_t *out, int len) {
+  int k = 0;
+  for (; k + 8 <= len; k += 8) {
+    uint64_t a, b;
+    memcpy(&a, in + k, 8);
+    memcpy(&b, out + k, 8);
+    b ^= a;
+    memcpy(out + k, &b, 8);
+  }
+  for (; k < len; k++) {
+    out[k] ^= in[k];
+  }
+}
+
+#if defined HADOOP_RAID_X86_SIMD
+
+__attribute__((target("ssse3")))
+static void mul_xor_ssse3(const uint8_t *lo, const uint8_t *hi,
+                          const uint8_t *in, uint8_t *out, int len) {
+  __m128i tlo = _mm_loadu_si128((const __m128i *) lo);
+  __m128i thi = _mm_loadu_si128((const __m128i *) hi);
+  __m128i mask = _mm_set1_epi8(0x0f);
+  int k = 0;
+  for (; k + 16 <= len; k += 16) {
+    __m128i x = _mm_loadu_si128((const __m128i *) (in + k));
+    __m128i l = _mm_shuffle_epi8(tlo, _mm_and_si128(x, mask));
+    __m128i h = _mm_shuffle_epi8(thi,
+                  _mm_and_si128(_mm_srli_epi64(x, 4), mask));
+    __m128i o = _mm_loadu_si128((const __m128i *) (out + k));
+    o = _mm_xor_si128(o, _mm_xor_si128(l, h));
+    _mm_storeu_si128((__m128i *) (out + k), o);
+  }
+  mul_xor_generic(lo, hi, in + k, out + k, len - k);
+}
+
+__attribute__((target("sse2")))
+static void xor_sse2(const uint8_t *in, uint8_t *out, int len) {
+  int k = 0;
+  for (; k + 16 <= len; k += 16) {
+    __m128i x = _mm_loadu_si128((const __m128i *) (in + k));
+    __m128i o = _mm_loadu_si128((const __m128i *) (out + k));
+    _mm_storeu_si128((__m128i *) (out + k), _mm_xor_si128(o, x));
+  }
+  xor_generic(in + k, out + k, len - k);
+}
+
+__attribute__((target("avx2")))
+static void mul_xor_avx2(const uint8_t *lo, const uint8_t *hi,
+                         const uint8_t *in, uint8_t *out, int len) {
+  __m256i tlo = _mm256_broadcastsi128_si256(
+                  _mm_loadu_si128((const __m128i *) lo));
+  __m256i thi = _mm256_broadcastsi128_si256(
+                  _mm_loadu_si128((const __m128i *) hi));
+  __m256i mask = _mm256_set1_epi8(0x0f);
+  int k = 0;
+  for (; k + 32 <= len; k += 32) {
+    __m256i x = _mm256_loadu_si256((const __m256i *) (in + k));
+    __m256i l = _mm256_shuffle_epi8(tlo, _mm256_and_si256(x, mask));
+    __m256i h = _mm256_shuffle_epi8(thi,
+                  _mm256_and_si256(_mm256_srli_epi64(x, 4), mask));
+    __m256i o = _mm256_loadu_si256((const __m256i *) (out + k));
+    o = _mm256_xor_si256(o, _mm256_xor_si256(l, h));
+    _mm256_storeu_si256((__m256i *) (out + k), o);
+  }
+  mul_xor_generic(lo, hi, in + k, out + k, len - k);
+}
+
+__attribute__((target("avx2")))
+static void xor_avx2(const uint8_t *in, uint8_t *out, int len) {
+  int k = 0;
+  for (; k + 32 <= len; k += 32) {
+    __m256i x = _mm256_loadu_si256((const __m256i *) (in + k));
+    __m256i o = _mm256_loadu_si256((const __m256i *) (out + k));
+    _mm256_storeu_si256((__m256i *) (out + k), _mm256_xor_si256(o, x));
+  }
+  xor_generic(in + k, out + k, len - k);
+}
+
+#endif
+
+JNIEXPORT void JNICALL
+Java_org_apache_hadoop_raid_NativeGaloisField_init(
+  JNIEnv *env, jclass clazz, jint primitivePolynomial
+  ) {
+  int value = 1;
+  int pow;
+  for (pow = 0; pow < 255; pow++) {
+    gf_exp[pow] = (uint8_t) value;
+    gf_exp[pow + 255] = (uint8_t) value;
+    gf_log[value] = (uint8_t) pow;
+    value <<= 1;
+    if (value >= 256) {
+      value ^= primitivePolynomial;
+    }
+  }
+  mul_xor = mul_xor_generic;
+  xor_into = xor_generic;
+#if defined HADOOP_RAID_X86_SIMD
+  __builtin_cpu_init();
+  if (__builtin_cpu_supports("avx2")) {
+    mul_xor = mul_xor_avx2;
+    xor_into = xor_avx2;
+  } else if (__builtin_cpu_supports("ssse3")) {
+    mul_xor = mul_xor_ssse3;
+    xor_into = xor_sse2;
+  } else if (__builtin_cpu_supports("sse2")) {
+    xor_into = xor_sse2;
+  }
+#endif
+}
+
+/*
+ * Releases the pinned arrays, the outputs first. Arrays that were not
+ * pinned have a NULL pointer.
+ */
+static void release_arrays(JNIEnv *env,
+                           jbyteArray *inArrays, uint8_t **in, int numInputs,
+                           jbyteArray *outArrays, uint8_t **out,
+                           int numOutputs, jint outMode) {
+  int i, j;
+  for (i = numOutputs - 1; i >= 0; i--) {
+    if (out[i] != NULL) {
+      (*env)->ReleasePrimitiveArrayCritical(env, outArrays[i], out[i],
+                                            outMode);
+    }
+  }
+  for (j = numInputs - 1; j >= 0; j--) {
+    if (in[j] != NULL) {
+      (*env)->ReleasePrimitiveArrayCritical(env, inArrays[j], in[j],
+                                            JNI_ABORT);
+    }
+  }
+}
+
+JNIEXPORT void JNICALL
+Java_org_apache_hadoop_raid_NativeGaloisField_multiplyBulk(
+  JNIEnv *env, jclass clazz, jbyteArray matrix,
+  jobjectArray inputs, jobjectArray outputs, jint numOutputs, jint len
+  ) {
+  jbyteArray inArrays[MAX_LOCATIONS];
+  jbyteArray outArrays[MAX_LOCATIONS];
+  uint8_t *in[MAX_LOCATIONS];
+  uint8_t *out[MAX_LOCATIONS];
+  uint8_t *coefficients;
+  uint8_t (*tables)[32];
+  int numInputs = (*env)->GetArrayLength(env, inputs);
+  int i, j, start;
+
+  if (numInputs > MAX_LOCATIONS || numOutputs > MAX_LOCATIONS ||
+      numOutputs > (*env)->GetArrayLength(env, outputs) ||
+      (*env)->GetArrayLength(env, matrix) < numInputs * numOutputs) {
+    THROW(env, "java/lang/IllegalArgumentException", "Bad matrix size");
+    return;
+  }
+  coefficients = (uint8_t *) malloc(numInputs * numOutputs);
+  tables = malloc(sizeof(*tables) * numInputs * numOutputs);
+  if (coefficients == NULL || tables == NULL) {
+    free(coefficients);
+    free(tables);
+    THROW(env, "java/lang/OutOfMemoryError", NULL);
+    return;
+  }
+  (*env)->GetByteArrayRegion(env, matrix, 0, numInputs * numOutputs,
+                             (jbyte *) coefficients);
+  for (i = 0; i < numInputs * numOutputs; i++) {
+    for (j = 0; j < 16; j++) {
+      tables[i][j] = gf_mul(coefficients[i], (uint8_t) j);
+      tables[i][16 + j] = gf_mul(coefficients[i], (uint8_t) (j << 4));
+    }
+  }
+
+  // Collect all the array references first: no other JNI calls are allowed
+  // while the arrays are pinned.
+  if ((*env)->EnsureLocalCapacity(env, numInputs + numOutputs) != 0) {
+    goto cleanup;
+  }
+  for (j = 0; j < numInputs; j++) {
+    inArrays[j] = (jbyteArray) (*env)->GetObjectArrayElement(env, inputs, j);
+    if (inArrays[j] == NULL) {
+      // Like the Java path, an input that no output uses may be null.
+      for (i = 0; i < numOutputs; i++) {
+        if (coefficients[i * numInputs + j] != 0) {
+          break;
+        }
+      }
+      if (i < numOutputs) {
+        THROW(env, "java/lang/IllegalArgumentException", "Null input buffer");
+        goto cleanup;
+      }
+    } else if ((*env)->GetArrayLength(env, inArrays[j]) < len) {
+      THROW(env, "java/lang/IllegalArgumentException", "Bad input buffer");
+      goto cleanup;
+    }
+  }
+  for (i = 0; i < numOutputs; i++) {
+    outArrays[i] = (jbyteArray) (*env)->GetObjectArrayElement(env, outputs, i);
+    if (outArrays[i] == NULL ||
+        (*env)->GetArrayLength(env, outArrays[i]) < len) {
+      THROW(env, "java/lang/IllegalArgumentException", "Bad output buffer");
+      goto cleanup;
+    }
+  }
+  memset(in, 0, sizeof(in[0]) * numInputs);
+  memset(out, 0, sizeof(out[0]) * numOutputs);
+  for (j = 0; j < numInputs; j++) {
+    if (inArrays[j] == NULL) {
+      continue;
+    }
+    in[j] = (*env)->GetPrimitiveArrayCritical(env, inArrays[j], NULL);
+    if (in[j] == NULL) {
+      // Nothing can be thrown until the pinned arrays are released.
+      release_arrays(env, inArrays, in, j, outArrays, out, 0, JNI_ABORT);
+      if (!(*env)->ExceptionCheck(env)) {
+        THROW(env, "java/lang/OutOfMemoryError", "Cannot pin input buffer");
+      }
+      goto cleanup;
+    }
+  }
+  for (i = 0; i < numOutputs; i++) {
+    out[i] = (*env)->GetPrimitiveArrayCritical(env, outArrays[i], NULL);
+    if (out[i] == NULL) {
+      release_arrays(env, inArrays, in, numInputs, outArrays, out, i,
+                     JNI_ABORT);
+      if (!(*env)->ExceptionCheck(env)) {
+        THROW(env, "java/lang/OutOfMemoryError", "Cannot pin output buffer");
+      }
+      goto cleanup;
+    }
+  }
+
+  for (start = 0; start < len; start += CHUNK_SIZE) {
+    int chunk = len - start < CHUNK_SIZE ? len - start : CHUNK_SIZE;
+    for (i = 0; i < numOutputs; i++) {
+      uint8_t *o = out[i] + start;
+      memset(o, 0, chunk);
+      for (j = 0; j < numInputs; j++) {
+        uint8_t c = coefficients[i * numInputs + j];
+        if (c == 0) {
+          continue;
+        } else if (c == 1) {
+          xor_into(in[j] + start, o, chunk);
+        } else {
+          uint8_t *t = tables[i * numInputs + j];
+          mul_xor(t, t + 16, in[j] + start, o, chunk);
+        }
+      }
+    }
+  }
+
+  release_arrays(env, inArrays, in, numInputs, outArrays, out, numOutputs, 0);
+
+cleanup:
+  free(coefficients);
+  free(tables);
+}
+
+//vim: sw=2: ts=2: et